@@ -11,21 +11,12 @@
 package org.tigris.mtoolkit.common.certificates;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
-import java.util.jar.JarInputStream;
-import java.util.jar.JarOutputStream;
-import java.util.jar.Manifest;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.SubMonitor;
@@ -36,10 +27,7 @@ import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Shell;
 import org.eclipse.ui.PlatformUI;
 import org.eclipse.ui.preferences.ScopedPreferenceStore;
-import org.osgi.framework.Constants;
 import org.osgi.util.tracker.ServiceTracker;
-import org.tigris.mtoolkit.common.FileUtils;
-import org.tigris.mtoolkit.common.ProcessOutputReader;
 import org.tigris.mtoolkit.common.UtilitiesPlugin;
 import org.tigris.mtoolkit.common.gui.PasswordDialog;
 import org.tigris.mtoolkit.common.installation.InstallationConstants;
@@ -150,83 +138,12 @@ public class CertUtils {
    */
   public static void signJar(String jarName, String signedJar, IProgressMonitor monitor, String alias,
       String storeLocation, String storeType, String storePass) throws IOException {
-    String jarSigner = getJarsignerLocation();
-    if (jarSigner == null) {
-      throw new IOException("The location of jarsigner tool was not correctly specified in Preferences.");
-    }
-    File f = new File(jarSigner);
-    if (!f.exists()) {
-      throw new IOException("The jarsigner tool was not found at \"" + jarSigner + "\"");
-    }
-    List list = new ArrayList();
-    list.add(jarSigner);
-    addOption(list, "-keystore", storeLocation, false);
-    addOption(list, "-storepass", storePass, true);
-    //addOption(list, "-keypass", keypass, false);
-    addOption(list, "-storetype", storeType, false);
-    addOption(list, "-signedjar", signedJar, false);
-    list.add(jarName);
-    list.add(alias);
-
-    Process ps;
-    try {
-      ps = Runtime.getRuntime().exec((String[]) list.toArray(new String[list.size()]));
-    } catch (IOException ioe) {
-      IOException e = new IOException("Cannot sign provided content.");
-      e.initCause(ioe);
-      throw e;
-    }
-    ProcessOutputReader outputReader = new ProcessOutputReader(ps.getInputStream(), "[Jar Signer] Output Reader");
-    outputReader.start();
-
-    int retries = 150;
-    int result = -1;
-    while (!monitor.isCanceled()) {
-      try {
-        Thread.sleep(200);
-        result = ps.exitValue();
-        break;
-      } catch (IllegalThreadStateException itse) {
-        if (--retries == 0)
-          break;
-      } catch (InterruptedException e) {
-        retries = 0;
-        break;
-      }
-    }
-    outputReader.stopReader();
-    //check whether process is canceled by user or just has finished signing.
     if (monitor.isCanceled()) {
-      ps.destroy();
-      if (result != 0) {
-        throw new IOException("Signing operation was cancelled.");
-      }
-    }
-    if (result != 0) {
-      try {
-        ps.getOutputStream().write("a\na\na\n".getBytes());
-        ps.getOutputStream().flush();
-      } catch (IOException e) {
-        // ignore, most probably the pipe will be closed
-      }
-      if (retries == 0) {
-        throw new IOException("Cannot sign provided content. Operation timed out.");
-      } else {
-        throw new IOException("Cannot sign provided content. Jarsigner return code: " + result
-            + ". Jarsigner output: " + outputReader.getOutput());
-      }
+      throw new IOException("Signing operation was cancelled.");
     }
-  }
-
-  private static void addOption(List list, String option, String value, boolean emptyAllowed) {
-    if (value == null) {
-      return;
-    }
-    if (!emptyAllowed && value.trim().length() == 0) {
-      return;
-    }
-    list.add(option.trim());
-    list.add(value.trim());
+    JarSigner.Signer signer = JarSigner.getSigner(storeLocation, storeType, storePass, alias, null);
+    JarSigner.signJar(new File(jarName), signedJar != null ? new File(signedJar) : null,
+        new JarSigner.Signer[] { signer });
   }
 
   /**
@@ -272,94 +189,39 @@ public class CertUtils {
       return;
     }
 
-    SubMonitor subMonitor = SubMonitor.convert(monitor);
-    File tmpDir = new File(UtilitiesPlugin.getDefault().getStateLocation() + "/tmp.extracted");
-    FileUtils.deleteDir(tmpDir);
-
-    JarInputStream jis = null;
-    JarOutputStream jos = null;
-    try {
-      jis = new JarInputStream(new FileInputStream(dpFile));
-      Manifest manifest = jis.getManifest();
-      if (manifest == null) {
-        throw new IOException("DP file has no manifest.");
-      }
-      jos = new JarOutputStream(new FileOutputStream(signedFile), manifest);
-
-      List passwords = new ArrayList();
-      JarEntry jarEntry;
-      while ((jarEntry = jis.getNextJarEntry()) != null && !monitor.isCanceled()) {
-        JarEntry newEntry = new JarEntry(jarEntry.getName());
-        newEntry.setTime(jarEntry.getTime());
-        newEntry.setExtra(jarEntry.getExtra());
-        newEntry.setComment(jarEntry.getComment());
-        jos.putNextEntry(newEntry);
-
-        Attributes attributes = jarEntry.getAttributes();
-        if (attributes != null && attributes.getValue(Constants.BUNDLE_SYMBOLICNAME) != null) {
-          // this entry is bundle - sign it
-          String entryName = jarEntry.getName();
-          File file = new File(tmpDir.getAbsolutePath() + "/" + entryName);
-          file.getParentFile().mkdirs();
-
-          copyBytes(jis, new FileOutputStream(file), false, true);
-          if (!signJar0(file, null, properties, passwords, subMonitor.newChild(1))) {
-            // operation is cancelled
-            return;
-          }
-          copyBytes(new FileInputStream(file), jos, true, false);
-        } else {
-          // entry is not a bundle - put it unchanged
-          copyBytes(jis, jos, false, false);
-        }
-        jis.closeEntry();
-        jos.closeEntry();
-      }
-      jis.close();
-      jos.close();
-      signJar0(signedFile, null, properties, passwords, subMonitor.newChild(1));
-    } finally {
-      if (jis != null) {
-        try {
-          jis.close();
-        } catch (IOException e) {
-        }
-      }
-      if (jos != null) {
-        try {
-          jos.close();
-        } catch (IOException e) {
-        }
-      }
-      FileUtils.deleteDir(tmpDir);
+    SubMonitor subMonitor = SubMonitor.convert(monitor, 10);
+    JarSigner.Signer[] signers = getSigners(properties, new ArrayList());
+    if (signers == null) {
+      // operation is cancelled
+      return;
     }
-  }
-
-  private static void copyBytes(InputStream in, OutputStream out, boolean closeIn, boolean closeOut) throws IOException {
-    byte[] buf = new byte[1024];
-    int len;
-    try {
-      while ((len = in.read(buf)) > 0) {
-        out.write(buf, 0, len);
-      }
-    } finally {
-      if (closeIn)
-        try {
-          in.close();
-        } catch (IOException e) {
-        }
-      if (closeOut)
-        try {
-          out.close();
-        } catch (IOException e) {
-        }
+    if (!JarSigner.signBundles(dpFile, signedFile, signers, subMonitor.newChild(9))) {
+      // operation is cancelled
+      return;
     }
+    JarSigner.signJar(signedFile, null, signers);
+    subMonitor.worked(1);
   }
 
   private static boolean signJar0(File file, File signedFile, Map properties, List passwords, IProgressMonitor monitor)
       throws IOException {
+    JarSigner.Signer[] signers = getSigners(properties, passwords);
+    if (signers == null || monitor.isCanceled()) {
+      return false;
+    }
+    JarSigner.signJar(file, signedFile, signers);
+    return true;
+  }
+
+  /**
+   * Loads the keys of the certificates in the properties. If no password is
+   * provided for given certificate, a dialog for entering password is displayed.
+   * @return the signers or null if a password dialog is canceled
+   */
+  private static JarSigner.Signer[] getSigners(Map properties, List passwords) throws IOException {
     int count = getCertificatesCount(properties);
-    for (int i = 0; i < count && !monitor.isCanceled(); i++) {
+    JarSigner.Signer[] signers = new JarSigner.Signer[count];
+    for (int i = 0; i < count; i++) {
       String alias = getCertificateAlias(properties, i);
       String location = getCertificateStoreLocation(properties, i);
       String type = getCertificateStoreType(properties, i);
@@ -373,16 +235,14 @@ public class CertUtils {
         } else {
           pass = getKeystorePassword(location);
           if (pass == null) {
-            return false;
+            return null;
           }
           passwords.add(pass);
         }
       }
-      String inFileName = (signedFile != null && i > 0) ? signedFile.getAbsolutePath() : file.getAbsolutePath();
-      String outFileName = (signedFile != null && i == 0) ? signedFile.getAbsolutePath() : null;
-      signJar(inFileName, outFileName, monitor, alias, location, type, pass);
+      signers[i] = JarSigner.getSigner(location, type, pass, alias, null);
     }
-    return !monitor.isCanceled();
+    return signers;
   }
 
   /**
@@ -0,0 +1,694 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.common.certificates;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.apache.commons.ssl.Base64;
+import org.apache.commons.ssl.asn1.ASN1EncodableVector;
+import org.apache.commons.ssl.asn1.ASN1Object;
+import org.apache.commons.ssl.asn1.DERInteger;
+import org.apache.commons.ssl.asn1.DERNull;
+import org.apache.commons.ssl.asn1.DERObjectIdentifier;
+import org.apache.commons.ssl.asn1.DEROctetString;
+import org.apache.commons.ssl.asn1.DERSequence;
+import org.apache.commons.ssl.asn1.DERSet;
+import org.apache.commons.ssl.asn1.DERTaggedObject;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.SubMonitor;
+import org.eclipse.core.runtime.jobs.Job;
+import org.osgi.framework.Constants;
+
+/**
+ * Signs JAR files in the current process, the same way as the jarsigner tool
+ * does. The content is streamed between {@link JarInputStream} and
+ * {@link JarOutputStream}: the first pass computes the digests of the entries
+ * and the second one writes the signed manifest, the signature files and the
+ * entries. All signers are applied in a single pass. The loaded keys are
+ * cached until the key store file is changed.
+ * <p>
+ * The bundles in a deployment package are signed in parallel by at most
+ * {@link #SIGNING_JOBS} jobs, which number is set by the
+ * <code>mtoolkit.signing.parallelism</code> system property.
+ *
+ * @since 5.1
+ */
+public class JarSigner {
+
+	/**
+	 * The maximum number of bundles, which are signed at the same time.
+	 */
+	public static final int SIGNING_JOBS = Math.max(1, Integer.getInteger("mtoolkit.signing.parallelism", 4).intValue());
+
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+	private static final String DIGEST_ATTRIBUTE = "SHA-256-Digest";
+	private static final String DIGEST_OID = "2.16.840.1.101.3.4.2.1";
+	private static final String SIGNED_DATA_OID = "1.2.840.113549.1.7.2";
+	private static final String DATA_OID = "1.2.840.113549.1.7.1";
+	private static final String META_INF = "META-INF/";
+	private static final String NAME_HEADER = "Name: ";
+	private static final String CREATED_BY = "1.0 (mToolkit)";
+
+	// key algorithm, signature algorithm, encryption algorithm OID, block file
+	// extension
+	private static final String[][] KEY_ALGORITHMS = { { "RSA", "SHA256withRSA", "1.2.840.113549.1.1.1", "RSA" },
+			{ "DSA", "SHA256withDSA", "1.2.840.10040.4.1", "DSA" },
+			{ "EC", "SHA256withECDSA", "1.2.840.10045.2.1", "EC" } };
+
+	// location + type -> CachedKeyStore
+	private static Hashtable keyStores = new Hashtable();
+
+	/**
+	 * Private key and certificate chain, used for signing.
+	 */
+	public static final class Signer {
+		private String name;
+		private PrivateKey key;
+		private Certificate[] chain;
+		private String[] algorithm;
+
+		private Signer(String alias, PrivateKey key, Certificate[] chain) throws IOException {
+			this.key = key;
+			this.chain = chain;
+			for (int i = 0; i < KEY_ALGORITHMS.length; i++) {
+				if (KEY_ALGORITHMS[i][0].equals(key.getAlgorithm())) {
+					algorithm = KEY_ALGORITHMS[i];
+				}
+			}
+			if (algorithm == null) {
+				throw new IOException("Unsupported key algorithm: " + key.getAlgorithm());
+			}
+			if (chain == null || chain.length == 0 || !(chain[0] instanceof X509Certificate)) {
+				throw new IOException("No X.509 certificate is available for alias: " + alias);
+			}
+			// the signature file name, as generated by jarsigner
+			StringBuffer buf = new StringBuffer();
+			for (int i = 0; i < alias.length() && buf.length() < 8; i++) {
+				char ch = Character.toUpperCase(alias.charAt(i));
+				buf.append((ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || ch == '-' ? ch : '_');
+			}
+			name = buf.toString();
+		}
+	}
+
+	private static class CachedKeyStore {
+		private KeyStore store;
+		private String password;
+		private long lastModified;
+		private Hashtable signers = new Hashtable();
+	}
+
+	/**
+	 * Returns the signer for the given key. The key stores and the keys are
+	 * cached and are loaded again only if the key store file is modified.
+	 *
+	 * @param storeLocation
+	 *            the key store file or URL
+	 * @param storeType
+	 *            the key store type or null for the default type
+	 * @param storePass
+	 *            the key store password
+	 * @param alias
+	 *            the alias of the key
+	 * @param keyPass
+	 *            the key password or null, if it is the same as the key store
+	 *            password
+	 * @throws IOException
+	 *             if the key cannot be loaded
+	 */
+	public static Signer getSigner(String storeLocation, String storeType, String storePass, String alias,
+			String keyPass) throws IOException {
+		if (storeType == null || storeType.trim().length() == 0) {
+			storeType = KeyStore.getDefaultType();
+		}
+		if (storePass == null) {
+			storePass = "";
+		}
+		if (keyPass == null || keyPass.length() == 0) {
+			keyPass = storePass;
+		}
+		File storeFile = new File(storeLocation);
+		long lastModified = storeFile.lastModified();
+		String storeKey = storeLocation + '\n' + storeType;
+		synchronized (keyStores) {
+			try {
+				CachedKeyStore cached = (CachedKeyStore) keyStores.get(storeKey);
+				if (cached == null || !cached.password.equals(storePass) || cached.lastModified != lastModified) {
+					cached = new CachedKeyStore();
+					cached.store = KeyStore.getInstance(storeType.trim());
+					InputStream input = storeFile.exists() ? new FileInputStream(storeFile) : new URL(storeLocation)
+							.openStream();
+					try {
+						cached.store.load(input, storePass.toCharArray());
+					} finally {
+						input.close();
+					}
+					cached.password = storePass;
+					cached.lastModified = lastModified;
+					keyStores.put(storeKey, cached);
+				}
+				String signerKey = alias + '\n' + keyPass;
+				Signer signer = (Signer) cached.signers.get(signerKey);
+				if (signer == null) {
+					PrivateKey key = (PrivateKey) cached.store.getKey(alias, keyPass.toCharArray());
+					if (key == null) {
+						throw new IOException("There is no key with alias \"" + alias + "\" in " + storeLocation);
+					}
+					signer = new Signer(alias, key, cached.store.getCertificateChain(alias));
+					cached.signers.put(signerKey, signer);
+				}
+				return signer;
+			} catch (GeneralSecurityException e) {
+				IOException ioe = new IOException("Cannot load the key \"" + alias + "\" from " + storeLocation);
+				ioe.initCause(e);
+				throw ioe;
+			}
+		}
+	}
+
+	/**
+	 * Signs the file with the given signers.
+	 *
+	 * @param file
+	 *            the file to sign
+	 * @param signedFile
+	 *            the signed file or null, if the file should be changed
+	 * @throws IOException
+	 *             in case of signing error
+	 */
+	public static void signJar(File file, File signedFile, Signer[] signers) throws IOException {
+		File output = signedFile != null ? signedFile : File.createTempFile("signed", ".jar", file
+				.getAbsoluteFile().getParentFile());
+		boolean success = false;
+		try {
+			OutputStream out = new FileOutputStream(output);
+			try {
+				sign(file, out, signers);
+			} finally {
+				out.close();
+			}
+			success = signedFile != null || replace(output, file);
+		} finally {
+			if (!success) {
+				output.delete();
+			}
+		}
+	}
+
+	/**
+	 * Signs the JAR content with the given signers.
+	 *
+	 * @return the signed content
+	 * @throws IOException
+	 *             in case of signing error
+	 */
+	public static byte[] signJar(byte[] content, Signer[] signers) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(content.length + 4096);
+		sign(content, out, signers);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Signs the bundles, contained in the deployment package, with the given
+	 * signers. The deployment package itself is not signed. The bundles are
+	 * signed in parallel, the order of the entries is preserved.
+	 *
+	 * @param dpFile
+	 *            the deployment package
+	 * @param signedFile
+	 *            the output file or null, if the deployment package should be
+	 *            changed
+	 * @return false, if the operation was cancelled
+	 * @throws IOException
+	 *             in case of signing error
+	 */
+	public static boolean signBundles(File dpFile, File signedFile, Signer[] signers, IProgressMonitor monitor)
+			throws IOException {
+		File output = signedFile != null ? signedFile : File.createTempFile("signed", ".dp", dpFile
+				.getAbsoluteFile().getParentFile());
+		Vector pending = new Vector();
+		boolean success = false;
+		JarInputStream jis = null;
+		JarOutputStream jos = null;
+		try {
+			jis = new JarInputStream(new FileInputStream(dpFile), false);
+			Manifest manifest = jis.getManifest();
+			if (manifest == null) {
+				throw new IOException("DP file has no manifest.");
+			}
+			SubMonitor subMonitor = SubMonitor.convert(monitor, manifest.getEntries().size());
+			jos = new JarOutputStream(new FileOutputStream(output), manifest);
+
+			JarEntry jarEntry;
+			while ((jarEntry = jis.getNextJarEntry()) != null && !monitor.isCanceled()) {
+				Attributes attributes = jarEntry.getAttributes();
+				if (attributes != null && attributes.getValue(Constants.BUNDLE_SYMBOLICNAME) != null) {
+					// this entry is bundle - sign it in a job
+					EntryJob job = new EntryJob(jarEntry, readBytes(jis), signers);
+					job.schedule();
+					pending.addElement(job);
+				} else if (pending.isEmpty()) {
+					// entry is not a bundle - put it unchanged
+					jos.putNextEntry(copyEntry(jarEntry));
+					copyBytes(jis, jos);
+					jos.closeEntry();
+				} else {
+					pending.addElement(new EntryJob(jarEntry, readBytes(jis), null));
+				}
+				writeEntries(pending, jos, SIGNING_JOBS, subMonitor);
+			}
+			writeEntries(pending, jos, 0, subMonitor);
+			if (monitor.isCanceled()) {
+				return false;
+			}
+			jis.close();
+			jis = null;
+			jos.close();
+			jos = null;
+			success = signedFile != null || replace(output, dpFile);
+			return true;
+		} finally {
+			for (int i = 0; i < pending.size(); i++) {
+				((Job) pending.elementAt(i)).cancel();
+			}
+			if (jis != null) {
+				try {
+					jis.close();
+				} catch (IOException e) {
+				}
+			}
+			if (jos != null) {
+				try {
+					jos.close();
+				} catch (IOException e) {
+				}
+			}
+			if (!success) {
+				output.delete();
+			}
+		}
+	}
+
+	/**
+	 * Writes the entries from the beginning of the queue, which are ready,
+	 * waiting for them until at most the given number of entries remain.
+	 */
+	private static void writeEntries(Vector pending, JarOutputStream jos, int remaining, IProgressMonitor monitor)
+			throws IOException {
+		while (!pending.isEmpty() && !monitor.isCanceled()) {
+			EntryJob job = (EntryJob) pending.firstElement();
+			if (pending.size() <= remaining && job.getState() != Job.NONE) {
+				return;
+			}
+			try {
+				job.join();
+			} catch (InterruptedException e) {
+				throw new IOException("Signing operation was interrupted.");
+			}
+			pending.removeElementAt(0);
+			if (job.error != null) {
+				throw job.error;
+			}
+			jos.putNextEntry(copyEntry(job.entry));
+			jos.write(job.content);
+			jos.closeEntry();
+			if (job.signers != null) {
+				monitor.worked(1);
+			}
+		}
+	}
+
+	/**
+	 * Signs the content of a deployment package entry.
+	 */
+	private static class EntryJob extends Job {
+		private JarEntry entry;
+		private byte[] content;
+		private Signer[] signers;
+		private IOException error;
+
+		private EntryJob(JarEntry entry, byte[] content, Signer[] signers) {
+			super("Signing " + entry.getName());
+			this.entry = entry;
+			this.content = content;
+			this.signers = signers;
+			setSystem(true);
+		}
+
+		protected IStatus run(IProgressMonitor monitor) {
+			try {
+				content = signJar(content, signers);
+			} catch (IOException e) {
+				error = e;
+			} catch (RuntimeException e) {
+				error = new IOException("Cannot sign " + entry.getName() + ": " + e);
+				error.initCause(e);
+			}
+			return Status.OK_STATUS;
+		}
+	}
+
+	/**
+	 * Signs the content of the source, which is a file or a byte array.
+	 */
+	private static void sign(Object source, OutputStream out, Signer[] signers) throws IOException {
+		// the first pass computes the digests of the entries
+		Manifest manifest = null;
+		Map digests = new LinkedHashMap();
+		JarInputStream jis = new JarInputStream(open(source), false);
+		try {
+			manifest = jis.getManifest();
+			MessageDigest md = getDigest(DIGEST_ALGORITHM);
+			byte[] buf = new byte[8192];
+			JarEntry jarEntry;
+			while ((jarEntry = jis.getNextJarEntry()) != null) {
+				String name = jarEntry.getName();
+				if (name.equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+					// the manifest is not the first entry
+					manifest = new Manifest(jis);
+					continue;
+				}
+				if (jarEntry.isDirectory() || isSignatureFile(name)) {
+					continue;
+				}
+				int read;
+				while ((read = jis.read(buf)) != -1) {
+					md.update(buf, 0, read);
+				}
+				digests.put(name, toBase64(md.digest()));
+			}
+		} finally {
+			jis.close();
+		}
+
+		if (manifest == null) {
+			manifest = new Manifest();
+		}
+		if (manifest.getMainAttributes().getValue(Attributes.Name.MANIFEST_VERSION) == null) {
+			manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		}
+		for (Iterator it = digests.keySet().iterator(); it.hasNext();) {
+			String name = (String) it.next();
+			Attributes attributes = manifest.getAttributes(name);
+			if (attributes == null) {
+				attributes = new Attributes();
+				manifest.getEntries().put(name, attributes);
+			}
+			attributes.putValue(DIGEST_ATTRIBUTE, (String) digests.get(name));
+		}
+		ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+		manifest.write(manifestBytes);
+		byte[] rawManifest = manifestBytes.toByteArray();
+
+		// the second pass writes the signed content
+		JarOutputStream jos = new JarOutputStream(out);
+		writeEntry(jos, JarFile.MANIFEST_NAME, rawManifest);
+		Vector names = new Vector();
+		for (int i = 0; i < signers.length; i++) {
+			String name = signers[i].name;
+			for (int j = 1; names.contains(name); j++) {
+				name = signers[i].name.substring(0, Math.min(signers[i].name.length(), 7)) + j;
+			}
+			names.addElement(name);
+			byte[] signatureFile = createSignatureFile(rawManifest, digests);
+			writeEntry(jos, META_INF + name + ".SF", signatureFile);
+			writeEntry(jos, META_INF + name + '.' + signers[i].algorithm[3], createSignatureBlock(signatureFile,
+				signers[i]));
+		}
+		jis = new JarInputStream(open(source), false);
+		try {
+			JarEntry jarEntry;
+			while ((jarEntry = jis.getNextJarEntry()) != null) {
+				String name = jarEntry.getName();
+				if (name.equalsIgnoreCase(JarFile.MANIFEST_NAME) || isReplacedSignatureFile(name, names)) {
+					continue;
+				}
+				jos.putNextEntry(copyEntry(jarEntry));
+				copyBytes(jis, jos);
+				jos.closeEntry();
+			}
+		} finally {
+			jis.close();
+		}
+		jos.finish();
+	}
+
+	/**
+	 * Creates the signature file, which contains the digests of the manifest
+	 * and of its sections for the signed entries.
+	 */
+	private static byte[] createSignatureFile(byte[] rawManifest, Map digests) throws IOException {
+		MessageDigest md = getDigest(DIGEST_ALGORITHM);
+		Manifest signatureFile = new Manifest();
+		Attributes main = signatureFile.getMainAttributes();
+		main.put(Attributes.Name.SIGNATURE_VERSION, "1.0");
+		main.putValue("Created-By", CREATED_BY);
+		main.putValue(DIGEST_ATTRIBUTE + "-Manifest", toBase64(md.digest(rawManifest)));
+
+		// the sections end with an empty line, which is part of the digest
+		int start = 0;
+		boolean mainSection = true;
+		for (int pos = 0; pos < rawManifest.length;) {
+			int lineEnd = pos;
+			while (lineEnd < rawManifest.length && rawManifest[lineEnd] != '\r' && rawManifest[lineEnd] != '\n') {
+				lineEnd++;
+			}
+			int next = lineEnd;
+			if (next < rawManifest.length && rawManifest[next] == '\r') {
+				next++;
+			}
+			if (next < rawManifest.length && rawManifest[next] == '\n') {
+				next++;
+			}
+			if (lineEnd == pos) {
+				md.update(rawManifest, start, next - start);
+				String digest = toBase64(md.digest());
+				if (mainSection) {
+					main.putValue(DIGEST_ATTRIBUTE + "-Manifest-Main-Attributes", digest);
+					mainSection = false;
+				} else {
+					String name = getSectionName(rawManifest, start, next);
+					if (name != null && digests.containsKey(name)) {
+						Attributes attributes = new Attributes();
+						attributes.putValue(DIGEST_ATTRIBUTE, digest);
+						signatureFile.getEntries().put(name, attributes);
+					}
+				}
+				start = next;
+			}
+			pos = next;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		signatureFile.write(out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Returns the value of the Name header of the manifest section, which can
+	 * be continued on the next lines.
+	 */
+	private static String getSectionName(byte[] rawManifest, int start, int end) throws IOException {
+		String section = new String(rawManifest, start, end - start, "UTF-8");
+		if (!section.startsWith(NAME_HEADER)) {
+			return null;
+		}
+		StringBuffer name = new StringBuffer();
+		int pos = NAME_HEADER.length();
+		while (true) {
+			int lineEnd = pos;
+			while (lineEnd < section.length() && section.charAt(lineEnd) != '\r' && section.charAt(lineEnd) != '\n') {
+				lineEnd++;
+			}
+			name.append(section.substring(pos, lineEnd));
+			pos = lineEnd;
+			if (pos < section.length() && section.charAt(pos) == '\r') {
+				pos++;
+			}
+			if (pos < section.length() && section.charAt(pos) == '\n') {
+				pos++;
+			}
+			if (pos >= section.length() || section.charAt(pos) != ' ') {
+				return name.toString();
+			}
+			pos++;
+		}
+	}
+
+	/**
+	 * Creates PKCS#7 signed data, which contains the signature of the
+	 * signature file and the certificate chain of the signer.
+	 */
+	private static byte[] createSignatureBlock(byte[] signatureFile, Signer signer) throws IOException {
+		byte[] signature;
+		try {
+			Signature engine = Signature.getInstance(signer.algorithm[1]);
+			engine.initSign(signer.key);
+			engine.update(signatureFile);
+			signature = engine.sign();
+		} catch (GeneralSecurityException e) {
+			IOException ioe = new IOException("Cannot sign with " + signer.algorithm[1]);
+			ioe.initCause(e);
+			throw ioe;
+		}
+
+		ASN1EncodableVector digestAlgorithm = new ASN1EncodableVector();
+		digestAlgorithm.add(new DERObjectIdentifier(DIGEST_OID));
+		digestAlgorithm.add(DERNull.INSTANCE);
+
+		ASN1EncodableVector encryptionAlgorithm = new ASN1EncodableVector();
+		encryptionAlgorithm.add(new DERObjectIdentifier(signer.algorithm[2]));
+		if ("RSA".equals(signer.algorithm[0])) {
+			encryptionAlgorithm.add(DERNull.INSTANCE);
+		}
+
+		ASN1EncodableVector certificates = new ASN1EncodableVector();
+		try {
+			for (int i = 0; i < signer.chain.length; i++) {
+				certificates.add(ASN1Object.fromByteArray(signer.chain[i].getEncoded()));
+			}
+		} catch (GeneralSecurityException e) {
+			IOException ioe = new IOException("Cannot encode the certificate chain");
+			ioe.initCause(e);
+			throw ioe;
+		}
+
+		X509Certificate certificate = (X509Certificate) signer.chain[0];
+		ASN1EncodableVector issuerAndSerial = new ASN1EncodableVector();
+		issuerAndSerial.add(ASN1Object.fromByteArray(certificate.getIssuerX500Principal().getEncoded()));
+		issuerAndSerial.add(new DERInteger(certificate.getSerialNumber()));
+
+		ASN1EncodableVector signerInfo = new ASN1EncodableVector();
+		signerInfo.add(new DERInteger(1));
+		signerInfo.add(new DERSequence(issuerAndSerial));
+		signerInfo.add(new DERSequence(digestAlgorithm));
+		signerInfo.add(new DERSequence(encryptionAlgorithm));
+		signerInfo.add(new DEROctetString(signature));
+
+		ASN1EncodableVector signedData = new ASN1EncodableVector();
+		signedData.add(new DERInteger(1));
+		signedData.add(new DERSet(new DERSequence(digestAlgorithm)));
+		signedData.add(new DERSequence(new DERObjectIdentifier(DATA_OID)));
+		signedData.add(new DERTaggedObject(false, 0, new DERSet(certificates)));
+		signedData.add(new DERSet(new DERSequence(signerInfo)));
+
+		ASN1EncodableVector contentInfo = new ASN1EncodableVector();
+		contentInfo.add(new DERObjectIdentifier(SIGNED_DATA_OID));
+		contentInfo.add(new DERTaggedObject(true, 0, new DERSequence(signedData)));
+		return new DERSequence(contentInfo).getDEREncoded();
+	}
+
+	/**
+	 * Checks whether the entry is a signature related file, which is not part
+	 * of the signed content.
+	 */
+	private static boolean isSignatureFile(String name) {
+		String upperName = name.toUpperCase();
+		if (!upperName.startsWith(META_INF) || upperName.indexOf('/', META_INF.length()) != -1) {
+			return false;
+		}
+		return upperName.endsWith(".SF") || upperName.endsWith(".RSA") || upperName.endsWith(".DSA")
+				|| upperName.endsWith(".EC") || upperName.startsWith(META_INF + "SIG-");
+	}
+
+	/**
+	 * Checks whether the entry is a signature file of one of the current
+	 * signers, which is replaced with the new signature.
+	 */
+	private static boolean isReplacedSignatureFile(String name, Vector signerNames) {
+		if (!isSignatureFile(name)) {
+			return false;
+		}
+		String baseName = name.substring(META_INF.length());
+		int idx = baseName.lastIndexOf('.');
+		return idx != -1 && signerNames.contains(baseName.substring(0, idx).toUpperCase());
+	}
+
+	private static InputStream open(Object source) throws IOException {
+		return source instanceof File ? (InputStream) new FileInputStream((File) source) : new ByteArrayInputStream(
+			(byte[]) source);
+	}
+
+	private static boolean replace(File source, File target) throws IOException {
+		if (!target.delete() || !source.renameTo(target)) {
+			throw new IOException("Cannot replace " + target + " with its signed version.");
+		}
+		return true;
+	}
+
+	private static JarEntry copyEntry(JarEntry jarEntry) {
+		JarEntry newEntry = new JarEntry(jarEntry.getName());
+		newEntry.setTime(jarEntry.getTime());
+		newEntry.setExtra(jarEntry.getExtra());
+		newEntry.setComment(jarEntry.getComment());
+		return newEntry;
+	}
+
+	private static void writeEntry(JarOutputStream jos, String name, byte[] content) throws IOException {
+		jos.putNextEntry(new JarEntry(name));
+		jos.write(content);
+		jos.closeEntry();
+	}
+
+	private static byte[] readBytes(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		copyBytes(in, out);
+		return out.toByteArray();
+	}
+
+	private static void copyBytes(InputStream in, OutputStream out) throws IOException {
+		byte[] buf = new byte[8192];
+		int len;
+		while ((len = in.read(buf)) != -1) {
+			out.write(buf, 0, len);
+		}
+	}
+
+	private static MessageDigest getDigest(String algorithm) throws IOException {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (GeneralSecurityException e) {
+			throw new IOException(algorithm + " is not available");
+		}
+	}
+
+	private static String toBase64(byte[] bytes) throws UnsupportedEncodingException {
+		return new String(Base64.encodeBase64(bytes), "US-ASCII");
+	}
+}
@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.common.installation;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+
+/**
+ * Installation item processors, which can install an item to many targets at
+ * once, should implement this interface. The Install to menu driver uses it
+ * instead of processing the item for each target one after another.
+ * 
+ * @since 5.1
+ */
+public interface MultiTargetInstallationItemProcessor extends InstallationItemProcessor {
+
+	/**
+	 * Installs passed item to all specified targets.
+	 * 
+	 * @param item
+	 *            the item to install
+	 * @param targets
+	 *            the targets where to install the passed item
+	 * @param monitor
+	 *            the progress monitor to display current progress
+	 * 
+	 * @return the status of installation, which combines the statuses of the
+	 *         targets
+	 */
+	public IStatus processInstallationItem(InstallationItem item, InstallationTarget[] targets,
+			IProgressMonitor monitor);
+}
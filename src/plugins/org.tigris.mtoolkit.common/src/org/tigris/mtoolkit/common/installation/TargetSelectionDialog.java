@@ -19,4 +19,16 @@ public abstract class TargetSelectionDialog extends TitleAreaDialog {
 	}
 
 	public abstract InstallationTarget getSelectedTarget();
+
+	/**
+	 * Returns the selected targets. Dialogs, which allow selecting more than
+	 * one target, should override this method.
+	 * 
+	 * @return the selected targets or empty array if there is no selection
+	 * @since 5.1
+	 */
+	public InstallationTarget[] getSelectedTargets() {
+		InstallationTarget target = getSelectedTarget();
+		return target != null ? new InstallationTarget[] { target } : new InstallationTarget[0];
+	}
 }
@@ -22,33 +22,49 @@ import org.eclipse.jface.action.Action;
 import org.tigris.mtoolkit.common.installation.InstallationItem;
 import org.tigris.mtoolkit.common.installation.InstallationItemProcessor;
 import org.tigris.mtoolkit.common.installation.InstallationTarget;
+import org.tigris.mtoolkit.common.installation.MultiTargetInstallationItemProcessor;
 
 public class InstallToAction extends Action {
 	private InstallationItemProcessor processor;
-	private InstallationTarget target;
+	private InstallationTarget[] targets;
 	private List items;
 
 	public InstallToAction(InstallationItemProcessor processor, InstallationTarget target, List items) {
-		super(target.getName());
+		this(processor, new InstallationTarget[] { target }, items);
+	}
+
+	public InstallToAction(InstallationItemProcessor processor, InstallationTarget[] targets, List items) {
+		super(targets.length == 1 ? targets[0].getName() : targets.length + " targets");
 		this.processor = processor;
-		this.target = target;
+		this.targets = targets;
 		this.items = items;
 	}
 
 	public void run() {
-		Job job = new Job("Installing to " + target.getName()) {
+		Job job = new Job("Installing to " + getText()) {
 			public IStatus run(IProgressMonitor monitor) {
-				InstallationHistory.getDefault().promoteHistory(target, processor);
+				for (int i = 0; i < targets.length; i++) {
+					InstallationHistory.getDefault().promoteHistory(targets[i], processor);
+				}
 				InstallationHistory.getDefault().saveHistory();
 
 				IStatus status = Status.OK_STATUS;
-				SubMonitor subMonitor = SubMonitor.convert(monitor, items.size());
+				SubMonitor subMonitor = SubMonitor.convert(monitor, items.size() * targets.length);
 				Iterator iterator = items.iterator();
-				while (iterator.hasNext()) {
-					SubMonitor mon = subMonitor.newChild(1);
-					status = processor.processInstallationItem((InstallationItem) iterator.next(), target, mon);
-					if (monitor.isCanceled()) {
-						break;
+				while (iterator.hasNext() && !monitor.isCanceled()) {
+					InstallationItem item = (InstallationItem) iterator.next();
+					if (targets.length > 1 && processor instanceof MultiTargetInstallationItemProcessor) {
+						SubMonitor mon = subMonitor.newChild(targets.length);
+						status = ((MultiTargetInstallationItemProcessor) processor).processInstallationItem(item,
+							targets, mon);
+						continue;
+					}
+					for (int i = 0; i < targets.length; i++) {
+						SubMonitor mon = subMonitor.newChild(1);
+						status = processor.processInstallationItem(item, targets[i], mon);
+						if (monitor.isCanceled()) {
+							break;
+						}
 					}
 				}
 
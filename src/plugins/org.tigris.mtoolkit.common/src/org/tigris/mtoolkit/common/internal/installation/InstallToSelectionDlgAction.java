@@ -18,6 +18,7 @@ import org.eclipse.jface.dialogs.Dialog;
 import org.eclipse.jface.window.IShellProvider;
 import org.eclipse.swt.widgets.Shell;
 import org.tigris.mtoolkit.common.installation.InstallationItemProcessor;
+import org.tigris.mtoolkit.common.installation.InstallationTarget;
 import org.tigris.mtoolkit.common.installation.TargetSelectionDialog;
 
 public class InstallToSelectionDlgAction extends Action {
@@ -42,7 +43,11 @@ public class InstallToSelectionDlgAction extends Action {
 			Constructor constructor = dlgClass.getConstructor(new Class[] { Shell.class });
 			TargetSelectionDialog dialog = (TargetSelectionDialog) constructor.newInstance(new Object[] { shellProvider.getShell() });
 			if (dialog.open() == Dialog.OK) {
-				new InstallToAction(processor, dialog.getSelectedTarget(), items).run();
+				InstallationTarget[] targets = dialog.getSelectedTargets();
+				if (targets.length == 1)
+					new InstallToAction(processor, targets[0], items).run();
+				else if (targets.length > 1)
+					new InstallToAction(processor, targets, items).run();
 			}
 		} catch (Exception e) {
 			// TODO log error
@@ -21,8 +21,7 @@ import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
 
 import org.eclipse.core.runtime.IProgressMonitor;
-import org.tigris.mtoolkit.common.certificates.CertUtils;
-import org.tigris.mtoolkit.dpeditor.util.ResourceManager;
+import org.tigris.mtoolkit.common.certificates.JarSigner;
 
 /**
  * Objects from this class are used to build deployment packages or ant build
@@ -133,36 +132,7 @@ public class DeploymentPackageGenerator {
 				je = new JarEntry(bInfo.getName());
 				jos.putNextEntry(je);
 
-				String signedBundlePath = null;
-				if (signBundles && dppFile.getCertificateInfos().size() != 0) {
-					String bundle = getPath(projectRootPath, bInfo.getBundlePath());
-					for (int j = 0; j < dppFile.getCertificateInfos().size(); j++) {
-						if (monitor.isCanceled()) {
-							if (j > 0)
-								new File(bundle).delete();
-							return;
-						}
-						final CertificateInfo ci = (CertificateInfo) dppFile.getCertificateInfos().elementAt(j);
-						File tmpFile = File.createTempFile("dpgenerator", ".jar");
-						if (!signJar(bundle, tmpFile.getAbsolutePath(), ci)) {
-							String signJarError = error;
-							error = "DP file cannot be created, because bundle " + bInfo.getName() + " cannot be signed.\n";
-							if (signJarError != null && signJarError.trim().length() > 0)
-								error += "Reason: " + signJarError;
-							tmpFile.delete();
-							if (j > 0)
-								new File(bundle).delete();
-							return;
-						}
-						if (j > 0) // remove the old temporary file
-							new File(bundle).delete();
-						bundle = tmpFile.getAbsolutePath();
-					}
-					signedBundlePath = bundle;
-					fis = new FileInputStream(bundle);
-				} else {
-					fis = new FileInputStream(getPath(projectRootPath, bInfo.getBundlePath()));
-				}
+				fis = new FileInputStream(getPath(projectRootPath, bInfo.getBundlePath()));
 				do {
 					bLen = fis.read(buffer);
 					if (bLen > 0) {
@@ -171,8 +141,6 @@ public class DeploymentPackageGenerator {
 				} while (bLen >= 0);
 				fis.close();
 				fis = null;
-				if (signedBundlePath != null)
-					new File(signedBundlePath).delete();
 			}
 
 			for (int i = 0; i < dppFile.getResourceInfos().size(); i++) {
@@ -198,6 +166,25 @@ public class DeploymentPackageGenerator {
 				fis = null;
 			}
 			jos.close();
+
+			if (signBundles && dppFile.getCertificateInfos().size() != 0) {
+				JarSigner.Signer[] signers = getSigners(dppFile);
+				if (signers == null) {
+					new File(dpName).delete();
+					return;
+				}
+				try {
+					if (!JarSigner.signBundles(new File(dpName), null, signers, monitor)) {
+						new File(dpName).delete();
+						return;
+					}
+				} catch (IOException e) {
+					DPPUtilities.debug("Deployment package generator : ", e);
+					error = "DP file cannot be created, because its bundles cannot be signed.\nReason: " + e.getMessage();
+					new File(dpName).delete();
+					return;
+				}
+			}
 		} catch (FileNotFoundException e) {
 			DPPUtilities.debug("Deployment package generator : ", e);
 			error = "Deployment package was not created - some files were not found.";
@@ -222,128 +209,50 @@ public class DeploymentPackageGenerator {
 		}
 	}
 
-	private boolean timeout = false;
-
 	public void signDP(final DPPFile dppFile) {
 		if (dppFile.getCertificateInfos().size() == 0)
 			return;
 
-		for (int i = 0; i < dppFile.getCertificateInfos().size(); i++) {
-			if (monitor.isCanceled()) {
-				return;
-			}
-			final CertificateInfo ci = (CertificateInfo) dppFile.getCertificateInfos().elementAt(i);
-			DPPUtilities.debug("Signing with alias : " + ci.getAlias() + " keystore : " + ci.getKeystore());
-			String dpName = dppFile.getBuildInfo().getDpFileName();
-			String buildLocation = dppFile.getBuildInfo().getBuildLocation();
-			if (!"".equals(buildLocation)) {
-				dpName = buildLocation + File.separator + dpName;
-			}
-			if (!signJar(dpName, null, ci))
-				return;
+		String dpName = dppFile.getBuildInfo().getDpFileName();
+		String buildLocation = dppFile.getBuildInfo().getBuildLocation();
+		if (!"".equals(buildLocation)) {
+			dpName = buildLocation + File.separator + dpName;
+		}
+		JarSigner.Signer[] signers = getSigners(dppFile);
+		if (signers == null || monitor.isCanceled()) {
+			return;
 		}
-
-	}
-
-	private boolean signJar(String jarName, String signedJar, CertificateInfo ci) {
-		String jarSigner = CertUtils.getJarsignerLocation();
-		if (jarSigner == null) {
-			error = "The location of jarsigner tool was not correctly specified in Preferences.";
-			return false;
-		}
-		File f = new File(jarSigner);
-		if (!f.exists()) {
-			error = "The jarsigner tool was not found in the specified path.\nPlease set the correct path in Preferences.\nThe package was successfully created but was not signed.";
-			return false;
-		}
-		Vector v = new Vector();
-		v.addElement(jarSigner);
-		getOptionsLine("-keystore", ci.getKeystore(), v);
-		getOptionsLine("-storepass", ci.getStorepass(), v);
-		getOptionsLine("-keypass", ci.getKeypass(), v);
-		getOptionsLine("-storetype", ci.getStoreType(), v);
-		getOptionsLine("-signedjar", signedJar, v);
-		v.addElement(jarName);
-		v.addElement(ci.getAlias());
 		try {
+			JarSigner.signJar(new File(dpName), null, signers);
+		} catch (IOException e) {
+			DPPUtilities.debug("Deployment package generator : ", e);
+			error = "Could not sign deployment package.\nReason: " + e.getMessage()
+					+ "\nThe package was successfully created but was not signed.";
+		}
+	}
 
-			final Process ps = Runtime.getRuntime().exec((String[]) v.toArray(new String[0]));
-			int result = -1;
-			Thread errorReader = new Thread() {
-				public void run() {
-					Thread.currentThread().setName("[Jar Signer] Error Reader");
-					try {
-						byte[] buf = new byte[4096];
-						int len = ps.getErrorStream().available();
-						while (len != -1 && !timeout) {
-							len = ps.getErrorStream().read(buf);
-							if (len > 0)
-								errorStream = errorStream + new String(buf, 0, len);
-							len = ps.getErrorStream().available();
-						}
-					} catch (IOException io) {
-					}
-				}
-			};
-			errorReader.start();
-
-			Thread outputReader = new Thread() {
-				public void run() {
-					Thread.currentThread().setName("[Jar Signer] Output Reader");
-					try {
-						byte[] buf = new byte[4096];
-						int len = ps.getInputStream().available();
-						while (len != -1 && !timeout) {
-							len = ps.getInputStream().read(buf);
-							if (len > 0)
-								outputStream = outputStream + new String(buf, 0, len);
-							len = ps.getInputStream().available();
-						}
-					} catch (IOException io) {
-					}
-				}
-			};
-			outputReader.start();
-			int retries = 150;
-			while (!monitor.isCanceled()) {
-				try {
-					Thread.sleep(200);
-					result = ps.exitValue();
-					break;
-				} catch (IllegalThreadStateException itse) {
-					if (--retries == 0)
-						break;
-				}
-			}
-			// check whether process is canceled by user or just has finished
-			// signing.
-			if (monitor.isCanceled()) {
-				ps.destroy();
-				timeout = true;
-				if (result != 0) {// the ps can finish during the 100ms in the
-					// while
-					// loop
-					error = ResourceManager.getString("BuildExportWizard.errorSigningCanceled");
-				}
-				return false;
-			}
-			if (result != 0) {
-				error = "Could not sign deployment package using the '" + ci.getAlias() + "' alias.\nCheck that your settings are correct and that the jar signer preference is correctly set.\nThe package was successfully created but was not signed.";
-				System.out.println(error);
-				try {
-					ps.getOutputStream().write("a\na\na\n".getBytes());
-					ps.getOutputStream().flush();
-				} catch (IOException e) {
-					// ignore, most probably the pipe will be closed
-				}
-				// causes problems sometimes.(infinite wait)
-				System.out.println(errorStream);
-				System.out.println(outputStream);
+	/**
+	 * Loads the keys of all certificates of the DPP file. The keys are loaded
+	 * in process and are cached for the next builds.
+	 * 
+	 * @return the signers or null, if a key cannot be loaded
+	 */
+	private JarSigner.Signer[] getSigners(DPPFile dppFile) {
+		JarSigner.Signer[] signers = new JarSigner.Signer[dppFile.getCertificateInfos().size()];
+		for (int i = 0; i < signers.length; i++) {
+			CertificateInfo ci = (CertificateInfo) dppFile.getCertificateInfos().elementAt(i);
+			DPPUtilities.debug("Signing with alias : " + ci.getAlias() + " keystore : " + ci.getKeystore());
+			try {
+				signers[i] = JarSigner.getSigner(ci.getKeystore(), ci.getStoreType(), ci.getStorepass(), ci.getAlias(),
+					ci.getKeypass());
+			} catch (IOException e) {
+				DPPUtilities.debug("Deployment package generator : ", e);
+				error = "Could not load the '" + ci.getAlias() + "' key.\nCheck that your settings are correct.\nReason: "
+						+ e.getMessage();
+				return null;
 			}
-			timeout = true;
-		} catch (Throwable t) {
 		}
-		return true;
+		return signers;
 	}
 
 	private void genereateDefaultBuildProperties(DPPFile dppFile) {
@@ -441,14 +350,6 @@ public class DeploymentPackageGenerator {
 		return header + ": " + value + nl;
 	}
 
-	private void getOptionsLine(String option, String value, Vector v) {
-		if (value == null || value.length() == 0) {
-			return;
-		}
-		v.addElement(option);
-		v.addElement(value);
-	}
-
 	private String getAntOptionsLine(String option, String value) {
 		if (value == null || value.length() == 0) {
 			return "";
@@ -34,6 +34,15 @@ public class Error implements Externalizable {
 	 */
 	public static final int DEPLOYMENT_UNINSTALLED_CODE = -10001;
 
+	/**
+	 * Returned by a delta update of a bundle, when the device doesn't have the
+	 * content, against which the delta was computed. The bundle must be
+	 * updated with its full content.
+	 * 
+	 * @since 3.1
+	 */
+	public static final int BUNDLE_DELTA_MISMATCH_CODE = -10002;
+
 	private static final byte CODE_PRESENT = 0x02;
 	private static final byte MESSAGE_PRESENT = 0x04;
 	private static final byte DETAILS_PRESENT = 0x01;
@@ -17,12 +17,25 @@ import org.tigris.mtoolkit.iagent.internal.utils.DebugUtils;
 public class EventData {
 	private Object conEvent = null;
 	private String eventType = null;
+	private Object collapseKey = null;
 
 	public EventData(Object convEvent, String eventType) {
 		this.conEvent = convEvent;
 		this.eventType = eventType;
 	}
 
+	/**
+	 * Creates an event, which may be replaced by a later event with the same
+	 * collapse key, while they wait to be sent. For example, the state
+	 * changes of a bundle can be collapsed to the latest one.
+	 * 
+	 * @since 3.1
+	 */
+	public EventData(Object convEvent, String eventType, Object collapseKey) {
+		this(convEvent, eventType);
+		this.collapseKey = collapseKey;
+	}
+
 	public Object getConvertedEvent() {
 		return conEvent;
 	}
@@ -31,6 +44,13 @@ public class EventData {
 		return eventType;
 	}
 
+	/**
+	 * @since 3.1
+	 */
+	public Object getCollapseKey() {
+		return collapseKey;
+	}
+
 	public String toString() {
 		return "EventData[event="
 						+ (conEvent instanceof Dictionary	? DebugUtils.convertForDebug((Dictionary) conEvent)
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.internal.pmp;
+
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.tigris.mtoolkit.iagent.pmp.PMPConnection;
+import org.tigris.mtoolkit.iagent.pmp.PMPContext;
+import org.tigris.mtoolkit.iagent.pmp.PMPException;
+
+/**
+ * Executes the calls of a batch one after another in a single pool thread and
+ * writes their results in a single reply.
+ */
+class BatchInvocation implements Runnable, PMPContext {
+
+	private PMPSessionThread session;
+	private short msgID;
+
+	private Method[] methods;
+	private Object[] objs;
+	private boolean[] serflags;
+	private Object[] contexts;
+	private Object[][] args;
+	/** the errors of the calls, which can't be executed */
+	private String[] errors;
+
+	protected BatchInvocation(PMPSessionThread session, int count, short msgID) {
+		this.session = session;
+		this.msgID = msgID;
+		methods = new Method[count];
+		objs = new Object[count];
+		serflags = new boolean[count];
+		contexts = new Object[count];
+		args = new Object[count][];
+		errors = new String[count];
+	}
+
+	protected void setCall(int index, Method m, Object obj, boolean serflag, Object context, Object[] args) {
+		methods[index] = m;
+		objs[index] = obj;
+		serflags[index] = serflag;
+		contexts[index] = context;
+		this.args[index] = args;
+	}
+
+	protected void setError(int index, String errMsg) {
+		errors[index] = errMsg;
+	}
+
+	public void run() {
+		int count = methods.length;
+		int[] types = new int[count];
+		Object[] results = new Object[count];
+		InvocationThread.setContext(this);
+		try {
+			for (int i = 0; i < count; i++) {
+				if (errors[i] != null) {
+					types[i] = PMPSessionThread.BATCH_RESULT_ERROR;
+					results[i] = errors[i];
+					continue;
+				}
+				try {
+					Object result = methods[i].invoke(objs[i], args[i]);
+					String returnType = methods[i].getReturnType().getName();
+					if (returnType.equals(PMPData.TYPES1[8]) || returnType.equals(PMPData.TYPES2[8])) {
+						types[i] = PMPSessionThread.BATCH_RESULT_VOID;
+					} else if (serflags[i] || result == null) {
+						if (result instanceof InputStream) {
+							((InputStream) result).close();
+							throw new PMPException("Streams can't be returned in a batch");
+						}
+						types[i] = PMPSessionThread.BATCH_RESULT_OBJECT;
+						results[i] = result;
+					} else {
+						types[i] = PMPSessionThread.BATCH_RESULT_REFERENCE;
+						results[i] = new Integer(InvocationThread.addResultObject(session, result, contexts[i]));
+					}
+				} catch (Exception exc) {
+					types[i] = PMPSessionThread.BATCH_RESULT_ERROR;
+					if (exc instanceof InvocationTargetException) {
+						results[i] = ((InvocationTargetException) exc).getTargetException().toString();
+						session.error("Target Exception: ", ((InvocationTargetException) exc).getTargetException());
+					} else {
+						results[i] = exc.toString();
+						session.error("Invocation Error", exc);
+					}
+				}
+				args[i] = null;
+			}
+		} finally {
+			InvocationThread.setContext(null);
+		}
+		try {
+			session.os.begin(msgID);
+			session.os.write(PMPSessionThread.BATCH);
+			PMPData.writeInt(count, session.os);
+			for (int i = 0; i < count; i++) {
+				session.os.write(types[i]);
+				switch (types[i]) {
+				case PMPSessionThread.BATCH_RESULT_ERROR:
+					PMPData.writeString((String) results[i], session.os);
+					break;
+				case PMPSessionThread.BATCH_RESULT_OBJECT:
+					PMPData.writeObject(results[i], session.os, true);
+					break;
+				case PMPSessionThread.BATCH_RESULT_REFERENCE:
+					PMPData.writeInt(((Integer) results[i]).intValue(), session.os);
+					break;
+				}
+			}
+			session.os.end(false);
+		} catch (Exception exc) {
+			session.os.unlock();
+			session.error(PMPSessionThread.ERRMSG2, exc);
+		}
+	}
+
+	public PMPConnection getConnection() {
+		return session.getConnection();
+	}
+
+	public void postEvent(Object event, String eventType) {
+		session.postEvent(event, eventType);
+	}
+
+	public String getSessionID() {
+		return session.sessionID;
+	}
+}
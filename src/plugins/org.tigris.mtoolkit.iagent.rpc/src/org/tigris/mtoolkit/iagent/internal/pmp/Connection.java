@@ -10,9 +10,14 @@
  *******************************************************************************/
 package org.tigris.mtoolkit.iagent.internal.pmp;
 
+import java.io.InputStream;
+import java.util.Vector;
+
 import org.tigris.mtoolkit.iagent.pmp.EventListener;
+import org.tigris.mtoolkit.iagent.pmp.PMPBatch;
 import org.tigris.mtoolkit.iagent.pmp.PMPConnection;
 import org.tigris.mtoolkit.iagent.pmp.PMPException;
+import org.tigris.mtoolkit.iagent.pmp.PMPFuture;
 import org.tigris.mtoolkit.iagent.pmp.RemoteObject;
 
 /**
@@ -42,6 +47,7 @@ class Connection implements PMPConnection {
 			os.begin(answer);
 			os.write(PMPSessionThread.CONNECT);
 			PMPData.writeInt(is.timeout, os);
+			PMPData.writeInt(PMPSessionThread.localCapabilities, os);
 			os.end(true);
 			answer.get((is.timeout == 0) ? 10000 : is.timeout);
 		} catch (Exception ex) {
@@ -256,14 +262,135 @@ class Connection implements PMPConnection {
 	protected Object invoke(Object[] args, String[] argTypes, boolean serflag, int objID, int methodID,
 					String expReturnType, ClassLoader loader, boolean changed, Connection cr) throws PMPException {
 		PMPAnswer answer = new PMPAnswer(reader);
+		try {
+			prepareAnswer(answer, expReturnType, loader, changed);
+			writeInvocation(answer, args, argTypes, serflag, objID, methodID);
+			answer.get(is.timeout);
+			return answer.getResult(serflag, cr);
+		} catch (Exception exc) {
+			dump(exc);
+			throw (exc instanceof PMPException) ? (PMPException) exc : new PMPException(exc.toString(), exc);
+		} finally {
+			answer.free();
+		}
+	}
+
+	/**
+	 * Sends a method invocation request without waiting for the reply.
+	 */
+	protected PMPFuture invokeAsync(RemoteMethodImpl method, Object[] args, String[] argTypes, boolean serflag,
+					int objID, int methodID, String expReturnType, ClassLoader loader, boolean changed, Connection cr)
+					throws PMPException {
+		PMPFutureImpl future = new PMPFutureImpl(reader, method, serflag, cr, is.timeout);
+		try {
+			prepareAnswer(future, expReturnType, loader, changed);
+			writeInvocation(future, args, argTypes, serflag, objID, methodID);
+		} catch (PMPException exc) {
+			dump(exc);
+			throw exc;
+		}
+		return future;
+	}
+
+	/**
+	 * Creates a method call, which will be sent in a batch.
+	 */
+	protected PMPFutureImpl createCall(RemoteMethodImpl method, Object[] args, boolean serflag,
+					String expReturnType, ClassLoader loader, boolean changed) throws PMPException {
+		String[] argTypes = method.getArgTypes();
+		if (args == null) {
+			args = new Object[argTypes.length];
+		}
+		if (args.length != argTypes.length)
+			throw new PMPException("Incorrect arguments");
+		for (int i = 0; i < args.length; i++) {
+			if (args[i] instanceof InputStream || argTypes[i].equals(InputStream.class.getName()))
+				throw new PMPException("Streams can't be passed in a batch");
+		}
+		PMPFutureImpl call = new PMPFutureImpl(reader, method, serflag, this, is.timeout);
+		prepareAnswer(call, expReturnType, loader, changed);
+		call.args = args;
+		return call;
+	}
+
+	/**
+	 * Sends the calls of a batch. If the remote peer can't execute batches,
+	 * the calls are sent one after another, without waiting for their
+	 * replies.
+	 */
+	protected void invokeBatch(PMPBatchImpl batch) throws PMPException {
+		Vector calls = batch.calls;
+		if ((reader.capabilities & PMPSessionThread.CAP_BATCH_INVOKE) == 0) {
+			for (int i = 0; i < calls.size(); i++) {
+				PMPFutureImpl call = (PMPFutureImpl) calls.elementAt(i);
+				RemoteMethodImpl method = call.method;
+				try {
+					writeInvocation(call, call.args, method.getArgTypes(), call.serflag,
+						((RemoteObjectImpl) method.getRemoteObject()).IOR, method.getMethodID());
+				} catch (PMPException exc) {
+					dump(exc);
+					batch.fail(i, exc.toString());
+					throw exc;
+				}
+				call.args = null;
+			}
+			return;
+		}
+		short msgID = 0;
+		boolean ended = false;
+		try {
+			msgID = os.begin(batch);
+			os.write(PMPSessionThread.INVOKE_B);
+			PMPData.writeInt(calls.size(), os);
+			for (int i = 0; i < calls.size(); i++) {
+				PMPFutureImpl call = (PMPFutureImpl) calls.elementAt(i);
+				RemoteMethodImpl method = call.method;
+				PMPData.writeInt(((RemoteObjectImpl) method.getRemoteObject()).IOR, os);
+				PMPData.writeInt(method.getMethodID(), os);
+				os.write(call.serflag ? 0 : 1);
+				PMPData.writeInt(call.args.length, os);
+				writeArguments(call.args, method.getArgTypes(), true);
+				call.args = null;
+			}
+			ended = true;
+			os.end(true);
+		} catch (Exception exc) {
+			if (msgID > 0) {
+				if (!ended)
+					os.unlock();
+				synchronized (os.answers) {
+					os.answers.remove(new Short(msgID));
+				}
+			}
+			dump(exc);
+			batch.fail(0, exc.toString());
+			throw (exc instanceof PMPException) ? (PMPException) exc : new PMPException(exc.toString(), exc);
+		}
+	}
+
+	public PMPBatch createBatch() {
+		return new PMPBatchImpl(reader, this);
+	}
+
+	/** Prepares the answer for reading the result of a method */
+	private void prepareAnswer(PMPAnswer answer, String expReturnType, ClassLoader loader, boolean changed) {
 		answer.loader = loader;
 		if (changed)
 			answer.returnType = expReturnType;
 		else
 			answer.returnType = new String();
+		answer.expectsReturn = !expReturnType.equals(PMPData.TYPES1[8]) && !expReturnType.equals(PMPData.TYPES2[8]);
+	}
+
+	/**
+	 * Writes a method invocation request. The reply will be read in the
+	 * specified answer.
+	 */
+	private void writeInvocation(PMPAnswer answer, Object[] args, String[] argTypes, boolean serflag, int objID,
+					int methodID) throws PMPException {
 		short msgID = 0;
+		boolean ended = false;
 		try {
-			answer.expectsReturn = !expReturnType.equals(PMPData.TYPES1[8]) && !expReturnType.equals(PMPData.TYPES2[8]);
 			msgID = os.begin(answer);
 			boolean haveRefs = false;
 			if (args == null) {
@@ -284,54 +411,54 @@ class Connection implements PMPConnection {
 			os.write(serflag ? 0 : 1);
 			if (args.length != argTypes.length)
 				throw new PMPException("Incorrect arguments");
-			for (int i = 0; i < args.length; i++) {
-				String className = null;
-				try {
-					int pos = argTypes[i].indexOf('.');
-					if (pos == -1) {
-						className = getClassName(argTypes[i]);
-					}
-					if (className == null)
-						className = argTypes[i];
-				} catch (Exception exc) {
+			writeArguments(args, argTypes, haveRefs);
+			ended = true;
+			os.end(true);
+		} catch (Exception exc) {
+			if (msgID > 0) {
+				if (!ended)
 					os.unlock();
-					msgID = 0;
-					throw new PMPException("Can't Load Argument Type: " + argTypes[i]);
+				synchronized (os.answers) {
+					os.answers.remove(new Short(msgID));
 				}
-				if (className.equals("org.tigris.mtoolkit.iagent.pmp.RemoteObject")) { //$NON-NLS-1$
-					int tmpID = addRemoteObject(args[i]);
-					RemoteObjectImpl objImpl = new RemoteObjectImpl(tmpID, null);
-					if (haveRefs)
-						os.write(1);
-					PMPData.writeObject(objImpl, os, true);
-				} else if (args[i] instanceof RemoteObjectImpl) {
-					if (haveRefs)
-						os.write(0);
-					PMPData.writeInt(((RemoteObjectImpl) args[i]).IOR, os);
-				} else {
-					if (haveRefs)
-						os.write(1);
-					PMPData.writeObject(args[i], os, true);
+			}
+			throw (exc instanceof PMPException) ? (PMPException) exc : new PMPException(exc.toString(), exc);
+		}
+	}
+
+	/**
+	 * Writes the arguments of a method. If refs is true, each argument is
+	 * preceded by a flag, which shows whether it is passed by value or as a
+	 * reference to a remote object.
+	 */
+	private void writeArguments(Object[] args, String[] argTypes, boolean refs) throws Exception {
+		for (int i = 0; i < args.length; i++) {
+			String className = null;
+			try {
+				int pos = argTypes[i].indexOf('.');
+				if (pos == -1) {
+					className = getClassName(argTypes[i]);
 				}
+				if (className == null)
+					className = argTypes[i];
+			} catch (Exception exc) {
+				throw new PMPException("Can't Load Argument Type: " + argTypes[i]);
 			}
-			os.end(true);
-			// if (answer.expectsReturn) {
-			answer.get(is.timeout);
-			if (answer.errMsg != null) {
-				throw new PMPException("Error Invoking Method: " + answer.errMsg);
+			if (className.equals("org.tigris.mtoolkit.iagent.pmp.RemoteObject")) { //$NON-NLS-1$
+				int tmpID = addRemoteObject(args[i]);
+				RemoteObjectImpl objImpl = new RemoteObjectImpl(tmpID, null);
+				if (refs)
+					os.write(1);
+				PMPData.writeObject(objImpl, os, true);
+			} else if (args[i] instanceof RemoteObjectImpl) {
+				if (refs)
+					os.write(0);
+				PMPData.writeInt(((RemoteObjectImpl) args[i]).IOR, os);
+			} else {
+				if (refs)
+					os.write(1);
+				PMPData.writeObject(args[i], os, true);
 			}
-			if (!answer.expectsReturn)
-				return null;
-			return (serflag) ? answer.obj : (answer.objID > 0) ? new RemoteObjectImpl(answer.objID, cr) : null;
-			// }
-			// else return null;
-		} catch (Exception exc) {
-			dump(exc);
-			if (msgID >= 100)
-				os.unlock();
-			throw (exc instanceof PMPException) ? (PMPException) exc : new PMPException(exc.toString(), exc);
-		} finally {
-			answer.free();
 		}
 	}
 
@@ -380,6 +507,10 @@ class Connection implements PMPConnection {
 	}
 
 	public void addEventListener(EventListener el, String[] eventTypes) throws IllegalArgumentException {
+		addEventListener(el, eventTypes, null);
+	}
+
+	public void addEventListener(EventListener el, String[] eventTypes, String filter) throws IllegalArgumentException {
 		if (el == null) {
 			throw new IllegalArgumentException("Can't add null listener");
 		}
@@ -390,7 +521,7 @@ class Connection implements PMPConnection {
 		}
 		if (eventTypes != null && eventTypes.length != 0) {
 			for (int i = 0; i < eventTypes.length; i++) {
-				evMngr.addEventListener(el, eventTypes[i]);
+				evMngr.addEventListener(el, eventTypes[i], filter);
 			}
 		} else
 			throw new IllegalArgumentException("Incorrect event types");
@@ -14,23 +14,22 @@ import java.io.IOException;
 import java.io.InputStream;
 
 /**
- * Helper class for reading big data (files for example) from the client. Blocks
- * the PMPInputStream until the reading is finished.
+ * Helper class for reading big data (files for example) from the client. Takes
+ * over the current message of the PMPInputStream, so that the session can
+ * continue with the next messages while the data is read.
  */
 public final class FileReader extends InputStream {
 
 	private short length = 0;
 	private boolean locked = true;
-	private PMPInputStream is;
+	private PMPMessage is;
 
 	/**
-	 * Constructs a FileReader. the length parameter shows the length of the
-	 * data that must be read from this InputStream before the PMPInputStream is
-	 * unlocked.
+	 * Constructs a FileReader, which reads the rest of the current message of
+	 * the specified PMPInputStream.
 	 */
 	public FileReader(PMPInputStream is) {
-		this.is = is;
-		is.lock();
+		this.is = is.detach();
 		checkEOF();
 	}
 
@@ -75,11 +74,15 @@ public final class FileReader extends InputStream {
 	}
 
 	private void checkEOF() {
+		if (is == null) {
+			close();
+			return;
+		}
 		if (length == 0) {
 			try {
 				length = PMPData.readShort(is);
 				if (length == -1)
-					close();
+					release();
 			} catch (IOException ioExc) {
 				close();
 			}
@@ -87,22 +90,29 @@ public final class FileReader extends InputStream {
 	}
 
 	/**
-	 * Unlocks the PMPInputStream. If not all the data was read, skips it first.
+	 * Called when the end of the data is reached. The rest of the message
+	 * may contain the next arguments, so it is not discarded.
+	 */
+	private void release() {
+		if (locked) {
+			locked = false;
+			is.release();
+		}
+	}
+
+	/**
+	 * Discards the rest of the message, if not all the data was read.
 	 */
 	public synchronized void close() {
 		if (locked) {
 			locked = false;
-			if (length > 0)
-				try {
-					is.skip(length);
-				} catch (IOException ioExc) {
-				}
-			is.unlock();
+			if (is != null)
+				is.close();
 		}
 	}
 
 	/**
-	 * Added to ensure that the PMPInputStream will be unlocked.
+	 * Added to ensure that the rest of the message will be discarded.
 	 */
 	public void finalize() {
 		try {
@@ -16,6 +16,7 @@ import java.lang.reflect.Method;
 
 import org.tigris.mtoolkit.iagent.pmp.PMPConnection;
 import org.tigris.mtoolkit.iagent.pmp.PMPContext;
+import org.tigris.mtoolkit.iagent.pmp.PMPException;
 import org.tigris.mtoolkit.iagent.rpc.Remote;
 
 public class InvocationThread implements Runnable, PMPContext {
@@ -44,7 +45,26 @@ public class InvocationThread implements Runnable, PMPContext {
 		this.objContext = context;
 		this.args = args;
 		this.msgID = msgID;
-		session.pool.enqueueWork(this);
+		if (!session.pool.offerWork(session, this)) {
+			discardStreams(args);
+			session.rejectInvocation(msgID);
+		}
+	}
+
+	/**
+	 * Closes the stream arguments of a rejected invocation. They hold the rest
+	 * of their messages, which must be discarded, so that the session can
+	 * continue reading.
+	 */
+	private static void discardStreams(Object[] args) {
+		for (int i = 0; i < args.length; i++) {
+			if (args[i] instanceof InputStream) {
+				try {
+					((InputStream) args[i]).close();
+				} catch (Exception ignore) {
+				}
+			}
+		}
 	}
 
 	public void run() {
@@ -93,23 +113,14 @@ public class InvocationThread implements Runnable, PMPContext {
 				session.error(PMPSessionThread.ERRMSG2, exc);
 			}
 		} else {
-			Class[] interfaces = null;
-			if (result instanceof InputStream && !(result instanceof Remote)) {
-				result = new RemoteInputStream((InputStream) result);
-				interfaces = ((Remote) result).remoteInterfaces();
-			} else if (!(result instanceof Remote)
-							|| !PMPServiceImpl.checkInstance(interfaces = ((Remote) result).remoteInterfaces(),
-								result.getClass())) {
-				String errMsg = "Method result "
-								+ result
-								+ " Is not instance of "
-								+ Remote.class.getName()
-								+ " or one of its remote interfaces";
-				session.debug(errMsg);
-				session.writeInvocationError(errMsg, msgID);
+			int objID;
+			try {
+				objID = addResultObject(session, result, objContext);
+			} catch (PMPException exc) {
+				session.debug(exc.getMessage());
+				session.writeInvocationError(exc.getMessage(), msgID);
 				return;
 			}
-			int objID = session.addRemoteObject(result, interfaces, objContext);
 			try {
 				session.os.begin(msgID);
 				session.os.write(PMPSessionThread.REFERENCE);
@@ -123,6 +134,36 @@ public class InvocationThread implements Runnable, PMPContext {
 		}
 	}
 
+	/**
+	 * Registers the result of a method as a remote object, so that it can be
+	 * returned by reference.
+	 * 
+	 * @return the id of the remote object
+	 * @throws PMPException
+	 *             if the result can't be accessed remotely
+	 */
+	static int addResultObject(PMPSessionThread session, Object result, Object context) throws PMPException {
+		Class[] interfaces = null;
+		if (result instanceof InputStream && !(result instanceof Remote)) {
+			result = new RemoteInputStream((InputStream) result);
+			interfaces = ((Remote) result).remoteInterfaces();
+		} else if (!(result instanceof Remote)
+						|| !PMPServiceImpl.checkInstance(interfaces = ((Remote) result).remoteInterfaces(),
+							result.getClass())) {
+			throw new PMPException("Method result "
+							+ result
+							+ " Is not instance of "
+							+ Remote.class.getName()
+							+ " or one of its remote interfaces");
+		}
+		return session.addRemoteObject(result, interfaces, context);
+	}
+
+	/** Sets the context of the invocation, which runs in the current thread */
+	static void setContext(PMPContext context) {
+		invocationContext.set(context);
+	}
+
 	public PMPConnection getConnection() {
 		return session.getConnection();
 	}
@@ -18,10 +18,17 @@ class ListenerEvent extends PMPEvent {
 	public static final byte REMOVE_LISTENER_OP = 2;
 
 	public byte op;
+	/** the filter of all listeners of the event type, "" if none */
+	public String filter = "";
 
 	public ListenerEvent(byte op, String evType, EventListener listener) {
 		super(evType, listener);
 		this.op = op;
 	}
 
+	public ListenerEvent(byte op, String evType, EventListener listener, String filter) {
+		this(op, evType, listener);
+		this.filter = filter;
+	}
+
 }
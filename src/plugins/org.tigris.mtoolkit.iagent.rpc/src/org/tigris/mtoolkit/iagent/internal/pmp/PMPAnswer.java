@@ -12,6 +12,8 @@ package org.tigris.mtoolkit.iagent.internal.pmp;
 
 import java.io.IOException;
 
+import org.tigris.mtoolkit.iagent.pmp.PMPException;
+
 class PMPAnswer {
 
 	public boolean connected = false; // ok - connect
@@ -58,26 +60,33 @@ class PMPAnswer {
 	public synchronized void finish() {
 		received = true;
 		if (waiting) {
-			notify();
+			// a future can be waited by several threads
+			notifyAll();
 		}
 	}
 
+	/**
+	 * Waits until the answer is received. Only the timeout or an interrupt end
+	 * the waiting earlier, spurious wake-ups are ignored. An interrupt fails
+	 * only this call and leaves the connection open.
+	 */
 	public void get(int timeout) throws IOException {
-		long time = System.currentTimeMillis();
+		long deadline = System.currentTimeMillis() + timeout;
 		synchronized (this) {
 			while (!received) {
+				long remaining = 0;
+				if (timeout > 0) {
+					remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0)
+						break;
+				}
 				waiting = true;
 				try {
-					if (timeout > 0)
-						wait(timeout);
-					else {
-						wait();
-						break;
-					}
-				} catch (Exception ignore) {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted While Waiting For Answer");
 				}
-				if (!received && (timeout > 0 && (System.currentTimeMillis() - time) > timeout))
-					break;
 			}
 		}
 		if (!received) {
@@ -86,6 +95,19 @@ class PMPAnswer {
 		}
 	}
 
+	/**
+	 * Returns the result of a method invocation, after the answer has been
+	 * received.
+	 */
+	protected Object getResult(boolean serflag, Connection cr) throws PMPException {
+		if (errMsg != null) {
+			throw new PMPException("Error Invoking Method: " + errMsg);
+		}
+		if (!expectsReturn)
+			return null;
+		return (serflag) ? obj : (objID > 0) ? new RemoteObjectImpl(objID, cr) : null;
+	}
+
 	public String toString() {
 		return "PMPAnswer --->>> " + c + " : " + c.hashCode(); //$NON-NLS-1$ //$NON-NLS-2$
 	}
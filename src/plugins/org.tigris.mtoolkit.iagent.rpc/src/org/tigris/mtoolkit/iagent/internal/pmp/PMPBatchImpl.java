@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.internal.pmp;
+
+import java.util.Vector;
+
+import org.tigris.mtoolkit.iagent.pmp.PMPBatch;
+import org.tigris.mtoolkit.iagent.pmp.PMPException;
+import org.tigris.mtoolkit.iagent.pmp.PMPFuture;
+import org.tigris.mtoolkit.iagent.pmp.RemoteMethod;
+
+/**
+ * The client side of a batch invocation. It is registered as the answer of
+ * the batch request, and the reply is distributed to the answers of the
+ * separate calls.
+ */
+class PMPBatchImpl extends PMPAnswer implements PMPBatch {
+
+	/** the calls, as PMPFutureImpl instances */
+	protected Vector calls = new Vector();
+	private boolean sent = false;
+
+	protected PMPBatchImpl(PMPSessionThread reader, Connection connection) {
+		super(reader);
+		this.connection = connection;
+	}
+
+	public PMPFuture add(RemoteMethod method, Object[] args, boolean serflag) throws PMPException {
+		if (!(method instanceof RemoteMethodImpl) || ((RemoteMethodImpl) method).getConnection() != connection)
+			throw new IllegalArgumentException("The method doesn't belong to the connection of the batch");
+		PMPFutureImpl call = ((RemoteMethodImpl) method).createCall(args, serflag);
+		synchronized (this) {
+			if (sent)
+				throw new IllegalStateException("The batch has been already sent");
+			calls.addElement(call);
+		}
+		return call;
+	}
+
+	public synchronized int size() {
+		return calls.size();
+	}
+
+	public void send() throws PMPException {
+		synchronized (this) {
+			if (sent)
+				throw new IllegalStateException("The batch has been already sent");
+			sent = true;
+		}
+		if (calls.size() == 0) {
+			received = true;
+			return;
+		}
+		connection.invokeBatch(this);
+	}
+
+	/**
+	 * Fails the calls starting from the specified one, because they can't be
+	 * sent.
+	 */
+	protected void fail(int from, String errMsg) {
+		for (int i = from; i < calls.size(); i++) {
+			PMPFutureImpl call = (PMPFutureImpl) calls.elementAt(i);
+			call.args = null;
+			call.errMsg = errMsg;
+			call.finish();
+		}
+	}
+
+	/**
+	 * Called when the reply has been read, or the connection has been closed.
+	 * The calls, which haven't received their results, fail.
+	 */
+	public void finish() {
+		super.finish();
+		for (int i = 0; i < calls.size(); i++) {
+			PMPFutureImpl call = (PMPFutureImpl) calls.elementAt(i);
+			if (!call.isDone()) {
+				call.errMsg = (errMsg != null) ? errMsg : "Missing Batch Result";
+				call.finish();
+			}
+		}
+	}
+}
@@ -10,6 +10,8 @@
  *******************************************************************************/
 package org.tigris.mtoolkit.iagent.internal.pmp;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
@@ -19,7 +21,9 @@ import java.io.Serializable;
 import java.lang.reflect.Array;
 import java.util.Dictionary;
 import java.util.Enumeration;
+import java.util.Hashtable;
 
+import org.tigris.mtoolkit.iagent.internal.utils.DictionaryCodec;
 import org.tigris.mtoolkit.iagent.pmp.PMPException;
 import org.tigris.mtoolkit.iagent.rpc.Externalizable;
 
@@ -105,8 +109,7 @@ class PMPData extends ObjectInputStream {
 		os.write(1);
 		if (obj instanceof InputStream) {
 			if (sendName) {
-				os.write(1);
-				writeString(IS.getName(), os);
+				writeName(IS.getName(), os);
 			} else {
 				os.write(0);
 			}
@@ -116,8 +119,7 @@ class PMPData extends ObjectInputStream {
 
 		if (obj instanceof RemoteObjectImpl) {
 			if (sendName) {
-				os.write(1);
-				writeString("RemoteObject", os); //$NON-NLS-1$
+				writeName("RemoteObject", os); //$NON-NLS-1$
 			} else {
 				os.write(0);
 			}
@@ -128,8 +130,7 @@ class PMPData extends ObjectInputStream {
 		Class clazz = obj.getClass();
 		String className = clazz.getName();
 		if (sendName) {
-			os.write(1);
-			writeString(className, os);
+			writeName(className, os);
 		} else {
 			os.write(0);
 		}
@@ -144,6 +145,14 @@ class PMPData extends ObjectInputStream {
 						return;
 					}
 					writeInt(size, os);
+					if (os.compactDictionaries && DICT.getName().equals(className)) {
+						if (DictionaryCodec.isEncodableValue(obj)) {
+							os.write(1);
+							writeCompactDictionaries((Dictionary[]) obj, os);
+							return;
+						}
+						os.write(0);
+					}
 					for (int i = 0; i < size; i++) {
 						Object difObj = Array.get(obj, i);
 						if (difObj == null)
@@ -195,7 +204,33 @@ class PMPData extends ObjectInputStream {
 		}
 	}
 
+	/**
+	 * Writes a class name. If the name is interned in the session, only its
+	 * symbol id is written.
+	 */
+	private static void writeName(String name, PMPOutputStream os) throws IOException {
+		int symbol = os.intern(name);
+		if (symbol >= 0) {
+			os.write(2);
+			writeShort((short) symbol, os);
+		} else {
+			os.write(1);
+			writeString(name, os);
+		}
+	}
+
 	private static void writeDictionary(Dictionary obj, PMPOutputStream os) throws Exception {
+		if (os.compactDictionaries) {
+			// the flag tells whether the compact form could be used
+			if (DictionaryCodec.isEncodable(obj)) {
+				ByteArrayOutputStream block = new ByteArrayOutputStream();
+				new DictionaryCodec().writeDictionary(obj, block);
+				os.write(1);
+				writeBlock(block, os);
+				return;
+			}
+			os.write(0);
+		}
 		writeInt(obj.size(), os);
 		for (Enumeration en = obj.keys(); en.hasMoreElements();) {
 			Object key = en.nextElement();
@@ -206,6 +241,10 @@ class PMPData extends ObjectInputStream {
 
 	private static void readDictionary(Dictionary obj, ClassLoader loader, int maxSize, int strLen, PMPInputStream is)
 					throws Exception {
+		if (is.compactDictionaries && checkFlag(is)) {
+			new DictionaryCodec(maxSize, strLen).readDictionary(obj, readBlock(is));
+			return;
+		}
 		int size = readInt(is);
 		for (int i = 0; i < size; i++) {
 			Object key = readObject(null, loader, is, null, maxSize, strLen, null);
@@ -214,6 +253,60 @@ class PMPData extends ObjectInputStream {
 		}
 	}
 
+	/**
+	 * Writes the elements of Dictionary[] in compact form. They share one
+	 * string table, so the repeated keys and values are written once.
+	 */
+	private static void writeCompactDictionaries(Dictionary[] dicts, PMPOutputStream os) throws IOException {
+		DictionaryCodec codec = new DictionaryCodec();
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		for (int i = 0; i < dicts.length; i++) {
+			if (dicts[i] == null) {
+				block.write(0);
+			} else {
+				block.write(1);
+				codec.writeDictionary(dicts[i], block);
+			}
+		}
+		writeBlock(block, os);
+	}
+
+	private static Dictionary[] readCompactDictionaries(int size, int maxSize, int strLen, PMPInputStream is)
+					throws IOException {
+		DictionaryCodec codec = new DictionaryCodec(maxSize, strLen);
+		InputStream block = readBlock(is);
+		Dictionary[] dicts = new Dictionary[size];
+		for (int i = 0; i < size; i++) {
+			if (checkFlag(block))
+				dicts[i] = codec.readDictionary(new Hashtable(), block);
+		}
+		return dicts;
+	}
+
+	/**
+	 * The compact data is written as a single length prefixed block, so it
+	 * is not passed byte by byte through the message streams.
+	 */
+	private static void writeBlock(ByteArrayOutputStream block, OutputStream os) throws IOException {
+		writeInt(block.size(), os);
+		block.writeTo(os);
+	}
+
+	private static InputStream readBlock(InputStream is) throws IOException {
+		int size = readInt(is);
+		if (size < 0)
+			throw new IOException(ERRMSG1);
+		byte[] block = new byte[size];
+		int read = 0;
+		while (read < size) {
+			int tmp = is.read(block, read, size - read);
+			if (tmp == -1)
+				throw new IOException(ERRMSG1);
+			read += tmp;
+		}
+		return new ByteArrayInputStream(block);
+	}
+
 	private static void writePrimrtiveArray(String className, Object obj, int size, OutputStream os) throws IOException {
 		writeInt(size, os);
 		String type = className.substring(1, 2);
@@ -414,15 +507,23 @@ class PMPData extends ObjectInputStream {
 		if (!checkFlag(is))
 			return null;
 		String className = new String();
+		int symbol = -1;
 		try {
-			if (checkFlag(is)) {
+			int nameFlag = is.read();
+			if (nameFlag == -1)
+				throw new IOException(ERRMSG1);
+			if (nameFlag == 1) {
 				className = readString(is, strLen);
+			} else if (nameFlag == 2) {
+				symbol = readShort(is) & 0xFFFF;
+				className = is.getSymbol(symbol);
 			} else {
 				className = prevName;
 			}
 			if (newName != null)
 				if (newName.length() != 0) {
 					className = newName;
+					symbol = -1;
 				}
 		} catch (IOException ioExc) {
 			throw ioExc;
@@ -445,25 +546,13 @@ class PMPData extends ObjectInputStream {
 				if (arr != null)
 					return arr;
 			}
-			if (clazz == null) {
-				if (loader != null) {
-					try {
-						clazz = loader.loadClass(className);
-					} catch (Throwable exc) {
-						clazz = null;
-					}
-				}
-			}
-			if (clazz == null) {
-				loader = PMPServiceImpl.loader;
-				try {
-					clazz = loader.loadClass(className);
-				} catch (Throwable exc) {
-					clazz = null;
-				}
+			if (size > 0 && is.compactDictionaries && DICT.getName().equals(className) && checkFlag(is)) {
+				return readCompactDictionaries(size, maxSize, strLen, is);
 			}
 			if (clazz == null) {
-				throw new IOException("Can't resolve class " + className);
+				Object[] resolved = resolveClass(className, loader, is, symbol);
+				clazz = (Class) resolved[0];
+				loader = (ClassLoader) resolved[1];
 			}
 			Object oArr = Array.newInstance(clazz, size);
 			for (int i = 0; i < size; i++) {
@@ -517,24 +606,9 @@ class PMPData extends ObjectInputStream {
 		}
 
 		if (clazz == null) {
-			if (loader != null) {
-				try {
-					clazz = loader.loadClass(className);
-				} catch (Exception exc) {
-					clazz = null;
-				}
-			}
-		}
-		if (clazz == null) {
-			loader = PMPServiceImpl.loader;
-			try {
-				clazz = loader.loadClass(className);
-			} catch (Exception exc) {
-				clazz = null;
-			}
-		}
-		if (clazz == null) {
-			throw new IOException("Can't resolve class " + className);
+			Object[] resolved = resolveClass(className, loader, is, symbol);
+			clazz = (Class) resolved[0];
+			loader = (ClassLoader) resolved[1];
 		}
 		if (IS.isAssignableFrom(clazz)) {
 			return new FileReader(is);
@@ -560,6 +634,42 @@ class PMPData extends ObjectInputStream {
 
 	}
 
+	/**
+	 * Loads the class with the given loader or with the PMP loader, if the
+	 * first one can't. Returns the class and the loader, which has found it.
+	 * The result is cached for the interned names.
+	 */
+	private static Object[] resolveClass(String className, ClassLoader loader, PMPInputStream is, int symbol)
+					throws IOException {
+		Object[] resolved = symbol >= 0 ? is.getResolvedClass(loader, symbol) : null;
+		if (resolved != null)
+			return resolved;
+		ClassLoader initial = loader;
+		Class clazz = null;
+		if (loader != null) {
+			try {
+				clazz = loader.loadClass(className);
+			} catch (Throwable exc) {
+				clazz = null;
+			}
+		}
+		if (clazz == null) {
+			loader = PMPServiceImpl.loader;
+			try {
+				clazz = loader.loadClass(className);
+			} catch (Throwable exc) {
+				clazz = null;
+			}
+		}
+		if (clazz == null) {
+			throw new IOException("Can't resolve class " + className);
+		}
+		resolved = new Object[] { clazz, loader };
+		if (symbol >= 0)
+			is.putResolvedClass(initial, symbol, resolved);
+		return resolved;
+	}
+
 	/** reads a primitive array (int[], byte[], etc.) from the InputStream */
 	private static Object readPrimitiveArray(String className, int size, InputStream is) throws IOException {
 		if (className.equals("I")) { //$NON-NLS-1$
@@ -10,31 +10,50 @@
  *******************************************************************************/
 package org.tigris.mtoolkit.iagent.internal.pmp;
 
+import java.util.Dictionary;
+import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
 
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.tigris.mtoolkit.iagent.internal.utils.ThreadUtils;
 import org.tigris.mtoolkit.iagent.pmp.EventListener;
 import org.tigris.mtoolkit.iagent.pmp.PMPConnection;
 import org.tigris.mtoolkit.iagent.pmp.PMPException;
 
 /**
  * This implementation uses the PMP Service to receive remote events.
+ * <p>
+ * Up to <code>iagent.events.clientQueueSize</code> received events (4096 by
+ * default) wait for the listeners. If the listeners are slower and the queue
+ * gets full, the queued events are dropped and a
+ * {@link PMPConnection#EVENTS_LOST} event is delivered in their place.
  */
-class PMPEventsManager extends Thread {
+class PMPEventsManager implements Runnable {
+
+	private static final int QUEUE_SIZE = 4096;
+	private static final int queueSize = Math.max(1, Integer.getInteger("iagent.events.clientQueueSize", QUEUE_SIZE).intValue());
 
 	private PMPOutputStream os;
 	private PMPEvent first;
 	private PMPEvent last = null;
 	private boolean waiting = false;
+	// the number of the queued remote events
+	private int queued;
 
 	PMPSessionThread session;
 
 	public PMPEventsManager(PMPSessionThread session) {
-		super("PMP Events Manager Thread [" + session.sessionID + "]"); //$NON-NLS-1$
 		this.session = session;
 		this.os = session.os;
 	}
 
+	public void start() {
+		ThreadUtils.createThread(this, "PMP Events Manager Thread [" + session.sessionID + "]", false).start(); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
 	private boolean go = true;
 
 	public void run() {
@@ -82,12 +101,19 @@ class PMPEventsManager extends Thread {
 		first = first.next;
 		if (one)
 			last = null;
+		if (!(tmp instanceof ListenerEvent))
+			queued--;
 		return tmp;
 	}
 
 	private synchronized void addEvent(PMPEvent theEvent) {
 		if (!go)
 			return;
+		if (!(theEvent instanceof ListenerEvent)) {
+			if (queued >= queueSize)
+				dropEvents();
+			queued++;
+		}
 		if (last == null) {
 			first = last = theEvent;
 			if (waiting) {
@@ -98,6 +124,30 @@ class PMPEventsManager extends Thread {
 		}
 	}
 
+	/**
+	 * Replaces the queued remote events with a single
+	 * {@link PMPConnection#EVENTS_LOST} event. The listener operations are
+	 * kept. Must be called while holding the lock.
+	 */
+	private void dropEvents() {
+		session.error("Event queue is full, " + queued + " events dropped", null);
+		PMPEvent prev = null;
+		for (PMPEvent e = first; e != null; e = e.next) {
+			if (e instanceof ListenerEvent) {
+				prev = e;
+			} else if (prev == null) {
+				first = e.next;
+			} else {
+				prev.next = e.next;
+			}
+		}
+		last = prev;
+		if (last != null)
+			last.next = null;
+		queued = 0;
+		addEvent(new PMPEvent(PMPConnection.EVENTS_LOST, null));
+	}
+
 	private void deliverEvent(PMPEvent event) {
 		session.debug("Delivering event : " + event);
 		if (event instanceof ListenerEvent) {
@@ -108,7 +158,7 @@ class PMPEventsManager extends Thread {
 			ListenerEvent levent = (ListenerEvent) event;
 			switch (levent.op) {
 			case ListenerEvent.ADD_LISTENER_OP:
-				addEventListener0(((PMPEvent) event).eventType);
+				addEventListener0(((PMPEvent) event).eventType, levent.filter);
 				break;
 			case ListenerEvent.REMOVE_LISTENER_OP:
 				removeEventListener0((EventListener) ((PMPEvent) event).data, ((PMPEvent) event).eventType);
@@ -116,23 +166,53 @@ class PMPEventsManager extends Thread {
 			}
 		} else {
 			Vector cloned = null;
+			Hashtable ms = null;
 			PMPEvent pmpEvent = (PMPEvent) event;
 			synchronized (listeners) {
 				Vector ls = (Vector) listeners.get(pmpEvent.eventType);
 				if (ls == null || ls.size() == 0)
 					return;
 				cloned = (Vector) ls.clone();
+				ms = (Hashtable) matchers.get(pmpEvent.eventType);
+				if (ms != null)
+					ms = (Hashtable) ms.clone();
 			}
 			for (int i = 0; i < cloned.size(); i++) {
+				EventListener listener = (EventListener) cloned.elementAt(i);
+				// the remote side sends the events matching any of the
+				// filters, or all events if it can't filter them
+				if (ms != null && !matches((Filter) ms.get(listener), pmpEvent.data))
+					continue;
 				try {
-					((EventListener) cloned.elementAt(i)).event(pmpEvent.data, pmpEvent.eventType);
+					listener.event(pmpEvent.data, pmpEvent.eventType);
 				} catch (Exception exc) {
 				}
 			}
 		}
 	}
 
+	/**
+	 * Checks whether the event matches the filter of a listener. The events,
+	 * which are not dictionaries, are not filtered.
+	 */
+	private static boolean matches(Filter filter, Object event) {
+		if (filter == null || !(event instanceof Dictionary))
+			return true;
+		try {
+			return filter.match((Dictionary) event);
+		} catch (IllegalArgumentException e) {
+			// the keys differ only by case, let the listener decide
+			return true;
+		}
+	}
+
 	private Hashtable listeners = new Hashtable(10);
+	// type -> Hashtable (listener -> filter string, "" if none)
+	private Hashtable filters = new Hashtable(10);
+	// type -> Hashtable (listener -> Filter), for the listeners with filters
+	private Hashtable matchers = new Hashtable(10);
+	// type -> the filter, which has been last sent to the remote side
+	private Hashtable sentFilters = new Hashtable(10);
 
 	/**
 	 * Registers an {@link EventListener
@@ -143,33 +223,100 @@ class PMPEventsManager extends Thread {
 	 * @exception Exception
 	 */
 	public void addEventListener(EventListener el, String type) {
+		addEventListener(el, type, null);
+	}
+
+	/**
+	 * Registers an {@link EventListener}, which is interested only in the
+	 * events matching the given filter. The remote side is asked for the
+	 * events matching the filter of any listener of the type, and it is asked
+	 * again, when the combined filter changes.
+	 * 
+	 * @param el
+	 *            the EventListener
+	 * @param filter
+	 *            the LDAP filter or null
+	 * @throws IllegalArgumentException
+	 *             if the filter is not valid
+	 */
+	public void addEventListener(EventListener el, String type, String filter) {
 		if (el == null)
 			throw new NullPointerException("Can't add null listener");
+		Filter matcher = null;
+		if (filter != null && filter.length() > 0) {
+			try {
+				matcher = FrameworkUtil.createFilter(filter);
+			} catch (InvalidSyntaxException e) {
+				throw new IllegalArgumentException("Invalid Filter Syntax: " + e.getMessage());
+			}
+		}
 		synchronized (listeners) {
 			Vector ls = (Vector) listeners.get(type);
+			Hashtable fs = (Hashtable) filters.get(type);
 			if (ls == null) {
 				ls = new Vector();
-				ls.addElement(el);
 				listeners.put(type, ls);
-				if (!PMPConnection.FRAMEWORK_DISCONNECTED.equals(type))
-					addEvent(new ListenerEvent(ListenerEvent.ADD_LISTENER_OP, type, el));
-			} else if (!ls.contains(el))
+				fs = new Hashtable();
+				filters.put(type, fs);
+			}
+			if (!ls.contains(el))
 				ls.addElement(el);
+			fs.put(el, filter != null ? filter : "");
+			Hashtable ms = (Hashtable) matchers.get(type);
+			if (matcher != null) {
+				if (ms == null) {
+					ms = new Hashtable();
+					matchers.put(type, ms);
+				}
+				ms.put(el, matcher);
+			} else if (ms != null) {
+				ms.remove(el);
+				if (ms.isEmpty())
+					matchers.remove(type);
+			}
+			if (PMPConnection.FRAMEWORK_DISCONNECTED.equals(type))
+				return;
+			String combined = combineFilters(fs);
+			if (!combined.equals(sentFilters.get(type))) {
+				sentFilters.put(type, combined);
+				addEvent(new ListenerEvent(ListenerEvent.ADD_LISTENER_OP, type, el, combined));
+			}
 		}
 	}
 
-	private void addEventListener0(String type) {
+	/**
+	 * Returns the filter matching the events, which any of the listeners
+	 * accepts, or "" if a listener accepts all events.
+	 */
+	private static String combineFilters(Hashtable fs) {
+		if (fs.size() == 1)
+			return (String) fs.elements().nextElement();
+		StringBuffer buf = new StringBuffer("(|");
+		for (Enumeration e = fs.elements(); e.hasMoreElements();) {
+			String filter = (String) e.nextElement();
+			if (filter.length() == 0)
+				return "";
+			buf.append(filter);
+		}
+		return buf.append(')').toString();
+	}
+
+	private void addEventListener0(String type, String filter) {
 		try {
 			PMPAnswer answer = new PMPAnswer(session);
 			os.begin(answer);
 			os.write(PMPSessionThread.ADD_LS);
 			PMPData.writeString(type, os);
+			if ((session.capabilities & PMPSessionThread.CAP_EVENT_FILTERS) != 0)
+				PMPData.writeString(filter, os);
 			os.end(true);
 			answer.get(session.is.timeout);
+			if (!answer.success)
+				throw new PMPException(answer.errMsg);
 		} catch (Exception exc) { // PMPException, IOException
 			session.error("error registering event listener", exc);
 		}
-		session.debug("Adding remote listener of type: " + type);
+		session.debug("Adding remote listener of type: " + type + ", filter: " + filter);
 	}
 
 	/**
@@ -191,16 +338,36 @@ class PMPEventsManager extends Thread {
 		// resulting in no more events
 		try {
 			boolean sendRemove = false;
+			String changedFilter = null;
 			synchronized (listeners) {
 				Vector ls = (Vector) listeners.get(evType);
 				if (ls != null) {
 					ls.removeElement(el);
+					Hashtable fs = (Hashtable) filters.get(evType);
+					fs.remove(el);
+					Hashtable ms = (Hashtable) matchers.get(evType);
+					if (ms != null) {
+						ms.remove(el);
+						if (ms.isEmpty())
+							matchers.remove(evType);
+					}
 					if (ls.size() == 0) {
 						listeners.remove(evType);
+						filters.remove(evType);
+						sentFilters.remove(evType);
 						sendRemove = true;
+					} else if (sentFilters.containsKey(evType)) {
+						String combined = combineFilters(fs);
+						if (!combined.equals(sentFilters.get(evType))) {
+							// the remaining listeners may want more events
+							sentFilters.put(evType, combined);
+							changedFilter = combined;
+						}
 					}
 				}
 			}
+			if (changedFilter != null)
+				addEventListener0(evType, changedFilter);
 			// the code below is not in the synchronized block, because can 
 			// cause the following deadlock: PMPSessionThread.readEvent() calls
 			// getClassLoader() and blocks if listeners is locked by this
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.internal.pmp;
+
+import java.io.IOException;
+import java.util.Vector;
+
+import org.tigris.mtoolkit.iagent.pmp.PMPException;
+import org.tigris.mtoolkit.iagent.pmp.PMPFuture;
+import org.tigris.mtoolkit.iagent.pmp.PMPFutureListener;
+import org.tigris.mtoolkit.iagent.pmp.RemoteMethod;
+
+/**
+ * The answer of an asynchronous method invocation. It stays registered in the
+ * output stream answers until the reply with its message id is read by the
+ * session thread.
+ */
+class PMPFutureImpl extends PMPAnswer implements PMPFuture {
+
+	private PMPSessionThread reader;
+	protected RemoteMethodImpl method;
+	protected boolean serflag;
+	private int timeout;
+	/** the arguments of a call, which waits to be sent in a batch */
+	protected Object[] args;
+
+	/** the listeners, which wait for the invocation to finish */
+	private Vector listeners;
+	/** the result, read only once, so the remote references are not duplicated */
+	private Object result;
+	private boolean resultRead = false;
+
+	protected PMPFutureImpl(PMPSessionThread reader,
+							RemoteMethodImpl method,
+							boolean serflag,
+							Connection connection,
+							int timeout) {
+		super(reader);
+		this.reader = reader;
+		this.method = method;
+		this.serflag = serflag;
+		this.connection = connection;
+		this.timeout = timeout;
+	}
+
+	public synchronized boolean isDone() {
+		return received;
+	}
+
+	public Object get() throws PMPException {
+		try {
+			get(timeout);
+		} catch (IOException exc) {
+			throw new PMPException(exc.toString(), exc);
+		}
+		synchronized (this) {
+			if (!resultRead) {
+				result = getResult(serflag, connection);
+				resultRead = true;
+			}
+			return result;
+		}
+	}
+
+	public void addListener(PMPFutureListener listener) {
+		if (listener == null)
+			throw new IllegalArgumentException("Can't add null listener");
+		synchronized (this) {
+			if (!received) {
+				if (listeners == null)
+					listeners = new Vector(1);
+				listeners.addElement(listener);
+				return;
+			}
+		}
+		fireDone(listener);
+	}
+
+	public RemoteMethod getMethod() {
+		return method;
+	}
+
+	public void finish() {
+		Vector toNotify;
+		synchronized (this) {
+			super.finish();
+			toNotify = listeners;
+			listeners = null;
+		}
+		if (toNotify != null) {
+			for (int i = 0; i < toNotify.size(); i++) {
+				fireDone((PMPFutureListener) toNotify.elementAt(i));
+			}
+		}
+	}
+
+	/**
+	 * Notifies the listener in a pool thread, because the replies are read by
+	 * the session thread, which must not be blocked.
+	 */
+	private void fireDone(final PMPFutureListener listener) {
+		Runnable notification = new Runnable() {
+			public void run() {
+				try {
+					listener.done(PMPFutureImpl.this);
+				} catch (Throwable t) {
+					reader.error("Error notifying invocation listener", t);
+				}
+			}
+		};
+		try {
+			reader.pool.enqueueWork(notification);
+		} catch (IllegalStateException e) {
+			// the pool is stopped
+			notification.run();
+		}
+	}
+
+	public String toString() {
+		return "PMPFuture --->>> " + method; //$NON-NLS-1$
+	}
+}
@@ -10,40 +10,72 @@
  *******************************************************************************/
 package org.tigris.mtoolkit.iagent.internal.pmp;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
+/**
+ * Reads the PMP frames from the underlying InputStream and routes them to
+ * per-message buffers. The frames of different messages may come interleaved.
+ * There is no dedicated reader thread - the thread which needs more data reads
+ * the next frame, whichever message it belongs to. If the stream is created
+ * without underlying stream, the frames are received from a selector thread
+ * instead.
+ */
 class PMPInputStream extends InputStream {
 
 	protected PMPSessionThread c;
 
-	/** current message id */
-	private short msgID = -1;
-	/** data buffer */
-	private byte[] buffer;
-	/** position in the data buffer */
-	private short position = 0;
+	/** the message, which is currently processed by the session thread */
+	private PMPMessage current;
 	/** the underlying (socket) InputStream */
 	private InputStream is;
+	/** true, if the frames are received, instead of read by the stream */
+	private boolean fed;
+	/** notified when a frame of a held message is read, if the stream is fed */
+	private Runnable drainListener;
 
-	/** true, if there are more messages with the current message id to come */
-	private boolean more = false;
-	/** the length of the current message's body left to read */
-	private short messageL = 0;
-	/** the length of the current buffer */
-	private short currentL = 0;
+	/** the messages, which are still receiving frames, keyed by message id */
+	private Hashtable incoming = new Hashtable();
+	/** the messages, which has been started, but not yet processed */
+	private Vector pending = new Vector();
+
+	/** true, if a thread is reading a frame from the underlying stream */
+	private boolean pumping = false;
+	private boolean closed = false;
+	private byte[] header = new byte[5];
+	/** decompresses the compressed frames, created when first needed */
+	private Inflater inflater;
+	private Object inflaterLock = new Object();
 
 	protected int timeout;
+	/** true, if the dictionaries can come in compact form */
+	protected boolean compactDictionaries = false;
 
-	/** synchronization flags */
-	private boolean locked = false;
-	private int waiting = 0;
+	/** the session symbols defined by the remote peer */
+	private Vector symbols = new Vector();
+	/**
+	 * the classes resolved for the symbols, class loader -> (Integer symbol
+	 * -> Object[] {Class, the loader which has found it})
+	 */
+	private Hashtable resolved = new Hashtable();
+	private static final Object NULL_LOADER = new Object();
 
 	/** common error messages */
 	private static final String ERRMSG1 = "Protocol Error";
-	private static final String ERRMSG2 = "Message ID Mismatch ";
+	private static final String ERRMSG2 = "Stream Closed";
 
 	static int stream_timeout = 0; // default: no timeout, wait forever
+	/**
+	 * how many bytes of a message, which is read by another thread, can be
+	 * buffered, before the session thread stops reading new messages
+	 */
+	static int held_limit = 64 * 1024;
 
 	static {
 		String stimeout = System.getProperty("iagent.pmp.stream_timeout"); //$NON-NLS-1$
@@ -52,244 +84,401 @@ class PMPInputStream extends InputStream {
 				stream_timeout = Integer.parseInt(stimeout);
 			} catch (NumberFormatException nfe) {
 			}
+		String slimit = System.getProperty("iagent.pmp.held_limit"); //$NON-NLS-1$
+		if (slimit != null)
+			try {
+				held_limit = Integer.parseInt(slimit);
+			} catch (NumberFormatException nfe) {
+			}
 	}
 
 	public PMPInputStream(InputStream is, PMPSessionThread c) {
 		this.is = is;
 		this.c = c;
+		fed = is == null;
 		timeout = stream_timeout;
-		buffer = new byte[4096];
+	}
+
+	/**
+	 * Receives a frame read by a selector thread. The stream must have been
+	 * created without underlying stream.
+	 */
+	protected void receive(short msgID, byte flags, byte[] data) throws IOException {
+		boolean more = (flags & PMPOutputStream.LAST_FRAME) == 0;
+		if ((flags & PMPOutputStream.COMPRESSED_FRAME) != 0)
+			data = inflate(data);
+		if (msgID == PMPOutputStream.SYMBOLS_FRAME_ID) {
+			defineSymbols(data);
+			return;
+		}
+		synchronized (this) {
+			if (closed)
+				throw new IOException(ERRMSG2);
+			route(msgID, more, data);
+			notifyAll();
+		}
+	}
+
+	/** Returns true if there is a received message, which isn't processed */
+	protected synchronized boolean hasMessage() {
+		return !pending.isEmpty();
+	}
+
+	/**
+	 * Returns true if the messages read by other threads have buffered too
+	 * much data and no more frames should be received for now.
+	 */
+	protected synchronized boolean isFull() {
+		return isOverLimit();
+	}
+
+	protected void setDrainListener(Runnable listener) {
+		drainListener = listener;
 	}
 
 	/**
 	 * Positions the InputStream at the beginning of the next message's body. If
-	 * the current message is not fully read, discards it.
+	 * the current message is not fully read and no one else is reading it,
+	 * discards it.
 	 */
 	public short nextMessage() throws IOException {
+		PMPMessage old;
+		boolean discard;
 		synchronized (this) {
-			while (locked) {
-				waiting++;
-				try {
-					wait();
-				} catch (Exception ignore) {
-				} // IllegalMonitorStateException - impossible
-				waiting--;
-			}
+			old = current;
+			current = null;
+			discard = old != null && !old.held;
 		}
-		if (msgID != -1) {
-			skipRest();
+		if (discard) {
+			old.close();
 		}
 		boolean ping = true;
 		while (true) {
-			try {
-				msgID = PMPData.readShort(is);
-			} catch (IOException ioExc) {
-				if (ping) {
-					c.ping();
-					ping = false;
+			synchronized (this) {
+				if (!pending.isEmpty()) {
+					current = (PMPMessage) pending.elementAt(0);
+					pending.removeElementAt(0);
+					return current.msgID;
+				}
+				if (fed) {
+					waitFrame();
+					continue;
+				}
+				if (isOverLimit()) {
+					// wait for the threads reading the other messages to
+					// catch up
+					try {
+						wait();
+					} catch (InterruptedException ignore) {
+					}
 					continue;
 				}
-				throwException(ioExc);
 			}
-			break;
+			ping = pump(ping, true);
 		}
-		readHeader();
-		fillBuffer();
-		return msgID;
 	}
 
 	/** reads a byte from the current message's body */
 	public int read() throws IOException {
-		if (position == currentL) {
-			if (messageL > 0) {
-				fillBuffer();
-				return read();
-			} else if (more) {
-				readNext();
-				return read();
-			} else
-				return -1;
-		}
-		return buffer[position++] & 0xff;
+		PMPMessage msg = current;
+		return msg != null ? msg.read() : -1;
 	}
 
 	/** reads len bytes from the current message's body */
 	public int read(byte b[], int off, int len) throws IOException {
-		if (position == currentL) {
-			if (messageL > 0) {
-				fillBuffer();
-			} else if (more) {
-				readNext();
-			} else
-				return -1;
-		}
-		int more1 = len - (currentL - position);
-		int read = 0;
-		if (more1 <= 0) {
-			System.arraycopy(buffer, position, b, off, len);
-			position += len;
-			read = len;
-		} else {
-			int first = len - more1;
-			System.arraycopy(buffer, position, b, off, first);
-			if (messageL > 0) {
-				fillBuffer();
-				read = first + read(b, off + first, len - first);
-			} else if (more) {
-				readNext();
-				read = first + read(b, off + first, len - first);
-			} else {
-				position += first;
-				read = first;
-			}
-		}
-		return read;
+		PMPMessage msg = current;
+		return msg != null ? msg.read(b, off, len) : -1;
+	}
+
+	/** skips toSkip bytes from the current message's body */
+	public long skip(long toSkip) throws IOException {
+		PMPMessage msg = current;
+		return msg != null ? msg.skip(toSkip) : 0;
 	}
 
 	public int available() throws IOException {
-		int available = (currentL - position) + messageL;
-		if (available == 0 && more) {
-			readNext();
-			return available();
-		}
+		PMPMessage msg = current;
+		int available = msg != null ? msg.available() : 0;
 		c.debug("available " + available);
 		return available;
 	}
 
 	/**
-	 * Reads the next message from the underlying InputStream. If it's message
-	 * id is different from the message id of the current message calls
-	 * throwException
+	 * Hands the current message to another reader. The message won't be
+	 * discarded when the session thread moves to the next message, and the
+	 * session thread is free to do so before the message is fully read.
 	 */
-	private void readNext() throws IOException {
-		checkNextMsgID();
-		readHeader();
-		fillBuffer();
+	protected PMPMessage detach() {
+		PMPMessage msg = current;
+		if (msg != null)
+			msg.held = true;
+		return msg;
 	}
 
-	/** skips toSkip bytes from the current message's body */
-	public long skip(long toSkip) throws IOException {
-		if (position == currentL) {
-			if (messageL > 0) {
-				fillBuffer();
-			} else if (more) {
-				readNext();
-			} else
-				return 0;
-		}
-		long more1 = toSkip - (currentL - position);
-		long skipped = 0;
-		if (more1 <= 0) {
-			position += (int) toSkip;
-			skipped = toSkip;
-		} else {
-			int first = (int) (toSkip - more1);
-			if (messageL > 0) {
-				fillBuffer();
-				skipped = first + skip(toSkip - first);
-			} else if (more) {
-				readNext();
-				skipped = first + skip(toSkip - first);
-			} else {
-				position += first;
-				skipped = first;
+	/**
+	 * Gives the next buffered frame of the specified message to it. If there
+	 * is no such, reads frames from the underlying stream until the message
+	 * receives one. Returns false, if the message has no more frames.
+	 */
+	protected boolean nextFrame(PMPMessage msg) throws IOException {
+		while (true) {
+			synchronized (this) {
+				if (!msg.frames.isEmpty()) {
+					msg.setFrame((byte[]) msg.frames.elementAt(0));
+					msg.frames.removeElementAt(0);
+					if (msg.held) {
+						notifyAll();
+						if (drainListener != null)
+							drainListener.run();
+					}
+					return true;
+				}
+				if (msg.complete || msg.discarded)
+					return false;
+				if (closed)
+					throw new IOException(ERRMSG2);
+				if (fed) {
+					waitFrame();
+					continue;
+				}
 			}
+			pump(false, false);
 		}
-		return skipped;
 	}
 
 	/**
-	 * Reads the next message's id from the underlying InputStream. If its
-	 * different from the message id of the current message calls throwException
+	 * Reads the next frame from the underlying stream and routes it to its
+	 * message. If another thread is already reading, waits for it to finish
+	 * instead. Returns the new value of the ping flag.
 	 */
-	private void checkNextMsgID() throws IOException {
-		short nextMsgID = -1;
+	private boolean pump(boolean ping, boolean idle) throws IOException {
+		synchronized (this) {
+			if (closed)
+				throw new IOException(ERRMSG2);
+			if (pumping) {
+				try {
+					wait();
+				} catch (InterruptedException ignore) {
+				}
+				return ping;
+			}
+			pumping = true;
+		}
+		short msgID;
+		int length;
+		boolean more;
+		byte[] data;
 		try {
-			nextMsgID = PMPData.readShort(is);
+			try {
+				msgID = PMPData.readShort(is);
+			} catch (IOException ioExc) {
+				if (idle && ping) {
+					endPump();
+					c.ping();
+					return false;
+				}
+				throw ioExc;
+			}
+			// message's length & more flag
+			readFully(header, 0, 3);
+			length = ((header[0] & 0xFF) << 8) + (header[1] & 0xFF);
+			more = (header[2] & PMPOutputStream.LAST_FRAME) == 0;
+			data = new byte[length];
+			readFully(data, 0, length);
+			if ((header[2] & PMPOutputStream.COMPRESSED_FRAME) != 0)
+				data = inflate(data);
 		} catch (IOException ioExc) {
+			endPump();
 			throwException(ioExc);
+			return ping;
 		}
-		if (nextMsgID != msgID) {
-			throwException(new IOException(ERRMSG2));
+		if (msgID == PMPOutputStream.SYMBOLS_FRAME_ID) {
+			// symbols are defined before they are used, whatever message
+			// reads them first
+			try {
+				defineSymbols(data);
+			} catch (IOException ioExc) {
+				endPump();
+				throwException(ioExc);
+			}
+			endPump();
+			return ping;
 		}
+		synchronized (this) {
+			route(msgID, more, data);
+			pumping = false;
+			notifyAll();
+		}
+		return ping;
 	}
 
-	/**
-	 * Reads the message's length & more flag
-	 */
-	private void readHeader() throws IOException {
-		int tmp = 0;
+	/** adds a frame to its message, must be called while holding the lock */
+	private void route(short msgID, boolean more, byte[] data) {
+		Short key = new Short(msgID);
+		PMPMessage msg = (PMPMessage) incoming.get(key);
+		if (msg == null) {
+			msg = new PMPMessage(this, msgID);
+			pending.addElement(msg);
+			if (more)
+				incoming.put(key, msg);
+		} else if (!more) {
+			incoming.remove(key);
+		}
+		if (data.length > 0 && !msg.discarded)
+			msg.frames.addElement(data);
+		msg.complete = !more;
+	}
+
+	/** waits for a received frame, must be called while holding the lock */
+	private void waitFrame() throws IOException {
+		if (closed)
+			throw new IOException(ERRMSG2);
 		try {
-			messageL = PMPData.readShort(is);
-			tmp = is.read();
-			more = tmp == 0;
-		} catch (IOException ioExc) {
-			throwException(ioExc);
+			wait();
+		} catch (InterruptedException ignore) {
 		}
-		if (tmp == -1)
-			throwException(new IOException(ERRMSG1));
 	}
 
 	/**
-	 * Reads the next part of the current message's body from the underlying
-	 * InputStream. If an exception occurs, calls throwException.
+	 * Decompresses the data of a compressed frame, which starts with its
+	 * original length.
 	 */
-	private void fillBuffer() throws IOException {
-		currentL = (messageL > 4096) ? 4096 : messageL;
-		int read = 0;
-		int tmp = 0;
-		while (read < currentL) {
+	private byte[] inflate(byte[] data) throws IOException {
+		if (data.length < 2)
+			throw new IOException(ERRMSG1);
+		byte[] result = new byte[((data[0] & 0xFF) << 8) + (data[1] & 0xFF)];
+		synchronized (inflaterLock) {
+			if (closed)
+				throw new IOException(ERRMSG2);
+			if (inflater == null)
+				inflater = new Inflater();
+			inflater.reset();
+			inflater.setInput(data, 2, data.length - 2);
+			int length = 0;
 			try {
-				tmp = is.read(buffer, read, currentL - read);
-			} catch (IOException ioExc) {
-				throwException(ioExc);
+				while (length < result.length) {
+					int n = inflater.inflate(result, length, result.length - length);
+					if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+						break;
+					length += n;
+				}
+			} catch (DataFormatException e) {
+				throw new IOException(ERRMSG1 + ": " + e.getMessage());
 			}
-			if (tmp == -1)
-				throwException(new IOException(ERRMSG1));
-			read += tmp;
+			if (length != result.length)
+				throw new IOException(ERRMSG1);
 		}
-		messageL -= currentL;
-		position = 0;
+		return result;
+	}
+
+	private void defineSymbols(byte[] data) throws IOException {
+		InputStream in = new ByteArrayInputStream(data);
+		while (in.available() > 0) {
+			symbols.addElement(PMPData.readString(in, data.length));
+		}
+	}
+
+	/** Returns the name of a symbol defined by the remote peer */
+	protected String getSymbol(int id) throws IOException {
+		if (id < 0 || id >= symbols.size())
+			throw new IOException("Unknown Symbol " + id);
+		return (String) symbols.elementAt(id);
 	}
 
 	/**
-	 * Discards the rest of the message and all following messages with the same
-	 * message id
+	 * Returns the class and its loader resolved for the symbol with the given
+	 * initial loader, or null if it is not resolved yet.
 	 */
-	private void skipRest() throws IOException {
-		do {
-			if (messageL > 0)
-				try {
-					is.skip(messageL);
-				} catch (IOException ioExc) {
-					throwException(ioExc);
-				}
-			if (more) {
-				checkNextMsgID();
-				readHeader();
-			} else
-				break;
-		} while (true);
+	protected Object[] getResolvedClass(ClassLoader loader, int symbol) {
+		Hashtable classes = (Hashtable) resolved.get(loader != null ? (Object) loader : NULL_LOADER);
+		return classes != null ? (Object[]) classes.get(new Integer(symbol)) : null;
 	}
 
-	/** Calls disconnect on the PMPProcessor and throws the exception */
-	protected void throwException(IOException ioExc) throws IOException {
-		c.os.checkWaitStatus(ioExc.toString());
-		throw ioExc;
+	protected void putResolvedClass(ClassLoader loader, int symbol, Object[] clazz) {
+		Object key = loader != null ? (Object) loader : NULL_LOADER;
+		synchronized (resolved) {
+			Hashtable classes = (Hashtable) resolved.get(key);
+			if (classes == null) {
+				classes = new Hashtable();
+				resolved.put(key, classes);
+			}
+			classes.put(new Integer(symbol), clazz);
+		}
 	}
 
-	protected synchronized void lock() {
-		locked = true;
+	private synchronized void endPump() {
+		pumping = false;
+		notifyAll();
 	}
 
-	protected synchronized void unlock() {
-		locked = false;
-		if (waiting > 0) {
-			notifyAll();
+	/**
+	 * Checks whether a message read by another thread has buffered too much
+	 * data
+	 */
+	private boolean isOverLimit() {
+		if (held_limit <= 0)
+			return false;
+		for (Enumeration e = incoming.elements(); e.hasMoreElements();) {
+			PMPMessage msg = (PMPMessage) e.nextElement();
+			if (msg.held && !msg.discarded && msg.buffered() > held_limit)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a fully read message from its other reader. If the session
+	 * thread is still processing the message, it continues reading it and
+	 * discards it when done. Otherwise the rest of the message is discarded.
+	 */
+	protected void release(PMPMessage msg) {
+		synchronized (this) {
+			if (msg == current) {
+				msg.held = false;
+				return;
+			}
+		}
+		discard(msg);
+	}
+
+	/** discards the rest of the specified message */
+	protected synchronized void discard(PMPMessage msg) {
+		msg.discarded = true;
+		msg.frames.removeAllElements();
+		notifyAll();
+		if (drainListener != null)
+			drainListener.run();
+	}
+
+	private void readFully(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int read = is.read(b, off, len);
+			if (read == -1)
+				throw new IOException(ERRMSG1);
+			off += read;
+			len -= read;
 		}
 	}
 
+	/** Calls disconnect on the PMPProcessor and throws the exception */
+	protected void throwException(IOException ioExc) throws IOException {
+		c.os.checkWaitStatus(ioExc.toString());
+		throw ioExc;
+	}
+
 	public void close() throws IOException {
-		is.close();
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		resolved.clear();
+		synchronized (inflaterLock) {
+			if (inflater != null) {
+				inflater.end();
+				inflater = null;
+			}
+		}
+		if (is != null)
+			is.close();
 	}
 }
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.internal.pmp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Vector;
+
+/**
+ * The body of a single received PMP message. The frames are added by the
+ * {@link PMPInputStream}, while the message is read by a single thread.
+ */
+class PMPMessage extends InputStream {
+
+	protected short msgID;
+
+	/** the received, but not yet read frames, guarded by the input stream */
+	protected Vector frames = new Vector(4, 4);
+	/** true, if the last frame has been received */
+	protected boolean complete = false;
+	/** true, if the rest of the message is not needed */
+	protected boolean discarded = false;
+	/** true, if the message is read by other thread than the session thread */
+	protected boolean held = false;
+
+	private PMPInputStream owner;
+	/** the frame which is currently read */
+	private byte[] buffer;
+	/** position in the current frame */
+	private int position = 0;
+
+	PMPMessage(PMPInputStream owner, short msgID) {
+		this.owner = owner;
+		this.msgID = msgID;
+	}
+
+	void setFrame(byte[] frame) {
+		buffer = frame;
+		position = 0;
+	}
+
+	/** returns the number of received, but not read bytes */
+	int buffered() {
+		int size = 0;
+		for (int i = 0; i < frames.size(); i++) {
+			size += ((byte[]) frames.elementAt(i)).length;
+		}
+		return size;
+	}
+
+	public int read() throws IOException {
+		if (buffer == null || position == buffer.length) {
+			if (!owner.nextFrame(this))
+				return -1;
+		}
+		return buffer[position++] & 0xff;
+	}
+
+	public int read(byte b[], int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		int read = 0;
+		while (read < len) {
+			if (buffer == null || position == buffer.length) {
+				// block only if nothing has been read yet
+				if (read > 0 && available() == 0)
+					break;
+				if (!owner.nextFrame(this))
+					break;
+			}
+			int toCopy = len - read;
+			if (toCopy > buffer.length - position)
+				toCopy = buffer.length - position;
+			System.arraycopy(buffer, position, b, off + read, toCopy);
+			position += toCopy;
+			read += toCopy;
+		}
+		return read == 0 ? -1 : read;
+	}
+
+	public long skip(long toSkip) throws IOException {
+		long skipped = 0;
+		while (skipped < toSkip) {
+			if (buffer == null || position == buffer.length) {
+				if (!owner.nextFrame(this))
+					break;
+			}
+			int step = buffer.length - position;
+			if (step > toSkip - skipped)
+				step = (int) (toSkip - skipped);
+			position += step;
+			skipped += step;
+		}
+		return skipped;
+	}
+
+	public int available() throws IOException {
+		int available = buffer == null ? 0 : buffer.length - position;
+		synchronized (owner) {
+			return available + buffered();
+		}
+	}
+
+	/**
+	 * Called by another reader, when it has read its part of the message. The
+	 * rest of the message is kept for the session thread, if it still
+	 * processes the message.
+	 */
+	void release() {
+		owner.release(this);
+	}
+
+	/** discards the rest of the message */
+	public void close() {
+		buffer = null;
+		owner.discard(this);
+	}
+}
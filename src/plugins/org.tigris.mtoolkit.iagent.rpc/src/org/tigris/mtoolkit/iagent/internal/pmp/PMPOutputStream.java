@@ -16,7 +16,16 @@ import java.io.OutputStream;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.zip.Deflater;
 
+/**
+ * Splits the PMP messages in frames and writes them in the underlying
+ * OutputStream. Every thread composes its message in its own frame buffer.
+ * When the stream is multiplexed, frames of different messages are
+ * interleaved on the wire in the order they become ready, so a large message
+ * doesn't stall the other ones. Otherwise the stream is locked for the whole
+ * message.
+ */
 class PMPOutputStream extends OutputStream {
 
 	private PMPSessionThread c;
@@ -25,21 +34,73 @@ class PMPOutputStream extends OutputStream {
 	private static IOException ioExc;
 	private boolean closed = false;
 
-	/** data buffer */
-	protected byte[] buffer;
-	/** current position in the data buffer */
-	private short position;
 	/** the underlying OutputStream */
 	private OutputStream os;
 	private short dataOffset;
 	/** the current message id */
 	private short clientMsgID = 100; // 0server;
-	private short msgID;
+
+	/** the message composed by the current thread */
+	private ThreadLocal frames = new ThreadLocal();
 
 	/** synchronization flags */
 	private boolean locked = false;
+	private Thread lockOwner;
 	private int waiting = 0;
 
+	/**
+	 * true, if the remote peer can demultiplex interleaved frames. In this
+	 * case only the messages with equal ids are written one after another.
+	 */
+	protected boolean multiplexed = false;
+	/** true, if the dictionaries can be written in compact form */
+	protected boolean compactDictionaries = false;
+
+	/** the default size of the frame buffers */
+	private static final int FRAME_SIZE = 4096;
+	/** the size of the frames with bulk data, if the remote peer accepts it */
+	private static final int LARGE_FRAME_SIZE = 64 * 1024;
+	/** the maximum length of a chunk of an InputStream */
+	private static final int MAX_CHUNK_SIZE = Short.MAX_VALUE;
+	/** the size up to which the frame buffers grow for bulk data */
+	private int frameSize = FRAME_SIZE;
+
+	/** the flags of a frame */
+	protected static final byte LAST_FRAME = 0x01;
+	protected static final byte COMPRESSED_FRAME = 0x02;
+
+	/** true, if the frames can be compressed */
+	protected boolean compression = false;
+	/** the size, from which the frames are compressed */
+	static int compression_threshold = 256;
+	private Deflater deflater;
+	private Object deflaterLock = new Object();
+
+	static {
+		String sthreshold = System.getProperty("iagent.pmp.compression_threshold"); //$NON-NLS-1$
+		if (sthreshold != null)
+			try {
+				compression_threshold = Integer.parseInt(sthreshold);
+			} catch (NumberFormatException nfe) {
+			}
+	}
+
+	/** the id of the frames, which define session symbols */
+	protected static final short SYMBOLS_FRAME_ID = 0;
+	private static final int MAX_SYMBOLS = 4096;
+	private static final int MAX_SYMBOL_LENGTH = 1024;
+	/** true, if names can be replaced with session symbols */
+	protected boolean internNames = false;
+	/** the session symbols, name -> Integer id */
+	private Hashtable symbols = new Hashtable();
+	/** the ids of the messages, which are currently written */
+	private Hashtable writing = new Hashtable();
+
+	/** frame scheduler, the frames are written in the order of their tickets */
+	private Object wireLock = new Object();
+	private int nextTicket = 0;
+	private int serving = 0;
+
 	protected boolean ping = false;
 
 	protected long time = System.currentTimeMillis();
@@ -47,56 +108,96 @@ class PMPOutputStream extends OutputStream {
 	public PMPOutputStream(OutputStream os, PMPSessionThread c) {
 		this.os = os;
 		this.c = c;
-		buffer = new byte[4096];
 		dataOffset = (short) 5;
 	}
 
 	/** writes a byte in the current message's body, and flush, if needed */
 	public void write(int b) throws IOException {
-		if (position == buffer.length) {
-			flush(false);
+		Frame f = currentFrame();
+		if (f.position == f.buffer.length) {
+			flush(f, false);
 		}
-		buffer[position++] = (byte) b;
+		f.buffer[f.position++] = (byte) b;
 	}
 
 	/** writes len bytes in the current message's body, and flushs, if needad */
 	public void write(byte b[], int off, int len) throws IOException {
-		int more = position + len - buffer.length;
-		if (more > 0) {
-			System.arraycopy(b, off, buffer, position, len - more);
-			position = (short) buffer.length;
-			flush(false);
-			write(b, off + len - more, more);
-		} else {
-			System.arraycopy(b, off, buffer, position, len);
-			position += len;
+		Frame f = currentFrame();
+		while (true) {
+			int more = f.position + len - f.buffer.length;
+			if (more <= 0)
+				break;
+			if (f.buffer.length < frameSize) {
+				grow(f);
+				continue;
+			}
+			System.arraycopy(b, off, f.buffer, f.position, len - more);
+			f.position = f.buffer.length;
+			flush(f, false);
+			off += len - more;
+			len = more;
 		}
+		System.arraycopy(b, off, f.buffer, f.position, len);
+		f.position += len;
 	}
 
 	public void write(InputStream is) throws IOException {
+		Frame f = currentFrame();
+		grow(f);
+		byte[] buffer = f.buffer;
+		boolean first = true;
 		// the cycle below is a result of a transformation of recursion into
 		// iteration
 		while (true) { // cycle until we have read the whole input stream
-			int free = buffer.length - position;
+			int free = buffer.length - f.position;
 			if (free < 10) {
-				flush(false);
-				free = buffer.length - position;
+				flush(f, false);
+				free = buffer.length - f.position;
+			}
+			int toWrite = is.read(buffer, f.position + 2, Math.min(free - 2, MAX_CHUNK_SIZE));
+			if (first) {
+				first = false;
+				if (isCompressed(buffer, f.position + 2, toWrite))
+					f.raw = true;
 			}
-			int toWrite = is.read(buffer, position + 2, free - 2);
 			if (toWrite == -1) {
-				writeShort((byte) -1, buffer, position);
-				position += 2;
+				writeShort((byte) -1, buffer, f.position);
+				f.position += 2;
 				break; // we have reached the end of input stream, exit the
 				// cycle
 			} else {
-				writeShort((short) toWrite, buffer, position);
-				position += (toWrite + 2);
-				if (position == buffer.length)
-					flush(false);
+				writeShort((short) toWrite, buffer, f.position);
+				f.position += (toWrite + 2);
+				if (f.position == buffer.length)
+					flush(f, false);
 			}
 		}
 	}
 
+	/**
+	 * Checks whether the data starts with the signature of a ZIP or GZIP
+	 * stream, which shouldn't be compressed again.
+	 */
+	private static boolean isCompressed(byte[] b, int off, int len) {
+		if (len < 4)
+			return false;
+		if (b[off] == 'P' && b[off + 1] == 'K' && b[off + 2] == 3 && b[off + 3] == 4)
+			return true;
+		return b[off] == (byte) 0x1F && b[off + 1] == (byte) 0x8B;
+	}
+
+	/**
+	 * Enlarges the frame buffer up to the negotiated frame size, so that bulk
+	 * data is sent in fewer frames.
+	 */
+	private void grow(Frame f) {
+		if (f.buffer.length < frameSize) {
+			byte[] buffer = new byte[frameSize];
+			System.arraycopy(f.buffer, 0, buffer, 0, f.position);
+			f.buffer = buffer;
+		}
+	}
+
 	/** writes a short in the specified byte[] at the specified offset */
 	private void writeShort(short s, byte[] b, int off) {
 		b[off++] = (byte) ((s >>> 8) & 0xFF);
@@ -105,33 +206,194 @@ class PMPOutputStream extends OutputStream {
 
 	/** flushes the stream */
 	public void flush() throws IOException {
-		flush(false);
+		flush(currentFrame(), false);
 	}
 
-	/** writes a message in the underlying OutputStream */
-	private void flush(boolean last) throws IOException {
+	/** writes a frame of the message in the underlying OutputStream */
+	private void flush(Frame f, boolean last) throws IOException {
 		if (closed)
 			throw new IOException("Disconnected");
-		if (last) {
-			buffer[dataOffset - 1] = (byte) 1;
-			writeBuffer();
-		} else {
-			buffer[dataOffset - 1] = (byte) 0;
-			writeBuffer();
-			position = dataOffset;
-			writeShort(msgID, buffer, 0);
+		byte[] b = f.buffer;
+		int len = f.position;
+		byte flags = last ? LAST_FRAME : 0;
+		if (compression && !f.raw && len - dataOffset >= compression_threshold) {
+			int packed = compress(f);
+			if (packed > 0) {
+				b = f.packed;
+				len = packed;
+				flags |= COMPRESSED_FRAME;
+			}
+		}
+		b[dataOffset - 1] = flags;
+		writeShort((short) (len - dataOffset), b, 2);
+		writeFrame(b, len);
+		f.started = true;
+		if (last)
+			f.finished = true;
+		else
+			f.position = dataOffset;
+	}
+
+	/**
+	 * Compresses the data of the frame in its packed buffer, after the
+	 * original length of the data. Returns the length of the packed frame, or
+	 * -1 if the data can't be compressed enough. Then the rest of the message
+	 * isn't compressed either, as it is most likely already compressed.
+	 */
+	private int compress(Frame f) {
+		int length = f.position - dataOffset;
+		// at least an eighth should be saved
+		int limit = length - (length >> 3) - 2;
+		if (f.packed == null || f.packed.length < f.buffer.length)
+			f.packed = new byte[f.buffer.length];
+		int packed = -1;
+		synchronized (deflaterLock) {
+			if (closed)
+				return -1;
+			if (deflater == null)
+				deflater = new Deflater(Deflater.BEST_SPEED);
+			deflater.reset();
+			deflater.setInput(f.buffer, dataOffset, length);
+			deflater.finish();
+			int n = deflater.deflate(f.packed, dataOffset + 2, limit);
+			if (deflater.finished())
+				packed = n;
+		}
+		if (packed < 0) {
+			f.raw = true;
+			return -1;
 		}
+		f.packed[0] = f.buffer[0];
+		f.packed[1] = f.buffer[1];
+		writeShort((short) length, f.packed, dataOffset);
+		return dataOffset + 2 + packed;
 	}
 
-	private void writeBuffer() throws IOException {
-		writeShort((short) (position - dataOffset), buffer, 2);
-		os.write(buffer, 0, position);
-		os.flush();
+	/**
+	 * Writes a single frame. The frames are written in the order in which the
+	 * writing threads have asked for it, so a thread which sends a long
+	 * message gives way to the others after each frame.
+	 */
+	private void writeFrame(byte[] b, int len) throws IOException {
+		writeFrame(takeTicket(), b, len);
 	}
 
-	/** locks the stream & sets the current message id */
-	public synchronized void begin(short msgID) {
-		while (locked) {
+	/**
+	 * Reserves the place of a frame in the order of writing.
+	 */
+	private int takeTicket() {
+		synchronized (wireLock) {
+			return nextTicket++;
+		}
+	}
+
+	private void writeFrame(int ticket, byte[] b, int len) throws IOException {
+		boolean queued;
+		synchronized (wireLock) {
+			while (ticket != serving) {
+				try {
+					wireLock.wait();
+				} catch (InterruptedException ignore) {
+				}
+			}
+			queued = nextTicket > serving + 1;
+		}
+		try {
+			os.write(b, 0, len);
+			// if other frames wait to be written, the last of them flushes
+			// them all together
+			if (!queued)
+				os.flush();
+		} finally {
+			synchronized (wireLock) {
+				serving++;
+				wireLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Returns the id of the name in the session symbol table, or -1 if it
+	 * can't be interned. A new name is defined in a frame of its own, written
+	 * directly to the wire, so it reaches the remote peer before any frame,
+	 * which refers to it, whatever the order of the messages is. The frame
+	 * takes its place in the order of writing before the name is published,
+	 * so it isn't written while the symbols are locked.
+	 */
+	protected int intern(String name) throws IOException {
+		if (!internNames || name.length() > MAX_SYMBOL_LENGTH)
+			return -1;
+		Integer id = (Integer) symbols.get(name);
+		if (id != null)
+			return id.intValue();
+		byte[] frame;
+		int ticket;
+		synchronized (symbols) {
+			id = (Integer) symbols.get(name);
+			if (id != null)
+				return id.intValue();
+			if (symbols.size() >= MAX_SYMBOLS || closed)
+				return -1;
+			byte[] b = name.getBytes();
+			frame = new byte[dataOffset + 4 + b.length];
+			writeShort(SYMBOLS_FRAME_ID, frame, 0);
+			writeShort((short) (4 + b.length), frame, 2);
+			frame[dataOffset - 1] = 1;
+			writeShort((short) 0, frame, dataOffset);
+			writeShort((short) b.length, frame, dataOffset + 2);
+			System.arraycopy(b, 0, frame, dataOffset + 4, b.length);
+			ticket = takeTicket();
+			id = new Integer(symbols.size());
+			symbols.put(name, id);
+		}
+		writeFrame(ticket, frame, frame.length);
+		return id.intValue();
+	}
+
+	private Frame currentFrame() throws IOException {
+		Frame f = (Frame) frames.get();
+		if (f == null || !f.active)
+			throw new IOException("No message started");
+		return f;
+	}
+
+	private Frame prepareFrame(short msgID, boolean exclusive) {
+		Frame f = (Frame) frames.get();
+		if (f == null) {
+			f = new Frame();
+			frames.set(f);
+		}
+		f.msgID = msgID;
+		f.exclusive = exclusive;
+		f.position = dataOffset;
+		f.started = false;
+		f.finished = false;
+		f.raw = false;
+		f.active = true;
+		writeShort(msgID, f.buffer, 0);
+		return f;
+	}
+
+	/**
+	 * Waits until the current thread is allowed to write a message with the
+	 * specified id. Returns true if the message can be written in frames
+	 * interleaved with other messages.
+	 */
+	private synchronized boolean acquire(short msgID) {
+		if (multiplexed) {
+			Short key = new Short(msgID);
+			while (writing.get(key) != null && !closed) {
+				waiting++;
+				try {
+					wait();
+				} catch (Exception ignore) {
+				}
+				waiting--;
+			}
+			writing.put(key, Thread.currentThread());
+			return true;
+		}
+		while (locked && !closed) {
 			waiting++;
 			try {
 				wait();
@@ -140,37 +402,51 @@ class PMPOutputStream extends OutputStream {
 			// InterruptedException
 			waiting--;
 		}
+		locked = true;
+		lockOwner = Thread.currentThread();
+		return false;
+	}
+
+	private synchronized void release(Frame f) {
+		f.active = false;
+		if (f.exclusive) {
+			if (lockOwner != Thread.currentThread())
+				// the lock has been already broken by checkWaitStatus
+				return;
+			locked = false;
+			lockOwner = null;
+		} else {
+			writing.remove(new Short(f.msgID));
+		}
+		if (waiting > 0) {
+			notifyAll();
+		}
+	}
+
+	/** locks the stream & sets the current message id */
+	public void begin(short msgID) {
+		boolean interleaved = acquire(msgID);
 		if (closed)
 			return;
-		this.msgID = msgID;
-		locked = true;
-		position = dataOffset;
-		writeShort(this.msgID, buffer, 0);
+		prepareFrame(msgID, !interleaved);
 	}
 
-	protected synchronized short begin(PMPAnswer answer) {
+	protected short begin(PMPAnswer answer) {
 		if (closed)
 			return -1;
-		while (locked) {
-			waiting++;
-			try {
-				wait();
-			} catch (Exception ignore) {
-			}
-			waiting--;
+		short msgID;
+		synchronized (this) {
+			// skip the ids of the requests, which are still waiting for reply
+			do {
+				if (++clientMsgID <= 0)
+					clientMsgID = 1;
+			} while (answers.containsKey(new Short(clientMsgID)));
+			msgID = clientMsgID;
 		}
+		boolean interleaved = acquire(msgID);
 		if (closed)
 			return -1;
-		locked = true;
-
-		if (++clientMsgID <= 0)
-			clientMsgID = 1;
-		msgID = clientMsgID;
-		try {
-			writeShort(msgID, buffer, 0);
-		} catch (Exception ignore) { // should not happen ...
-		}
-		position = dataOffset;
+		prepareFrame(msgID, !interleaved);
 		if (answer != null) {
 			synchronized (answers) {
 				answers.put(new Short(msgID), answer);
@@ -181,7 +457,7 @@ class PMPOutputStream extends OutputStream {
 
 	public void end(boolean checkClosed) throws IOException {
 		try {
-			flush(true);
+			flush(currentFrame(), true);
 		} catch (Exception exc) {
 		} finally {
 			unlock();
@@ -193,14 +469,49 @@ class PMPOutputStream extends OutputStream {
 		}
 	}
 
-	/** unlocks the stream */
-	protected synchronized void unlock() {
-		locked = false;
-		if (waiting > 0) {
-			notifyAll();
+	/**
+	 * Unlocks the stream. If the current thread has already sent some frames
+	 * of its message, the message is terminated, so that the remote side
+	 * doesn't wait for the rest of it.
+	 */
+	protected void unlock() {
+		Frame f = (Frame) frames.get();
+		if (f != null && f.active) {
+			if (f.started && !f.finished) {
+				f.position = dataOffset;
+				try {
+					flush(f, true);
+				} catch (Exception ignore) {
+				}
+			}
+			release(f);
+			return;
+		}
+		synchronized (this) {
+			locked = false;
+			lockOwner = null;
+			if (waiting > 0) {
+				notifyAll();
+			}
 		}
 	}
 
+	/**
+	 * Enables interleaving of the frames of different messages. Should be
+	 * called only after the remote peer has confirmed that it supports it.
+	 */
+	protected synchronized void setMultiplexed(boolean multiplexed) {
+		this.multiplexed = multiplexed;
+	}
+
+	/**
+	 * Enables frames larger than the default for bulk data. Should be called
+	 * only after the remote peer has confirmed that it accepts them.
+	 */
+	protected void setLargeFrames(boolean largeFrames) {
+		frameSize = largeFrames ? LARGE_FRAME_SIZE : FRAME_SIZE;
+	}
+
 	public void close() {
 		try {
 			this.os.close();
@@ -221,6 +532,12 @@ class PMPOutputStream extends OutputStream {
 			unlock();
 		} catch (Exception exc) {
 		}
+		synchronized (deflaterLock) {
+			if (deflater != null) {
+				deflater.end();
+				deflater = null;
+			}
+		}
 	}
 
 	protected void checkWaitStatus(String msg) {
@@ -249,4 +566,25 @@ class PMPOutputStream extends OutputStream {
 			c.disconnect(exc.getMessage(), false);
 		}
 	}
+
+	/** the message, which is being composed by a thread */
+	private static class Frame {
+		/** data buffer */
+		byte[] buffer = new byte[FRAME_SIZE];
+		/** current position in the data buffer */
+		int position;
+		short msgID;
+		/** true, if the stream is locked for the whole message */
+		boolean exclusive;
+		/** true, if the message has been begun, but not ended */
+		boolean active;
+		/** true, if at least one frame has been written */
+		boolean started;
+		/** true, if the last frame has been written */
+		boolean finished;
+		/** true, if the rest of the message shouldn't be compressed */
+		boolean raw;
+		/** the buffer of the compressed frames */
+		byte[] packed;
+	}
 }
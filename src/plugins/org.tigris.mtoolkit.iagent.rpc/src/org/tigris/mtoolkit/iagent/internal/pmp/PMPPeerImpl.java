@@ -14,6 +14,9 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
 
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+
 import org.tigris.mtoolkit.iagent.internal.utils.ThreadPool;
 import org.tigris.mtoolkit.iagent.pmp.PMPConnectionListener;
 import org.tigris.mtoolkit.iagent.pmp.PMPPeer;
@@ -89,6 +92,10 @@ public class PMPPeerImpl implements PMPPeer {
 		throw new UnsupportedOperationException();
 	}
 
+	protected Filter createFilter(String filter) throws InvalidSyntaxException {
+		throw new InvalidSyntaxException("Event filters are not supported", filter);
+	}
+
 	public String getRole() {
 		return "Peer";
 	}
@@ -12,20 +12,28 @@ package org.tigris.mtoolkit.iagent.internal.pmp;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Method;
 import java.net.Socket;
+import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Vector;
 
+import org.osgi.framework.Filter;
 import org.tigris.mtoolkit.iagent.internal.utils.DebugUtils;
 import org.tigris.mtoolkit.iagent.internal.utils.ThreadPool;
+import org.tigris.mtoolkit.iagent.internal.utils.ThreadUtils;
 import org.tigris.mtoolkit.iagent.transport.TransportConnection;
+import org.tigris.mtoolkit.iagent.transport.socket.SocketStreams;
 
-public class PMPSessionThread extends Thread {
+public class PMPSessionThread implements Runnable {
 
 	protected PMPOutputStream os;
 	protected PMPInputStream is;
@@ -54,6 +62,11 @@ public class PMPSessionThread extends Thread {
 	protected String sessionID;
 
 	private Vector eventTypes;
+	/** event type -> Filter, which the events of this type must match */
+	private Hashtable eventFilters = new Hashtable();
+
+	/** the capabilities supported by both peers */
+	protected int capabilities = 0;
 
 	/** the object id that the nest registered remote object will receive */
 
@@ -80,6 +93,9 @@ public class PMPSessionThread extends Thread {
 	// 00011000
 	protected static final int NEW_EVENT_REQ_OP = 16;
 	protected static final byte[] EVENT = { (byte) NEW_EVENT_REQ_OP }; // 00010000
+	protected static final int NEW_EVENTS_REQ_OP = 80;
+	protected static final byte[] EVENTS = { (byte) NEW_EVENTS_REQ_OP }; // 16+64
+	// 01010000
 
 	protected static final int GET_METHODS_REPLY_OP = 32;
 	protected static final byte[] METHODS = { (byte) GET_METHODS_REPLY_OP }; // 00100000
@@ -122,6 +138,61 @@ public class PMPSessionThread extends Thread {
 	protected static final byte[] DISPOSE = { (byte) DISPOSE_REQ_OP }; // -64
 	// 11000000
 
+	protected static final int INVOKE_BATCH_REQ_OP = 196;
+	protected static final byte[] INVOKE_B = { (byte) INVOKE_BATCH_REQ_OP }; // -(64+4)
+	// 11000100
+	protected static final int BATCH_REPLY_OP = 68;
+	protected static final byte[] BATCH = { (byte) BATCH_REPLY_OP }; // 64+4
+	// 01000100
+
+	/** the types of the results in a batch reply */
+	protected static final int BATCH_RESULT_ERROR = 0;
+	protected static final int BATCH_RESULT_OBJECT = 1;
+	protected static final int BATCH_RESULT_REFERENCE = 2;
+	protected static final int BATCH_RESULT_VOID = 3;
+
+	/**
+	 * Capability flags, exchanged in the connect request and reply. Older
+	 * peers don't send them, which means that none is supported.
+	 */
+	protected static final int CAP_MULTIPLEXED_FRAMES = 0x01;
+	protected static final int CAP_BATCH_INVOKE = 0x02;
+	protected static final int CAP_COMPACT_DICTIONARIES = 0x04;
+	protected static final int CAP_INTERNED_NAMES = 0x08;
+	protected static final int CAP_LARGE_FRAMES = 0x10;
+	protected static final int CAP_COMPRESSED_FRAMES = 0x20;
+	protected static final int CAP_EVENT_BATCHES = 0x40;
+	protected static final int CAP_EVENT_FILTERS = 0x80;
+
+	/** the capabilities supported by this peer */
+	protected static int localCapabilities = CAP_MULTIPLEXED_FRAMES | CAP_BATCH_INVOKE | CAP_COMPACT_DICTIONARIES
+			| CAP_INTERNED_NAMES | CAP_LARGE_FRAMES | CAP_COMPRESSED_FRAMES | CAP_EVENT_BATCHES | CAP_EVENT_FILTERS;
+
+	/**
+	 * the size, up to which a stream argument, which must be read before the
+	 * next arguments, is kept in memory instead of in a temporary file
+	 */
+	private static final int SPOOL_THRESHOLD = 256 * 1024;
+
+	static {
+		if ("false".equals(System.getProperty("iagent.pmp.multiplex"))) //$NON-NLS-1$ //$NON-NLS-2$
+			localCapabilities &= ~CAP_MULTIPLEXED_FRAMES;
+		if ("false".equals(System.getProperty("iagent.pmp.batch"))) //$NON-NLS-1$ //$NON-NLS-2$
+			localCapabilities &= ~CAP_BATCH_INVOKE;
+		if ("false".equals(System.getProperty("iagent.pmp.compact"))) //$NON-NLS-1$ //$NON-NLS-2$
+			localCapabilities &= ~CAP_COMPACT_DICTIONARIES;
+		if ("false".equals(System.getProperty("iagent.pmp.intern"))) //$NON-NLS-1$ //$NON-NLS-2$
+			localCapabilities &= ~CAP_INTERNED_NAMES;
+		if ("false".equals(System.getProperty("iagent.pmp.largeFrames"))) //$NON-NLS-1$ //$NON-NLS-2$
+			localCapabilities &= ~CAP_LARGE_FRAMES;
+		if ("false".equals(System.getProperty("iagent.pmp.compression"))) //$NON-NLS-1$ //$NON-NLS-2$
+			localCapabilities &= ~CAP_COMPRESSED_FRAMES;
+		if ("false".equals(System.getProperty("iagent.pmp.eventBatches"))) //$NON-NLS-1$ //$NON-NLS-2$
+			localCapabilities &= ~CAP_EVENT_BATCHES;
+		if ("false".equals(System.getProperty("iagent.pmp.eventFilters"))) //$NON-NLS-1$ //$NON-NLS-2$
+			localCapabilities &= ~CAP_EVENT_FILTERS;
+	}
+
 	private static final String ERRMSG1 = "Protocol Error";
 	protected static final String ERRMSG2 = "Write Error";
 	private static final String ERRMSG3 = "Read Error";
@@ -130,14 +201,16 @@ public class PMPSessionThread extends Thread {
 	
 	protected ThreadPool pool;
 
+	private Thread thread;
+
 	public PMPSessionThread(PMPPeerImpl peer, Socket socket, String sessionID, String host) throws IOException {
-		super("PMP " + peer.getRole() + " Thread [" + host + "]"); //$NON-NLS-1$
 		this.url = host;
 		this.socket = socket;
 		this.sessionID = sessionID;
 
-		os = new PMPOutputStream(socket.getOutputStream(), this);
-		is = new PMPInputStream(socket.getInputStream(), this);
+		SocketStreams.configure(socket);
+		os = new PMPOutputStream(SocketStreams.getOutputStream(socket), this);
+		is = new PMPInputStream(SocketStreams.getInputStream(socket), this);
 		running = true;
 
 		connection = new Connection(is, os, this);
@@ -146,11 +219,10 @@ public class PMPSessionThread extends Thread {
 		this.pool = peer.pool;
 		maxS = peer.maxStringLength;
 		maxA = peer.maxArrayLength;
-		start();
+		start("PMP " + peer.getRole() + " Thread [" + host + "]"); //$NON-NLS-1$
 	}
 
 	public PMPSessionThread(PMPPeerImpl peer, TransportConnection tc, String sessionID) throws IOException {
-		super("PMP " + peer.getRole() + " Thread [" + tc + "]"); //$NON-NLS-1$
 		this.transportConnection = tc;
 		this.sessionID = sessionID;
 
@@ -164,103 +236,42 @@ public class PMPSessionThread extends Thread {
 		this.pool = peer.pool;
 		maxS = peer.maxStringLength;
 		maxA = peer.maxArrayLength;
-		start();
+		start("PMP " + peer.getRole() + " Thread [" + tc + "]"); //$NON-NLS-1$
+	}
+
+	/**
+	 * Creates a session, which receives its frames from a selector thread and
+	 * processes its messages in the thread pool instead of in a thread of its
+	 * own.
+	 */
+	protected PMPSessionThread(PMPPeerImpl peer, Socket socket, OutputStream out, String sessionID, String host) {
+		this.url = host;
+		this.socket = socket;
+		this.sessionID = sessionID;
+
+		os = new PMPOutputStream(out, this);
+		is = new PMPInputStream(null, this);
+		running = true;
+
+		connection = new Connection(is, os, this);
+		objects = new Hashtable();
+		this.peer = peer;
+		this.pool = peer.pool;
+		maxS = peer.maxStringLength;
+		maxA = peer.maxArrayLength;
+	}
+
+	private void start(String name) {
+		thread = ThreadUtils.createThread(this, name, false);
+		thread.start();
 	}
 
 	public void run() {
 		try {
 			debug("Thread started.");
 			while (running) {
-				try {
-					msgID = is.nextMessage();
-					debug("MID " + msgID + " : " + this + " : " + this.hashCode());
-					opID = is.read();
-					debug("Operation: " + opID);
-					switch (opID) {
-					case -1:
-						error(ERRMSG1, null);
-						try {
-							os.begin((short) -1);
-							os.write(DISCONNECT);
-							PMPData.writeString(ERRMSG1, os);
-							os.end(false);
-						} catch (Throwable exc) {
-						}
-						disconnect(ERRMSG1, false);
-						return;
-					case PING_REPLY_OP:
-						// received ping replay;
-						os.ping = false;
-						break;
-					case PING_REQ_OP:
-						// //ping request;
-						if (connected)
-							ping_repl();
-						else
-							disconnect("Not Connected", true);
-						break;
-					case DISCONNECT_REQ_OP:
-						// DISCONNECT request
-						String errMsg = PMPData.readString(is, maxS);
-						if (errMsg == null || errMsg.length() == 0) {
-							// normal disconnect
-							debug(DSCMSG1);
-						} else {
-							// error disconnect
-							info(DSCMSG2 + errMsg);
-						}
-						disconnect(errMsg, false);
-						break;
-					case CONNECT_REQ_OP:
-						connect();
-						connected = true;
-						connection.connected = true;
-						break;
-					case GET_REFERENCE_REQ_OP:
-					case GET_REFERENCE_BY_ID_REQ_OP:
-						getReference(opID);
-						break;
-					case INVOKE_METHOD_REQ_OP:
-					case INVOKE_METHOD_WITH_REFS_REQ_OP:
-						invokeMethod();
-						break;
-					case ADD_LISTENER_REQ_OP:
-					case REMOVE_LISTENER_REQ_OP:
-						remoteListener(opID);
-						break;
-					case GET_METHOD_REQ_OP:
-						getMethod();
-						break;
-					case DISPOSE_REQ_OP:
-						dispose();
-						break;
-					case CONNECT_REPLY_OP:
-						connectReplay();
-						break;
-					case REFERENCE_REPLY_OP:
-						readReference();
-						break;
-					case SERIALIZED_OBJ_REPLY_OP:
-						getObject();
-						break;
-					case EVENT_LISTENER_REPLY_OP:
-					case EVENT_LISTENER_FAILED_REPLY_OP:
-						eventReply(opID);
-						break;
-					case NEW_EVENT_REQ_OP:
-						readEvent(opID);
-						break;
-					case GET_METHOD_REPLY_OP:
-					case GET_METHODS_REPLY_OP:
-						readMethods(opID);
-						break;
-					}
-				} catch (IOException exc) {
-					error("An unexpected error occurred: " + exc.toString(), exc);
-					disconnect("An unexpected error occurred: " + exc.toString(), false);
-				} catch (Exception exc) {
-					debug("Runtime Exception " + exc);
-				}
+				if (!processNext())
+					return;
 			}
 			debug("Thread ended.");
 		} finally {
@@ -268,6 +279,113 @@ public class PMPSessionThread extends Thread {
 		}
 	}
 
+	/**
+	 * Reads and processes the next message. Returns false if the session has
+	 * been closed because of a protocol error.
+	 */
+	protected boolean processNext() {
+		try {
+			msgID = is.nextMessage();
+			debug("MID " + msgID + " : " + this + " : " + this.hashCode());
+			opID = is.read();
+			debug("Operation: " + opID);
+			switch (opID) {
+			case -1:
+				error(ERRMSG1, null);
+				try {
+					os.begin((short) -1);
+					os.write(DISCONNECT);
+					PMPData.writeString(ERRMSG1, os);
+					os.end(false);
+				} catch (Throwable exc) {
+				}
+				disconnect(ERRMSG1, false);
+				return false;
+			case PING_REPLY_OP:
+				// received ping replay;
+				os.ping = false;
+				break;
+			case PING_REQ_OP:
+				// //ping request;
+				if (connected)
+					ping_repl();
+				else
+					disconnect("Not Connected", true);
+				break;
+			case DISCONNECT_REQ_OP:
+				// DISCONNECT request
+				String errMsg = PMPData.readString(is, maxS);
+				if (errMsg == null || errMsg.length() == 0) {
+					// normal disconnect
+					debug(DSCMSG1);
+				} else {
+					// error disconnect
+					info(DSCMSG2 + errMsg);
+				}
+				disconnect(errMsg, false);
+				break;
+			case CONNECT_REQ_OP:
+				connect();
+				connected = true;
+				connection.connected = true;
+				break;
+			case GET_REFERENCE_REQ_OP:
+			case GET_REFERENCE_BY_ID_REQ_OP:
+				getReference(opID);
+				break;
+			case INVOKE_METHOD_REQ_OP:
+			case INVOKE_METHOD_WITH_REFS_REQ_OP:
+				invokeMethod();
+				break;
+			case INVOKE_BATCH_REQ_OP:
+				invokeBatch();
+				break;
+			case ADD_LISTENER_REQ_OP:
+			case REMOVE_LISTENER_REQ_OP:
+				remoteListener(opID);
+				break;
+			case GET_METHOD_REQ_OP:
+				getMethod();
+				break;
+			case DISPOSE_REQ_OP:
+				dispose();
+				break;
+			case CONNECT_REPLY_OP:
+				connectReplay();
+				break;
+			case REFERENCE_REPLY_OP:
+				readReference();
+				break;
+			case SERIALIZED_OBJ_REPLY_OP:
+				getObject();
+				break;
+			case BATCH_REPLY_OP:
+				readBatch();
+				break;
+			case EVENT_LISTENER_REPLY_OP:
+			case EVENT_LISTENER_FAILED_REPLY_OP:
+				eventReply(opID);
+				break;
+			case NEW_EVENT_REQ_OP:
+				readEvent(opID);
+				break;
+			case NEW_EVENTS_REQ_OP:
+				readEvents();
+				break;
+			case GET_METHOD_REPLY_OP:
+			case GET_METHODS_REPLY_OP:
+				readMethods(opID);
+				break;
+			}
+		} catch (IOException exc) {
+			error("An unexpected error occurred: " + exc.toString(), exc);
+			disconnect("An unexpected error occurred: " + exc.toString(), false);
+		} catch (Exception exc) {
+			debug("Runtime Exception " + exc);
+		}
+		return true;
+	}
+
 	private boolean prepareAnswerReply() {
 		synchronized (os.answers) {
 			answer = (PMPAnswer) os.answers.remove(new Short(msgID));
@@ -311,7 +429,8 @@ public class PMPSessionThread extends Thread {
 		if (!running)
 			return;
 		running = false;
-		this.interrupt();
+		if (thread != null)
+			thread.interrupt();
 		connection.disconnected(errMsg);
 		peer.removeElement(this);
 		debug("Disconnecting Client " + ((url != null) ? url : transportConnection.toString()));
@@ -370,6 +489,7 @@ public class PMPSessionThread extends Thread {
 	private void connect() throws IOException {
 		try {
 			is.timeout = PMPData.readInt(is);
+			capabilities = readCapabilities();
 		} catch (Exception ioExc) {
 			if (running) {
 				os.begin(msgID);
@@ -391,14 +511,37 @@ public class PMPSessionThread extends Thread {
 			os.begin(msgID);
 			os.write(CONNECT_REPLY);
 			os.write(0); // failure
+			PMPData.writeInt(capabilities, os);
 			os.end(false);
 		} catch (Exception exc) {
 			error(ERRMSG2, exc);
 			os.unlock();
 		}
+		applyCapabilities();
 		peer.fireConnectionEvent(true, this);
 	}
 
+	/**
+	 * Reads the capabilities of the remote peer, which follow the connect
+	 * request and reply, and returns those of them, which are supported by
+	 * this peer as well.
+	 */
+	private int readCapabilities() throws IOException {
+		if (is.available() < 4)
+			return 0;
+		return PMPData.readInt(is) & localCapabilities;
+	}
+
+	/** Enables the negotiated capabilities */
+	private void applyCapabilities() {
+		debug("Negotiated capabilities: " + capabilities);
+		os.setMultiplexed((capabilities & CAP_MULTIPLEXED_FRAMES) != 0);
+		os.compactDictionaries = is.compactDictionaries = (capabilities & CAP_COMPACT_DICTIONARIES) != 0;
+		os.internNames = (capabilities & CAP_INTERNED_NAMES) != 0;
+		os.setLargeFrames((capabilities & CAP_LARGE_FRAMES) != 0);
+		os.compression = (capabilities & CAP_COMPRESSED_FRAMES) != 0;
+	}
+
 	private void getReference(int opID) throws IOException {
 		if (!connected) {
 			disconnect("Handshake hasn't finished", true);
@@ -502,19 +645,10 @@ public class PMPSessionThread extends Thread {
 					args[i] = PMPData.readObject(null, info.obj.getClass().getClassLoader(), is, new String(), maxA,
 							-1, null);
 					// check that if the arguments is InputStream and it is not
-					// the last argument we need to load it entirely in the memory
+					// the last argument we need to read it entirely, before the
+					// next arguments
 					if ((i != (args.length - 1)) && (args[i] instanceof InputStream)) {
-						byte[] buf = new byte[256];
-						int read;
-						InputStream input = (InputStream) args[i];
-						ByteArrayOutputStream bos = new ByteArrayOutputStream(4096);
-						while ((read = input.read(buf)) != -1) {
-							bos.write(buf, 0, read);
-						}
-						// close the old input stream
-						input.close();
-						// replace the args[i] with ByteArrayInputStream
-						args[i] = new ByteArrayInputStream(bos.toByteArray());
+						args[i] = spool((InputStream) args[i]);
 					}
 				} else {
 					int tempID = PMPData.readInt(is);
@@ -532,6 +666,139 @@ public class PMPSessionThread extends Thread {
 		new InvocationThread(this, m, info.obj, serflag, info.context, args, msgID);
 	}
 
+	/**
+	 * Reads the whole stream and closes it. Small streams are kept in memory,
+	 * the larger ones are stored in a temporary file, which is deleted when
+	 * the returned stream is closed.
+	 */
+	private static InputStream spool(InputStream input) throws IOException {
+		byte[] buf = new byte[8192];
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(8192);
+		File file = null;
+		OutputStream out = bos;
+		try {
+			int read;
+			while ((read = input.read(buf)) != -1) {
+				out.write(buf, 0, read);
+				if (file == null && bos.size() > SPOOL_THRESHOLD) {
+					file = File.createTempFile("pmp", ".tmp"); //$NON-NLS-1$ //$NON-NLS-2$
+					out = new FileOutputStream(file);
+					bos.writeTo(out);
+					bos = null;
+				}
+			}
+			out.close();
+		} catch (IOException e) {
+			if (file != null) {
+				try {
+					out.close();
+				} catch (IOException ignore) {
+				}
+				file.delete();
+			}
+			throw e;
+		} finally {
+			input.close();
+		}
+		if (file == null)
+			return new ByteArrayInputStream(bos.toByteArray());
+		return new TempFileInputStream(file);
+	}
+
+	/** Reads a temporary file and deletes it when closed */
+	private static class TempFileInputStream extends FileInputStream {
+		private File file;
+
+		TempFileInputStream(File file) throws IOException {
+			super(file);
+			this.file = file;
+		}
+
+		public void close() throws IOException {
+			super.close();
+			file.delete();
+		}
+	}
+
+	private void invokeBatch() throws IOException {
+		if (!connected) {
+			disconnect("Handshake hasn't finished", true);
+			return;
+		}
+		debug("Batch Invocation Request ...");
+		BatchInvocation batch;
+		try {
+			int count = PMPData.readInt(is);
+			if (count < 0 || (maxA > 0 && count > maxA))
+				throw new IOException("Invalid Batch Size: " + count);
+			batch = new BatchInvocation(this, count, msgID);
+			for (int i = 0; i < count; i++) {
+				readBatchCall(batch, i);
+			}
+		} catch (IOException ioExc) {
+			if (running)
+				writeInvocationError(ioExc.toString(), msgID);
+			throw ioExc;
+		}
+		if (!pool.offerWork(this, batch))
+			rejectInvocation(msgID);
+	}
+
+	/**
+	 * Reads a single call of a batch. The errors, which concern only the call,
+	 * are stored in the batch and don't break the reading of the rest.
+	 */
+	private void readBatchCall(BatchInvocation batch, int index) throws IOException {
+		int objID = PMPData.readInt(is);
+		int methodID = PMPData.readInt(is);
+		int ser = is.read();
+		int argsCount = PMPData.readInt(is);
+		if (ser == -1 || argsCount < 0)
+			throw new IOException(ERRMSG3);
+		String errMsg = null;
+		Method m = null;
+		ObjectInfo info = (ObjectInfo) objects.get(new Integer(objID));
+		if (info == null) {
+			errMsg = "No Remote Object With ID: " + objID + " On Server";
+		} else if (info.methods == null || methodID <= 0 || methodID > info.methods.size()) {
+			errMsg = "No Method With ID: " + methodID + " Associated With This Remote Object";
+		} else {
+			m = (Method) info.methods.elementAt(methodID - 1);
+			if (m.getParameterTypes().length != argsCount)
+				errMsg = "Incorrect arguments";
+		}
+		ClassLoader loader = (info != null) ? info.obj.getClass().getClassLoader() : null;
+		Object[] args = new Object[argsCount];
+		for (int i = 0; i < argsCount; i++) {
+			if (is.read() == 1) {
+				args[i] = PMPData.readObject(null, loader, is, new String(), maxA, -1, null);
+				if (args[i] instanceof InputStream) {
+					((InputStream) args[i]).close();
+					throw new IOException("Streams can't be passed in a batch");
+				}
+			} else {
+				int tempID = PMPData.readInt(is);
+				ObjectInfo argInfo = (ObjectInfo) objects.get(new Integer(tempID));
+				if (argInfo != null)
+					args[i] = argInfo.obj;
+				else if (errMsg == null)
+					errMsg = "No Remote Object With ID: " + tempID + " On Server";
+			}
+		}
+		if (errMsg != null)
+			batch.setError(index, errMsg);
+		else
+			batch.setCall(index, m, info.obj, ser == 0, info.context, args);
+	}
+
+	/**
+	 * Replies with an error to an invocation, which can't be queued for
+	 * execution, because the thread pool is overloaded.
+	 */
+	protected void rejectInvocation(short msgId) {
+		writeInvocationError("Server Busy: Too Many Pending Invocations (" + pool + ")", msgId);
+	}
+
 	protected void writeInvocationError(String errMsg, short msgId) {
 		error(errMsg, null);
 		try {
@@ -658,15 +925,27 @@ public class PMPSessionThread extends Thread {
 			if (res == 2) {
 				eventTypes.removeElement(evType);
 			}
+			eventFilters.remove(evType);
 		} else {
 			// add
 			String evType = null;
+			Filter filter = null;
 			try {
 				evType = PMPData.readString(is, maxS);
-			} catch (Exception exc) {
+				if ((capabilities & CAP_EVENT_FILTERS) != 0) {
+					String filterString = PMPData.readString(is, maxS);
+					if (filterString.length() > 0)
+						filter = peer.createFilter(filterString);
+				}
+			} catch (Exception exc) { // IOException, InvalidSyntaxException
 				writeEventFailed(exc.toString());
 				return;
 			}
+			// the filter of an already added listener is replaced
+			if (filter != null)
+				eventFilters.put(evType, filter);
+			else
+				eventFilters.remove(evType);
 			byte res = peer.addListener(evType, this);
 			if (res == 2) {
 				if (eventTypes == null)
@@ -720,6 +999,22 @@ public class PMPSessionThread extends Thread {
 		}
 	}
 
+	/**
+	 * Checks whether the remote listener accepts the event, i.e. the event
+	 * matches the filter, which has been sent along with the listener.
+	 */
+	protected boolean acceptsEvent(Object ev, String eventType) {
+		Filter filter = (Filter) eventFilters.get(eventType);
+		if (filter == null || !(ev instanceof Dictionary))
+			return true;
+		try {
+			return filter.match((Dictionary) ev);
+		} catch (IllegalArgumentException e) {
+			// the keys differ only by case, let the listener decide
+			return true;
+		}
+	}
+
 	protected void event(Object ev, String eventType) {
 		try {
 			os.begin((short) -1);
@@ -732,6 +1027,31 @@ public class PMPSessionThread extends Thread {
 		}
 	}
 
+	/**
+	 * Sends several events in a single message, if the remote peer supports
+	 * it, or one by one otherwise.
+	 */
+	protected void events(Vector evs, Vector eventTypes) {
+		if ((capabilities & CAP_EVENT_BATCHES) == 0 || evs.size() == 1) {
+			for (int i = 0; i < evs.size(); i++) {
+				event(evs.elementAt(i), (String) eventTypes.elementAt(i));
+			}
+			return;
+		}
+		try {
+			os.begin((short) -1);
+			os.write(EVENTS);
+			PMPData.writeInt(evs.size(), os);
+			for (int i = 0; i < evs.size(); i++) {
+				PMPData.writeString((String) eventTypes.elementAt(i), os);
+				PMPData.writeObject(evs.elementAt(i), os, true);
+			}
+			os.end(false);
+		} catch (Exception exc) {
+			os.unlock();
+		}
+	}
+
 	public Connection getConnection() {
 		return connection;
 	}
@@ -803,6 +1123,8 @@ public class PMPSessionThread extends Thread {
 				answer.errMsg = PMPData.readString(is, maxS);
 				if (answer.errMsg == null)
 					answer.errMsg = "Read Error";
+			} else {
+				capabilities = readCapabilities();
 			}
 		} catch (IOException ioExc) {
 			answer.errMsg = ioExc.toString();
@@ -810,12 +1132,13 @@ public class PMPSessionThread extends Thread {
 		synchronized (answer) {
 			answer.received = true;
 			if (success == 0) {
+				applyCapabilities();
 				answer.connected = true;
 				connected = true;
 				peer.fireConnectionEvent(true, this);
 			}
 			if (answer.waiting) {
-				answer.notify();
+				answer.notifyAll();
 			}
 		}
 	}
@@ -836,12 +1159,7 @@ public class PMPSessionThread extends Thread {
 			answer.errMsg = exc.toString();
 		}
 		debug("objID: " + answer.objID);
-		synchronized (answer) {
-			answer.received = true;
-			if (answer.waiting) {
-				answer.notify();
-			}
-		}
+		answer.finish();
 	}
 
 	private void getObject() {
@@ -879,6 +1197,53 @@ public class PMPSessionThread extends Thread {
 		answer.finish();
 	}
 
+	private void readBatch() {
+		if (!connected) {
+			disconnect("Handshake hasn't finished", true);
+			return;
+		}
+		if (!prepareAnswerReply())
+			return;
+		if (!(answer instanceof PMPBatchImpl)) {
+			answer.errMsg = ERRMSG1;
+			answer.finish();
+			return;
+		}
+		Vector calls = ((PMPBatchImpl) answer).calls;
+		try {
+			int count = PMPData.readInt(is);
+			if (count != calls.size())
+				throw new IOException(ERRMSG1);
+			for (int i = 0; i < count; i++) {
+				PMPFutureImpl call = (PMPFutureImpl) calls.elementAt(i);
+				int type = is.read();
+				switch (type) {
+				case BATCH_RESULT_ERROR:
+					call.errMsg = PMPData.readString(is, maxS);
+					if (call.errMsg == null)
+						call.errMsg = ERRMSG3;
+					break;
+				case BATCH_RESULT_OBJECT:
+					Object obj = PMPData.readObject(null, call.loader, is, call.returnType, maxA, -1, null);
+					if (call.expectsReturn)
+						call.obj = obj;
+					break;
+				case BATCH_RESULT_REFERENCE:
+					call.objID = PMPData.readInt(is);
+					break;
+				case BATCH_RESULT_VOID:
+					break;
+				default:
+					throw new IOException(ERRMSG3);
+				}
+				call.finish();
+			}
+		} catch (Exception ioExc) {
+			answer.errMsg = ioExc.toString();
+		}
+		answer.finish();
+	}
+
 	private void readMethods(int opID) {
 		if (!connected) {
 			disconnect("Handshake hasn't finished", true);
@@ -992,4 +1357,25 @@ public class PMPSessionThread extends Thread {
 			error("error receiving event", ioExc);
 		}
 	}
+
+	private void readEvents() throws Exception {
+		if (!connected) {
+			disconnect("Handshake hasn't finished", true);
+			return;
+		}
+		try {
+			if (connection.evMngr != null) {
+				int count = PMPData.readInt(is);
+				for (int i = 0; i < count; i++) {
+					String sEvType = PMPData.readString(is, maxS);
+					ClassLoader loader = connection.evMngr.getClassLoader(sEvType);
+					Object event = PMPData.readObject(null, loader, is, new String(), maxA, -1, null);
+					connection.evMngr.postEvent(sEvType, event);
+				}
+				debug("Received " + count + " events");
+			}
+		} catch (IOException ioExc) {
+			error("error receiving events", ioExc);
+		}
+	}
 }
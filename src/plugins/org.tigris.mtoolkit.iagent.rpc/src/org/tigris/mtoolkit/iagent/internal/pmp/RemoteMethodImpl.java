@@ -11,6 +11,7 @@
 package org.tigris.mtoolkit.iagent.internal.pmp;
 
 import org.tigris.mtoolkit.iagent.pmp.PMPException;
+import org.tigris.mtoolkit.iagent.pmp.PMPFuture;
 import org.tigris.mtoolkit.iagent.pmp.RemoteMethod;
 import org.tigris.mtoolkit.iagent.pmp.RemoteObject;
 
@@ -85,6 +86,38 @@ class RemoteMethodImpl implements RemoteMethod {
 		return c.invoke(args, argTypes, serflag, ro.IOR, methodID, returnType, loader, changed, c);
 	}
 
+	public PMPFuture invokeAsync(Object[] args, boolean serflag, Class clazz) throws PMPException {
+		if (!c.connected)
+			throw new PMPException("PMP Service stoped");
+		if (clazz != null) {
+			loader = clazz.getClassLoader();
+		}
+		return c.invokeAsync(this, args, argTypes, serflag, ro.IOR, methodID, returnType, loader, changed, c);
+	}
+
+	public PMPFuture invokeAsync(Object[] args, boolean serflag) throws PMPException {
+		if (!c.connected)
+			throw new PMPException("PMP Service stoped");
+		return c.invokeAsync(this, args, argTypes, serflag, ro.IOR, methodID, returnType, loader, changed, c);
+	}
+
+	/**
+	 * Creates a call of this method, which will be sent in a batch.
+	 */
+	protected PMPFutureImpl createCall(Object[] args, boolean serflag) throws PMPException {
+		if (!c.connected)
+			throw new PMPException("PMP Service stoped");
+		return c.createCall(this, args, serflag, returnType, loader, changed);
+	}
+
+	protected Connection getConnection() {
+		return c;
+	}
+
+	protected int getMethodID() {
+		return methodID;
+	}
+
 	/**
 	 * Changes the return type of the method. This can be used to read the
 	 * method's result in a different object than the original return type.
@@ -0,0 +1,363 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.internal.pmp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Vector;
+
+import org.tigris.mtoolkit.iagent.internal.utils.ThreadUtils;
+import org.tigris.mtoolkit.iagent.transport.socket.SocketStreams;
+
+/**
+ * Accepts the PMP clients and reads their frames in a single selector thread.
+ * The sessions have no threads of their own - their messages are processed in
+ * the thread pool, when complete frames are received, and the replies are
+ * written directly to the non-blocking channels. So an idle client doesn't
+ * hold a thread.
+ * <p>
+ * Used by the {@link Server}, if the <code>iagent.pmp.selector</code> system
+ * property is set to <code>true</code>. The <code>pmp.server.timeout</code>
+ * property doesn't apply to the sessions of this server.
+ */
+class SelectorServer implements Runnable {
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	/** the messages of a session processed, before giving way to the others */
+	private static final int MAX_MESSAGES = 16;
+
+	private Server server;
+	private ServerSocketChannel channel;
+	private Selector selector;
+	private volatile boolean running = true;
+
+	/** the sessions, which interest has been changed by other threads */
+	private Vector requests = new Vector();
+	/** used only by the selector thread */
+	private ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+	/**
+	 * Opens a server socket, which has a channel.
+	 */
+	static ServerSocket openSocket(int port, boolean reuse) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		ServerSocket socket = channel.socket();
+		try {
+			if (reuse)
+				socket.setReuseAddress(true);
+			socket.bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	SelectorServer(Server server, ServerSocket socket) throws IOException {
+		this.server = server;
+		channel = socket.getChannel();
+		selector = Selector.open();
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_ACCEPT);
+		ThreadUtils.createThread(this, "IAgent Server Selector Thread", false).start(); //$NON-NLS-1$
+	}
+
+	void close() {
+		running = false;
+		selector.wakeup();
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+				processRequests();
+				for (Iterator it = selector.selectedKeys().iterator(); it.hasNext();) {
+					SelectionKey key = (SelectionKey) it.next();
+					it.remove();
+					try {
+						if (key.isAcceptable()) {
+							accept();
+							continue;
+						}
+						ChannelSession cs = (ChannelSession) key.attachment();
+						if (key.isReadable())
+							cs.read();
+						if (key.isValid() && key.isWritable())
+							cs.writable();
+					} catch (CancelledKeyException e) {
+						// the session has been closed
+					}
+				}
+			} catch (Exception exc) {
+				if (running)
+					server.error("Selector Error", exc);
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException ignore) {
+		}
+	}
+
+	private void request(ChannelSession cs) {
+		requests.addElement(cs);
+		selector.wakeup();
+	}
+
+	private void processRequests() {
+		while (!requests.isEmpty()) {
+			ChannelSession cs = (ChannelSession) requests.elementAt(0);
+			requests.removeElementAt(0);
+			cs.update();
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel client = channel.accept();
+		if (client == null)
+			return;
+		if (!running) {
+			client.close();
+			return;
+		}
+		try {
+			client.configureBlocking(false);
+			Socket socket = client.socket();
+			SocketStreams.configure(socket);
+			ChannelSession cs = new ChannelSession(client);
+			PMPSessionThread session = new PMPSessionThread(server,
+				socket,
+				cs.out,
+				server.createSessionId(),
+				socket.getInetAddress().toString());
+			cs.session = session;
+			session.is.setDrainListener(cs.drainListener);
+			cs.key = client.register(selector, SelectionKey.OP_READ, cs);
+			server.addElement(session);
+		} catch (IOException exc) {
+			server.error("Error Accepting Client", exc);
+			client.close();
+		}
+	}
+
+	/**
+	 * The state of a single client connection. The frames are assembled from
+	 * the read data and passed to the session's input stream.
+	 */
+	private class ChannelSession implements Runnable {
+
+		SocketChannel channel;
+		SelectionKey key;
+		PMPSessionThread session;
+		ChannelOutputStream out = new ChannelOutputStream();
+
+		/** the header of the frame, which is being received */
+		private byte[] header = new byte[5];
+		private int headerRead;
+		/** the data of the frame, which is being received */
+		private byte[] frame;
+		private int frameRead;
+
+		/** true, if the messages processing is enqueued in the pool */
+		private boolean scheduled;
+		/** true, if the reading is stopped, because too much data is held */
+		private volatile boolean suspended;
+		private volatile boolean writeRequested;
+
+		Runnable drainListener = new Runnable() {
+			public void run() {
+				if (suspended)
+					request(ChannelSession.this);
+			}
+		};
+
+		ChannelSession(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		void read() {
+			readBuffer.clear();
+			try {
+				if (channel.read(readBuffer) == -1) {
+					closed(new IOException("Connection Closed By Peer"));
+					return;
+				}
+				readBuffer.flip();
+				while (readBuffer.hasRemaining()) {
+					if (frame == null) {
+						int toCopy = Math.min(header.length - headerRead, readBuffer.remaining());
+						readBuffer.get(header, headerRead, toCopy);
+						headerRead += toCopy;
+						if (headerRead < header.length)
+							break;
+						frame = new byte[((header[2] & 0xFF) << 8) + (header[3] & 0xFF)];
+						frameRead = 0;
+					}
+					int toCopy = Math.min(frame.length - frameRead, readBuffer.remaining());
+					readBuffer.get(frame, frameRead, toCopy);
+					frameRead += toCopy;
+					if (frameRead == frame.length) {
+						short msgID = (short) (((header[0] & 0xFF) << 8) + (header[1] & 0xFF));
+						session.is.receive(msgID, header[4], frame);
+						frame = null;
+						headerRead = 0;
+					}
+				}
+			} catch (IOException exc) {
+				closed(exc);
+				return;
+			}
+			schedule();
+			if (session.is.isFull()) {
+				suspended = true;
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				// the held data could have been read meanwhile
+				update();
+			}
+		}
+
+		void writable() {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			out.signal();
+		}
+
+		/** applies the interest changes requested by other threads */
+		void update() {
+			if (!key.isValid())
+				return;
+			if (writeRequested) {
+				writeRequested = false;
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			}
+			if (suspended && !session.is.isFull()) {
+				suspended = false;
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			}
+		}
+
+		private void closed(final IOException exc) {
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException ignore) {
+			}
+			out.signal();
+			try {
+				session.is.close();
+			} catch (IOException ignore) {
+			}
+			// disconnecting may block, so it isn't done in the selector thread
+			Runnable disconnect = new Runnable() {
+				public void run() {
+					session.disconnect("An unexpected error occurred: " + exc.toString(), false);
+				}
+			};
+			try {
+				server.pool.enqueueWork(session, disconnect);
+			} catch (IllegalStateException e) {
+				// the pool is stopped
+				disconnect.run();
+			}
+		}
+
+		private void schedule() {
+			synchronized (this) {
+				if (scheduled || !session.is.hasMessage())
+					return;
+				scheduled = true;
+			}
+			try {
+				server.pool.enqueueWork(session, this);
+			} catch (IllegalStateException e) {
+				// the pool is stopped, the server is closing
+			}
+		}
+
+		/** processes the received messages of the session */
+		public void run() {
+			for (int i = 0; i < MAX_MESSAGES; i++) {
+				synchronized (this) {
+					if (!session.running || !session.is.hasMessage()) {
+						scheduled = false;
+						return;
+					}
+				}
+				if (!session.processNext())
+					return;
+			}
+			// give way to the other sessions
+			try {
+				server.pool.enqueueWork(session, this);
+			} catch (IllegalStateException e) {
+			}
+		}
+
+		/**
+		 * Writes to the non-blocking channel. If the channel can't accept more
+		 * data, waits until the selector finds it writable again.
+		 */
+		private class ChannelOutputStream extends OutputStream {
+
+			private boolean writable;
+
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+				while (buffer.hasRemaining()) {
+					if (channel.write(buffer) == 0)
+						waitWritable();
+				}
+			}
+
+			private void waitWritable() throws IOException {
+				synchronized (this) {
+					writable = false;
+				}
+				writeRequested = true;
+				request(ChannelSession.this);
+				synchronized (this) {
+					while (!writable) {
+						if (!channel.isOpen())
+							throw new IOException("Stream Closed");
+						try {
+							wait(1000);
+						} catch (InterruptedException ignore) {
+						}
+					}
+				}
+			}
+
+			synchronized void signal() {
+				writable = true;
+				notifyAll();
+			}
+
+			public void close() throws IOException {
+				channel.close();
+				signal();
+			}
+		}
+	}
+}
@@ -23,6 +23,8 @@ import java.util.Vector;
 
 import org.osgi.framework.AllServiceListener;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceReference;
 import org.tigris.mtoolkit.iagent.internal.utils.DebugUtils;
@@ -50,6 +52,9 @@ public class Server extends PMPPeerImpl implements Runnable, PMPServer, AllServi
 	protected int maxArrayLength;
 	private ServerSocket socket;
 	protected volatile boolean run; // for what's this !?
+	/** accepts and reads the clients, if the selector mode is enabled */
+	private SelectorServer selectorServer;
+	private boolean useSelector;
 
 	protected String uri;
 
@@ -101,15 +106,16 @@ public class Server extends PMPPeerImpl implements Runnable, PMPServer, AllServi
 	
 	protected void init() throws IOException {
 		run = true;
+		useSelector = "true".equals(System.getProperty("iagent.pmp.selector")); //$NON-NLS-1$
 		try {
-			socket = new ServerSocket(port);
+			socket = openSocket(port, false);
 		} catch (IOException e) {
 			DebugUtils.log(this, Log.ERROR, "Failed to open PMP server on " + port + ".", e);
 			int failureAction = determineFailureAction();
 			switch (failureAction) {
 			case FAILURE_RANDOM:
 				DebugUtils.log(this, Log.INFO, "Failure action set to 'random'. Retrying...");
-				socket = new ServerSocket(0);
+				socket = openSocket(0, false);
 				port = socket.getLocalPort();
 				DebugUtils.log(this, Log.INFO, "PMP server listening on " + port);
 				break;
@@ -122,22 +128,34 @@ public class Server extends PMPPeerImpl implements Runnable, PMPServer, AllServi
 				} catch (InterruptedException e1) {
 					throw e;
 				}
-				socket = new ServerSocket(port);
+				socket = openSocket(port, false);
 				break;
 			case FAILURE_FAIL:
 				throw e;
 			case FAILURE_REUSE:
 				DebugUtils.log(this, Log.INFO, "Failure action set to 'reuse'. Retrying...");
-				ServerSocket serverSock = new ServerSocket();
-				serverSock.setReuseAddress(true);
-				serverSock.bind(new InetSocketAddress(port));
-				socket = serverSock;
+				socket = openSocket(port, true);
 			}
 		}
+		if (useSelector) {
+			selectorServer = new SelectorServer(this, socket);
+			return;
+		}
 		socket.setSoTimeout(1000);
 		new Thread(this, "IAgent Server Thread").start();
 	}
 
+	private ServerSocket openSocket(int port, boolean reuse) throws IOException {
+		if (useSelector)
+			return SelectorServer.openSocket(port, reuse);
+		if (!reuse)
+			return new ServerSocket(port);
+		ServerSocket serverSock = new ServerSocket();
+		serverSock.setReuseAddress(true);
+		serverSock.bind(new InetSocketAddress(port));
+		return serverSock;
+	}
+
 	public void run() {
 		while (run) {
 			Socket client;
@@ -170,6 +188,8 @@ public class Server extends PMPPeerImpl implements Runnable, PMPServer, AllServi
 				return;
 			run = false;
 		}
+		if (selectorServer != null)
+			selectorServer.close();
 		closeConnections("PMP Server has been stopped.");
 		try {
 			info("Closing PMP Socket for " + uri);
@@ -195,11 +215,42 @@ public class Server extends PMPPeerImpl implements Runnable, PMPServer, AllServi
 		Vector ls = (Vector) eventTypes.get(t);
 		if (ls != null) {
 			for (int i = 0; i < ls.size(); i++) {
-				((PMPSessionThread) ls.elementAt(i)).event(ev, t);
+				PMPSessionThread session = (PMPSessionThread) ls.elementAt(i);
+				if (session.acceptsEvent(ev, t))
+					session.event(ev, t);
 			}
 		}
 	}
 
+	public void events(Object[] evs, String[] types) {
+		// session -> Vector {Vector events, Vector types}, keeping the order
+		Hashtable batches = new Hashtable();
+		Vector sessions = new Vector();
+		for (int i = 0; i < evs.length; i++) {
+			Vector ls = (Vector) eventTypes.get(types[i]);
+			if (ls == null)
+				continue;
+			for (int j = 0; j < ls.size(); j++) {
+				PMPSessionThread session = (PMPSessionThread) ls.elementAt(j);
+				if (!session.acceptsEvent(evs[i], types[i]))
+					continue;
+				Vector[] batch = (Vector[]) batches.get(session);
+				if (batch == null) {
+					batch = new Vector[] { new Vector(), new Vector() };
+					batches.put(session, batch);
+					sessions.addElement(session);
+				}
+				batch[0].addElement(evs[i]);
+				batch[1].addElement(types[i]);
+			}
+		}
+		for (int i = 0; i < sessions.size(); i++) {
+			PMPSessionThread session = (PMPSessionThread) sessions.elementAt(i);
+			Vector[] batch = (Vector[]) batches.get(session);
+			session.events(batch[0], batch[1]);
+		}
+	}
+
 	protected synchronized byte addListener(String evType, PMPSessionThread listener) {
 		Vector ls = (Vector) eventTypes.get(evType);
 		if (ls == null) {
@@ -212,6 +263,10 @@ public class Server extends PMPPeerImpl implements Runnable, PMPServer, AllServi
 		return 2;
 	}
 
+	protected Filter createFilter(String filter) throws InvalidSyntaxException {
+		return context.createFilter(filter);
+	}
+
 	protected synchronized byte removeListener(String evType, PMPSessionThread listener) {
 		Vector ls = (Vector) eventTypes.get(evType);
 		return ls == null ? 1 : ls.removeElement(listener) ? 2 : (byte) 1;
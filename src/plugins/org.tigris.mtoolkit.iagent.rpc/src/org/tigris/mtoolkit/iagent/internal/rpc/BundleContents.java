@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.internal.rpc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import org.osgi.framework.BundleContext;
+import org.tigris.mtoolkit.iagent.internal.utils.BundleDelta;
+import org.tigris.mtoolkit.iagent.internal.utils.DebugUtils;
+
+/**
+ * Keeps copies of the contents of the bundles, installed or updated through
+ * the agent, in the data area of the agent bundle. They are the base of the
+ * delta updates, see {@link BundleDelta}. The copy of a bundle is valid only
+ * while its digest is known to {@link BundleDigests}.
+ * <p>
+ * The copies are not kept if the <code>iagent.bundle.deltas</code> system
+ * property is set to <code>false</code>.
+ */
+class BundleContents {
+
+	static final boolean ENABLED = !"false".equals(System.getProperty("iagent.bundle.deltas")); //$NON-NLS-1$ //$NON-NLS-2$
+
+	private static final String CONTENTS_DIR_NAME = "bundle_contents"; //$NON-NLS-1$
+	private static final String CONTENT_SUFFIX = ".jar"; //$NON-NLS-1$
+	private static final String TEMP_PREFIX = "content"; //$NON-NLS-1$
+	private static final String TEMP_SUFFIX = ".tmp"; //$NON-NLS-1$
+
+	private File dir;
+
+	BundleContents(BundleContext bc) {
+		if (!ENABLED)
+			return;
+		dir = bc.getDataFile(CONTENTS_DIR_NAME);
+		if (dir == null || !(dir.isDirectory() || dir.mkdirs())) {
+			dir = null;
+			return;
+		}
+		// forget the bundles, uninstalled while the agent wasn't running, and
+		// the unfinished copies
+		File[] files = dir.listFiles();
+		for (int i = 0; files != null && i < files.length; i++) {
+			String name = files[i].getName();
+			if (name.endsWith(CONTENT_SUFFIX)) {
+				try {
+					long id = Long.parseLong(name.substring(0, name.length() - CONTENT_SUFFIX.length()));
+					if (bc.getBundle(id) != null)
+						continue;
+				} catch (NumberFormatException ignore) {
+				}
+			}
+			files[i].delete();
+		}
+	}
+
+	/**
+	 * Returns a stream, which copies the read data to a temporary file, or the
+	 * passed stream if the copies are not kept. The copy must be passed to
+	 * {@link #commit(long, InputStream)} or {@link #discard(InputStream)}.
+	 */
+	InputStream recordStream(InputStream is) {
+		if (dir == null)
+			return is;
+		try {
+			return new RecordingInputStream(is, File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, dir));
+		} catch (IOException e) {
+			DebugUtils.info(this, "[recordStream] Unable to create a bundle content copy", e); //$NON-NLS-1$
+			return is;
+		}
+	}
+
+	/**
+	 * Keeps the content, read from the given stream, as the content of the
+	 * bundle. The remaining data of the stream is read.
+	 */
+	synchronized void commit(long id, InputStream is) {
+		if (!(is instanceof RecordingInputStream))
+			return;
+		RecordingInputStream ris = (RecordingInputStream) is;
+		try {
+			byte[] buf = new byte[4096];
+			while (ris.read(buf) != -1)
+				;
+		} catch (IOException e) {
+			// the content was consumed by the framework
+		}
+		File target = getFile(id);
+		if (!ris.closeCopy() || (target.exists() && !target.delete()) || !ris.copy.renameTo(target)) {
+			ris.copy.delete();
+			target.delete();
+		}
+	}
+
+	void discard(InputStream is) {
+		if (!(is instanceof RecordingInputStream))
+			return;
+		RecordingInputStream ris = (RecordingInputStream) is;
+		ris.closeCopy();
+		ris.copy.delete();
+	}
+
+	/**
+	 * Returns the copy of the content of the bundle or null, if there is no
+	 * copy.
+	 */
+	synchronized File get(long id) {
+		if (dir == null)
+			return null;
+		File file = getFile(id);
+		return file.isFile() ? file : null;
+	}
+
+	synchronized void remove(long id) {
+		if (dir != null)
+			getFile(id).delete();
+	}
+
+	/**
+	 * Reconstructs the new content of the bundle from its copy and the delta.
+	 *
+	 * @return temporary file with the new content, which must be deleted by
+	 *         the caller, or null if the copy is missing or the result doesn't
+	 *         match the digest in the delta
+	 */
+	File applyDelta(long id, InputStream delta) throws IOException {
+		RandomAccessFile base;
+		synchronized (this) {
+			File file = get(id);
+			if (file == null)
+				return null;
+			base = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+		}
+		File result = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, dir);
+		boolean matches = false;
+		try {
+			OutputStream out = new FileOutputStream(result);
+			try {
+				BundleDelta.applyDelta(base, delta, out);
+			} finally {
+				out.close();
+			}
+			matches = true;
+		} catch (IOException e) {
+			DebugUtils.info(this, "[applyDelta] Unable to apply bundle delta", e); //$NON-NLS-1$
+		} finally {
+			base.close();
+			if (!matches)
+				result.delete();
+		}
+		return matches ? result : null;
+	}
+
+	private File getFile(long id) {
+		return new File(dir, id + CONTENT_SUFFIX);
+	}
+
+	/**
+	 * Copies the read data to a file.
+	 */
+	private static class RecordingInputStream extends FilterInputStream {
+
+		File copy;
+		private OutputStream out;
+
+		RecordingInputStream(InputStream in, File copy) throws IOException {
+			super(in);
+			this.copy = copy;
+			out = new FileOutputStream(copy);
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1)
+				record(new byte[] { (byte) b }, 0, 1);
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0)
+				record(b, off, read);
+			return read;
+		}
+
+		public long skip(long n) throws IOException {
+			// skipped data must be copied too
+			byte[] buf = new byte[(int) Math.min(n, 4096)];
+			int read = read(buf, 0, buf.length);
+			return read == -1 ? 0 : read;
+		}
+
+		public boolean markSupported() {
+			return false;
+		}
+
+		private void record(byte[] b, int off, int len) {
+			if (out == null)
+				return;
+			try {
+				out.write(b, off, len);
+			} catch (IOException e) {
+				closeCopy();
+				copy.delete();
+			}
+		}
+
+		/**
+		 * Closes the copy, returns false if the copy is incomplete.
+		 */
+		synchronized boolean closeCopy() {
+			if (out == null)
+				return false;
+			try {
+				out.close();
+				return true;
+			} catch (IOException e) {
+				return false;
+			} finally {
+				out = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.internal.rpc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Properties;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.tigris.mtoolkit.iagent.internal.utils.DebugUtils;
+import org.tigris.mtoolkit.iagent.util.DigestUtils;
+
+/**
+ * Keeps the digests of the contents of the bundles, installed or updated
+ * through the agent, so that the clients can skip uploading a bundle, which is
+ * already installed. The digests are stored in the data area of the agent
+ * bundle, together with the last modification time of the bundles. A digest is
+ * dropped, when the bundle is changed by other means.
+ */
+class BundleDigests {
+
+	private static final String DIGESTS_FILE_NAME = "bundle_digests.properties"; //$NON-NLS-1$
+
+	// bundle id (String) -> "<digest> <last modified>"
+	private Properties digests = new Properties();
+	private File file;
+	private BundleContext bc;
+
+	BundleDigests(BundleContext bc) {
+		this.bc = bc;
+		file = bc.getDataFile(DIGESTS_FILE_NAME);
+		load();
+	}
+
+	/**
+	 * Returns a stream, which computes the digest of the read data, or the
+	 * passed stream if the digest algorithm is not available.
+	 */
+	static InputStream digestStream(InputStream is) {
+		MessageDigest md = DigestUtils.newDigest();
+		return md != null ? new DigestInputStream(is, md) : is;
+	}
+
+	/**
+	 * Stores the digest of the content, read from the given stream, for the
+	 * bundle. The stream must be returned by {@link #digestStream(InputStream)}.
+	 * The remaining data of the stream is read, so that the digest covers the
+	 * whole content.
+	 */
+	synchronized void put(Bundle bundle, InputStream is) {
+		if (!(is instanceof DigestInputStream))
+			return;
+		DigestInputStream dis = (DigestInputStream) is;
+		try {
+			byte[] buf = new byte[4096];
+			while (dis.read(buf) != -1)
+				;
+		} catch (IOException e) {
+			// the content was consumed by the framework
+		}
+		String digest = DigestUtils.toHex(dis.getMessageDigest().digest());
+		digests.put(Long.toString(bundle.getBundleId()), digest + ' ' + bundle.getLastModified());
+		save();
+	}
+
+	/**
+	 * Returns the digest of the bundle or null, if it is unknown or the bundle
+	 * has been changed since the digest was stored.
+	 */
+	synchronized String get(Bundle bundle) {
+		String entry = digests.getProperty(Long.toString(bundle.getBundleId()));
+		if (entry == null)
+			return null;
+		int idx = entry.indexOf(' ');
+		if (idx == -1 || !entry.substring(idx + 1).equals(Long.toString(bundle.getLastModified())))
+			return null;
+		return entry.substring(0, idx);
+	}
+
+	synchronized void remove(long id) {
+		if (digests.remove(Long.toString(id)) != null)
+			save();
+	}
+
+	private void load() {
+		if (file == null || !file.isFile())
+			return;
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			digests.load(in);
+		} catch (IOException e) {
+			DebugUtils.info(this, "[load] Unable to load the bundle digests", e); //$NON-NLS-1$
+		} finally {
+			if (in != null)
+				try {
+					in.close();
+				} catch (IOException ignore) {
+				}
+		}
+		// forget the bundles, uninstalled while the agent wasn't running
+		Object[] ids = digests.keySet().toArray();
+		boolean changed = false;
+		for (int i = 0; i < ids.length; i++) {
+			try {
+				if (bc.getBundle(Long.parseLong((String) ids[i])) != null)
+					continue;
+			} catch (NumberFormatException ignore) {
+			}
+			digests.remove(ids[i]);
+			changed = true;
+		}
+		if (changed)
+			save();
+	}
+
+	private void save() {
+		if (file == null)
+			return;
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(file);
+			digests.store(out, null);
+		} catch (IOException e) {
+			DebugUtils.info(this, "[save] Unable to store the bundle digests", e); //$NON-NLS-1$
+		} finally {
+			if (out != null)
+				try {
+					out.close();
+				} catch (IOException ignore) {
+				}
+		}
+	}
+}
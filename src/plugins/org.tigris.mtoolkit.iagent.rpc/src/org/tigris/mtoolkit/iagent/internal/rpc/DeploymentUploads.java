@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.internal.rpc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Hashtable;
+
+import org.osgi.framework.BundleContext;
+import org.tigris.mtoolkit.iagent.internal.utils.DebugUtils;
+import org.tigris.mtoolkit.iagent.util.DigestUtils;
+
+/**
+ * Stages the deployment packages, uploaded in chunks, in the data area of the
+ * agent bundle. An upload is identified by the SHA-256 digest of the package,
+ * so the client can resume it from the staged length after a reconnect.
+ * Uploads, which haven't been changed for {@link #EXPIRATION} ms, are removed
+ * when the agent is started.
+ */
+class DeploymentUploads {
+
+	static final long EXPIRATION = 7 * 24 * 60 * 60 * 1000L;
+
+	private static final String UPLOADS_DIR_NAME = "dp_uploads"; //$NON-NLS-1$
+	private static final String UPLOAD_SUFFIX = ".part"; //$NON-NLS-1$
+
+	private File dir;
+	// the sizes of the uploads, declared by begin()
+	private Hashtable sizes = new Hashtable();
+
+	DeploymentUploads(BundleContext bc) {
+		dir = bc.getDataFile(UPLOADS_DIR_NAME);
+		if (dir == null || !(dir.isDirectory() || dir.mkdirs())) {
+			dir = null;
+			return;
+		}
+		File[] files = dir.listFiles();
+		long expired = System.currentTimeMillis() - EXPIRATION;
+		for (int i = 0; files != null && i < files.length; i++) {
+			if (files[i].lastModified() < expired)
+				files[i].delete();
+		}
+	}
+
+	/**
+	 * Returns the length of the staged data of the upload, or -1 if the
+	 * uploads are not supported or the digest is invalid. The uploads are not
+	 * supported without SHA-256, because the staged data can't be verified.
+	 * If more than the given size is staged, the upload is started again.
+	 */
+	synchronized long begin(String digest, long size) {
+		File file = getFile(digest);
+		if (file == null || size < 0 || DigestUtils.newDigest() == null)
+			return -1;
+		long length = file.length();
+		if (length > size) {
+			file.delete();
+			length = 0;
+		}
+		sizes.put(file.getName(), new Long(size));
+		return length;
+	}
+
+	/**
+	 * Appends data to the upload, if the offset is equal to the staged length.
+	 *
+	 * @return the staged length after the operation
+	 * @throws IOException
+	 *             if the upload is not started or the data exceeds its size
+	 */
+	synchronized long append(String digest, long offset, byte[] data) throws IOException {
+		File file = getFile(digest);
+		Long size = file != null ? (Long) sizes.get(file.getName()) : null;
+		if (size == null)
+			throw new IOException("Invalid upload: " + digest);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+		try {
+			long length = raf.length();
+			if (offset != length)
+				return length;
+			if (length + data.length > size.longValue())
+				throw new IOException("The upload exceeds its size of " + size + " bytes: " + digest);
+			raf.seek(length);
+			raf.write(data);
+			return raf.length();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Returns the staged file of the upload, if its content matches the
+	 * digest. Otherwise the staged data is removed and null is returned.
+	 */
+	synchronized File commit(String digest) throws IOException {
+		File file = getFile(digest);
+		if (file == null || !file.isFile())
+			return null;
+		sizes.remove(file.getName());
+		if (digest.equalsIgnoreCase(DigestUtils.digest(file)))
+			return file;
+		DebugUtils.info(this, "[commit] The uploaded content doesn't match its digest: " + digest); //$NON-NLS-1$
+		file.delete();
+		return null;
+	}
+
+	synchronized boolean cancel(String digest) {
+		File file = getFile(digest);
+		if (file == null)
+			return false;
+		sizes.remove(file.getName());
+		return file.delete();
+	}
+
+	/**
+	 * Returns the staged file of the upload or null, if the uploads are not
+	 * supported or the digest is not a valid file name.
+	 */
+	private File getFile(String digest) {
+		if (dir == null || digest == null || digest.length() == 0)
+			return null;
+		for (int i = 0; i < digest.length(); i++) {
+			char c = digest.charAt(i);
+			if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F'))
+				return null;
+		}
+		return new File(dir, digest.toLowerCase() + UPLOAD_SUFFIX);
+	}
+}
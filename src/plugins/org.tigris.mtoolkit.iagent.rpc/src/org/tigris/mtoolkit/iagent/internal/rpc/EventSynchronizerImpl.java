@@ -10,18 +10,44 @@
  *******************************************************************************/
 package org.tigris.mtoolkit.iagent.internal.rpc;
 
+import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
 import org.tigris.mtoolkit.iagent.event.EventData;
 import org.tigris.mtoolkit.iagent.event.EventSynchronizer;
 import org.tigris.mtoolkit.iagent.internal.utils.DebugUtils;
+import org.tigris.mtoolkit.iagent.pmp.PMPConnection;
 import org.tigris.mtoolkit.iagent.pmp.PMPServer;
 
+/**
+ * Sends the queued events to the PMP clients. Bursts of events are sent in
+ * batches of up to <code>iagent.events.batchSize</code> events (64 by
+ * default, 1 disables the batching). After the first event of a batch is
+ * queued, up to <code>iagent.events.linger</code> milliseconds (10 by
+ * default) are waited for more events to join it.
+ * <p>
+ * Up to <code>iagent.events.queueSize</code> events (1024 by default) are
+ * queued, while the clients are slow to receive them. When the queue is full,
+ * the queued events, which are superseded by later events with the same
+ * collapse key, are dropped. If this isn't enough, all queued events are
+ * dropped and replaced with a {@link PMPConnection#EVENTS_LOST} event, which
+ * tells the clients to refresh their state.
+ */
 public class EventSynchronizerImpl extends Thread implements EventSynchronizer {
 
+	private static final int BATCH_SIZE = 64;
+	private static final int LINGER = 10;
+	private static final int QUEUE_SIZE = 1024;
+	private static final String DROPPED_KEY = "events.dropped";
+
+	private static final int batchSize = Math.max(1, Integer.getInteger("iagent.events.batchSize", BATCH_SIZE).intValue());
+	private static final long linger = Math.max(0, Integer.getInteger("iagent.events.linger", LINGER).intValue());
+	private static final int queueSize = Math.max(2, Integer.getInteger("iagent.events.queueSize", QUEUE_SIZE).intValue());
+
 	private List eventQueue = new LinkedList();
 	private volatile boolean running;
 	private PMPServer server;
@@ -54,25 +80,45 @@ public class EventSynchronizerImpl extends Thread implements EventSynchronizer {
 
 	public void run() {
 		while (running) {
-			EventData eventData = null;
+			EventData[] batch;
 			synchronized (this) {
 				try {
 					while (eventQueue.isEmpty() && running) {
 						debug("[run] event queue is empty >> thread will wait");
 						wait();
 					}
+					// give the rest of a burst the chance to join the batch
+					long deadline = System.currentTimeMillis() + linger;
+					while (batchSize > 1 && eventQueue.size() < batchSize && running) {
+						long timeout = deadline - System.currentTimeMillis();
+						if (timeout <= 0)
+							break;
+						wait(timeout);
+					}
 				} catch (InterruptedException e) {
 					running = false;
 					return;
 				}
 				if (!running)
 					return;
-				eventData = (EventData) eventQueue.remove(0);
+				batch = new EventData[Math.min(batchSize, eventQueue.size())];
+				for (int i = 0; i < batch.length; i++) {
+					batch[i] = (EventData) eventQueue.remove(0);
+				}
+			}
+			if (batch.length == 1) {
+				debug("[run] sending event: " + batch[0]);
+				server.event(batch[0].getConvertedEvent(), batch[0].getEventType());
+				continue;
+			}
+			Object[] events = new Object[batch.length];
+			String[] eventTypes = new String[batch.length];
+			for (int i = 0; i < batch.length; i++) {
+				events[i] = batch[i].getConvertedEvent();
+				eventTypes[i] = batch[i].getEventType();
 			}
-			Object convEvent = eventData.getConvertedEvent();
-			String eventType = eventData.getEventType();
-			debug("[run] sending event: " + eventData);
-			server.event(convEvent, eventType);
+			debug("[run] sending " + batch.length + " events");
+			server.events(events, eventTypes);
 		}
 	}
 
@@ -83,9 +129,38 @@ public class EventSynchronizerImpl extends Thread implements EventSynchronizer {
 			return;
 		}
 		synchronized (this) {
+			if (eventQueue.size() >= queueSize)
+				overflow();
 			eventQueue.add(eventData);
-			notify();
+			if (eventQueue.size() == 1 || eventQueue.size() == batchSize)
+				notify();
+		}
+	}
+
+	// must be called while holding the lock
+	private void overflow() {
+		// keep only the latest of the events with the same collapse key
+		Hashtable keys = new Hashtable();
+		for (ListIterator it = eventQueue.listIterator(eventQueue.size()); it.hasPrevious();) {
+			EventData event = (EventData) it.previous();
+			Object key = event.getCollapseKey();
+			if (key != null && keys.put(key, key) != null)
+				it.remove();
+		}
+		int collapsed = queueSize - eventQueue.size();
+		if (collapsed > 0) {
+			debug("[overflow] " + collapsed + " superseded events dropped");
+			return;
 		}
+		int dropped = eventQueue.size();
+		EventData first = (EventData) eventQueue.get(0);
+		if (PMPConnection.EVENTS_LOST.equals(first.getEventType()))
+			dropped += ((Integer) ((Hashtable) first.getConvertedEvent()).get(DROPPED_KEY)).intValue() - 1;
+		eventQueue.clear();
+		Hashtable lost = new Hashtable(2);
+		lost.put(DROPPED_KEY, new Integer(dropped));
+		eventQueue.add(new EventData(lost, PMPConnection.EVENTS_LOST));
+		DebugUtils.info(this, "[overflow] The event queue is full, " + dropped + " events dropped");
 	}
 
 	public void stopDispatching() {
@@ -13,6 +13,7 @@ package org.tigris.mtoolkit.iagent.internal.rpc;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
@@ -29,16 +30,19 @@ import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.Vector;
 import java.util.zip.DeflaterOutputStream;
 
+import org.osgi.framework.AllServiceListener;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleException;
 import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.framework.SynchronousBundleListener;
@@ -49,14 +53,17 @@ import org.tigris.mtoolkit.iagent.Error;
 import org.tigris.mtoolkit.iagent.IAgentErrors;
 import org.tigris.mtoolkit.iagent.event.EventData;
 import org.tigris.mtoolkit.iagent.event.EventSynchronizer;
+import org.tigris.mtoolkit.iagent.internal.utils.BundleDelta;
 import org.tigris.mtoolkit.iagent.internal.utils.DebugUtils;
+import org.tigris.mtoolkit.iagent.internal.utils.DictionaryCodec;
 import org.tigris.mtoolkit.iagent.rpc.Capabilities;
 import org.tigris.mtoolkit.iagent.rpc.Remote;
 import org.tigris.mtoolkit.iagent.rpc.RemoteBundleAdmin;
 import org.tigris.mtoolkit.iagent.rpc.RemoteCapabilitiesManager;
 import org.tigris.mtoolkit.iagent.rpc.spi.BundleManagerDelegate;
 
-public class RemoteBundleAdminImpl implements Remote, RemoteBundleAdmin, SynchronousBundleListener {
+public class RemoteBundleAdminImpl implements Remote, RemoteBundleAdmin, SynchronousBundleListener,
+		AllServiceListener {
 
 	public static final String SYNCH_BUNDLE_EVENTS = "synch_bundle_event";
 	public static final String SYSTEM_BUNDLE_EVENT = "system_bundle_event";
@@ -68,6 +75,8 @@ public class RemoteBundleAdminImpl implements Remote, RemoteBundleAdmin, Synchro
 	private static final String SYSTEM_BUNDLES_FILE_NAME = "system_bundles.txt";
 	private static final String SYSTEM_BUNDLES_RESOURCE_NAME = "/" + SYSTEM_BUNDLES_FILE_NAME;
 
+	private static final int MAX_REMOVED_BUNDLES = 1000;
+
 	private ServiceTracker packageAdminTrack;
 	private ServiceTracker startLevelTrack;
 	private ServiceTracker delegatesTrack;
@@ -76,9 +85,22 @@ public class RemoteBundleAdminImpl implements Remote, RemoteBundleAdmin, Synchro
 	
 	private Set loadedSymbolicNames;
 	private Bundle systemBundle;
+	private BundleDigests digests;
+	private BundleContents contents;
 	
 	private BundleManagerDelegate defaultDelegate;
 
+	// snapshot generations, increased on every bundle or service change. They
+	// start from a random epoch in the high bits, so generations from a
+	// previous run are out of the current range and get full snapshot.
+	private final Object snapshotLock = new Object();
+	private long snapshotGeneration;
+	private long snapshotBaseGeneration;
+	// bundle id (Long) -> generation (Long) of its last change
+	private Hashtable changedBundles = new Hashtable();
+	// uninstalled bundle id (Long) -> generation (Long) of the uninstallation
+	private Hashtable removedBundles = new Hashtable();
+
 	public Class[] remoteInterfaces() {
 		return new Class[] { RemoteBundleAdmin.class };
 	}
@@ -98,9 +120,18 @@ public class RemoteBundleAdminImpl implements Remote, RemoteBundleAdmin, Synchro
 		delegatesTrack = new ServiceTracker(bc, BundleManagerDelegate.class.getName(), null);
 		delegatesTrack.open();
 		
+		digests = new BundleDigests(bc);
+		contents = new BundleContents(bc);
+
 		registration = bc.registerService(RemoteBundleAdmin.class.getName(), this, null);
 
+		synchronized (snapshotLock) {
+			snapshotGeneration = snapshotBaseGeneration = ((new Random().nextInt() & 0x3FFFFFFF) + 1L) << 32;
+			changedBundles.clear();
+			removedBundles.clear();
+		}
 		bc.addBundleListener(this);
+		bc.addServiceListener(this);
 
 		RemoteCapabilitiesManager capMan = Activator.getCapabilitiesManager();
 		if (capMan != null) {
@@ -128,6 +159,7 @@ public class RemoteBundleAdminImpl implements Remote, RemoteBundleAdmin, Synchro
 		}
 		
 		bc.removeBundleListener(this);
+		bc.removeServiceListener(this);
 
 		RemoteCapabilitiesManager capMan = Activator.getCapabilitiesManager();
 		if (capMan != null) {
@@ -317,48 +349,133 @@ public class RemoteBundleAdminImpl implements Remote, RemoteBundleAdmin, Synchro
 
 	public Object getBundlesSnapshot(int includeOptions, Dictionary properties) {
 		debug("[getBundlesSnapshot] >>>");
-		long[] ids = listBundles();
+		return encodeSnapshot(getBundlesInfo(listBundles(), includeOptions, null), false);
+	}
+
+	public Object getBundlesSnapshotSince(long generation, int includeOptions, Dictionary properties) {
+		debug("[getBundlesSnapshotSince] >>> generation: " + generation);
+		long currentGeneration;
+		boolean full;
+		long[] ids = null;
+		List removed = new ArrayList();
+		synchronized (snapshotLock) {
+			currentGeneration = snapshotGeneration;
+			// the used services change without events, so they can't be tracked
+			full = generation < snapshotBaseGeneration || generation > snapshotGeneration
+					|| (includeOptions & INCLUDE_USED_SERVICES) != 0;
+			if (!full) {
+				ids = toLongArray(getChangedSince(changedBundles, generation));
+				removed.addAll(getChangedSince(removedBundles, generation));
+			}
+		}
+		if (full) {
+			ids = listBundles();
+		}
+		// changes after the generation is taken are returned again next time
+		Dictionary[] bundles = getBundlesInfo(ids, includeOptions, removed);
+		long[] removedIds = toLongArray(removed);
+		Dictionary delta = new Hashtable();
+		delta.put(KEY_SNAPSHOT_GENERATION, new Long(currentGeneration));
+		delta.put(KEY_SNAPSHOT_FULL, full ? Boolean.TRUE : Boolean.FALSE);
+		delta.put(KEY_SNAPSHOT_BUNDLES, bundles);
+		delta.put(KEY_SNAPSHOT_REMOVED, removedIds);
+		debug("[getBundlesSnapshotSince] generation: " + currentGeneration + "; full: " + full + "; changed: "
+				+ bundles.length + "; removed: " + removedIds.length);
+		return encodeSnapshot(delta, true);
+	}
+
+	private List getChangedSince(Hashtable changes, long generation) {
+		List ids = new ArrayList();
+		for (Enumeration e = changes.keys(); e.hasMoreElements();) {
+			Long id = (Long) e.nextElement();
+			if (((Long) changes.get(id)).longValue() > generation) {
+				ids.add(id);
+			}
+		}
+		return ids;
+	}
+
+	private static long[] toLongArray(List ids) {
+		long[] result = new long[ids.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = ((Long) ids.get(i)).longValue();
+		}
+		return result;
+	}
+
+	/**
+	 * Collects the snapshot info of the given bundles. The ids of the bundles,
+	 * which are uninstalled meanwhile, are added to the uninstalled list, if
+	 * it is given.
+	 */
+	private Dictionary[] getBundlesInfo(long[] ids, int includeOptions, List uninstalled) {
 		List snapshots = new ArrayList();
 		for (int i = 0; i < ids.length; i++) {
-			Dictionary bundleInfo = new Hashtable();
-			bundleInfo.put(KEY_BUNDLE_ID, new Long(ids[i]));
-			if ((includeOptions & INCLUDE_BUNDLE_HEADERS) != 0) {
-				Dictionary headers = getBundleHeaders(ids[i], null);
-				if (headers == null) {
-					continue; // bundle is uninstalled
+			Dictionary bundleInfo = getBundleInfo(ids[i], includeOptions);
+			if (bundleInfo == null) {
+				if (uninstalled != null) {
+					uninstalled.add(new Long(ids[i]));
 				}
-				bundleInfo.put(KEY_BUNDLE_HEADERS, headers);
+				continue;
 			}
-			if ((includeOptions & INCLUDE_BUNDLE_STATES) != 0) {
-				int state = getBundleState(ids[i]);
-				if (state == Bundle.UNINSTALLED) {
-					continue; // bundle is uninstalled
-				}
-				bundleInfo.put(KEY_BUNDLE_STATE, new Integer(state));
+			snapshots.add(bundleInfo);
+		}
+		return (Dictionary[]) snapshots.toArray(new Dictionary[snapshots.size()]);
+	}
+
+	/**
+	 * Returns the snapshot info of the bundle or null if it is uninstalled.
+	 */
+	private Dictionary getBundleInfo(long id, int includeOptions) {
+		Dictionary bundleInfo = new Hashtable();
+		bundleInfo.put(KEY_BUNDLE_ID, new Long(id));
+		if ((includeOptions & INCLUDE_BUNDLE_HEADERS) != 0) {
+			Dictionary headers = getBundleHeaders(id, null);
+			if (headers == null) {
+				return null;
 			}
-			if ((includeOptions & INCLUDE_REGISTERED_SERVICES) != 0) {
-				Dictionary[] registeredServices = getRegisteredServices(ids[i]);
-				if (registeredServices == null) {
-					continue; // bundle is uninstalled
-				}
-				bundleInfo.put(KEY_REGISTERED_SERVICES, registeredServices);
+			bundleInfo.put(KEY_BUNDLE_HEADERS, headers);
+		}
+		if ((includeOptions & INCLUDE_BUNDLE_STATES) != 0) {
+			int state = getBundleState(id);
+			if (state == Bundle.UNINSTALLED) {
+				return null;
 			}
-			if ((includeOptions & INCLUDE_USED_SERVICES) != 0) {
-				Dictionary[] usedServices = getUsingServices(ids[i]);
-				if (usedServices == null) {
-					continue; // bundle is uninstalled
-				}
-				bundleInfo.put(KEY_USED_SERVICES, usedServices);
+			bundleInfo.put(KEY_BUNDLE_STATE, new Integer(state));
+		}
+		if ((includeOptions & INCLUDE_REGISTERED_SERVICES) != 0) {
+			Dictionary[] registeredServices = getRegisteredServices(id);
+			if (registeredServices == null) {
+				return null;
 			}
-			snapshots.add(bundleInfo);
+			bundleInfo.put(KEY_REGISTERED_SERVICES, registeredServices);
 		}
-		Dictionary[] result = (Dictionary[]) snapshots.toArray(new Dictionary[snapshots.size()]);
+		if ((includeOptions & INCLUDE_USED_SERVICES) != 0) {
+			Dictionary[] usedServices = getUsingServices(id);
+			if (usedServices == null) {
+				return null;
+			}
+			bundleInfo.put(KEY_USED_SERVICES, usedServices);
+		}
+		return bundleInfo;
+	}
 
+	/**
+	 * Compresses the snapshot if requested. Compact snapshots are written with
+	 * {@link DictionaryCodec} instead of Java serialization.
+	 */
+	private Object encodeSnapshot(Object result, boolean compact) {
 		String transportType = System.getProperty("iagent.snapshot.transport.type");
 		if ("compressed".equals(transportType)) {
 			try {
 				ByteArrayOutputStream bos = new ByteArrayOutputStream();
-				ObjectOutputStream oos = new ObjectOutputStream(new DeflaterOutputStream(bos));
+				DeflaterOutputStream dos = new DeflaterOutputStream(bos);
+				if (compact) {
+					new DictionaryCodec().writeValue(result, dos);
+					dos.close();
+					return bos.toByteArray();
+				}
+				ObjectOutputStream oos = new ObjectOutputStream(dos);
 				oos.writeObject(result);
 				oos.close();
 				return bos.toByteArray();
@@ -371,13 +488,18 @@ public class RemoteBundleAdminImpl implements Remote, RemoteBundleAdmin, Synchro
 
 	public Object installBundle(String location, InputStream is) {
 		debug("[installBundle] location: " + location + "; inputStream: " + is);
+		InputStream recorded = contents.recordStream(is);
+		is = BundleDigests.digestStream(recorded);
 		Object result = getDelegate().installBundle(location, is);
 		if (result instanceof Error) {
+			contents.discard(recorded);
 			info("[installBundle] Unable to install bundle: " + result);
 			return result;
 		}
 		
 		Bundle bundle = (Bundle) result;
+		digests.put(bundle, is);
+		contents.commit(bundle.getBundleId(), recorded);
 		Long bundleId = new Long(bundle.getBundleId());
 		debug("[installBundle] Bundle installed successfully. Id: " + bundleId);
 		return bundleId;
@@ -428,15 +550,92 @@ public class RemoteBundleAdminImpl implements Remote, RemoteBundleAdmin, Synchro
 			info("[updateBundle] No such bundle: " + error);
 			return error;
 		} else {
+			InputStream recorded = contents.recordStream(is);
+			is = BundleDigests.digestStream(recorded);
 			Object result = getDelegate().updateBundle(bundle, is);
-			if (result instanceof Error)
+			if (result instanceof Error) {
+				contents.discard(recorded);
 				info("[updateBundle] Unable to update bundle: " + result);
-			else
+			} else {
+				digests.put(bundle, is);
+				contents.commit(id, recorded);
 				debug("[updateBundle] Bundle updated successfully");
+			}
 			return result;
 		}
 	}
 
+	public byte[] getBundleSignatures(long id) {
+		debug("[getBundleSignatures] id: " + id);
+		Bundle bundle = bc.getBundle(id);
+		File content = bundle != null && digests.get(bundle) != null ? contents.get(id) : null;
+		if (content == null) {
+			debug("[getBundleSignatures] The content of the bundle is unknown");
+			return null;
+		}
+		InputStream is = null;
+		try {
+			is = new FileInputStream(content);
+			return BundleDelta.computeSignatures(is, BundleDelta.DEFAULT_BLOCK_SIZE);
+		} catch (IOException e) {
+			info("[getBundleSignatures] Unable to read the bundle content", e);
+			return null;
+		} finally {
+			if (is != null) {
+				try {
+					is.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	public Object updateBundleDelta(long id, InputStream delta) {
+		debug("[updateBundleDelta] id: " + id + "; delta: " + delta);
+		Bundle bundle = bc.getBundle(id);
+		if (bundle == null) {
+			Error error = new Error(Error.BUNDLE_UNINSTALLED_CODE, "Bundle " + id + " has been uninstalled");
+			info("[updateBundleDelta] No such bundle: " + error);
+			return error;
+		}
+		File content = null;
+		try {
+			if (digests.get(bundle) != null)
+				content = contents.applyDelta(id, delta);
+		} catch (IOException e) {
+			info("[updateBundleDelta] Unable to apply the delta", e);
+		} finally {
+			try {
+				delta.close();
+			} catch (IOException e) {
+			}
+		}
+		if (content == null) {
+			Error error = new Error(Error.BUNDLE_DELTA_MISMATCH_CODE, "The delta doesn't match the content of bundle "
+					+ id);
+			info("[updateBundleDelta] " + error);
+			return error;
+		}
+		try {
+			return updateBundle(id, new FileInputStream(content));
+		} catch (FileNotFoundException e) {
+			return new Error(Error.BUNDLE_DELTA_MISMATCH_CODE, "The delta doesn't match the content of bundle " + id);
+		} finally {
+			content.delete();
+		}
+	}
+
+	public String[] getBundleDigests(long[] ids) {
+		debug("[getBundleDigests] ids: " + DebugUtils.convertForDebug(ids));
+		String[] result = new String[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			Bundle bundle = bc.getBundle(ids[i]);
+			if (bundle != null)
+				result[i] = digests.get(bundle);
+		}
+		return result;
+	}
+
 	public Dictionary[] getRegisteredServices(long id) {
 		debug("[getRegisteredServices] id: " + id);
 		Bundle bundle = bc.getBundle(id);
@@ -534,6 +733,11 @@ public class RemoteBundleAdminImpl implements Remote, RemoteBundleAdmin, Synchro
 	}
 
 	public void bundleChanged(BundleEvent event) {
+		markBundleChanged(event.getBundle(), event.getType() == BundleEvent.UNINSTALLED);
+		if (event.getType() == BundleEvent.UNINSTALLED) {
+			digests.remove(event.getBundle().getBundleId());
+			contents.remove(event.getBundle().getBundleId());
+		}
 		if (systemBundle == null)
 			systemBundle = bc.getBundle(0);
 		if (systemBundle.getState() == Bundle.STOPPING)
@@ -553,13 +757,55 @@ public class RemoteBundleAdminImpl implements Remote, RemoteBundleAdmin, Synchro
 				// in the system bundles symbolic names
 				synchronizer.enqueue(new EventData(new Long(event.getBundle().getBundleId()), SYSTEM_BUNDLE_EVENT));
 			}
-			synchronizer.enqueue(new EventData(convEvent, SYNCH_BUNDLE_EVENTS));
+			synchronizer.enqueue(new EventData(convEvent, SYNCH_BUNDLE_EVENTS, getCollapseKey(event)));
 			debug("[bundleChanged] Bundle successfully changed");
 		} else {
 			info("[bundleChanged] Event synchronizer was disabled.");
 		}
 	}
 
+	public void serviceChanged(ServiceEvent event) {
+		// registered services are part of the bundle snapshot
+		Bundle bundle = event.getServiceReference().getBundle();
+		if (bundle != null) {
+			markBundleChanged(bundle, false);
+		}
+	}
+
+	private void markBundleChanged(Bundle bundle, boolean removed) {
+		Long id = new Long(bundle.getBundleId());
+		synchronized (snapshotLock) {
+			Long generation = new Long(++snapshotGeneration);
+			if (removed) {
+				changedBundles.remove(id);
+				if (removedBundles.size() >= MAX_REMOVED_BUNDLES) {
+					// forget the removals, older generations get full snapshot
+					removedBundles.clear();
+					snapshotBaseGeneration = snapshotGeneration - 1;
+				}
+				removedBundles.put(id, generation);
+			} else {
+				changedBundles.put(id, generation);
+			}
+		}
+	}
+
+	/**
+	 * Returns the key, by which the state changes of a bundle are collapsed to
+	 * the latest one, when the events can't be sent fast enough. The events,
+	 * which change the bundle set or the headers, are never collapsed.
+	 */
+	private Object getCollapseKey(BundleEvent event) {
+		switch (event.getType()) {
+		case BundleEvent.INSTALLED:
+		case BundleEvent.UPDATED:
+		case BundleEvent.UNINSTALLED:
+			return null;
+		default:
+			return SYNCH_BUNDLE_EVENTS + event.getBundle().getBundleId();
+		}
+	}
+
 	private boolean isBundleSystem(String symbolicName) {
 		if (loadedSymbolicNames != null)
 			return loadedSymbolicNames.contains(symbolicName);
@@ -10,6 +10,9 @@
  *******************************************************************************/
 package org.tigris.mtoolkit.iagent.internal.rpc;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Dictionary;
 import java.util.Hashtable;
@@ -25,6 +28,7 @@ import org.osgi.service.deploymentadmin.DeploymentPackage;
 import org.osgi.util.tracker.ServiceTracker;
 import org.osgi.util.tracker.ServiceTrackerCustomizer;
 import org.tigris.mtoolkit.iagent.Error;
+import org.tigris.mtoolkit.iagent.IAgentErrors;
 import org.tigris.mtoolkit.iagent.internal.utils.DebugUtils;
 import org.tigris.mtoolkit.iagent.rpc.Capabilities;
 import org.tigris.mtoolkit.iagent.rpc.Remote;
@@ -43,6 +47,7 @@ public class RemoteDeploymentAdminImpl implements Remote, RemoteDeploymentAdmin
 	private DeploymentAdmin deploymentAdmin;
 	private DeploymentManagerDelegate defaultDelegate;
 	private DeploymentEventListener listener;
+	private DeploymentUploads uploads;
 
 	private class EventAdminTracker extends ServiceTracker {
 		private EventAdminTracker(BundleContext context, String clazz, ServiceTrackerCustomizer customizer) {
@@ -75,6 +80,8 @@ public class RemoteDeploymentAdminImpl implements Remote, RemoteDeploymentAdmin
 		eventAdminTrack = new EventAdminTracker(context, EVENT_ADMIN_CLASS, null);
 		eventAdminTrack.open(true);
 
+		uploads = new DeploymentUploads(context);
+
 		registration = context.registerService(RemoteDeploymentAdmin.class.getName(), this, null);
 
 		RemoteCapabilitiesManager capMan = Activator.getCapabilitiesManager();
@@ -278,6 +285,50 @@ public class RemoteDeploymentAdminImpl implements Remote, RemoteDeploymentAdmin
 		return new String[] { name, version };
 	}
 	
+	public long beginDeploymentPackageUpload(String digest, long size) {
+		debug("[beginDeploymentPackageUpload] digest: " + digest + "; size: " + size);
+		long offset = uploads.begin(digest, size);
+		debug("[beginDeploymentPackageUpload] staged length: " + offset);
+		return offset;
+	}
+
+	public Object appendDeploymentPackageUpload(String digest, long offset, byte[] data) {
+		try {
+			return new Long(uploads.append(digest, offset, data));
+		} catch (IOException e) {
+			info("[appendDeploymentPackageUpload] Unable to stage the uploaded data", e);
+			return new Error(IAgentErrors.ERROR_INTERNAL_ERROR, "Unable to stage the uploaded data: "
+					+ DebugUtils.toString(e));
+		}
+	}
+
+	public Object commitDeploymentPackageUpload(String digest) {
+		debug("[commitDeploymentPackageUpload] digest: " + digest);
+		File file;
+		try {
+			file = uploads.commit(digest);
+		} catch (IOException e) {
+			info("[commitDeploymentPackageUpload] Unable to read the uploaded data", e);
+			return new Error(IAgentErrors.ERROR_INTERNAL_ERROR, "Unable to read the uploaded data: "
+					+ DebugUtils.toString(e));
+		}
+		if (file == null)
+			return new Error(IAgentErrors.ERROR_INTERNAL_ERROR, "The uploaded deployment package is incomplete or corrupted");
+		try {
+			return installDeploymentPackage(new FileInputStream(file));
+		} catch (IOException e) {
+			return new Error(IAgentErrors.ERROR_INTERNAL_ERROR, "Unable to read the uploaded data: "
+					+ DebugUtils.toString(e));
+		} finally {
+			file.delete();
+		}
+	}
+
+	public boolean cancelDeploymentPackageUpload(String digest) {
+		debug("[cancelDeploymentPackageUpload] digest: " + digest);
+		return uploads.cancel(digest);
+	}
+
 	private DeploymentManagerDelegate getDelegate() {
 		DeploymentManagerDelegate delegate = (DeploymentManagerDelegate) delegatesTrack.getService();
 		if (delegate != null)
@@ -312,4 +363,8 @@ public class RemoteDeploymentAdminImpl implements Remote, RemoteDeploymentAdmin
 	private final void info(String message) {
 		DebugUtils.info(this, message);
 	}
+
+	private final void info(String message, Throwable t) {
+		DebugUtils.info(this, message, t);
+	}
 }
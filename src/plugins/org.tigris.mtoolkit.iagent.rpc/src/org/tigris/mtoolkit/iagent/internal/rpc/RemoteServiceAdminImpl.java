@@ -197,7 +197,10 @@ public class RemoteServiceAdminImpl implements RemoteServiceAdmin, Remote, AllSe
 							+ DebugUtils.convertForDebug(convertedServiceEvent)
 							+ "; type: "
 							+ RemoteServiceAdmin.CUSTOM_SERVICE_EVENT);
-			synchronizer.enqueue(new EventData(convertedServiceEvent, RemoteServiceAdmin.CUSTOM_SERVICE_EVENT));
+			// the modifications of a service can be collapsed to the latest one
+			Object collapseKey = event.getType() == ServiceEvent.MODIFIED ? RemoteServiceAdmin.CUSTOM_SERVICE_EVENT
+					+ convertedServiceEvent.get(Constants.SERVICE_ID) : null;
+			synchronizer.enqueue(new EventData(convertedServiceEvent, RemoteServiceAdmin.CUSTOM_SERVICE_EVENT, collapseKey));
 		} else {
 			debug("[postRemoteEvent] Event synchronizer was disabled");
 		}
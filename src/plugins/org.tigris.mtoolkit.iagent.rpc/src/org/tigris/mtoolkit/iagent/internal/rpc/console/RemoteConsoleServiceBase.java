@@ -22,6 +22,7 @@ import org.osgi.framework.ServiceRegistration;
 import org.tigris.mtoolkit.iagent.internal.pmp.InvocationThread;
 import org.tigris.mtoolkit.iagent.internal.rpc.Activator;
 import org.tigris.mtoolkit.iagent.internal.utils.CircularBuffer;
+import org.tigris.mtoolkit.iagent.internal.utils.ThreadUtils;
 import org.tigris.mtoolkit.iagent.pmp.EventListener;
 import org.tigris.mtoolkit.iagent.pmp.PMPConnection;
 import org.tigris.mtoolkit.iagent.pmp.PMPException;
@@ -178,7 +179,7 @@ public abstract class RemoteConsoleServiceBase implements RemoteConsole {
 		return (WriteDispatcher) dispatchers.get(conn);
 	}
 
-	protected class WriteDispatcher extends Thread {
+	protected class WriteDispatcher implements Runnable {
 
 		public PMPConnection conn;
 		public CircularBuffer buffer;
@@ -188,7 +189,6 @@ public abstract class RemoteConsoleServiceBase implements RemoteConsole {
 		private volatile boolean running = true;
 
 		public WriteDispatcher(PMPConnection conn, CircularBuffer buffer, RemoteObject object) throws PMPException {
-			super("Remote Console Dispatcher");
 			this.conn = conn;
 			this.buffer = buffer;
 			this.object = object;
@@ -197,6 +197,10 @@ public abstract class RemoteConsoleServiceBase implements RemoteConsole {
 				Integer.TYPE.getName() });
 		}
 
+		public void start() {
+			ThreadUtils.createThread(this, "Remote Console Dispatcher", false).start();
+		}
+
 		public void run() {
 			while (true) {
 				synchronized (this) {
@@ -0,0 +1,427 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.internal.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.tigris.mtoolkit.iagent.util.DigestUtils;
+
+/**
+ * Binary delta of a new bundle content against the content, which is already
+ * on the device. The old content is described by the signatures of its blocks:
+ * a weak rolling checksum and a MD5 digest for each full block. The delta is
+ * computed by rolling the weak checksum over the new content and is a
+ * sequence of copies of old blocks and literal data.
+ * <p>
+ * The signatures are written as the block size, the number of blocks and the
+ * checksum and digest of each block. The delta starts with the block size and
+ * is followed by the operations, the last one being the end operation, and
+ * the SHA-256 digest of the new content.
+ */
+public final class BundleDelta {
+
+	public static final int DEFAULT_BLOCK_SIZE = 2048;
+
+	private static final int OP_END = 0;
+	private static final int OP_COPY = 1;
+	private static final int OP_DATA = 2;
+
+	private static final String STRONG_ALGORITHM = "MD5"; //$NON-NLS-1$
+	private static final int STRONG_LENGTH = 16;
+	private static final int SIGNATURE_LENGTH = 4 + STRONG_LENGTH;
+	private static final int HEADER_LENGTH = 8;
+	private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+	// the literal data is sent in parts of at most this size
+	private static final int MAX_DATA_LENGTH = 64 * 1024;
+
+	private BundleDelta() {
+	}
+
+	/**
+	 * Computes the signatures of the full blocks of the content.
+	 *
+	 * @return the signatures or null, if the digest algorithm is not available
+	 */
+	public static byte[] computeSignatures(InputStream in, int blockSize) throws IOException {
+		MessageDigest md = getStrongDigest();
+		if (md == null)
+			return null;
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		byte[] block = new byte[blockSize];
+		int count = 0;
+		while (readBlock(in, block) == blockSize) {
+			out.writeInt(weakChecksum(block, 0, blockSize));
+			md.update(block, 0, blockSize);
+			out.write(md.digest());
+			count++;
+		}
+		out.flush();
+		byte[] signatures = bos.toByteArray();
+		byte[] result = new byte[HEADER_LENGTH + signatures.length];
+		writeInt(result, 0, blockSize);
+		writeInt(result, 4, count);
+		System.arraycopy(signatures, 0, result, HEADER_LENGTH, signatures.length);
+		return result;
+	}
+
+	/**
+	 * Returns a stream, which reads the delta of the content against the
+	 * content with the given signatures. The content is read only as far as
+	 * the delta is read.
+	 *
+	 * @return the delta stream or null, if the signatures are invalid or the
+	 *         digest algorithms are not available
+	 */
+	public static InputStream openDelta(byte[] signatures, InputStream content) {
+		MessageDigest md = getStrongDigest();
+		MessageDigest contentDigest = DigestUtils.newDigest();
+		if (md == null || contentDigest == null || signatures.length < HEADER_LENGTH)
+			return null;
+		int blockSize = readInt(signatures, 0);
+		int count = readInt(signatures, 4);
+		if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE || count < 0
+				|| signatures.length != HEADER_LENGTH + (long) count * SIGNATURE_LENGTH)
+			return null;
+		return new DeltaInputStream(signatures, blockSize, count, content, md, contentDigest);
+	}
+
+	/**
+	 * Reconstructs the new content from the old content and the delta.
+	 *
+	 * @throws IOException
+	 *             if the delta is invalid or the result doesn't match the
+	 *             digest at the end of the delta
+	 */
+	public static void applyDelta(RandomAccessFile base, InputStream delta, OutputStream os) throws IOException {
+		MessageDigest contentDigest = DigestUtils.newDigest();
+		if (contentDigest == null)
+			throw new IOException("Digest algorithm is not available: " + DigestUtils.ALGORITHM);
+		DigestOutputStream out = new DigestOutputStream(os, contentDigest);
+		DataInputStream in = new DataInputStream(delta);
+		int blockSize = in.readInt();
+		if (blockSize <= 0)
+			throw new IOException("Invalid block size: " + blockSize);
+		long blocks = base.length() / blockSize;
+		byte[] buf = new byte[Math.max(blockSize, 4096)];
+		while (true) {
+			int op = in.readByte();
+			if (op == OP_END) {
+				byte[] digest = new byte[contentDigest.getDigestLength()];
+				in.readFully(digest);
+				if (!MessageDigest.isEqual(digest, contentDigest.digest()))
+					throw new IOException("The delta doesn't match the old content");
+				return;
+			}
+			if (op == OP_COPY) {
+				int start = in.readInt();
+				int count = in.readInt();
+				if (start < 0 || count <= 0 || start + (long) count > blocks)
+					throw new IOException("Invalid block range: " + start + ", " + count);
+				base.seek((long) start * blockSize);
+				for (int i = 0; i < count; i++) {
+					base.readFully(buf, 0, blockSize);
+					out.write(buf, 0, blockSize);
+				}
+			} else if (op == OP_DATA) {
+				int length = in.readInt();
+				if (length < 0)
+					throw new IOException("Invalid data length: " + length);
+				while (length > 0) {
+					int read = in.read(buf, 0, Math.min(length, buf.length));
+					if (read == -1)
+						throw new IOException("Unexpected end of delta");
+					out.write(buf, 0, read);
+					length -= read;
+				}
+			} else {
+				throw new IOException("Invalid delta operation: " + op);
+			}
+		}
+	}
+
+	private static void writeCopy(DataOutputStream out, int start, int count) throws IOException {
+		if (count == 0)
+			return;
+		out.writeByte(OP_COPY);
+		out.writeInt(start);
+		out.writeInt(count);
+	}
+
+	private static void writeData(DataOutputStream out, byte[] content, int off, int len) throws IOException {
+		while (len > 0) {
+			int part = Math.min(len, MAX_DATA_LENGTH);
+			out.writeByte(OP_DATA);
+			out.writeInt(part);
+			out.write(content, off, part);
+			off += part;
+			len -= part;
+		}
+	}
+
+	private static int weakChecksum(byte[] block, int off, int len) {
+		int a = 0;
+		int b = 0;
+		for (int i = 0; i < len; i++) {
+			a += block[off + i] & 0xFF;
+			b += (len - i) * (block[off + i] & 0xFF);
+		}
+		return (a & 0xFFFF) | (b << 16);
+	}
+
+	private static int hash(int checksum) {
+		return checksum ^ (checksum >>> 16);
+	}
+
+	private static boolean equals(byte[] strong, byte[] signatures, int off) {
+		for (int i = 0; i < STRONG_LENGTH; i++)
+			if (strong[i] != signatures[off + i])
+				return false;
+		return true;
+	}
+
+	private static int readBlock(InputStream in, byte[] block) throws IOException {
+		int total = 0;
+		while (total < block.length) {
+			int read = in.read(block, total, block.length - total);
+			if (read == -1)
+				break;
+			total += read;
+		}
+		return total;
+	}
+
+	private static MessageDigest getStrongDigest() {
+		try {
+			return MessageDigest.getInstance(STRONG_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+
+	private static int readInt(byte[] buf, int off) {
+		return ((buf[off] & 0xFF) << 24) | ((buf[off + 1] & 0xFF) << 16) | ((buf[off + 2] & 0xFF) << 8)
+				| (buf[off + 3] & 0xFF);
+	}
+
+	private static void writeInt(byte[] buf, int off, int value) {
+		buf[off] = (byte) (value >>> 24);
+		buf[off + 1] = (byte) (value >>> 16);
+		buf[off + 2] = (byte) (value >>> 8);
+		buf[off + 3] = (byte) value;
+	}
+
+	/**
+	 * Computes the delta while it is read. The read content is kept only
+	 * until it is matched to a block or sent as literal data.
+	 */
+	private static final class DeltaInputStream extends InputStream {
+
+		private final byte[] signatures;
+		private final int blockSize;
+		private final int count;
+		private final InputStream content;
+		private final MessageDigest md;
+		private final MessageDigest contentDigest;
+
+		// open hash table of the weak checksums, chained through next[]
+		private final int[] table;
+		private final int[] next;
+		private final int[] weak;
+
+		// data[0, pos) is literal data, data[pos, end) is not matched yet
+		private final byte[] data;
+		private int pos;
+		private int end;
+		private boolean eof;
+		private int a;
+		private int b;
+		private boolean rolling;
+		private int copyStart = -1;
+		private int copyCount;
+
+		private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(pending);
+		private byte[] output = new byte[0];
+		private int outputPos;
+		private boolean started;
+		private boolean finished;
+
+		DeltaInputStream(byte[] signatures, int blockSize, int count, InputStream content, MessageDigest md,
+				MessageDigest contentDigest) {
+			this.signatures = signatures;
+			this.blockSize = blockSize;
+			this.count = count;
+			this.content = content;
+			this.md = md;
+			this.contentDigest = contentDigest;
+			int tableSize = 1;
+			while (tableSize < count * 2)
+				tableSize <<= 1;
+			table = new int[tableSize];
+			next = new int[count];
+			weak = new int[count];
+			for (int i = count - 1; i >= 0; i--) {
+				weak[i] = readInt(signatures, HEADER_LENGTH + i * SIGNATURE_LENGTH);
+				int slot = hash(weak[i]) & (tableSize - 1);
+				next[i] = table[slot];
+				table[slot] = i + 1;
+			}
+			data = new byte[MAX_DATA_LENGTH + blockSize + 1];
+		}
+
+		public int read() throws IOException {
+			byte[] buf = new byte[1];
+			return read(buf, 0, 1) == -1 ? -1 : buf[0] & 0xFF;
+		}
+
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			while (outputPos == output.length) {
+				if (finished)
+					return -1;
+				encode();
+				output = pending.toByteArray();
+				outputPos = 0;
+				pending.reset();
+			}
+			int read = Math.min(len, output.length - outputPos);
+			System.arraycopy(output, outputPos, buf, off, read);
+			outputPos += read;
+			return read;
+		}
+
+		public void close() throws IOException {
+			content.close();
+		}
+
+		/**
+		 * Processes the content until some delta is written.
+		 */
+		private void encode() throws IOException {
+			if (!started) {
+				out.writeInt(blockSize);
+				started = true;
+			}
+			while (pending.size() == 0 && !finished) {
+				if (!eof && end - pos <= blockSize) {
+					fill();
+					continue;
+				}
+				if (end - pos < blockSize) {
+					finish();
+					continue;
+				}
+				if (count == 0) {
+					pos = end;
+				} else {
+					int match = findBlock();
+					if (match != -1) {
+						flushData();
+						if (copyCount > 0 && copyStart + copyCount == match) {
+							copyCount++;
+						} else {
+							writeCopy(out, copyStart, copyCount);
+							copyStart = match;
+							copyCount = 1;
+						}
+						pos += blockSize;
+						discard();
+						rolling = false;
+						continue;
+					}
+					if (pos + blockSize < end) {
+						int out0 = data[pos] & 0xFF;
+						int in0 = data[pos + blockSize] & 0xFF;
+						a += in0 - out0;
+						b += a - blockSize * out0;
+					}
+					pos++;
+				}
+				if (pos >= MAX_DATA_LENGTH)
+					flushData();
+			}
+		}
+
+		private void fill() throws IOException {
+			int read = content.read(data, end, data.length - end);
+			if (read == -1) {
+				eof = true;
+			} else {
+				contentDigest.update(data, end, read);
+				end += read;
+			}
+		}
+
+		/**
+		 * Returns the index of the old block, which matches the block at the
+		 * current position, or -1.
+		 */
+		private int findBlock() {
+			if (!rolling) {
+				a = 0;
+				b = 0;
+				for (int i = 0; i < blockSize; i++) {
+					a += data[pos + i] & 0xFF;
+					b += (blockSize - i) * (data[pos + i] & 0xFF);
+				}
+				rolling = true;
+			}
+			int checksum = (a & 0xFFFF) | (b << 16);
+			for (int i = table[hash(checksum) & (table.length - 1)]; i != 0; i = next[i - 1]) {
+				if (weak[i - 1] != checksum)
+					continue;
+				md.update(data, pos, blockSize);
+				byte[] strong = md.digest();
+				if (BundleDelta.equals(strong, signatures, HEADER_LENGTH + (i - 1) * SIGNATURE_LENGTH + 4))
+					return i - 1;
+			}
+			return -1;
+		}
+
+		/** writes the literal data before the current position */
+		private void flushData() throws IOException {
+			if (pos == 0)
+				return;
+			writeCopy(out, copyStart, copyCount);
+			copyCount = 0;
+			writeData(out, data, 0, pos);
+			discard();
+		}
+
+		/** forgets the data before the current position */
+		private void discard() {
+			System.arraycopy(data, pos, data, 0, end - pos);
+			end -= pos;
+			pos = 0;
+		}
+
+		private void finish() throws IOException {
+			pos = end;
+			flushData();
+			writeCopy(out, copyStart, copyCount);
+			out.writeByte(OP_END);
+			out.write(contentDigest.digest());
+			out.flush();
+			finished = true;
+		}
+	}
+}
@@ -0,0 +1,443 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.internal.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Compact binary encoding of dictionaries and the values they usually hold:
+ * strings, numbers, booleans, arrays of them and nested dictionaries. Each
+ * string is sent once and afterwards referred by its index in a string table,
+ * which starts with the common header and property names. Lengths and
+ * numbers are written as variable length integers.
+ * <p>
+ * The string table is kept by the codec, so the data written by one instance
+ * must be read by a single instance in the same order. The preset names are
+ * part of the format and must not be changed.
+ */
+public final class DictionaryCodec {
+
+	private static final int T_NULL = 0;
+	private static final int T_STRING = 1;
+	private static final int T_INTEGER = 2;
+	private static final int T_LONG = 3;
+	private static final int T_TRUE = 4;
+	private static final int T_FALSE = 5;
+	private static final int T_SHORT = 6;
+	private static final int T_BYTE = 7;
+	private static final int T_CHARACTER = 8;
+	private static final int T_FLOAT = 9;
+	private static final int T_DOUBLE = 10;
+	private static final int T_DICTIONARY = 11;
+	private static final int T_DICTIONARY_ARRAY = 12;
+	private static final int T_STRING_ARRAY = 13;
+	private static final int T_LONG_ARRAY = 14;
+	private static final int T_INT_ARRAY = 15;
+	private static final int T_BYTE_ARRAY = 16;
+	private static final int T_BOOLEAN_ARRAY = 17;
+
+	// string headers: literal, interned literal, then table references
+	private static final int S_LITERAL = 0;
+	private static final int S_INTERNED = 1;
+	private static final int S_REFERENCE = 2;
+
+	private static final int MAX_INTERNED_LENGTH = 256;
+	private static final int MAX_TABLE_SIZE = 0x10000;
+
+	private static final String[] PRESET = { "Bundle-SymbolicName", "Bundle-Version", "Bundle-Name", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		"Bundle-ManifestVersion", "Bundle-Vendor", "Bundle-Description", "Bundle-Activator", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		"Bundle-ClassPath", "Bundle-Localization", "Bundle-RequiredExecutionEnvironment", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		"Bundle-ActivationPolicy", "Bundle-Copyright", "Bundle-DocURL", "Bundle-ContactAddress", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		"Bundle-Category", "Bundle-License", "Bundle-NativeCode", "Bundle-UpdateLocation", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		"Import-Package", "Export-Package", "DynamicImport-Package", "Require-Bundle", "Fragment-Host", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+		"Export-Service", "Import-Service", "Service-Component", "Manifest-Version", "Created-By", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+		"Built-By", "Ant-Version", "Bnd-LastModified", "Tool", "Include-Resource", "Private-Package", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+		"Eclipse-LazyStart", "Eclipse-BuddyPolicy", "Eclipse-ExtensibleAPI", "Eclipse-PlatformFilter", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		"Eclipse-SourceReferences", "Main-Class", "Class-Path", "objectClass", "service.id", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+		"service.pid", "service.ranking", "service.vendor", "service.description", "bundle.id", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+		"bundle.headers", "bundle.state", "registered.services", "used.services", "snapshot.generation", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+		"snapshot.full", "snapshot.bundles", "snapshot.removed", "type", "1.0", "2", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+		"lazy", "J2SE-1.4", "J2SE-1.5", "JavaSE-1.6", "CDC-1.1/Foundation-1.1", "OSGi/Minimum-1.1" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+
+	private static final String UTF8 = "UTF-8"; //$NON-NLS-1$
+
+	private Hashtable indexes;
+	private Vector strings;
+	private int maxSize;
+	private int maxStringLength;
+
+	/**
+	 * Creates codec without limits for the read data.
+	 */
+	public DictionaryCodec() {
+		this(-1, -1);
+	}
+
+	/**
+	 * Creates codec, which refuses to read arrays and dictionaries bigger
+	 * than maxSize elements and strings longer than maxStringLength bytes.
+	 * Non-positive values mean no limit.
+	 */
+	public DictionaryCodec(int maxSize, int maxStringLength) {
+		this.maxSize = maxSize;
+		this.maxStringLength = maxStringLength;
+		indexes = new Hashtable(PRESET.length * 2);
+		strings = new Vector(PRESET.length * 2);
+		for (int i = 0; i < PRESET.length; i++) {
+			indexes.put(PRESET[i], new Integer(i));
+			strings.addElement(PRESET[i]);
+		}
+	}
+
+	/**
+	 * Returns true if all keys and values of the dictionary can be encoded.
+	 */
+	public static boolean isEncodable(Dictionary dictionary) {
+		for (Enumeration e = dictionary.keys(); e.hasMoreElements();) {
+			Object key = e.nextElement();
+			if (!isEncodableValue(key) || !isEncodableValue(dictionary.get(key)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the value can be encoded and will be read back with the
+	 * same type. Nested dictionaries must be Hashtables.
+	 */
+	public static boolean isEncodableValue(Object value) {
+		if (value == null)
+			return true;
+		Class clazz = value.getClass();
+		if (clazz == String.class || clazz == Integer.class || clazz == Long.class || clazz == Boolean.class
+						|| clazz == Short.class || clazz == Byte.class || clazz == Character.class
+						|| clazz == Float.class || clazz == Double.class || clazz == String[].class
+						|| clazz == long[].class || clazz == int[].class || clazz == byte[].class
+						|| clazz == boolean[].class)
+			return true;
+		if (clazz == Hashtable.class)
+			return isEncodable((Dictionary) value);
+		if (clazz == Dictionary[].class) {
+			Dictionary[] array = (Dictionary[]) value;
+			for (int i = 0; i < array.length; i++) {
+				if (array[i] != null && (array[i].getClass() != Hashtable.class || !isEncodable(array[i])))
+					return false;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	public void writeDictionary(Dictionary dictionary, OutputStream os) throws IOException {
+		writeVarInt(dictionary.size(), os);
+		for (Enumeration e = dictionary.keys(); e.hasMoreElements();) {
+			Object key = e.nextElement();
+			writeValue(key, os);
+			writeValue(dictionary.get(key), os);
+		}
+	}
+
+	/**
+	 * Reads the dictionary entries and puts them in the given dictionary.
+	 */
+	public Dictionary readDictionary(Dictionary dictionary, InputStream is) throws IOException {
+		int size = readSize(is);
+		for (int i = 0; i < size; i++) {
+			Object key = readValue(is);
+			Object value = readValue(is);
+			if (key == null || value == null)
+				throw new IOException("Null dictionary entry"); //$NON-NLS-1$
+			dictionary.put(key, value);
+		}
+		return dictionary;
+	}
+
+	public void writeDictionaryArray(Dictionary[] array, OutputStream os) throws IOException {
+		writeVarInt(array.length, os);
+		for (int i = 0; i < array.length; i++) {
+			if (array[i] == null) {
+				os.write(0);
+			} else {
+				os.write(1);
+				writeDictionary(array[i], os);
+			}
+		}
+	}
+
+	public Dictionary[] readDictionaryArray(InputStream is) throws IOException {
+		Dictionary[] array = new Dictionary[readSize(is)];
+		for (int i = 0; i < array.length; i++) {
+			if (readByte(is) != 0)
+				array[i] = readDictionary(new Hashtable(), is);
+		}
+		return array;
+	}
+
+	/**
+	 * Writes a value, for which {@link #isEncodableValue(Object)} returns true.
+	 */
+	public void writeValue(Object value, OutputStream os) throws IOException {
+		if (value == null) {
+			os.write(T_NULL);
+		} else if (value instanceof String) {
+			os.write(T_STRING);
+			writeString((String) value, os);
+		} else if (value instanceof Integer) {
+			os.write(T_INTEGER);
+			writeVarLong(zigZag(((Integer) value).intValue()), os);
+		} else if (value instanceof Long) {
+			os.write(T_LONG);
+			writeVarLong(zigZag(((Long) value).longValue()), os);
+		} else if (value instanceof Boolean) {
+			os.write(((Boolean) value).booleanValue() ? T_TRUE : T_FALSE);
+		} else if (value instanceof Short) {
+			os.write(T_SHORT);
+			writeVarLong(zigZag(((Short) value).shortValue()), os);
+		} else if (value instanceof Byte) {
+			os.write(T_BYTE);
+			os.write(((Byte) value).byteValue());
+		} else if (value instanceof Character) {
+			os.write(T_CHARACTER);
+			writeVarInt(((Character) value).charValue(), os);
+		} else if (value instanceof Float) {
+			os.write(T_FLOAT);
+			writeFixed(Float.floatToIntBits(((Float) value).floatValue()), 4, os);
+		} else if (value instanceof Double) {
+			os.write(T_DOUBLE);
+			writeFixed(Double.doubleToLongBits(((Double) value).doubleValue()), 8, os);
+		} else if (value instanceof Dictionary) {
+			os.write(T_DICTIONARY);
+			writeDictionary((Dictionary) value, os);
+		} else if (value instanceof Dictionary[]) {
+			os.write(T_DICTIONARY_ARRAY);
+			writeDictionaryArray((Dictionary[]) value, os);
+		} else if (value instanceof String[]) {
+			os.write(T_STRING_ARRAY);
+			String[] array = (String[]) value;
+			writeVarInt(array.length, os);
+			for (int i = 0; i < array.length; i++) {
+				if (array[i] == null) {
+					os.write(0);
+				} else {
+					os.write(1);
+					writeString(array[i], os);
+				}
+			}
+		} else if (value instanceof long[]) {
+			os.write(T_LONG_ARRAY);
+			long[] array = (long[]) value;
+			writeVarInt(array.length, os);
+			for (int i = 0; i < array.length; i++)
+				writeVarLong(zigZag(array[i]), os);
+		} else if (value instanceof int[]) {
+			os.write(T_INT_ARRAY);
+			int[] array = (int[]) value;
+			writeVarInt(array.length, os);
+			for (int i = 0; i < array.length; i++)
+				writeVarLong(zigZag(array[i]), os);
+		} else if (value instanceof byte[]) {
+			os.write(T_BYTE_ARRAY);
+			byte[] array = (byte[]) value;
+			writeVarInt(array.length, os);
+			os.write(array);
+		} else if (value instanceof boolean[]) {
+			os.write(T_BOOLEAN_ARRAY);
+			boolean[] array = (boolean[]) value;
+			writeVarInt(array.length, os);
+			for (int i = 0; i < array.length; i++)
+				os.write(array[i] ? 1 : 0);
+		} else {
+			throw new IOException("Can't encode " + value.getClass().getName()); //$NON-NLS-1$
+		}
+	}
+
+	public Object readValue(InputStream is) throws IOException {
+		int type = readByte(is);
+		switch (type) {
+		case T_NULL:
+			return null;
+		case T_STRING:
+			return readString(is);
+		case T_INTEGER:
+			return new Integer((int) unZigZag(readVarLong(is)));
+		case T_LONG:
+			return new Long(unZigZag(readVarLong(is)));
+		case T_TRUE:
+			return Boolean.TRUE;
+		case T_FALSE:
+			return Boolean.FALSE;
+		case T_SHORT:
+			return new Short((short) unZigZag(readVarLong(is)));
+		case T_BYTE:
+			return new Byte((byte) readByte(is));
+		case T_CHARACTER:
+			return new Character((char) readVarInt(is));
+		case T_FLOAT:
+			return new Float(Float.intBitsToFloat((int) readFixed(4, is)));
+		case T_DOUBLE:
+			return new Double(Double.longBitsToDouble(readFixed(8, is)));
+		case T_DICTIONARY:
+			return readDictionary(new Hashtable(), is);
+		case T_DICTIONARY_ARRAY:
+			return readDictionaryArray(is);
+		case T_STRING_ARRAY: {
+			String[] array = new String[readSize(is)];
+			for (int i = 0; i < array.length; i++) {
+				if (readByte(is) != 0)
+					array[i] = readString(is);
+			}
+			return array;
+		}
+		case T_LONG_ARRAY: {
+			long[] array = new long[readSize(is)];
+			for (int i = 0; i < array.length; i++)
+				array[i] = unZigZag(readVarLong(is));
+			return array;
+		}
+		case T_INT_ARRAY: {
+			int[] array = new int[readSize(is)];
+			for (int i = 0; i < array.length; i++)
+				array[i] = (int) unZigZag(readVarLong(is));
+			return array;
+		}
+		case T_BYTE_ARRAY: {
+			byte[] array = new byte[readSize(is)];
+			readFully(array, is);
+			return array;
+		}
+		case T_BOOLEAN_ARRAY: {
+			boolean[] array = new boolean[readSize(is)];
+			for (int i = 0; i < array.length; i++)
+				array[i] = readByte(is) != 0;
+			return array;
+		}
+		default:
+			throw new IOException("Unknown value type " + type); //$NON-NLS-1$
+		}
+	}
+
+	private void writeString(String s, OutputStream os) throws IOException {
+		Integer index = (Integer) indexes.get(s);
+		if (index != null) {
+			writeVarInt(S_REFERENCE + index.intValue(), os);
+			return;
+		}
+		if (s.length() <= MAX_INTERNED_LENGTH && strings.size() < MAX_TABLE_SIZE) {
+			writeVarInt(S_INTERNED, os);
+			indexes.put(s, new Integer(strings.size()));
+			strings.addElement(s);
+		} else {
+			writeVarInt(S_LITERAL, os);
+		}
+		byte[] bytes = s.getBytes(UTF8);
+		writeVarInt(bytes.length, os);
+		os.write(bytes);
+	}
+
+	private String readString(InputStream is) throws IOException {
+		int header = readVarInt(is);
+		if (header >= S_REFERENCE) {
+			int index = header - S_REFERENCE;
+			if (index >= strings.size())
+				throw new IOException("Unknown string reference " + index); //$NON-NLS-1$
+			return (String) strings.elementAt(index);
+		}
+		int length = readVarInt(is);
+		if (maxStringLength > 0 && length > maxStringLength)
+			throw new IOException("Can't Read Strings Longer Than " + maxStringLength); //$NON-NLS-1$
+		byte[] bytes = new byte[length];
+		readFully(bytes, is);
+		String s = new String(bytes, UTF8);
+		if (header == S_INTERNED)
+			strings.addElement(s);
+		return s;
+	}
+
+	private int readSize(InputStream is) throws IOException {
+		int size = readVarInt(is);
+		if (maxSize > 0 && size > maxSize)
+			throw new IOException("Can't Read Arrays Longer Than " + maxSize); //$NON-NLS-1$
+		return size;
+	}
+
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	public static void writeVarInt(int value, OutputStream os) throws IOException {
+		writeVarLong(value & 0xFFFFFFFFL, os);
+	}
+
+	public static void writeVarLong(long value, OutputStream os) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			os.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		os.write((int) value);
+	}
+
+	public static int readVarInt(InputStream is) throws IOException {
+		long value = readVarLong(is);
+		if (value < 0 || value > Integer.MAX_VALUE)
+			throw new IOException("Invalid length " + value); //$NON-NLS-1$
+		return (int) value;
+	}
+
+	public static long readVarLong(InputStream is) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readByte(is);
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed variable length number"); //$NON-NLS-1$
+	}
+
+	private static void writeFixed(long value, int bytes, OutputStream os) throws IOException {
+		for (int i = bytes - 1; i >= 0; i--)
+			os.write((int) (value >>> (i * 8)));
+	}
+
+	private static long readFixed(int bytes, InputStream is) throws IOException {
+		long value = 0;
+		for (int i = 0; i < bytes; i++)
+			value = (value << 8) | readByte(is);
+		return value;
+	}
+
+	private static int readByte(InputStream is) throws IOException {
+		int b = is.read();
+		if (b == -1)
+			throw new IOException("Read Error"); //$NON-NLS-1$
+		return b;
+	}
+
+	private static void readFully(byte[] buf, InputStream is) throws IOException {
+		int read = 0;
+		while (read < buf.length) {
+			int n = is.read(buf, read, buf.length - read);
+			if (n == -1)
+				throw new IOException("Read Error"); //$NON-NLS-1$
+			read += n;
+		}
+	}
+}
@@ -10,50 +10,85 @@
  *******************************************************************************/
 package org.tigris.mtoolkit.iagent.internal.utils;
 
-import java.lang.reflect.Constructor;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Hashtable;
 
+/**
+ * Bounded pool of worker threads. The work units are queued per owner (for
+ * example per PMP session) and the owners are served in round-robin order, so
+ * a single busy owner cannot starve the others. The limits can be configured
+ * with the following system properties:
+ * <ul>
+ * <li><code>iagent.pool.coreWorkers</code> - the number of workers, which are
+ * kept alive while idle</li>
+ * <li><code>iagent.pool.maxWorkers</code> - the maximum number of workers</li>
+ * <li><code>iagent.pool.queueSize</code> - the maximum number of queued work
+ * units, which are offered with {@link #offerWork(Object, Runnable)}</li>
+ * <li><code>iagent.pool.keepAlive</code> - the time in milliseconds, after
+ * which an idle worker above the core count stops</li>
+ * </ul>
+ */
 public class ThreadPool {
 
 	private static final int MAX_WORKERS = 5;
+	private static final int CORE_WORKERS = 2;
+	private static final int QUEUE_SIZE = 4096;
+	private static final long KEEP_ALIVE = 1000;
 
 	private static ThreadPool instance;
 	private static int clientsCount = 0;
 
+	/**
+	 * Starts the core workers when the pool is created, instead of on demand.
+	 */
 	public static final int OPTION_AGGRESSIVE = 0x00001;
 	public static final int OPTION_NONE = 0;
-	
-	private static Constructor tssConstructor;
-	
-	static {
-		try {
-			tssConstructor = Thread.class.getConstructor(new Class[] { ThreadGroup.class, Runnable.class, String.class, long.class });
-		} catch (Throwable t) {
-			DebugUtils.info(ThreadPool.class, "VM doesn't support controlling the threads stack size", t);
-		}
-	}
-	
+
 	private volatile boolean running = true;
 	private volatile int workers = 0;
 	private volatile int working = 0;
-	// holds the number of the threads, which are spawned
+	// holds the number of the threads, which are spawned, but not started yet
 	private volatile int spawned;
+	// holds the number of the workers, which wait for work
+	private int idle;
 
 	private final int options;
 
-	private List workUnits = new ArrayList();
+	// owner -> WorkQueue, only for the owners with queued work
+	private Hashtable queues = new Hashtable();
+	// the queues with pending work in round-robin order
+	private WorkQueue readyHead;
+	private WorkQueue readyTail;
+	private int queued;
 
 	private Object lock = new Object();
 
+	private int coreWorkers;
 	private int maxWorkers;
+	private int maxQueued;
+	private long keepAlive;
 
 	private Long threadStackSize = new Long(0);
 
+	// statistics
+	private long submittedCount;
+	private long rejectedCount;
+	private long startedCount;
+	private long totalWaitTime;
+	private int peakQueued;
+
 	public ThreadPool(int maxWorkers, int options) {
+		this(Math.min(CORE_WORKERS, maxWorkers), maxWorkers, QUEUE_SIZE, KEEP_ALIVE, options);
+	}
+
+	public ThreadPool(int coreWorkers, int maxWorkers, int maxQueued, long keepAlive, int options) {
+		if (maxWorkers <= 0 || coreWorkers < 0 || coreWorkers > maxWorkers || maxQueued <= 0 || keepAlive < 0)
+			throw new IllegalArgumentException();
+		this.coreWorkers = coreWorkers;
 		this.maxWorkers = maxWorkers;
+		this.maxQueued = maxQueued;
+		this.keepAlive = keepAlive;
 		this.options = options;
-		
+
 		String stackSizeOption = System.getProperty("iagent.threads.stackSize");
 		if (stackSizeOption != null) {
 			try {
@@ -62,6 +97,12 @@ public class ThreadPool {
 				DebugUtils.error(ThreadPool.class, "Thread stack option has invalid value: " + threadStackSize + ". It will be ignored.");
 			}
 		}
+		if ((options & OPTION_AGGRESSIVE) != 0) {
+			synchronized (lock) {
+				while (workers < coreWorkers)
+					spawnWorker();
+			}
+		}
 	}
 
 	public void stop() {
@@ -72,8 +113,13 @@ public class ThreadPool {
 	}
 
 	public synchronized static ThreadPool getPool() {
-		if (instance == null)
-			instance = new ThreadPool(MAX_WORKERS, OPTION_NONE);
+		if (instance == null) {
+			int maxWorkers = getIntProperty("iagent.pool.maxWorkers", MAX_WORKERS, 1);
+			int coreWorkers = Math.min(getIntProperty("iagent.pool.coreWorkers", CORE_WORKERS, 0), maxWorkers);
+			int maxQueued = getIntProperty("iagent.pool.queueSize", QUEUE_SIZE, 1);
+			long keepAlive = getIntProperty("iagent.pool.keepAlive", (int) KEEP_ALIVE, 0);
+			instance = new ThreadPool(coreWorkers, maxWorkers, maxQueued, keepAlive, OPTION_NONE);
+		}
 		clientsCount++;
 		return instance;
 	}
@@ -90,13 +136,29 @@ public class ThreadPool {
 		}
 	}
 
+	private static int getIntProperty(String name, int defaultValue, int minValue) {
+		String value = System.getProperty(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			int result = Integer.parseInt(value.trim());
+			if (result >= minValue)
+				return result;
+		} catch (NumberFormatException e) {
+		}
+		DebugUtils.error(ThreadPool.class, "Option " + name + " has invalid value: " + value + ". It will be ignored.");
+		return defaultValue;
+	}
+
 	public boolean isEmpty() {
-		return workUnits.isEmpty() && working == 0;
+		synchronized (lock) {
+			return queued == 0 && working == 0;
+		}
 	}
 
 	public void join() {
 		synchronized (lock) {
-			while ((!workUnits.isEmpty() || working != 0) && running) {
+			while ((queued != 0 || working != 0) && running) {
 				try {
 					lock.wait();
 				} catch (InterruptedException e) {
@@ -106,34 +168,197 @@ public class ThreadPool {
 		}
 	}
 
+	/**
+	 * Enqueues a work unit, which isn't subject to the queue limit.
+	 *
+	 * @throws IllegalStateException
+	 *             if the pool is stopped
+	 */
 	public void enqueueWork(Runnable runnable) {
+		enqueue(null, runnable, false);
+	}
+
+	/**
+	 * Enqueues a work unit on behalf of the given owner, which isn't subject to
+	 * the queue limit.
+	 *
+	 * @throws IllegalStateException
+	 *             if the pool is stopped
+	 */
+	public void enqueueWork(Object owner, Runnable runnable) {
+		enqueue(owner, runnable, false);
+	}
+
+	/**
+	 * Enqueues a work unit on behalf of the given owner. The work of the
+	 * different owners is executed in round-robin order.
+	 *
+	 * @param owner
+	 *            the owner of the work or <code>null</code>
+	 * @param runnable
+	 *            the work unit
+	 * @return <code>false</code> if the work is rejected, because the queue is
+	 *         full
+	 * @throws IllegalStateException
+	 *             if the pool is stopped
+	 */
+	public boolean offerWork(Object owner, Runnable runnable) {
+		return enqueue(owner, runnable, true);
+	}
+
+	private boolean enqueue(Object owner, Runnable runnable, boolean bounded) {
 		if (!running)
 			throw new IllegalStateException();
 		if (runnable == null)
 			throw new NullPointerException();
 		synchronized (lock) {
-			workUnits.add(runnable);
-			lock.notify();
-			boolean isAggressive = (options & OPTION_AGGRESSIVE) != 0;
-			if (workers == (isAggressive ? working + spawned : working) && workers < maxWorkers) {
-				// spawn new worker
-				spawned++;
-				Worker worker = new Worker();
-				Thread th = createThread(worker, threadStackSize);
-				worker.start(th);
+			if (bounded && queued >= maxQueued) {
+				rejectedCount++;
+				DebugUtils.debug(this, "Work rejected, the queue is full: " + this);
+				return false;
+			}
+			Object key = owner != null ? owner : this;
+			WorkQueue queue = (WorkQueue) queues.get(key);
+			if (queue == null) {
+				queue = new WorkQueue(key);
+				queues.put(key, queue);
 			}
+			if (queue.isEmpty())
+				addReady(queue);
+			queue.add(runnable);
+			queued++;
+			submittedCount++;
+			if (queued > peakQueued)
+				peakQueued = queued;
+			if (idle > 0)
+				lock.notify();
+			if (idle + spawned < queued && workers < maxWorkers)
+				spawnWorker();
 		}
+		return true;
 	}
-	
-	private static Thread createThread(Runnable runnable, Long threadStackSize) {
-		if (tssConstructor != null)
-			try {
-				return (Thread) tssConstructor.newInstance(new Object[] { null, runnable, "Uninitialized mToolkit Worker", threadStackSize });
-			} catch (Throwable t) {
-				DebugUtils.error(ThreadPool.class, "Failed to create thread with specified stack size", t);
-				// ignore the request if failed
-			}
-		return new Thread(runnable);
+
+	// must be called while holding the lock
+	private void spawnWorker() {
+		spawned++;
+		Worker worker = new Worker();
+		ThreadUtils.createThread(worker, "mToolkit Worker #" + worker.workerId, true, threadStackSize.longValue()).start();
+	}
+
+	// must be called while holding the lock
+	private void addReady(WorkQueue queue) {
+		queue.next = null;
+		if (readyTail == null)
+			readyHead = queue;
+		else
+			readyTail.next = queue;
+		readyTail = queue;
+	}
+
+	// must be called while holding the lock and there is ready work
+	private WorkUnit nextWork() {
+		WorkQueue queue = readyHead;
+		readyHead = queue.next;
+		if (readyHead == null)
+			readyTail = null;
+		WorkUnit unit = queue.remove();
+		queued--;
+		if (queue.isEmpty())
+			queues.remove(queue.owner);
+		else
+			addReady(queue);
+		return unit;
+	}
+
+	/**
+	 * Returns the number of the queued work units.
+	 */
+	public int getQueueDepth() {
+		synchronized (lock) {
+			return queued;
+		}
+	}
+
+	/**
+	 * Returns the maximum number of the work units, which were queued at the
+	 * same time.
+	 */
+	public int getPeakQueueDepth() {
+		synchronized (lock) {
+			return peakQueued;
+		}
+	}
+
+	/**
+	 * Returns the number of the work units, which were rejected because the
+	 * queue was full.
+	 */
+	public long getRejectedCount() {
+		synchronized (lock) {
+			return rejectedCount;
+		}
+	}
+
+	/**
+	 * Returns the average time in milliseconds, which the work units spent in
+	 * the queue.
+	 */
+	public long getAverageWaitTime() {
+		synchronized (lock) {
+			return startedCount > 0 ? totalWaitTime / startedCount : 0;
+		}
+	}
+
+	public String toString() {
+		synchronized (lock) {
+			return "ThreadPool[workers=" + workers + "/" + maxWorkers + ", working=" + working + ", queued=" + queued //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+					+ "/" + maxQueued + ", peak=" + peakQueued + ", submitted=" + submittedCount + ", rejected=" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+					+ rejectedCount + ", avgWait=" + getAverageWaitTime() + "ms]"; //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+
+	private static class WorkUnit {
+		Runnable runnable;
+		long enqueued;
+		WorkUnit next;
+	}
+
+	/**
+	 * FIFO queue of the work units of a single owner.
+	 */
+	private static class WorkQueue {
+		final Object owner;
+		WorkQueue next;
+		private WorkUnit head;
+		private WorkUnit tail;
+
+		WorkQueue(Object owner) {
+			this.owner = owner;
+		}
+
+		boolean isEmpty() {
+			return head == null;
+		}
+
+		void add(Runnable runnable) {
+			WorkUnit unit = new WorkUnit();
+			unit.runnable = runnable;
+			unit.enqueued = System.currentTimeMillis();
+			if (tail == null)
+				head = unit;
+			else
+				tail.next = unit;
+			tail = unit;
+		}
+
+		WorkUnit remove() {
+			WorkUnit unit = head;
+			head = unit.next;
+			if (head == null)
+				tail = null;
+			unit.next = null;
+			return unit;
+		}
 	}
 
 	private class Worker implements Runnable {
@@ -145,12 +370,6 @@ public class ThreadPool {
 				workerId = workers++;
 			}
 		}
-		
-		public void start(Thread thread) {
-			thread.setName("mToolkit Worker #" + workerId);
-			thread.setDaemon(true);
-			thread.start();
-		}
 
 		public void run() {
 			while (true) {
@@ -160,26 +379,41 @@ public class ThreadPool {
 						initialized = true;
 						spawned--;
 					}
-					while (workUnits.isEmpty() && running) {
+					long idleSince = 0;
+					idle++;
+					while (readyHead == null && running) {
+						long timeout = 0;
+						if (workers > coreWorkers) {
+							long now = System.currentTimeMillis();
+							if (idleSince == 0)
+								idleSince = now;
+							timeout = idleSince + keepAlive - now;
+							if (timeout <= 0)
+								break;
+						}
 						try {
-							lock.wait(1000);
+							lock.wait(timeout);
 						} catch (InterruptedException e) {
 						}
 					}
-					if (workUnits.isEmpty() /* && !running */) {
+					idle--;
+					if (readyHead == null) {
 						// stop worker thread if there are no more work units
-						// and the pool has been released/stopped
+						// and the pool has been stopped or the worker is not
+						// needed anymore
 						workers--;
 						return;
 					}
-					unit = (Runnable) workUnits.remove(0);
+					WorkUnit next = nextWork();
+					startedCount++;
+					totalWaitTime += System.currentTimeMillis() - next.enqueued;
+					unit = next.runnable;
 					working++;
 				}
 				try {
 					unit.run();
 				} catch (Throwable e) {
-					// TODO: Log exception
-					e.printStackTrace();
+					DebugUtils.error(ThreadPool.this, "Work unit failed", e);
 				} finally {
 					synchronized (lock) {
 						lock.notifyAll();
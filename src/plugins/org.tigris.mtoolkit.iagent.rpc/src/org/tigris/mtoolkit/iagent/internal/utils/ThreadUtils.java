@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.internal.utils;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+/**
+ * Creates the threads used by the PMP sessions, the workers and the event
+ * delivery. When the <code>iagent.threads.virtual</code> system property is
+ * set to <code>true</code> and the VM supports virtual threads, virtual
+ * threads are created instead of platform ones. The virtual threads are
+ * always daemon and ignore the requested stack size.
+ */
+public final class ThreadUtils {
+
+	private static final String PROP_VIRTUAL_THREADS = "iagent.threads.virtual"; //$NON-NLS-1$
+
+	private static Constructor tssConstructor;
+
+	// Thread.ofVirtual(), Thread.Builder.name(String) and
+	// Thread.Builder.unstarted(Runnable)
+	private static Method ofVirtual;
+	private static Method builderName;
+	private static Method builderUnstarted;
+
+	static {
+		try {
+			tssConstructor = Thread.class.getConstructor(new Class[] { ThreadGroup.class, Runnable.class, String.class, long.class });
+		} catch (Throwable t) {
+			DebugUtils.info(ThreadUtils.class, "VM doesn't support controlling the threads stack size", t);
+		}
+		if ("true".equals(System.getProperty(PROP_VIRTUAL_THREADS))) { //$NON-NLS-1$
+			try {
+				Class builderClass = Class.forName("java.lang.Thread$Builder"); //$NON-NLS-1$
+				ofVirtual = Thread.class.getMethod("ofVirtual", new Class[0]); //$NON-NLS-1$
+				builderName = builderClass.getMethod("name", new Class[] { String.class }); //$NON-NLS-1$
+				builderUnstarted = builderClass.getMethod("unstarted", new Class[] { Runnable.class }); //$NON-NLS-1$
+				// the virtual threads may be a disabled preview feature
+				createVirtualThread(new Runnable() {
+					public void run() {
+					}
+				}, "probe"); //$NON-NLS-1$
+				DebugUtils.info(ThreadUtils.class, "Virtual threads will be used");
+			} catch (Throwable t) {
+				ofVirtual = null;
+				DebugUtils.info(ThreadUtils.class, "VM doesn't support virtual threads, platform threads will be used", t);
+			}
+		}
+	}
+
+	private ThreadUtils() {
+	}
+
+	/**
+	 * Returns true if the created threads are virtual.
+	 */
+	public static boolean isVirtual() {
+		return ofVirtual != null;
+	}
+
+	/**
+	 * Creates a new unstarted thread.
+	 *
+	 * @param runnable
+	 *            the code executed by the thread
+	 * @param name
+	 *            the name of the thread
+	 * @param daemon
+	 *            whether a platform thread should be daemon
+	 */
+	public static Thread createThread(Runnable runnable, String name, boolean daemon) {
+		return createThread(runnable, name, daemon, 0);
+	}
+
+	/**
+	 * Creates a new unstarted thread. The stack size is used only for
+	 * platform threads, if it is positive and supported by the VM.
+	 */
+	public static Thread createThread(Runnable runnable, String name, boolean daemon, long stackSize) {
+		if (ofVirtual != null) {
+			try {
+				return createVirtualThread(runnable, name);
+			} catch (Throwable t) {
+				DebugUtils.error(ThreadUtils.class, "Failed to create virtual thread", t);
+			}
+		}
+		Thread thread = null;
+		if (stackSize > 0 && tssConstructor != null) {
+			try {
+				thread = (Thread) tssConstructor.newInstance(new Object[] { null, runnable, name, new Long(stackSize) });
+			} catch (Throwable t) {
+				DebugUtils.error(ThreadUtils.class, "Failed to create thread with specified stack size", t);
+				// ignore the request if failed
+			}
+		}
+		if (thread == null)
+			thread = new Thread(runnable, name);
+		if (daemon)
+			thread.setDaemon(true);
+		return thread;
+	}
+
+	private static Thread createVirtualThread(Runnable runnable, String name) throws Exception {
+		Object builder = ofVirtual.invoke(null, new Object[0]);
+		builder = builderName.invoke(builder, new Object[] { name });
+		return (Thread) builderUnstarted.invoke(builder, new Object[] { runnable });
+	}
+}
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.pmp;
+
+/**
+ * A list of remote method calls, which are sent to the Framework in a single
+ * request and executed one after another. The results of all calls are
+ * returned in a single reply. Instances of this interface can be received
+ * from {@link PMPConnection#createBatch PMPConnection.createBatch}.
+ * <p>
+ * If the remote Framework doesn't support batches, the calls are sent as
+ * separate requests, without waiting for their results.
+ * 
+ * @noimplement This interface is not intended to be implemented by clients.
+ * @since 3.1
+ */
+public interface PMPBatch {
+
+	/**
+	 * Adds a method call to the batch. Streams can't be passed as arguments
+	 * of the calls in a batch.
+	 * 
+	 * @param method
+	 *            the method, received from the connection of this batch
+	 * @param args
+	 *            parameters' values
+	 * @param serflag
+	 *            specifies how the method result should be returned, see
+	 *            {@link RemoteMethod#invoke(Object[], boolean)}
+	 * @return the pending result of the call, which is available after the
+	 *         batch is sent
+	 * @exception PMPException
+	 *                If the arguments are incorrect or the connection is
+	 *                closed.
+	 * @exception IllegalStateException
+	 *                If the batch has been already sent.
+	 */
+	public PMPFuture add(RemoteMethod method, Object[] args, boolean serflag) throws PMPException;
+
+	/**
+	 * Returns the number of calls in the batch.
+	 */
+	public int size();
+
+	/**
+	 * Sends the calls. A batch can be sent only once.
+	 * 
+	 * @exception PMPException
+	 *                If an IOException occurred. The results of the calls,
+	 *                which haven't been sent, fail with the same error.
+	 * @exception IllegalStateException
+	 *                If the batch has been already sent.
+	 */
+	public void send() throws PMPException;
+}
@@ -19,6 +19,15 @@ public interface PMPConnection {
 
 	public static final String FRAMEWORK_DISCONNECTED = "framework_disconnected_event";
 
+	/**
+	 * The type of the event, which is posted instead of the events dropped
+	 * because an event queue has overflowed. The listeners of this event
+	 * should refresh their whole view of the remote state.
+	 * 
+	 * @since 3.1
+	 */
+	public static final String EVENTS_LOST = "iagent_events_lost_event";
+
 	/**
 	 * Gets reference to a service registered in the Framework.
 	 * 
@@ -96,6 +105,30 @@ public interface PMPConnection {
 
 	public void addEventListener(EventListener el, String[] eventTypes);
 
+	/**
+	 * Registers an EventListener, which receives only the events matching the
+	 * given filter. The filter is evaluated by the remote peer against the
+	 * events, which are dictionaries, so the events which don't match it are
+	 * not transferred. The remote peer sends the events matching any filter of
+	 * the listeners of the same type, or all events, if it doesn't support
+	 * filtering, so the events are matched again before they are delivered to
+	 * each listener.
+	 * 
+	 * @param el
+	 *            the EventListener
+	 * @param eventTypes
+	 *            Array with elements all types of the events which this
+	 *            listener wants to receive.
+	 * @param filter
+	 *            LDAP filter, which the events must match, or
+	 *            <code>null</code> to receive all events
+	 * 
+	 * @exception IllegalArgumentException
+	 *                if the filter is not valid
+	 * @since 3.1
+	 */
+	public void addEventListener(EventListener el, String[] eventTypes, String filter);
+
 	/**
 	 * Unregisters an EventListener
 	 * 
@@ -110,4 +143,13 @@ public interface PMPConnection {
 	 */
 	public void removeEventListener(EventListener el, String[] eventTypes);
 
+	/**
+	 * Creates an empty batch of method calls, which will be sent through this
+	 * connection.
+	 * 
+	 * @return the new batch
+	 * @since 3.1
+	 */
+	public PMPBatch createBatch();
+
 }
@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.pmp;
+
+/**
+ * The pending result of a remote method invocation, started with
+ * {@link RemoteMethod#invokeAsync RemoteMethod.invokeAsync}. Many invocations
+ * can be pending on one connection at the same time, their results are
+ * received in the order in which the Framework completes them.
+ * 
+ * @noimplement This interface is not intended to be implemented by clients.
+ * @since 3.1
+ */
+public interface PMPFuture {
+
+	/**
+	 * Returns true, if the result of the invocation has been received or the
+	 * invocation has failed.
+	 */
+	public boolean isDone();
+
+	/**
+	 * Waits for the result of the invocation. The connection timeout applies.
+	 * 
+	 * @return the result of the method, as it would be returned by
+	 *         {@link RemoteMethod#invoke RemoteMethod.invoke}
+	 * @exception PMPException
+	 *                If an IOException occurred or if the method threw an
+	 *                exception on the Framework.
+	 */
+	public Object get() throws PMPException;
+
+	/**
+	 * Adds a listener, which is notified when the invocation is done. If it is
+	 * already done, the listener is notified immediately. The listeners are
+	 * notified in a separate thread, so they may call
+	 * {@link #get()} and invoke other remote methods.
+	 * 
+	 * @param listener
+	 *            the listener
+	 */
+	public void addListener(PMPFutureListener listener);
+
+	/**
+	 * Returns the method, which has been invoked.
+	 */
+	public RemoteMethod getMethod();
+}
@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.pmp;
+
+/**
+ * Interface for receiving the results of asynchronous remote method
+ * invocations.
+ * 
+ * @since 3.1
+ */
+public interface PMPFutureListener {
+
+	/**
+	 * The invocation is done, its result can be taken with
+	 * {@link PMPFuture#get()} without waiting.
+	 * 
+	 * @param future
+	 *            the completed invocation
+	 */
+	public void done(PMPFuture future);
+
+}
@@ -34,6 +34,18 @@ public interface PMPServer extends PMPPeer {
 	 */
 	public void event(Object ev, String eventType);
 
+	/**
+	 * Sends several events. The events of each client are sent in a single
+	 * message, if the client supports it.
+	 * 
+	 * @param evs
+	 *            The events
+	 * @param eventTypes
+	 *            The types of the events
+	 * @since 3.1
+	 */
+	public void events(Object[] evs, String[] eventTypes);
+
 	/**
 	 * Returns a Map that contains server properties.
 	 * 
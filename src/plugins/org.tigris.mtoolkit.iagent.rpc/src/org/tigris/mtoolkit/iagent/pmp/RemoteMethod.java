@@ -56,6 +56,43 @@ public interface RemoteMethod {
 	 */
 	public Object invoke(Object[] args, boolean serflag) throws PMPException;
 
+	/**
+	 * Sends the method invocation request to the server and returns without
+	 * waiting for the result. This allows many invocations to be pending on
+	 * the same connection.
+	 *
+	 * @param args
+	 *            parameters' values
+	 * @param serflag
+	 *            specifies how the method result should be returned, see
+	 *            {@link #invoke(Object[], boolean)}
+	 * @param loader
+	 *            the class to load return type. If this parameter is null then
+	 *            the default class loading is used.
+	 * @return the pending result of the invocation
+	 * @exception PMPException
+	 *                If the request cannot be sent.
+	 * @since 3.1
+	 */
+	public PMPFuture invokeAsync(Object[] args, boolean serflag, Class loader) throws PMPException;
+
+	/**
+	 * Sends the method invocation request to the server and returns without
+	 * waiting for the result. This allows many invocations to be pending on
+	 * the same connection.
+	 *
+	 * @param args
+	 *            parameters' values
+	 * @param serflag
+	 *            specifies how the method result should be returned, see
+	 *            {@link #invoke(Object[], boolean)}
+	 * @return the pending result of the invocation
+	 * @exception PMPException
+	 *                If the request cannot be sent.
+	 * @since 3.1
+	 */
+	public PMPFuture invokeAsync(Object[] args, boolean serflag) throws PMPException;
+
 	/**
 	 * Changes the return type of the method. This can be used to read the
 	 * method's result in a different object than the original return type.
@@ -47,6 +47,38 @@ public interface RemoteBundleAdmin {
 	 */
 	public static final String KEY_USED_SERVICES = "used.services";
 
+	/**
+	 * Key for the generation of a snapshot delta. The value is of type Long.
+	 * 
+	 * @since 3.1
+	 */
+	public static final String KEY_SNAPSHOT_GENERATION = "snapshot.generation";
+
+	/**
+	 * Key for the flag, which indicates whether a snapshot delta contains all
+	 * bundles. The value is of type Boolean.
+	 * 
+	 * @since 3.1
+	 */
+	public static final String KEY_SNAPSHOT_FULL = "snapshot.full";
+
+	/**
+	 * Key for the changed bundles in a snapshot delta. The value is of type
+	 * Dictionary[], each element has the same content as the elements of
+	 * {@link #getBundlesSnapshot(int, Dictionary)}.
+	 * 
+	 * @since 3.1
+	 */
+	public static final String KEY_SNAPSHOT_BUNDLES = "snapshot.bundles";
+
+	/**
+	 * Key for the ids of the bundles, which are uninstalled since the
+	 * requested generation. The value is of type long[].
+	 * 
+	 * @since 3.1
+	 */
+	public static final String KEY_SNAPSHOT_REMOVED = "snapshot.removed";
+
 
 	long getBundleByLocation(String location);
 
@@ -120,6 +152,66 @@ public interface RemoteBundleAdmin {
 
 	public Object getBundlesSnapshot(int includeOptions, Dictionary properties);
 
+	/**
+	 * Returns the changes in the bundles snapshot since the given generation.
+	 * The result is a Dictionary with {@link #KEY_SNAPSHOT_GENERATION},
+	 * {@link #KEY_SNAPSHOT_FULL}, {@link #KEY_SNAPSHOT_BUNDLES} and
+	 * {@link #KEY_SNAPSHOT_REMOVED} keys, or a compressed form of it like in
+	 * {@link #getBundlesSnapshot(int, Dictionary)}. If the generation is not
+	 * known (e.g. -1 or from a previous run of the agent), all bundles are
+	 * returned. The used services change without notification, so all bundles
+	 * are returned also when {@link #INCLUDE_USED_SERVICES} is requested.
+	 * 
+	 * @param generation
+	 *            the generation of the previous result
+	 * @param includeOptions
+	 * @param properties
+	 * @since 3.1
+	 */
+	public Object getBundlesSnapshotSince(long generation, int includeOptions, Dictionary properties);
+
+	/**
+	 * Returns the SHA-256 digests of the contents of the given bundles, as
+	 * hexadecimal strings. The digest of a bundle is known only if it has been
+	 * installed or updated through this agent and hasn't been changed by other
+	 * means since then.
+	 * 
+	 * @param ids
+	 *            the ids of the bundles
+	 * @return array with the digests of the bundles in the same order, with
+	 *         null elements for the unknown digests
+	 * @since 3.1
+	 */
+	public String[] getBundleDigests(long[] ids);
+
+	/**
+	 * Returns the signatures of the blocks of the bundle content, against
+	 * which a delta for {@link #updateBundleDelta(long, InputStream)}
+	 * can be computed. The content is known only if the bundle has been
+	 * installed or updated through this agent.
+	 * 
+	 * @param id
+	 * @return the signatures or null, if the content of the bundle is unknown
+	 * @since 3.1
+	 */
+	public byte[] getBundleSignatures(long id);
+
+	/**
+	 * Updates a bundle with the content, reconstructed from its current
+	 * content and the given delta.
+	 * 
+	 * @param id
+	 * @param delta
+	 *            the delta against the signatures, returned by
+	 *            {@link #getBundleSignatures(long)}, which ends with the
+	 *            SHA-256 digest of the new content
+	 * @return null if successful or Error object describing the problem. If
+	 *         the delta doesn't match the current content, the code of the
+	 *         error is {@link Error#BUNDLE_DELTA_MISMATCH_CODE}
+	 * @since 3.1
+	 */
+	public Object updateBundleDelta(long id, InputStream delta);
+
 	/**
 	 * Installs bundle from given input stream
 	 * 
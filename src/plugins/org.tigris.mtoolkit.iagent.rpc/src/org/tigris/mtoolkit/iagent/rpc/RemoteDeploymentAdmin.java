@@ -36,5 +36,49 @@ public interface RemoteDeploymentAdmin {
 
 	Object installDeploymentPackage(InputStream in);
 
+	/**
+	 * Starts or resumes an upload of a deployment package in chunks. The
+	 * upload is identified by the digest of the package, its data is staged on
+	 * the device until it is committed or canceled.
+	 * 
+	 * @param digest
+	 *            the SHA-256 digest of the package, as hexadecimal string
+	 * @param size
+	 *            the size of the package
+	 * @return the length of the data, which is already staged, or -1 if the
+	 *         uploads are not supported, for example when SHA-256 is not
+	 *         available on the device
+	 * @since 3.1
+	 */
+	long beginDeploymentPackageUpload(String digest, long size);
+
+	/**
+	 * Appends a chunk to an upload. The chunk is staged only if the offset is
+	 * equal to the length of the staged data. Chunks, which exceed the size,
+	 * given when the upload was started, are refused with an Error.
+	 * 
+	 * @return Long with the length of the staged data after the operation or
+	 *         Error object describing the problem
+	 * @since 3.1
+	 */
+	Object appendDeploymentPackageUpload(String digest, long offset, byte[] data);
+
+	/**
+	 * Verifies the staged data of an upload against its digest and installs
+	 * the deployment package from it. The staged data is removed afterwards.
+	 * 
+	 * @return the same result as {@link #installDeploymentPackage(InputStream)}
+	 * @since 3.1
+	 */
+	Object commitDeploymentPackageUpload(String digest);
+
+	/**
+	 * Removes the staged data of an upload.
+	 * 
+	 * @return true if there was such upload
+	 * @since 3.1
+	 */
+	boolean cancelDeploymentPackageUpload(String digest);
+
 	public long getRemoteServiceID();
 }
\ No newline at end of file
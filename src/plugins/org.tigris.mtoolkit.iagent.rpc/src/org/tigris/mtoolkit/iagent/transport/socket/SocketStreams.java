@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.transport.socket;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Prepares the sockets of the PMP connections. The streams of the socket are
+ * buffered, so the small reads of the frame headers are served from memory,
+ * and the small frames written one after another reach the socket in a single
+ * write, when they are flushed. The Nagle's algorithm is disabled, because the
+ * frames are always flushed when complete, and delaying them only adds
+ * latency to the small requests and replies.
+ * <p>
+ * The following system properties can be used to configure the sockets:
+ * <ul>
+ * <li><code>iagent.socket.tcpNoDelay</code> - <code>false</code> enables the
+ * Nagle's algorithm</li>
+ * <li><code>iagent.socket.bufferSize</code> - the size of the stream buffers
+ * in bytes, <code>0</code> disables the buffering</li>
+ * </ul>
+ *
+ * @since 3.1
+ */
+public final class SocketStreams {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final boolean tcpNoDelay = !"false".equals(System.getProperty("iagent.socket.tcpNoDelay")); //$NON-NLS-1$ //$NON-NLS-2$
+	private static final int bufferSize = Integer.getInteger("iagent.socket.bufferSize", BUFFER_SIZE).intValue(); //$NON-NLS-1$
+
+	private SocketStreams() {
+	}
+
+	/**
+	 * Sets the options of a newly connected socket.
+	 */
+	public static void configure(Socket socket) {
+		try {
+			socket.setTcpNoDelay(tcpNoDelay);
+		} catch (SocketException e) {
+			// the default is used
+		}
+	}
+
+	/**
+	 * Returns the buffered input stream of the socket.
+	 */
+	public static InputStream getInputStream(Socket socket) throws IOException {
+		InputStream is = socket.getInputStream();
+		return bufferSize > 0 ? new BufferedInputStream(is, bufferSize) : is;
+	}
+
+	/**
+	 * Returns the buffered output stream of the socket. The written data is
+	 * sent when the stream is flushed or the buffer is full, and writes larger
+	 * than the buffer go directly to the socket.
+	 */
+	public static OutputStream getOutputStream(Socket socket) throws IOException {
+		OutputStream os = socket.getOutputStream();
+		return bufferSize > 0 ? new BufferedOutputStream(os, bufferSize) : os;
+	}
+}
@@ -25,6 +25,8 @@ public class SocketTransportConnection implements TransportConnection {
 	private String host;
 	private int port;
 	private Socket socket;
+	private InputStream input;
+	private OutputStream output;
 	private volatile boolean closed;
 	private static boolean preJava14EE = false;
 
@@ -37,6 +39,7 @@ public class SocketTransportConnection implements TransportConnection {
 		} catch (SocketException e) {
 			// problem setting keepalive shouldn't affect the connection
 		}
+		SocketStreams.configure(socket);
 		if (timeout > 0)
 			socket.setSoTimeout(timeout);
 	}
@@ -60,12 +63,16 @@ public class SocketTransportConnection implements TransportConnection {
 		}
 	}
 
-	public InputStream getInputStream() throws IOException {
-		return socket.getInputStream();
+	public synchronized InputStream getInputStream() throws IOException {
+		if (input == null)
+			input = SocketStreams.getInputStream(socket);
+		return input;
 	}
 
-	public OutputStream getOutputStream() throws IOException {
-		return socket.getOutputStream();
+	public synchronized OutputStream getOutputStream() throws IOException {
+		if (output == null)
+			output = SocketStreams.getOutputStream(socket);
+		return output;
 	}
 
 	public boolean isClosed() {
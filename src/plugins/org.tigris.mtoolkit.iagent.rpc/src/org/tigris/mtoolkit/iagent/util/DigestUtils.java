@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the content digests, which the agent and its clients exchange to
+ * identify bundles and deployment packages. The digests are SHA-256 digests in
+ * lower case hexadecimal form. The algorithm is optional on some of the
+ * supported platforms, so the methods return null when it is not available.
+ */
+public final class DigestUtils {
+
+	/**
+	 * The name of the digest algorithm.
+	 */
+	public static final String ALGORITHM = "SHA-256"; //$NON-NLS-1$
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray(); //$NON-NLS-1$
+
+	private DigestUtils() {
+	}
+
+	/**
+	 * Returns a new instance of the digest algorithm or null, if the algorithm
+	 * is not available.
+	 */
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the stream to its end and returns the digest of the read data or
+	 * null, if the algorithm is not available. The stream is not closed.
+	 */
+	public static String digest(InputStream is) throws IOException {
+		MessageDigest md = newDigest();
+		if (md == null)
+			return null;
+		byte[] buf = new byte[4096];
+		int read;
+		while ((read = is.read(buf)) != -1)
+			md.update(buf, 0, read);
+		return toHex(md.digest());
+	}
+
+	/**
+	 * Returns the digest of the content of the file or null, if the algorithm
+	 * is not available.
+	 */
+	public static String digest(File file) throws IOException {
+		if (newDigest() == null)
+			return null;
+		InputStream is = new FileInputStream(file);
+		try {
+			return digest(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Returns the lower case hexadecimal form of the digest.
+	 */
+	public static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+			chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+		}
+		return new String(chars);
+	}
+}
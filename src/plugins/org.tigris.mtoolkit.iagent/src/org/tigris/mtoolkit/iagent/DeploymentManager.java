@@ -10,6 +10,7 @@
  *******************************************************************************/
 package org.tigris.mtoolkit.iagent;
 
+import java.io.File;
 import java.io.InputStream;
 import java.util.Dictionary;
 
@@ -71,6 +72,23 @@ public interface DeploymentManager {
 	 */
 	public RemoteDP installDeploymentPackage(InputStream is) throws IAgentException;
 
+	/**
+	 * Installs the deployment package from the specified file. If the remote
+	 * agent supports it, the package is uploaded in chunks, which are staged
+	 * on the device. If the connection is lost, the upload is resumed from the
+	 * last staged chunk after reconnecting, also when this method is called
+	 * again for the same content.
+	 * 
+	 * @param file
+	 *            the deployment package file
+	 * @return RemoteDP object representing the newly installed/updated
+	 *         deployment package
+	 * @throws IAgentException
+	 * @see #installDeploymentPackage(InputStream)
+	 * @since 3.1
+	 */
+	public RemoteDP installDeploymentPackage(File file) throws IAgentException;
+
 	/**
 	 * Returns all installed bundles currently available in the runtime. The
 	 * returned array contains RemoteBundle objects, which can be used to query
@@ -125,6 +143,24 @@ public interface DeploymentManager {
 	 */
 	public void addRemoteBundleListener(RemoteBundleListener listener) throws IAgentException;
 
+	/**
+	 * Add a listener which will be notified only for the events of the
+	 * bundles with the given ids. The events of the other bundles are filtered
+	 * out on the remote site when possible, so they are not transferred at
+	 * all. Adding the same listener again replaces its bundle ids.
+	 * 
+	 * @param listener
+	 *            the listener which will be notified for remote bundle events
+	 * @param bundleIds
+	 *            the ids of the bundles, or null for all bundles
+	 * @throws IllegalArgumentException
+	 *             if the array of ids is empty
+	 * @throws IAgentException
+	 * @see {@link RemoteBundleEvent}
+	 * @since 3.1
+	 */
+	public void addRemoteBundleListener(RemoteBundleListener listener, long[] bundleIds) throws IAgentException;
+
 	/**
 	 * Removes a listener from the listener list. This means that the listener
 	 * won't be notified for remote bundle events anymore.
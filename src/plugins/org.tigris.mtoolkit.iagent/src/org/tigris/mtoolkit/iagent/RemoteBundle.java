@@ -236,6 +236,20 @@ public interface RemoteBundle {
 	 */
 	public long getLastModified() throws IAgentException;
 
+	/**
+	 * Returns the SHA-256 digest of the content of the bundle, as hexadecimal
+	 * string. The digest is known only if the bundle has been installed or
+	 * updated through the agent and hasn't been changed by other means since
+	 * then, so it can be used to skip uploading content, which the device
+	 * already has.
+	 * 
+	 * @return the digest of the bundle or null if it is unknown or the remote
+	 *         agent doesn't support it
+	 * @throws IAgentException
+	 * @since 3.1
+	 */
+	public String getDigest() throws IAgentException;
+
 	/**
 	 * Returns the start level of the remote bundle.
 	 * 
@@ -32,6 +32,26 @@ public interface ServiceManager {
 	 */
 	public void addRemoteServiceListener(RemoteServiceListener listener) throws IAgentException;
 
+	/**
+	 * Adds listener which will be notified only for the service registry
+	 * events, which match the passed LDAP filter. The filter is matched
+	 * against the event properties, which include the <code>service.id</code>,
+	 * <code>objectClass</code> and <code>type</code> of the event, and it is
+	 * evaluated on the remote site when possible, so the other events are not
+	 * transferred at all. Adding the same listener when it has been already
+	 * registered replaces its filter.
+	 * 
+	 * @param listener
+	 *            the listener to be added
+	 * @param filter
+	 *            the LDAP filter or null to receive all events
+	 * @throws IllegalArgumentException
+	 *             if the filter doesn't have correct syntax
+	 * @throws IAgentException
+	 * @since 3.1
+	 */
+	public void addRemoteServiceListener(RemoteServiceListener listener, String filter) throws IAgentException;
+
 	/**
 	 * Removes listener to prevent it from receiving service registry events.
 	 * Removing listeners which wasn't been registered does nothing.
@@ -77,6 +77,15 @@ public class RemoteBundleEvent extends RemoteEvent {
 	 */
 	public static final int STOPPING = BundleEvent.STOPPING;
 
+	/**
+	 * Constant indicating that bundle events have been lost, because they were
+	 * generated faster than they could be delivered. The bundle of such event
+	 * is null and the listener should refresh its view of all bundles.
+	 * 
+	 * @since 3.1
+	 */
+	public static final int EVENTS_LOST = 0x10000;
+
 	private RemoteBundle bundle;
 
 	public RemoteBundleEvent(RemoteBundle bundle, int type) {
@@ -87,7 +96,8 @@ public class RemoteBundleEvent extends RemoteEvent {
 	/**
 	 * Returns a reference to the bundle which has been changed.
 	 * 
-	 * @return a {@link RemoteBundle} object associated with this event
+	 * @return a {@link RemoteBundle} object associated with this event, or
+	 *         null if the type is {@link #EVENTS_LOST}
 	 */
 	public RemoteBundle getBundle() {
 		return bundle;
@@ -119,6 +129,8 @@ public class RemoteBundleEvent extends RemoteEvent {
 			return "STOPPPING";
 		case LAZY_STARTED:
 			return "LAZY_STARTED";
+		case EVENTS_LOST:
+			return "EVENTS_LOST";
 		default:
 			return "UNKNOWN(" + type + ")";
 		}
@@ -11,11 +11,18 @@
 package org.tigris.mtoolkit.iagent.internal;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Dictionary;
 import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.zip.InflaterInputStream;
@@ -33,37 +40,64 @@ import org.tigris.mtoolkit.iagent.event.RemoteBundleListener;
 import org.tigris.mtoolkit.iagent.event.RemoteDPEvent;
 import org.tigris.mtoolkit.iagent.event.RemoteDPListener;
 import org.tigris.mtoolkit.iagent.internal.utils.DebugUtils;
+import org.tigris.mtoolkit.iagent.internal.utils.DictionaryCodec;
 import org.tigris.mtoolkit.iagent.pmp.EventListener;
+import org.tigris.mtoolkit.iagent.pmp.PMPBatch;
+import org.tigris.mtoolkit.iagent.pmp.PMPException;
 import org.tigris.mtoolkit.iagent.pmp.RemoteObject;
 import org.tigris.mtoolkit.iagent.rpc.RemoteBundleAdmin;
 import org.tigris.mtoolkit.iagent.spi.ConnectionEvent;
 import org.tigris.mtoolkit.iagent.spi.ConnectionListener;
 import org.tigris.mtoolkit.iagent.spi.ConnectionManager;
 import org.tigris.mtoolkit.iagent.spi.MethodSignature;
+import org.tigris.mtoolkit.iagent.spi.PendingCall;
 import org.tigris.mtoolkit.iagent.spi.PMPConnection;
 import org.tigris.mtoolkit.iagent.spi.Utils;
+import org.tigris.mtoolkit.iagent.util.DigestUtils;
 
 public class DeploymentManagerImpl implements DeploymentManager, EventListener, ConnectionListener {
 
 	private static final String DEPLOYMENT_EVENT = "d_event";
 	private static final String SYNCH_BUNDLE_EVENT = "synch_bundle_event";
 	private static final String SYSTEM_BUNDLE_EVENT = "system_bundle_event";
+	private static final String EVENTS_LOST = org.tigris.mtoolkit.iagent.pmp.PMPConnection.EVENTS_LOST;
 	private static final String EVENT_TYPE_KEY = "type";
 	private static final String EVENT_DEPLOYMENT_PACKAGE_KEY = "deployment.package";
 	private static final String EVENT_BUNDLE_ID_KEY = "bundle.id";
 	
 	private final MethodSignature GET_SYSTEM_BUNDLES_NAMES = new MethodSignature("getSystemBundlesNames");
 
+	private static final int UPLOAD_CHUNK_SIZE = Integer.getInteger("iagent.upload.chunkSize", 128 * 1024).intValue();
+	private static final int MAX_UPLOAD_RETRIES = 5;
+	private static final long UPLOAD_RETRY_DELAY = 2000;
+
+	private static final int SNAPSHOT_OPTIONS = RemoteBundleAdmin.INCLUDE_BUNDLE_HEADERS
+			| RemoteBundleAdmin.INCLUDE_BUNDLE_STATES | RemoteBundleAdmin.INCLUDE_REGISTERED_SERVICES
+			| RemoteBundleAdmin.INCLUDE_USED_SERVICES;
+	// the used services change without events, so they are not cached
+	private static final int CACHED_SNAPSHOT_OPTIONS = SNAPSHOT_OPTIONS & ~RemoteBundleAdmin.INCLUDE_USED_SERVICES;
+
 	private DeviceConnectorImpl connector;
 
 	private long[] systemBundlesIDs = null;
 	private String[] systemBundlesNames = null;
 
 	private List bundleListeners = new LinkedList();
+	// listener -> sorted long[] of bundle ids, for the listeners added with ids
+	private Hashtable bundleListenerIds = new Hashtable();
 	private List dpListeners = new LinkedList();
 
 	private boolean addedConnectionListener;
 
+	// bundle id (Long) -> snapshot (Dictionary), kept between the calls and
+	// connections, so only the changes are requested
+	private Hashtable snapshotCache = new Hashtable();
+	private long snapshotGeneration = -1;
+	private Dictionary snapshotProperties;
+
+	// the state of the remote bundles, or null if the cache is disabled
+	private RemoteStateCache stateCache = RemoteStateCache.ENABLED ? new RemoteStateCache("bundles") : null;
+
 	public DeploymentManagerImpl(DeviceConnectorImpl connector) {
 		if (connector == null)
 			throw new IllegalArgumentException();
@@ -154,6 +188,20 @@ public class DeploymentManagerImpl implements DeploymentManager, EventListener,
 		return bundleAdmin;
 	}
 
+	private PMPBatch createBatch() throws IAgentException {
+		PMPConnection connection = (PMPConnection) connector.getConnection(ConnectionManager.PMP_CONNECTION);
+		return connection.createBatch();
+	}
+
+	private void sendBatch(PMPBatch batch) {
+		try {
+			batch.send();
+		} catch (PMPException e) {
+			// the calls, which are not sent, fail and are repeated one by one
+			info("[sendBatch] Failed to send batch: " + e);
+		}
+	}
+
 	public RemoteObject getDeploymentAdmin() throws IAgentException {
 		PMPConnection connection = (PMPConnection) connector.getConnection(ConnectionManager.PMP_CONNECTION);
 		RemoteObject bundleAdmin = connection.getRemoteDeploymentAdmin();
@@ -166,6 +214,118 @@ public class DeploymentManagerImpl implements DeploymentManager, EventListener,
 			throw new IllegalArgumentException("Non-null InputStream must be passed");
 		}
 		Object result = Utils.callRemoteMethod(getDeploymentAdmin(), Utils.INSTALL_DP_METHOD, new Object[] { is });
+		return getInstalledDeploymentPackage(result);
+	}
+
+	public RemoteDP installDeploymentPackage(File file) throws IAgentException {
+		debug("[installDeploymentPackage] >>> file: " + file);
+		if (file == null) {
+			throw new IllegalArgumentException("Non-null File must be passed");
+		}
+		String digest = null;
+		if (Utils.isRemoteMethodDefined(getDeploymentAdmin(), Utils.BEGIN_DP_UPLOAD_METHOD)) {
+			digest = getDigest(file);
+		}
+		Object result = null;
+		if (digest != null) {
+			Object staged;
+			for (int retries = 0;; retries++) {
+				try {
+					staged = uploadDeploymentPackage(file, digest);
+					break;
+				} catch (IAgentException e) {
+					if (!isTransportError(e) || retries >= MAX_UPLOAD_RETRIES || !connector.isActive())
+						throw e;
+					info("[installDeploymentPackage] Upload interrupted, resuming: " + e);
+				}
+				try {
+					Thread.sleep(UPLOAD_RETRY_DELAY * (retries + 1));
+				} catch (InterruptedException e) {
+					throw new IAgentException("Deployment package upload interrupted", IAgentErrors.GENERAL_ERROR);
+				}
+			}
+			if (staged instanceof Error) {
+				result = staged;
+			} else if (staged != null) {
+				// the staged file is consumed by the commit, so it isn't repeated
+				result = Utils.callRemoteMethod(getDeploymentAdmin(), Utils.COMMIT_DP_UPLOAD_METHOD,
+					new Object[] { digest });
+			}
+		}
+		if (result == null) {
+			debug("[installDeploymentPackage] Chunked upload is not supported, sending the whole package");
+			InputStream is = openFile(file);
+			try {
+				result = Utils.callRemoteMethod(getDeploymentAdmin(), Utils.INSTALL_DP_METHOD, new Object[] { is });
+			} finally {
+				try {
+					is.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		return getInstalledDeploymentPackage(result);
+	}
+
+	/**
+	 * Uploads the remaining chunks of the file, starting from the length,
+	 * which is already staged on the device.
+	 * 
+	 * @return the staged length, an {@link Error} if the device refused a
+	 *         chunk or null, if the chunked upload is not possible
+	 */
+	private Object uploadDeploymentPackage(File file, String digest) throws IAgentException {
+		long size = file.length();
+		Long offset = (Long) Utils.callRemoteMethod(getDeploymentAdmin(), Utils.BEGIN_DP_UPLOAD_METHOD,
+			new Object[] { digest, new Long(size) });
+		if (offset.longValue() < 0)
+			return null;
+		debug("[uploadDeploymentPackage] Uploading from offset " + offset + " of " + size);
+		RandomAccessFile raf;
+		try {
+			raf = new RandomAccessFile(file, "r");
+		} catch (IOException e) {
+			throw new IAgentException("Unable to read deployment package file: " + file,
+				IAgentErrors.ERROR_INTERNAL_ERROR, e);
+		}
+		try {
+			while (offset.longValue() < size) {
+				byte[] chunk = new byte[(int) Math.min(UPLOAD_CHUNK_SIZE, size - offset.longValue())];
+				try {
+					raf.seek(offset.longValue());
+					raf.readFully(chunk);
+				} catch (IOException e) {
+					throw new IAgentException("Unable to read deployment package file: " + file,
+						IAgentErrors.ERROR_INTERNAL_ERROR, e);
+				}
+				Object result = Utils.callRemoteMethod(getDeploymentAdmin(), Utils.APPEND_DP_UPLOAD_METHOD,
+					new Object[] { digest, offset, chunk });
+				if (result instanceof Error)
+					return result;
+				offset = (Long) result;
+			}
+		} finally {
+			try {
+				raf.close();
+			} catch (IOException e) {
+			}
+		}
+		return offset;
+	}
+
+	/**
+	 * Returns true, if the failure is caused by the connection and the call
+	 * may succeed, when repeated. Errors reported by the device are final.
+	 */
+	private static boolean isTransportError(IAgentException e) {
+		int code = e.getErrorCode();
+		if (code == IAgentErrors.ERROR_DISCONNECTED || code == IAgentErrors.ERROR_CANNOT_CONNECT)
+			return true;
+		Throwable cause = e.getCauseException();
+		return cause instanceof PMPException && ((PMPException) cause).getCause() instanceof IOException;
+	}
+
+	private RemoteDP getInstalledDeploymentPackage(Object result) throws IAgentException {
 		if (result instanceof Error) {
 			Error error = (Error) result;
 			info("[installDeploymentPackage] Installation failed: " + error);
@@ -176,6 +336,36 @@ public class DeploymentManagerImpl implements DeploymentManager, EventListener,
 		}
 	}
 
+	/**
+	 * Returns the SHA-256 digest of the file as hexadecimal string or null, if
+	 * the algorithm is not available.
+	 */
+	private static String getDigest(File file) throws IAgentException {
+		if (DigestUtils.newDigest() == null)
+			return null;
+		InputStream is = openFile(file);
+		try {
+			return DigestUtils.digest(is);
+		} catch (IOException e) {
+			throw new IAgentException("Unable to read deployment package file: " + file,
+				IAgentErrors.ERROR_INTERNAL_ERROR, e);
+		} finally {
+			try {
+				is.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private static InputStream openFile(File file) throws IAgentException {
+		try {
+			return new FileInputStream(file);
+		} catch (IOException e) {
+			throw new IAgentException("Unable to read deployment package file: " + file,
+				IAgentErrors.ERROR_INTERNAL_ERROR, e);
+		}
+	}
+
 	public RemoteBundle[] listBundles() throws IAgentException {
 		debug("[listBundles] >>>");
 		long[] bids = (long[]) Utils.callRemoteMethod(getBundleAdmin(), Utils.LIST_BUNDLES_METHOD, new Object[0]);
@@ -221,8 +411,45 @@ public class DeploymentManagerImpl implements DeploymentManager, EventListener,
 		}
 	}
 
+	/**
+	 * Returns the bundles with the given ids. The elements for the bundles,
+	 * which are not found, are null. The states of all bundles are requested
+	 * in a single batch.
+	 */
+	RemoteBundle[] getBundlesByIds(long[] ids) throws IAgentException {
+		debug("[getBundlesByIds] >>> ids: " + DebugUtils.convertForDebug(ids));
+		RemoteObject bundleAdmin = getBundleAdmin();
+		PMPBatch batch = createBatch();
+		PendingCall[] states = new PendingCall[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			states[i] = Utils.addToBatch(batch, bundleAdmin, Utils.GET_BUNDLE_STATE_METHOD, new Object[] { new Long(
+					ids[i]) });
+		}
+		sendBatch(batch);
+		RemoteBundle[] bundles = new RemoteBundle[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			Integer state = (Integer) states[i].get();
+			if (state.intValue() != RemoteBundle.UNINSTALLED) {
+				bundles[i] = new RemoteBundleImpl(this, new Long(ids[i]));
+			} else {
+				debug("[getBundlesByIds] No bundle with id: " + ids[i]);
+			}
+		}
+		return bundles;
+	}
+
 	public void addRemoteBundleListener(RemoteBundleListener listener) throws IAgentException {
-		debug("[addRemoteBundleListener] >>> listener: " + listener);
+		addRemoteBundleListener(listener, null);
+	}
+
+	public void addRemoteBundleListener(RemoteBundleListener listener, long[] bundleIds) throws IAgentException {
+		debug("[addRemoteBundleListener] >>> listener: " + listener + "; bundleIds: " + DebugUtils.convertForDebug(bundleIds));
+		if (bundleIds != null) {
+			if (bundleIds.length == 0)
+				throw new IllegalArgumentException("At least one bundle id must be specified");
+			bundleIds = (long[]) bundleIds.clone();
+			Arrays.sort(bundleIds);
+		}
 		synchronized (this) {
 			if (!addedConnectionListener) {
 				connector.getConnectionManager().addConnectionListener(this);
@@ -231,14 +458,17 @@ public class DeploymentManagerImpl implements DeploymentManager, EventListener,
 			}
 		}
 		synchronized (bundleListeners) {
-			if (!bundleListeners.contains(listener)) {
-				PMPConnection connection = (PMPConnection) connector.getConnection(ConnectionManager.PMP_CONNECTION,
-						false);
-				if (connection != null) {
-					debug("[addRemoteBundleListener] PMP connection is available, add event listener");
-					connection.addEventListener(this, new String[] { SYNCH_BUNDLE_EVENT });
-				}
+			if (!bundleListeners.contains(listener))
 				bundleListeners.add(listener);
+			if (bundleIds != null)
+				bundleListenerIds.put(listener, bundleIds);
+			else
+				bundleListenerIds.remove(listener);
+			PMPConnection connection = (PMPConnection) connector.getConnection(ConnectionManager.PMP_CONNECTION,
+					false);
+			if (connection != null) {
+				debug("[addRemoteBundleListener] PMP connection is available, add event listener");
+				addBundleEventListener(connection);
 			}
 		}
 	}
@@ -272,14 +502,18 @@ public class DeploymentManagerImpl implements DeploymentManager, EventListener,
 		synchronized (bundleListeners) {
 			if (bundleListeners.contains(listener)) {
 				bundleListeners.remove(listener);
+				bundleListenerIds.remove(listener);
+				PMPConnection connection = (PMPConnection) connector.getConnection(
+						ConnectionManager.PMP_CONNECTION, false);
 				if (bundleListeners.size() == 0) {
 					debug("[removeRemoteBundleListener] No more listeners in the list, try to remove PMP event listener");
-					PMPConnection connection = (PMPConnection) connector.getConnection(
-							ConnectionManager.PMP_CONNECTION, false);
-					if (connection != null) {
+					if (connection != null && !isStateCacheBound(connection)) {
 						debug("[removeRemoteBundleListener] PMP connection is available, remove event listener");
-						connection.removeEventListener(this, new String[] { SYNCH_BUNDLE_EVENT });
+						removeBundleEventListener(connection);
 					}
+				} else if (connection != null) {
+					// the remaining listeners may need the events of other bundles
+					connection.addEventListener(this, new String[] { SYNCH_BUNDLE_EVENT }, getBundleEventsFilter());
 				}
 			} else {
 				debug("[removeRemoteBundleListener] Listener not found in the list");
@@ -311,9 +545,15 @@ public class DeploymentManagerImpl implements DeploymentManager, EventListener,
 		debug("[fireBundleEvent] >>> bundleId: " + bundleId + "; type: " + type);
 		RemoteBundleListener[] listeners;
 		synchronized (bundleListeners) {
-			if (bundleListeners.size() != 0) {
-				listeners = (RemoteBundleListener[]) bundleListeners.toArray(new RemoteBundleListener[bundleListeners
-						.size()]);
+			List matching = new LinkedList();
+			for (Iterator it = bundleListeners.iterator(); it.hasNext();) {
+				Object listener = it.next();
+				long[] ids = (long[]) bundleListenerIds.get(listener);
+				if (ids == null || Arrays.binarySearch(ids, bundleId) >= 0)
+					matching.add(listener);
+			}
+			if (matching.size() != 0) {
+				listeners = (RemoteBundleListener[]) matching.toArray(new RemoteBundleListener[matching.size()]);
 			} else {
 				return;
 			}
@@ -332,6 +572,63 @@ public class DeploymentManagerImpl implements DeploymentManager, EventListener,
 		}
 	}
 
+	/**
+	 * Notifies all bundle listeners, that they have missed events.
+	 */
+	private void fireEventsLost() {
+		RemoteBundleListener[] listeners;
+		synchronized (bundleListeners) {
+			listeners = (RemoteBundleListener[]) bundleListeners.toArray(new RemoteBundleListener[bundleListeners.size()]);
+		}
+		RemoteBundleEvent event = new RemoteBundleEvent(null, RemoteBundleEvent.EVENTS_LOST);
+		for (int i = 0; i < listeners.length; i++) {
+			try {
+				listeners[i].bundleChanged(event);
+			} catch (Throwable e) {
+				error("[fireEventsLost] Failed to deliver event to " + listeners[i], e);
+			}
+		}
+	}
+
+	/**
+	 * Requests the bundle events and the notification about lost events, after
+	 * which the listeners must refresh all bundles.
+	 */
+	private void addBundleEventListener(PMPConnection connection) throws IAgentException {
+		connection.addEventListener(this, new String[] { SYNCH_BUNDLE_EVENT }, getBundleEventsFilter());
+		connection.addEventListener(this, new String[] { EVENTS_LOST });
+	}
+
+	private void removeBundleEventListener(PMPConnection connection) throws IAgentException {
+		connection.removeEventListener(this, new String[] { SYNCH_BUNDLE_EVENT, EVENTS_LOST });
+	}
+
+	/**
+	 * Returns the filter, which the remote site applies to the bundle events,
+	 * or null if the events of all bundles are needed.
+	 */
+	private String getBundleEventsFilter() {
+		if (stateCache != null)
+			// all events are needed to keep the cache coherent
+			return null;
+		synchronized (bundleListeners) {
+			Hashtable ids = new Hashtable();
+			for (Iterator it = bundleListeners.iterator(); it.hasNext();) {
+				long[] listenerIds = (long[]) bundleListenerIds.get(it.next());
+				if (listenerIds == null)
+					return null;
+				for (int i = 0; i < listenerIds.length; i++)
+					ids.put(new Long(listenerIds[i]), Boolean.TRUE);
+			}
+			if (ids.size() == 0)
+				return null;
+			StringBuffer buf = new StringBuffer();
+			for (Enumeration e = ids.keys(); e.hasMoreElements();)
+				buf.append('(').append(EVENT_BUNDLE_ID_KEY).append('=').append(e.nextElement()).append(')');
+			return ids.size() > 1 ? "(|" + buf + ")" : buf.toString();
+		}
+	}
+
 	private void fireDeploymentEvent(String symbolicName, String version, int type) {
 		debug("[fireDeploymentEvent] >>> symbolicName: " + symbolicName + "; version: " + version + "; type: " + type);
 		RemoteDPListener[] listeners;
@@ -369,9 +666,17 @@ public class DeploymentManagerImpl implements DeploymentManager, EventListener,
 				Dictionary eventProps = (Dictionary) event;
 				int type = ((Integer) eventProps.get(EVENT_TYPE_KEY)).intValue();
 				Long bid = (Long) eventProps.get(EVENT_BUNDLE_ID_KEY);
+				if (stateCache != null)
+					stateCache.invalidate(bid);
 				fireBundleEvent(bid.longValue(), type);
 			} else if (SYSTEM_BUNDLE_EVENT.equals(eventType)) {
 				clearSystemBundlesList();
+			} else if (EVENTS_LOST.equals(eventType)) {
+				info("[event] Remote events have been lost: " + event);
+				if (stateCache != null)
+					stateCache.reset();
+				clearSystemBundlesList();
+				fireEventsLost();
 			}
 		} catch (Throwable e) {
 			error("[event] Failed to process PMP event: " + event + "; type: " + eventType, e);
@@ -384,6 +689,10 @@ public class DeploymentManagerImpl implements DeploymentManager, EventListener,
 
 	public void connectionChanged(ConnectionEvent event) {
 		debug("[connectionChanged] >>> event: " + event);
+		if (stateCache != null && event.getConnection().getType() == ConnectionManager.PMP_CONNECTION) {
+			debug("[connectionChanged] Dropping the bundles state: " + stateCache);
+			stateCache.reset();
+		}
 		if (event.getType() == ConnectionEvent.CONNECTED
 				&& event.getConnection().getType() == ConnectionManager.PMP_CONNECTION) {
 			debug("[connectionChanged] New PMP connection created, restore event listeners");
@@ -404,7 +713,7 @@ public class DeploymentManagerImpl implements DeploymentManager, EventListener,
 						if (bundleListeners.size() > 0) {
 							debug("[connectionChanged] Restoring bundle listeners...");
 							try {
-								connection.addEventListener(this, new String[] { SYNCH_BUNDLE_EVENT });
+								addBundleEventListener(connection);
 							} catch (IAgentException e) {
 								error("[connectionChanged] Failed to add event listener to PMP connection", e);
 							}
@@ -448,10 +757,11 @@ public class DeploymentManagerImpl implements DeploymentManager, EventListener,
 		}
 		synchronized (bundleListeners) {
 			bundleListeners.clear();
+			bundleListenerIds.clear();
 			PMPConnection connection = (PMPConnection) connector.getConnection(ConnectionManager.PMP_CONNECTION, false);
 			if (connection != null) {
 				debug("[removeListeners] PMP connection is available, remove event listener for synchronous bundle events...");
-				connection.removeEventListener(this, new String[] { SYNCH_BUNDLE_EVENT });
+				removeBundleEventListener(connection);
 			}
 			debug("[removeListeners] bundle listeners removed");
 		}
@@ -460,6 +770,47 @@ public class DeploymentManagerImpl implements DeploymentManager, EventListener,
 			debug("[removeListeners] PMP connection is available. remove evnet listener for system bundle events...");
 			connection.removeEventListener(this, new String[] { SYSTEM_BUNDLE_EVENT });
 		}
+		if (stateCache != null)
+			stateCache.reset();
+	}
+
+	/**
+	 * Returns the cache of the remote bundles state, or null if it is disabled
+	 * or there is no connection. The first time the cache is used with a
+	 * connection, the bundle events are requested, so that it is kept
+	 * coherent.
+	 */
+	RemoteStateCache getStateCache() throws IAgentException {
+		if (stateCache == null)
+			return null;
+		PMPConnection connection = (PMPConnection) connector.getConnection(ConnectionManager.PMP_CONNECTION, false);
+		if (connection == null)
+			return null;
+		if (!stateCache.isBoundTo(connection)) {
+			synchronized (this) {
+				if (!addedConnectionListener) {
+					connector.getConnectionManager().addConnectionListener(this);
+					addedConnectionListener = true;
+				}
+			}
+			addBundleEventListener(connection);
+			stateCache.bind(connection);
+			debug("[getStateCache] Bundles state cache bound to " + connection);
+		}
+		return stateCache;
+	}
+
+	/**
+	 * Drops the cached state of a bundle, which has been changed through this
+	 * client.
+	 */
+	void invalidateState(Long bid) {
+		if (stateCache != null)
+			stateCache.invalidate(bid);
+	}
+
+	private boolean isStateCacheBound(PMPConnection connection) {
+		return stateCache != null && stateCache.isBoundTo(connection);
 	}
 
 	public boolean scanSystemBundlesList(RemoteBundle bundle) throws IAgentException {
@@ -530,31 +881,16 @@ public class DeploymentManagerImpl implements DeploymentManager, EventListener,
 
 	public BundleSnapshot[] getBundlesSnapshot(Dictionary properties) throws IAgentException {
 		debug("[getBundlesSnapshot] >>>");
-		int options = RemoteBundleAdmin.INCLUDE_BUNDLE_HEADERS | RemoteBundleAdmin.INCLUDE_BUNDLE_STATES
-				| RemoteBundleAdmin.INCLUDE_REGISTERED_SERVICES | RemoteBundleAdmin.INCLUDE_USED_SERVICES;
-		Object snapshotData = Utils.callRemoteMethod(getBundleAdmin(), Utils.GET_BUNDLES_SNAPSHOT, new Object[] {
-				new Integer(options), properties });
-		if (snapshotData == null) {
-			info("[getBundlesSnapshot] getBundlesSnapshot() must not return null array. There is a problem with the transport.");
-			throw new IAgentException(
-					"getBundlesSnapshot() must not return null array. There is a problem with the transport.",
-					IAgentErrors.GENERAL_ERROR);
+		if (Utils.isRemoteMethodDefined(getBundleAdmin(), Utils.GET_BUNDLES_SNAPSHOT_SINCE)) {
+			return getCachedBundlesSnapshot(properties);
 		}
-		Dictionary[] snapshots;
-		if (snapshotData instanceof Dictionary[]) {
-			snapshots = (Dictionary[]) snapshotData;
-		} else {
-			try {
-				ByteArrayInputStream bis = new ByteArrayInputStream((byte[]) snapshotData);
-				ObjectInputStream ois = new ObjectInputStream(new InflaterInputStream(bis));
-				snapshots = (Dictionary[]) ois.readObject();
-				ois.close();
-			} catch (Exception e) {
-				throw new IAgentException(
-						"getBundlesSnapshot() Cannot decode the result. There is a problem with the transport.",
-						IAgentErrors.GENERAL_ERROR);
-			}
+		if (!Utils.isRemoteMethodDefined(getBundleAdmin(), Utils.GET_BUNDLES_SNAPSHOT)) {
+			debug("[getBundlesSnapshot] Snapshots are not supported by the remote site, collecting the bundles info");
+			return collectBundlesSnapshot();
 		}
+		Object snapshotData = Utils.callRemoteMethod(getBundleAdmin(), Utils.GET_BUNDLES_SNAPSHOT, new Object[] {
+				new Integer(SNAPSHOT_OPTIONS), properties });
+		Dictionary[] snapshots = (Dictionary[]) decodeSnapshot(snapshotData, "getBundlesSnapshot()", false);
 
 		BundleSnapshot[] result = new BundleSnapshot[snapshots.length];
 		for (int i = 0; i < snapshots.length; i++) {
@@ -563,4 +899,149 @@ public class DeploymentManagerImpl implements DeploymentManager, EventListener,
 		return result;
 	}
 
+	/**
+	 * Updates the cached snapshot with the changes since the last request and
+	 * returns it. Only the changed bundles are transferred, except the used
+	 * services, which are requested for all bundles in the same batch.
+	 */
+	private BundleSnapshot[] getCachedBundlesSnapshot(Dictionary properties) throws IAgentException {
+		synchronized (snapshotCache) {
+			if (properties == null ? snapshotProperties != null : !properties.equals(snapshotProperties)) {
+				snapshotGeneration = -1;
+				snapshotProperties = properties;
+			}
+			RemoteObject bundleAdmin = getBundleAdmin();
+			PMPBatch batch = createBatch();
+			PendingCall deltaCall = Utils.addToBatch(batch, bundleAdmin, Utils.GET_BUNDLES_SNAPSHOT_SINCE,
+					new Object[] { new Long(snapshotGeneration), new Integer(CACHED_SNAPSHOT_OPTIONS), properties });
+			PendingCall usedServicesCall = Utils.addToBatch(batch, bundleAdmin, Utils.GET_BUNDLES_SNAPSHOT,
+					new Object[] { new Integer(RemoteBundleAdmin.INCLUDE_USED_SERVICES), properties });
+			sendBatch(batch);
+			Dictionary delta = (Dictionary) decodeSnapshot(deltaCall.get(), "getBundlesSnapshotSince()", true);
+			Dictionary[] usedServices = (Dictionary[]) decodeSnapshot(usedServicesCall.get(), "getBundlesSnapshot()",
+					false);
+			if (Boolean.TRUE.equals(delta.get(RemoteBundleAdmin.KEY_SNAPSHOT_FULL))) {
+				snapshotCache.clear();
+			}
+			long[] removed = (long[]) delta.get(RemoteBundleAdmin.KEY_SNAPSHOT_REMOVED);
+			for (int i = 0; i < removed.length; i++) {
+				snapshotCache.remove(new Long(removed[i]));
+			}
+			Dictionary[] changed = (Dictionary[]) delta.get(RemoteBundleAdmin.KEY_SNAPSHOT_BUNDLES);
+			for (int i = 0; i < changed.length; i++) {
+				snapshotCache.put(changed[i].get(RemoteBundleAdmin.KEY_BUNDLE_ID), changed[i]);
+			}
+			snapshotGeneration = ((Long) delta.get(RemoteBundleAdmin.KEY_SNAPSHOT_GENERATION)).longValue();
+			debug("[getCachedBundlesSnapshot] generation: " + snapshotGeneration + "; changed: " + changed.length
+					+ "; removed: " + removed.length);
+
+			Hashtable usedServicesById = new Hashtable();
+			for (int i = 0; i < usedServices.length; i++) {
+				usedServicesById.put(usedServices[i].get(RemoteBundleAdmin.KEY_BUNDLE_ID), usedServices[i]);
+			}
+			long[] ids = new long[snapshotCache.size()];
+			int i = 0;
+			for (Enumeration e = snapshotCache.keys(); e.hasMoreElements();) {
+				ids[i++] = ((Long) e.nextElement()).longValue();
+			}
+			Arrays.sort(ids);
+			List result = new ArrayList(ids.length);
+			for (i = 0; i < ids.length; i++) {
+				Long id = new Long(ids[i]);
+				Dictionary bundleUsedServices = (Dictionary) usedServicesById.get(id);
+				if (bundleUsedServices == null) {
+					continue; // uninstalled after the delta is taken
+				}
+				Dictionary bundleInfo = copySnapshot((Dictionary) snapshotCache.get(id));
+				bundleInfo.put(RemoteBundleAdmin.KEY_USED_SERVICES, bundleUsedServices
+						.get(RemoteBundleAdmin.KEY_USED_SERVICES));
+				result.add(new BundleSnapshotImpl(this, bundleInfo));
+			}
+			return (BundleSnapshot[]) result.toArray(new BundleSnapshot[result.size()]);
+		}
+	}
+
+	/** returns a copy of a cached bundle snapshot, which can be completed */
+	private static Dictionary copySnapshot(Dictionary snapshot) {
+		Dictionary copy = new Hashtable();
+		for (Enumeration e = snapshot.keys(); e.hasMoreElements();) {
+			Object key = e.nextElement();
+			copy.put(key, snapshot.get(key));
+		}
+		return copy;
+	}
+
+	private Object decodeSnapshot(Object snapshotData, String method, boolean compact) throws IAgentException {
+		if (snapshotData == null) {
+			info("[decodeSnapshot] " + method
+					+ " must not return null array. There is a problem with the transport.");
+			throw new IAgentException(method + " must not return null array. There is a problem with the transport.",
+					IAgentErrors.GENERAL_ERROR);
+		}
+		if (!(snapshotData instanceof byte[])) {
+			return snapshotData;
+		}
+		try {
+			ByteArrayInputStream bis = new ByteArrayInputStream((byte[]) snapshotData);
+			if (compact) {
+				return new DictionaryCodec().readValue(new InflaterInputStream(bis));
+			}
+			ObjectInputStream ois = new ObjectInputStream(new InflaterInputStream(bis));
+			Object snapshot = ois.readObject();
+			ois.close();
+			return snapshot;
+		} catch (Exception e) {
+			throw new IAgentException(method + " Cannot decode the result. There is a problem with the transport.",
+					IAgentErrors.GENERAL_ERROR);
+		}
+	}
+
+	/**
+	 * Collects the bundles snapshot for remote sites, which cannot provide it
+	 * by themselves. The calls for all bundles are sent in a single batch.
+	 */
+	private BundleSnapshot[] collectBundlesSnapshot() throws IAgentException {
+		RemoteObject bundleAdmin = getBundleAdmin();
+		long[] bids = (long[]) Utils.callRemoteMethod(bundleAdmin, Utils.LIST_BUNDLES_METHOD, new Object[0]);
+		if (bids == null) {
+			info("[collectBundlesSnapshot] listBundles() must not return null array. There is a problem with the transport.");
+			throw new IAgentException(
+					"listBundles() must not return null array. There is a problem with the transport.",
+					IAgentErrors.GENERAL_ERROR);
+		}
+		PMPBatch batch = createBatch();
+		PendingCall[] calls = new PendingCall[bids.length * 4];
+		for (int i = 0; i < bids.length; i++) {
+			Long bid = new Long(bids[i]);
+			calls[i * 4] = Utils.addToBatch(batch, bundleAdmin, Utils.GET_BUNDLE_HEADERS_METHOD, new Object[] {
+					bid, null });
+			calls[i * 4 + 1] = Utils.addToBatch(batch, bundleAdmin, Utils.GET_BUNDLE_STATE_METHOD,
+					new Object[] { bid });
+			calls[i * 4 + 2] = Utils.addToBatch(batch, bundleAdmin, Utils.GET_REGISTERED_SERVICES_METHOD,
+					new Object[] { bid });
+			calls[i * 4 + 3] = Utils.addToBatch(batch, bundleAdmin, Utils.GET_USING_SERVICES_METHOD,
+					new Object[] { bid });
+		}
+		sendBatch(batch);
+		List snapshots = new ArrayList(bids.length);
+		for (int i = 0; i < bids.length; i++) {
+			Dictionary headers = (Dictionary) calls[i * 4].get();
+			Integer state = (Integer) calls[i * 4 + 1].get();
+			Dictionary[] registeredServices = (Dictionary[]) calls[i * 4 + 2].get();
+			Dictionary[] usedServices = (Dictionary[]) calls[i * 4 + 3].get();
+			if (headers == null || state.intValue() == RemoteBundle.UNINSTALLED || registeredServices == null
+					|| usedServices == null) {
+				continue; // bundle is uninstalled
+			}
+			Dictionary bundleInfo = new Hashtable();
+			bundleInfo.put(RemoteBundleAdmin.KEY_BUNDLE_ID, new Long(bids[i]));
+			bundleInfo.put(RemoteBundleAdmin.KEY_BUNDLE_HEADERS, headers);
+			bundleInfo.put(RemoteBundleAdmin.KEY_BUNDLE_STATE, state);
+			bundleInfo.put(RemoteBundleAdmin.KEY_REGISTERED_SERVICES, registeredServices);
+			bundleInfo.put(RemoteBundleAdmin.KEY_USED_SERVICES, usedServices);
+			snapshots.add(new BundleSnapshotImpl(this, bundleInfo));
+		}
+		return (BundleSnapshot[]) snapshots.toArray(new BundleSnapshot[snapshots.size()]);
+	}
+
 }
\ No newline at end of file
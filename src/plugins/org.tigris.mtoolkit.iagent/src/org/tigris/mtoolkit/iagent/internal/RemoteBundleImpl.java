@@ -10,14 +10,23 @@
  *******************************************************************************/
 package org.tigris.mtoolkit.iagent.internal;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.util.Dictionary;
+import java.util.Hashtable;
 
 import org.tigris.mtoolkit.iagent.Error;
 import org.tigris.mtoolkit.iagent.IAgentErrors;
 import org.tigris.mtoolkit.iagent.IAgentException;
 import org.tigris.mtoolkit.iagent.RemoteBundle;
 import org.tigris.mtoolkit.iagent.RemoteService;
+import org.tigris.mtoolkit.iagent.internal.utils.BundleDelta;
 import org.tigris.mtoolkit.iagent.internal.utils.DebugUtils;
 import org.tigris.mtoolkit.iagent.pmp.RemoteObject;
 import org.tigris.mtoolkit.iagent.spi.Utils;
@@ -31,6 +40,11 @@ public class RemoteBundleImpl implements RemoteBundle {
 	private DeploymentManagerImpl commands;
 	private boolean cachedSystemBundle = false;
 
+	// the keys of the values in the state cache
+	private static final String STATE_KEY = "state";
+	private static final String HEADERS_KEY = "headers;";
+	private static final String HEADER_KEY = "header;";
+
 	public RemoteBundleImpl(DeploymentManagerImpl deploymentCommands, Long id) {
 		this(deploymentCommands, id, null);
 	}
@@ -54,6 +68,17 @@ public class RemoteBundleImpl implements RemoteBundle {
 	public Dictionary getHeaders(String locale) throws IAgentException {
 		debug("[getHeaders] >>> locale: " + locale);
 		checkBundleState();
+		RemoteStateCache cache = commands.getStateCache();
+		String key = HEADERS_KEY + locale;
+		long generation = 0;
+		if (cache != null) {
+			generation = cache.getGeneration();
+			Dictionary headers = (Dictionary) cache.get(id, key);
+			if (headers != null) {
+				debug("[getHeaders] cached result: " + DebugUtils.convertForDebug(headers));
+				return copy(headers);
+			}
+		}
 		Dictionary headers = (Dictionary) Utils.callRemoteMethod(getBundleAdmin(),
 			Utils.GET_BUNDLE_HEADERS_METHOD,
 			new Object[] { id, locale });
@@ -63,15 +88,32 @@ public class RemoteBundleImpl implements RemoteBundle {
 			checkBundleState(); // throw illegal state exception
 		}
 		debug("[getHeaders] result: " + DebugUtils.convertForDebug(headers));
+		if (cache != null) {
+			cache.put(id, key, headers, generation);
+			return copy(headers);
+		}
 		return headers;
 	}
 
 	public String getHeader(String headerName, String locale) throws IAgentException {
 		debug("[getHeader] >>> headerName: " + headerName + "; locale: " + locale);
 		checkBundleState();
+		RemoteStateCache cache = commands.getStateCache();
+		String key = HEADER_KEY + locale + ";" + headerName;
+		long generation = 0;
+		if (cache != null) {
+			generation = cache.getGeneration();
+			Object cached = cache.get(id, key);
+			if (cached != null) {
+				debug("[getHeader] Cached header value: " + RemoteStateCache.unwrap(cached));
+				return (String) RemoteStateCache.unwrap(cached);
+			}
+		}
 		Object result = Utils.callRemoteMethod(getBundleAdmin(), Utils.GET_BUNDLE_HEADER_METHOD, new Object[] { id,
 			headerName,
 			locale });
+		if (cache != null && !(result instanceof Error))
+			cache.put(id, key, result, generation);
 		if (result == null) {
 			debug("[getHeader] No header with given method found");
 			return null;
@@ -120,9 +162,21 @@ public class RemoteBundleImpl implements RemoteBundle {
 			debug("[getState] bundle state: " + UNINSTALLED);
 			return UNINSTALLED;
 		}
+		RemoteStateCache cache = commands.getStateCache();
+		long generation = 0;
+		if (cache != null) {
+			generation = cache.getGeneration();
+			Integer state = (Integer) cache.get(id, STATE_KEY);
+			if (state != null) {
+				debug("[getState] cached bundle state: " + state);
+				return state.intValue();
+			}
+		}
 		Integer state = (Integer) Utils.callRemoteMethod(getBundleAdmin(),
 			Utils.GET_BUNDLE_STATE_METHOD,
 			new Object[] { id });
+		if (cache != null)
+			cache.put(id, STATE_KEY, state, generation);
 		if (state.intValue() == UNINSTALLED)
 			uninstalled = true;
 		debug("[getState] bundle state: " + state);
@@ -162,9 +216,14 @@ public class RemoteBundleImpl implements RemoteBundle {
 		if (!uninstalled && getState() == UNINSTALLED)
 			uninstalled = true; // check for uninstall before call
 		checkBundleState();
-		boolean resolvingResult = ((Boolean) Utils.callRemoteMethod(getBundleAdmin(),
-			Utils.RESOLVE_BUNDLES_METHOD,
-			new Object[] { new long[] { id.longValue() } })).booleanValue();
+		boolean resolvingResult;
+		try {
+			resolvingResult = ((Boolean) Utils.callRemoteMethod(getBundleAdmin(),
+				Utils.RESOLVE_BUNDLES_METHOD,
+				new Object[] { new long[] { id.longValue() } })).booleanValue();
+		} finally {
+			commands.invalidateState(id);
+		}
 		debug("[resolve] resolve status: " + resolvingResult);
 		return resolvingResult;
 	}
@@ -172,8 +231,13 @@ public class RemoteBundleImpl implements RemoteBundle {
 	public void start(int flags) throws IAgentException {
 		debug("[start] >>> flags: " + flags);
 		checkBundleState();
-		Error error = (Error) Utils.callRemoteMethod(getBundleAdmin(), Utils.START_BUNDLE_METHOD, new Object[] { id,
-			new Integer(flags) });
+		Error error;
+		try {
+			error = (Error) Utils.callRemoteMethod(getBundleAdmin(), Utils.START_BUNDLE_METHOD, new Object[] { id,
+				new Integer(flags) });
+		} finally {
+			commands.invalidateState(id);
+		}
 		debug("[start] Bundle start result: " + error);
 		checkBundleErrorResult(error);
 	}
@@ -181,8 +245,13 @@ public class RemoteBundleImpl implements RemoteBundle {
 	public void stop(int flags) throws IAgentException {
 		debug("[stop] flags: " + flags);
 		checkBundleState();
-		Error error = (Error) Utils.callRemoteMethod(getBundleAdmin(), Utils.STOP_BUNDLE_METHOD, new Object[] { id,
-			new Integer(flags) });
+		Error error;
+		try {
+			error = (Error) Utils.callRemoteMethod(getBundleAdmin(), Utils.STOP_BUNDLE_METHOD, new Object[] { id,
+				new Integer(flags) });
+		} finally {
+			commands.invalidateState(id);
+		}
 		debug("[stop] Bundle stop result: " + error);
 		checkBundleErrorResult(error);
 	}
@@ -190,7 +259,12 @@ public class RemoteBundleImpl implements RemoteBundle {
 	public void uninstall() throws IAgentException {
 		debug("[uninstall] >>>");
 		checkBundleState();
-		Error err = (Error) Utils.callRemoteMethod(getBundleAdmin(), Utils.UNINSTALL_BUNDLE_METHOD, new Object[] { id });
+		Error err;
+		try {
+			err = (Error) Utils.callRemoteMethod(getBundleAdmin(), Utils.UNINSTALL_BUNDLE_METHOD, new Object[] { id });
+		} finally {
+			commands.invalidateState(id);
+		}
 		debug("[uninstall] Bundle uninstallation result: " + err);
 		if (err == null) {
 			uninstalled = true;
@@ -205,13 +279,130 @@ public class RemoteBundleImpl implements RemoteBundle {
 			throw new IllegalArgumentException();
 		}
 		checkBundleState();
-		Error err = (Error) Utils.callRemoteMethod(getBundleAdmin(),
-			Utils.UPDATE_BUNDLE_METHOD,
-			new Object[] { id, in });
+		ContentCopy copy = null;
+		Error err;
+		try {
+			err = null;
+			byte[] signatures = null;
+			if (Utils.isRemoteMethodDefined(getBundleAdmin(), Utils.UPDATE_BUNDLE_DELTA)) {
+				signatures = (byte[]) Utils.callRemoteMethod(getBundleAdmin(),
+					Utils.GET_BUNDLE_SIGNATURES,
+					new Object[] { id });
+			}
+			if (signatures != null) {
+				try {
+					copy = new ContentCopy(in);
+				} catch (IOException e) {
+					debug("[update] Unable to keep a copy of the content, updating with the full content: " + e);
+				}
+			}
+			InputStream delta = copy != null ? BundleDelta.openDelta(signatures, copy) : null;
+			if (delta != null) {
+				// the content is read as the delta is sent
+				err = (Error) Utils.callRemoteMethod(getBundleAdmin(),
+					Utils.UPDATE_BUNDLE_DELTA,
+					new Object[] { id, delta });
+				if (err != null && err.getCode() == Error.BUNDLE_DELTA_MISMATCH_CODE) {
+					debug("[update] Delta update is not possible, updating with the full content: " + err);
+					in = copy.reopen();
+				} else {
+					in = null;
+				}
+			}
+			if (in != null) {
+				err = (Error) Utils.callRemoteMethod(getBundleAdmin(),
+					Utils.UPDATE_BUNDLE_METHOD,
+					new Object[] { id, in });
+			}
+		} catch (IOException e) {
+			throw new IAgentException("Unable to read the bundle content", IAgentErrors.ERROR_INTERNAL_ERROR, e);
+		} finally {
+			if (copy != null)
+				copy.dispose();
+			commands.invalidateState(id);
+		}
 		debug("[update] Bundle update result: " + err);
 		checkBundleErrorResult(err);
 	}
 
+	/**
+	 * Copies the read content to a temporary file, so that the full content
+	 * can be sent, if the delta doesn't match the content on the device.
+	 */
+	private static class ContentCopy extends FilterInputStream {
+
+		private File file;
+		private OutputStream out;
+		private InputStream reopened;
+
+		ContentCopy(InputStream in) throws IOException {
+			super(in);
+			file = File.createTempFile("bundle", ".tmp"); //$NON-NLS-1$ //$NON-NLS-2$
+			try {
+				out = new FileOutputStream(file);
+			} catch (IOException e) {
+				file.delete();
+				throw e;
+			}
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1)
+				out.write(b);
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0)
+				out.write(b, off, read);
+			return read;
+		}
+
+		public long skip(long n) throws IOException {
+			// skipped data must be copied too
+			byte[] buf = new byte[(int) Math.min(n, 4096)];
+			int read = read(buf, 0, buf.length);
+			return read == -1 ? 0 : read;
+		}
+
+		public boolean markSupported() {
+			return false;
+		}
+
+		public void close() {
+			// the content stream is closed by the caller of update()
+		}
+
+		/**
+		 * Returns the full content: the copy of the read part, followed by
+		 * the rest of the content stream.
+		 */
+		InputStream reopen() throws IOException {
+			out.close();
+			reopened = new SequenceInputStream(new FileInputStream(file), in);
+			return reopened;
+		}
+
+		void dispose() {
+			try {
+				out.close();
+				if (reopened != null)
+					reopened.close();
+			} catch (IOException e) {
+			}
+			file.delete();
+		}
+	}
+
+	/** returns a copy of cached headers, so that the callers can't change them */
+	private static Dictionary copy(Dictionary headers) {
+		if (headers instanceof Hashtable)
+			return (Dictionary) ((Hashtable) headers).clone();
+		return headers;
+	}
+
 	private void checkBundleErrorResult(Error err) throws IAgentException {
 		if (err == null)
 			return;
@@ -239,6 +430,21 @@ public class RemoteBundleImpl implements RemoteBundle {
 		return lastModified.longValue();
 	}
 
+	public String getDigest() throws IAgentException {
+		debug("[getDigest] >>>");
+		checkBundleState();
+		if (!Utils.isRemoteMethodDefined(getBundleAdmin(), Utils.GET_BUNDLE_DIGESTS)) {
+			debug("[getDigest] The remote agent doesn't support bundle digests");
+			return null;
+		}
+		String[] digests = (String[]) Utils.callRemoteMethod(getBundleAdmin(),
+			Utils.GET_BUNDLE_DIGESTS,
+			new Object[] { new long[] { id.longValue() } });
+		String digest = digests != null && digests.length > 0 ? digests[0] : null;
+		debug("[getDigest] bundle digest: " + digest);
+		return digest;
+	}
+
 	public RemoteService[] getRegisteredServices() throws IAgentException {
 		debug("[getRegisteredServices] >>>");
 		checkBundleState();
@@ -294,10 +500,7 @@ public class RemoteBundleImpl implements RemoteBundle {
 			debug("[getFragments] No fragment bundles");
 			return null;
 		}
-		RemoteBundle[] fragmentRemoteBundles = new RemoteBundle[fragmentBundleIDs.length];
-		for (int i = 0; i < fragmentRemoteBundles.length; i++) {
-			fragmentRemoteBundles[i] = commands.getBundle(fragmentBundleIDs[i]);
-		}
+		RemoteBundle[] fragmentRemoteBundles = commands.getBundlesByIds(fragmentBundleIDs);
 		debug("[getFragments] Attached fragments: " + DebugUtils.convertForDebug(fragmentRemoteBundles));
 		return fragmentRemoteBundles;
 	}
@@ -317,10 +520,7 @@ public class RemoteBundleImpl implements RemoteBundle {
 			debug("[getHosts] No host bundles");
 			return null;
 		}
-		RemoteBundle[] hostRemoteBundles = new RemoteBundle[hostBundleIDs.length];
-		for (int i = 0; i < hostRemoteBundles.length; i++) {
-			hostRemoteBundles[i] = commands.getBundle(hostBundleIDs[i]);
-		}
+		RemoteBundle[] hostRemoteBundles = commands.getBundlesByIds(hostBundleIDs);
 		debug("[getHosts] Hosts attached to: " + DebugUtils.convertForDebug(hostRemoteBundles));
 		return hostRemoteBundles;
 	}
@@ -11,6 +11,7 @@
 package org.tigris.mtoolkit.iagent.internal;
 
 import java.util.Dictionary;
+import java.util.Hashtable;
 
 import org.tigris.mtoolkit.iagent.IAgentErrors;
 import org.tigris.mtoolkit.iagent.IAgentException;
@@ -32,6 +33,7 @@ public class RemoteServiceImpl implements RemoteService {
 
 	private static final String SERVICE_ID = "service.id";
 	private static final String OBJECTCLASS = "objectClass";
+	private static final String PROPERTIES_KEY = "properties";
 	private PMPConnection initialPmpConnection;
 
 	public RemoteServiceImpl(ServiceManagerImpl manager, Dictionary props) {
@@ -100,6 +102,16 @@ public class RemoteServiceImpl implements RemoteService {
 	public Dictionary getProperties() throws IAgentException {
 		debug("[getProperties] >>>");
 		checkState();
+		RemoteStateCache cache = manager.getStateCache();
+		long generation = 0;
+		if (cache != null) {
+			generation = cache.getGeneration();
+			Dictionary properties = (Dictionary) cache.get(serviceId, PROPERTIES_KEY);
+			if (properties != null) {
+				debug("[getProperties] cached props: " + DebugUtils.convertForDebug(properties));
+				return copy(properties);
+			}
+		}
 		Dictionary properties = (Dictionary) Utils.callRemoteMethod(getServiceAdmin(),
 			Utils.GET_PROPERTIES_METHOD,
 			new Object[] { serviceId });
@@ -109,6 +121,17 @@ public class RemoteServiceImpl implements RemoteService {
 			checkState();
 		}
 		debug("[getProperties] props: " + DebugUtils.convertForDebug(properties));
+		if (cache != null) {
+			cache.put(serviceId, PROPERTIES_KEY, properties, generation);
+			return copy(properties);
+		}
+		return properties;
+	}
+
+	/** returns a copy of cached properties, so that the callers can't change them */
+	private static Dictionary copy(Dictionary properties) {
+		if (properties instanceof Hashtable)
+			return (Dictionary) ((Hashtable) properties).clone();
 		return properties;
 	}
 
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.internal;
+
+import java.util.Hashtable;
+
+/**
+ * Read-through cache of the state of remote bundles or services, keyed by
+ * their ids. The cache is bound to a PMP connection, on which the owning
+ * manager listens for the remote events. The entries of an object are
+ * invalidated when an event for it arrives or it is changed through this
+ * client, and the whole cache is dropped when the connection changes.
+ * <p>
+ * The cache is used only if the <code>iagent.cache.remoteState</code> system
+ * property is set to <code>true</code>.
+ */
+class RemoteStateCache {
+
+	static final boolean ENABLED = "true".equals(System.getProperty("iagent.cache.remoteState"));
+
+	/** marks the cached null values */
+	private static final Object NULL = new Object();
+
+	private String name;
+	// id (Long) -> Hashtable (key -> value)
+	private Hashtable entries = new Hashtable();
+	// the connection, which events keep the cache coherent
+	private Object connection;
+	// changed on every invalidation, so that values read before it aren't
+	// cached after it
+	private long generation;
+
+	private long hits;
+	private long misses;
+
+	RemoteStateCache(String name) {
+		this.name = name;
+	}
+
+	synchronized boolean isBoundTo(Object connection) {
+		return connection != null && this.connection == connection;
+	}
+
+	/**
+	 * Drops all entries and binds the cache to a new connection.
+	 */
+	synchronized void bind(Object connection) {
+		entries.clear();
+		this.connection = connection;
+		generation++;
+	}
+
+	/**
+	 * Drops all entries. Nothing is cached until the cache is bound again.
+	 */
+	synchronized void reset() {
+		bind(null);
+	}
+
+	/**
+	 * Returns the current generation, which must be passed to
+	 * {@link #put(Long, Object, Object, long)} for a value read after this
+	 * call.
+	 */
+	synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Returns the cached value or null, if there is no such value. The cached
+	 * nulls are returned as {@link #NULL}, see {@link #unwrap(Object)}.
+	 */
+	synchronized Object get(Long id, Object key) {
+		Hashtable values = (Hashtable) entries.get(id);
+		Object value = values != null ? values.get(key) : null;
+		if (value != null)
+			hits++;
+		else
+			misses++;
+		return value;
+	}
+
+	/**
+	 * Caches a value, unless the cache has been invalidated after the given
+	 * generation.
+	 */
+	synchronized void put(Long id, Object key, Object value, long generation) {
+		if (connection == null || generation != this.generation)
+			return;
+		Hashtable values = (Hashtable) entries.get(id);
+		if (values == null) {
+			values = new Hashtable();
+			entries.put(id, values);
+		}
+		values.put(key, value != null ? value : NULL);
+	}
+
+	synchronized void invalidate(Long id) {
+		entries.remove(id);
+		generation++;
+	}
+
+	static Object unwrap(Object value) {
+		return value == NULL ? null : value;
+	}
+
+	synchronized long getHitCount() {
+		return hits;
+	}
+
+	synchronized long getMissCount() {
+		return misses;
+	}
+
+	public synchronized String toString() {
+		return "RemoteStateCache[" + name + "; entries=" + entries.size() + "; hits=" + hits + "; misses=" + misses
+				+ "]";
+	}
+}
@@ -11,9 +11,14 @@
 package org.tigris.mtoolkit.iagent.internal;
 
 import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
 import org.tigris.mtoolkit.iagent.IAgentErrors;
 import org.tigris.mtoolkit.iagent.IAgentException;
 import org.tigris.mtoolkit.iagent.RemoteService;
@@ -35,11 +40,18 @@ public class ServiceManagerImpl implements ServiceManager, EventListener, Connec
 
 	private static final String CUSTOM_SERVICE_EVENT = "iagent_service_event";
 	private static final String EVENT_TYPE_KEY = "type";
+	private static final String SERVICE_ID_KEY = "service.id";
+	private static final String EVENTS_LOST = org.tigris.mtoolkit.iagent.pmp.PMPConnection.EVENTS_LOST;
 
 	private List serviceListeners = new LinkedList();
+	// listener -> Filter, for the listeners added with a filter
+	private Hashtable listenerFilters = new Hashtable();
 
 	private boolean addedConnectionListener;
 
+	// the state of the remote services, or null if the cache is disabled
+	private RemoteStateCache stateCache = RemoteStateCache.ENABLED ? new RemoteStateCache("services") : null;
+
 	public ServiceManagerImpl(DeviceConnectorImpl connector) {
 		if (connector == null)
 			throw new IllegalArgumentException();
@@ -78,7 +90,20 @@ public class ServiceManagerImpl implements ServiceManager, EventListener, Connec
 	}
 
 	public void addRemoteServiceListener(RemoteServiceListener listener) throws IAgentException {
-		debug("[addRemoteServiceListener] >>> listener: " + listener);
+		addRemoteServiceListener(listener, null);
+	}
+
+	public void addRemoteServiceListener(RemoteServiceListener listener, String filter) throws IAgentException {
+		debug("[addRemoteServiceListener] >>> listener: " + listener + "; filter: " + filter);
+		Filter eventFilter = null;
+		if (filter != null) {
+			try {
+				eventFilter = FrameworkUtil.createFilter(filter);
+			} catch (InvalidSyntaxException e) {
+				info("[addRemoteServiceListener] Filter check failed: " + e.getMessage());
+				throw new IllegalArgumentException("Invalid Filter Syntax: " + e.getMessage());
+			}
+		}
 		synchronized (this) {
 			if (!addedConnectionListener) {
 				connector.getConnectionManager().addConnectionListener(this);
@@ -88,13 +113,17 @@ public class ServiceManagerImpl implements ServiceManager, EventListener, Connec
 		synchronized (serviceListeners) {
 			if (!serviceListeners.contains(listener)) {
 				serviceListeners.add(listener);
-				PMPConnection connection = getConnection(false);
-				if (connection != null) {
-					debug("[addRemoteServiceListener] PMP connection available, adding event listener");
-					connection.addEventListener(this, new String[] { CUSTOM_SERVICE_EVENT });
-				}
 			} else {
-				debug("[addRemoteServiceListener] listener already contained in the list");
+				debug("[addRemoteServiceListener] listener already contained in the list, replacing its filter");
+			}
+			if (eventFilter != null)
+				listenerFilters.put(listener, eventFilter);
+			else
+				listenerFilters.remove(listener);
+			PMPConnection connection = getConnection(false);
+			if (connection != null) {
+				debug("[addRemoteServiceListener] PMP connection available, adding event listener");
+				connection.addEventListener(this, new String[] { CUSTOM_SERVICE_EVENT }, getRemoteFilter());
 			}
 		}
 	}
@@ -104,12 +133,16 @@ public class ServiceManagerImpl implements ServiceManager, EventListener, Connec
 		synchronized (serviceListeners) {
 			if (serviceListeners.contains(listener)) {
 				serviceListeners.remove(listener);
+				listenerFilters.remove(listener);
+				PMPConnection connection = getConnection(false);
 				if (serviceListeners.size() == 0) {
-					PMPConnection connection = getConnection(false);
-					if (connection != null) {
+					if (connection != null && !(stateCache != null && stateCache.isBoundTo(connection))) {
 						debug("[removeRemoteServiceListener] PMP connection is available, removing event listener");
 						connection.removeEventListener(this, new String[] { CUSTOM_SERVICE_EVENT });
 					}
+				} else if (connection != null) {
+					// the remaining listeners may need other events
+					connection.addEventListener(this, new String[] { CUSTOM_SERVICE_EVENT }, getRemoteFilter());
 				}
 			} else {
 				debug("[removeRemoteServiceListener] listener not found");
@@ -145,27 +178,64 @@ public class ServiceManagerImpl implements ServiceManager, EventListener, Connec
 		if (eventType.equals(CUSTOM_SERVICE_EVENT)) {
 			try {
 				Dictionary props = (Dictionary) event;
+				// the filters are matched against the event type too
+				RemoteServiceListener[] listeners = getListeners(props);
 				int type = ((Integer) props.remove(EVENT_TYPE_KEY)).intValue();
-				fireServiceEvent(props, type);
+				if (stateCache != null)
+					stateCache.invalidate((Long) props.get(SERVICE_ID_KEY));
+				fireServiceEvent(props, type, listeners);
 			} catch (Exception e) {
 				IAgentLog.error("[ServiceManagerImpl][event] Failed to process PMP event: "
 								+ event
 								+ "; type: "
 								+ eventType, e);
 			}
+		} else if (EVENTS_LOST.equals(eventType) && stateCache != null) {
+			debug("[event] Remote events have been lost, dropping the services state: " + stateCache);
+			stateCache.reset();
 		}
 	}
 
-	private void fireServiceEvent(Dictionary serviceProps, int type) {
-		debug("[fireServiceEvent] >>> serviceProps: " + DebugUtils.convertForDebug(serviceProps) + "; type=" + type);
-		RemoteServiceListener[] listeners;
+	/**
+	 * Returns the listeners, which filters match the event.
+	 */
+	private RemoteServiceListener[] getListeners(Dictionary eventProps) {
 		synchronized (serviceListeners) {
-			if (serviceListeners.size() != 0) {
-				listeners = (RemoteServiceListener[]) serviceListeners.toArray(new RemoteServiceListener[serviceListeners.size()]);
-			} else {
-				return;
+			List matching = new LinkedList();
+			for (Iterator it = serviceListeners.iterator(); it.hasNext();) {
+				Object listener = it.next();
+				Filter filter = (Filter) listenerFilters.get(listener);
+				if (filter == null || filter.match(eventProps))
+					matching.add(listener);
 			}
+			return (RemoteServiceListener[]) matching.toArray(new RemoteServiceListener[matching.size()]);
 		}
+	}
+
+	/**
+	 * Returns the filter, which the remote site applies to the service events,
+	 * or null if all events are needed.
+	 */
+	private String getRemoteFilter() {
+		if (stateCache != null)
+			// all events are needed to keep the cache coherent
+			return null;
+		synchronized (serviceListeners) {
+			StringBuffer buf = new StringBuffer();
+			for (Iterator it = serviceListeners.iterator(); it.hasNext();) {
+				Filter filter = (Filter) listenerFilters.get(it.next());
+				if (filter == null)
+					return null;
+				buf.append(filter.toString());
+			}
+			return serviceListeners.size() > 1 ? "(|" + buf + ")" : buf.toString();
+		}
+	}
+
+	private void fireServiceEvent(Dictionary serviceProps, int type, RemoteServiceListener[] listeners) {
+		debug("[fireServiceEvent] >>> serviceProps: " + DebugUtils.convertForDebug(serviceProps) + "; type=" + type);
+		if (listeners.length == 0)
+			return;
 		RemoteService service = new RemoteServiceImpl(this, serviceProps);
 		RemoteServiceEvent event = new RemoteServiceEvent(service, type);
 		debug("[fireServiceEvent] listener count: " + listeners.length + "; event=" + event);
@@ -185,6 +255,10 @@ public class ServiceManagerImpl implements ServiceManager, EventListener, Connec
 	}
 
 	public void connectionChanged(ConnectionEvent event) {
+		if (stateCache != null && event.getConnection().getType() == ConnectionManager.PMP_CONNECTION) {
+			debug("[connectionChanged] Dropping the services state: " + stateCache);
+			stateCache.reset();
+		}
 		if (event.getType() == ConnectionEvent.CONNECTED
 						&& event.getConnection().getType() == ConnectionManager.PMP_CONNECTION) {
 			synchronized (serviceListeners) {
@@ -192,7 +266,7 @@ public class ServiceManagerImpl implements ServiceManager, EventListener, Connec
 					try {
 						debug("[connectionChanged] PMP connection created, add event listener");
 						((PMPConnection) event.getConnection()).addEventListener(this,
-							new String[] { CUSTOM_SERVICE_EVENT });
+							new String[] { CUSTOM_SERVICE_EVENT }, getRemoteFilter());
 					} catch (IAgentException e) {
 						error("[connectionChanged] Failed to add event listener to PMP connection", e);
 					}
@@ -207,15 +281,44 @@ public class ServiceManagerImpl implements ServiceManager, EventListener, Connec
 		debug("[removeListeners] >>>");
 		synchronized (serviceListeners) {
 			serviceListeners.clear();
+			listenerFilters.clear();
 			PMPConnection connection = getConnection(false);
 			if (connection != null) {
 				debug("[removeListeners] PMP connection available, remove event listener");
-				connection.removeEventListener(this, new String[] { CUSTOM_SERVICE_EVENT });
+				connection.removeEventListener(this, new String[] { CUSTOM_SERVICE_EVENT, EVENTS_LOST });
 			}
 		}
+		if (stateCache != null)
+			stateCache.reset();
 		debug("[removeListeners] Listener successfully removed");
 	}
 
+	/**
+	 * Returns the cache of the remote services state, or null if it is
+	 * disabled or there is no connection. The first time the cache is used
+	 * with a connection, the service events are requested, so that it is kept
+	 * coherent.
+	 */
+	RemoteStateCache getStateCache() throws IAgentException {
+		if (stateCache == null)
+			return null;
+		PMPConnection connection = getConnection(false);
+		if (connection == null)
+			return null;
+		if (!stateCache.isBoundTo(connection)) {
+			synchronized (this) {
+				if (!addedConnectionListener) {
+					connector.getConnectionManager().addConnectionListener(this);
+					addedConnectionListener = true;
+				}
+			}
+			connection.addEventListener(this, new String[] { CUSTOM_SERVICE_EVENT, EVENTS_LOST });
+			stateCache.bind(connection);
+			debug("[getStateCache] Services state cache bound to " + connection);
+		}
+		return stateCache;
+	}
+
 	private final void debug(String message) {
 		DebugUtils.debug(this, message);
 	}
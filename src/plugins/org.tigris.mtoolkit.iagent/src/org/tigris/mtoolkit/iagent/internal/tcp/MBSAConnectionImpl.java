@@ -16,6 +16,7 @@ import org.tigris.mtoolkit.iagent.IAgentErrors;
 import org.tigris.mtoolkit.iagent.IAgentException;
 import org.tigris.mtoolkit.iagent.internal.IAgentCommands;
 import org.tigris.mtoolkit.iagent.internal.utils.DebugUtils;
+import org.tigris.mtoolkit.iagent.internal.utils.ThreadUtils;
 import org.tigris.mtoolkit.iagent.spi.ConnectionManager;
 import org.tigris.mtoolkit.iagent.spi.MBSAConnection;
 import org.tigris.mtoolkit.iagent.spi.MBSAConnectionCallBack;
@@ -308,7 +309,7 @@ public class MBSAConnectionImpl implements MBSAConnection, Runnable {
       }
       // create ping thread
       if (pingThread == null || !pingThread.isAlive()) {
-        pingThread = new Thread(this, "[MBSAConnectionImpl][ping]");
+        pingThread = ThreadUtils.createThread(this, "[MBSAConnectionImpl][ping]", false);
         debug("[MBSAConnectionImpl][connect] Starting ping thread: " + pingThread);
         // reset last cmd send time before start thread
         lastCmdTime = System.currentTimeMillis();              
@@ -333,7 +334,7 @@ public class MBSAConnectionImpl implements MBSAConnection, Runnable {
       is = connection.getInputStream();
 	  // create ping thread
       if (pingThread == null || !pingThread.isAlive()) {
-        pingThread = new Thread(this, "[MBSAConnectionImpl][ping]");
+        pingThread = ThreadUtils.createThread(this, "[MBSAConnectionImpl][ping]", false);
         debug("[MBSAConnectionImpl][connect] Starting ping thread: " + pingThread);
         // reset last cmd send time before start thread
         lastCmdTime = System.currentTimeMillis();              
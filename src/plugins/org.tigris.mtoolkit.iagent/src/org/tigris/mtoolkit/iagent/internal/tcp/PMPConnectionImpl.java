@@ -21,6 +21,7 @@ import org.tigris.mtoolkit.iagent.IAgentErrors;
 import org.tigris.mtoolkit.iagent.IAgentException;
 import org.tigris.mtoolkit.iagent.internal.utils.DebugUtils;
 import org.tigris.mtoolkit.iagent.pmp.EventListener;
+import org.tigris.mtoolkit.iagent.pmp.PMPBatch;
 import org.tigris.mtoolkit.iagent.pmp.PMPException;
 import org.tigris.mtoolkit.iagent.pmp.PMPService;
 import org.tigris.mtoolkit.iagent.pmp.PMPServiceFactory;
@@ -226,6 +227,16 @@ public class PMPConnectionImpl implements PMPConnection, EventListener {
 		pmpConnection.addEventListener(listener, eventTypes);
 	}
 
+	public void addEventListener(EventListener listener, String[] eventTypes, String filter) throws IAgentException {
+		debug("[addEventListener] >>> listener: " + listener + "; eventTypes: " + DebugUtils.convertForDebug(eventTypes) + "; filter: " + filter);
+		if (!isConnected()) {
+			info("[addEventListener] The connecton has been closed!");
+			throw new IAgentException("The connecton has been closed!", IAgentErrors.ERROR_DISCONNECTED);
+		}
+
+		pmpConnection.addEventListener(listener, eventTypes, filter);
+	}
+
 	public void removeEventListener(EventListener listener, String[] eventTypes) throws IAgentException {
 		debug("[removeEventListener] listener: " + listener + "; eventTypes: " + DebugUtils.convertForDebug(eventTypes));
 		if (!isConnected()) {
@@ -235,6 +246,15 @@ public class PMPConnectionImpl implements PMPConnection, EventListener {
 		pmpConnection.removeEventListener(listener, eventTypes);
 	}
 
+	public PMPBatch createBatch() throws IAgentException {
+		debug("[createBatch] >>>");
+		if (!isConnected()) {
+			info("[createBatch] The connecton has been closed!");
+			throw new IAgentException("The connecton has been closed!", IAgentErrors.ERROR_DISCONNECTED);
+		}
+		return pmpConnection.createBatch();
+	}
+
 	public RemoteObject getRemoteServiceAdmin() throws IAgentException {
 		return getRemoteAdmin(REMOTE_SERVICE_ADMIN_NAME);
 	}
@@ -131,6 +131,22 @@ public class MethodSignature {
 					+ parameters.length + " arguments are provided.");
 		return Utils.callRemoteMethod(obj, this, parameters);
 	}
+
+	/**
+	 * Sends the call without waiting for its result.
+	 * 
+	 * @see Utils#callRemoteMethodAsync(RemoteObject, MethodSignature, Object[])
+	 * @since 3.1
+	 */
+	public PendingCall callAsync(RemoteObject obj, Object[] parameters) throws IAgentException {
+		if (parameters == null)
+			throw new IllegalArgumentException(
+					"parameters array cannot be null, it must be empty if no args are passed");
+		if (parameterTypes.length != parameters.length)
+			throw new IllegalArgumentException("method signature expects " + parameterTypes.length + " arguments, but "
+					+ parameters.length + " arguments are provided.");
+		return Utils.callRemoteMethodAsync(obj, this, parameters);
+	}
 	
 	public boolean isDefined(RemoteObject obj) throws IAgentException {
 		if (obj == null)
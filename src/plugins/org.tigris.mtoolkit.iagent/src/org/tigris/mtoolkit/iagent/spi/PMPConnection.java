@@ -12,6 +12,7 @@ package org.tigris.mtoolkit.iagent.spi;
 
 import org.tigris.mtoolkit.iagent.IAgentException;
 import org.tigris.mtoolkit.iagent.pmp.EventListener;
+import org.tigris.mtoolkit.iagent.pmp.PMPBatch;
 import org.tigris.mtoolkit.iagent.pmp.RemoteObject;
 import org.tigris.mtoolkit.iagent.rpc.RemoteApplicationAdmin;
 import org.tigris.mtoolkit.iagent.rpc.RemoteBundleAdmin;
@@ -43,5 +44,20 @@ public interface PMPConnection extends AbstractConnection {
 
 	public void addEventListener(EventListener listener, String[] eventTypes) throws IAgentException;
 
+	/**
+	 * Adds a listener, which is interested only in the events matching the
+	 * given LDAP filter. The filter is evaluated on the remote side, if it is
+	 * supported, but the listener may still receive events, which don't match
+	 * it.
+	 * 
+	 * @since 3.1
+	 */
+	public void addEventListener(EventListener listener, String[] eventTypes, String filter) throws IAgentException;
+
 	public void removeEventListener(EventListener listener, String[] eventTypes) throws IAgentException;
+
+	/**
+	 * @since 3.1
+	 */
+	public PMPBatch createBatch() throws IAgentException;
 }
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.spi;
+
+import org.tigris.mtoolkit.iagent.IAgentException;
+import org.tigris.mtoolkit.iagent.internal.utils.DebugUtils;
+import org.tigris.mtoolkit.iagent.pmp.PMPException;
+import org.tigris.mtoolkit.iagent.pmp.PMPFuture;
+import org.tigris.mtoolkit.iagent.pmp.RemoteObject;
+
+/**
+ * A remote method call, which has been sent, but whose result may not be
+ * received yet. Instances are returned by
+ * {@link Utils#callRemoteMethodAsync(RemoteObject, int, Object[])}.
+ * 
+ * @since 3.1
+ */
+public class PendingCall {
+
+	private RemoteObject remote;
+	private MethodSignature methodSignature;
+	private Object[] parameters;
+	private PMPFuture future;
+	/** the error, which occurred while sending the call */
+	private PMPException failure;
+
+	private boolean done = false;
+	private Object result;
+
+	PendingCall(RemoteObject remote, MethodSignature methodSignature, Object[] parameters, PMPFuture future) {
+		this.remote = remote;
+		this.methodSignature = methodSignature;
+		this.parameters = parameters;
+		this.future = future;
+	}
+
+	PendingCall(RemoteObject remote, MethodSignature methodSignature, Object[] parameters, PMPException failure) {
+		this.remote = remote;
+		this.methodSignature = methodSignature;
+		this.parameters = parameters;
+		this.failure = failure;
+	}
+
+	/**
+	 * Returns true, if the result is available without waiting.
+	 */
+	public synchronized boolean isDone() {
+		return done || failure != null || future.isDone();
+	}
+
+	/**
+	 * Waits for the result of the call. If the call has failed, it is
+	 * repeated once, in the same way as
+	 * {@link Utils#callRemoteMethod(RemoteObject, int, Object[])} does.
+	 * 
+	 * @return the result of the remote method
+	 * @throws IAgentException
+	 *             if the call has failed
+	 */
+	public synchronized Object get() throws IAgentException {
+		if (!done) {
+			try {
+				if (failure != null)
+					throw failure;
+				result = future.get();
+				if (DebugUtils.DEBUG_ENABLED)
+					DebugUtils.debug(this, "[get] remote method invocation result: " + result);
+			} catch (PMPException e) {
+				result = Utils.repeatRemoteMethod(remote, methodSignature, parameters, e);
+			}
+			done = true;
+			// the parameters may hold large objects, don't keep them
+			parameters = null;
+		}
+		return result;
+	}
+
+	public String toString() {
+		return "PendingCall[" + methodSignature + "]";
+	}
+}
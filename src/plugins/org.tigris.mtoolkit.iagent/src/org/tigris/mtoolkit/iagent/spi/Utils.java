@@ -16,6 +16,7 @@ import org.tigris.mtoolkit.iagent.IAgentErrors;
 import org.tigris.mtoolkit.iagent.IAgentException;
 import org.tigris.mtoolkit.iagent.internal.tcp.PMPRemoteObjectAdapter;
 import org.tigris.mtoolkit.iagent.internal.utils.DebugUtils;
+import org.tigris.mtoolkit.iagent.pmp.PMPBatch;
 import org.tigris.mtoolkit.iagent.pmp.PMPException;
 import org.tigris.mtoolkit.iagent.pmp.RemoteMethod;
 import org.tigris.mtoolkit.iagent.pmp.RemoteObject;
@@ -98,6 +99,18 @@ public class Utils {
 			new MethodSignature("getSystemProperty", new String[] { STRING_TYPE }, true), 
 
 			new MethodSignature("getBundlesSnapshot", new String[] { "int", Dictionary.class.getName() }, true),
+			new MethodSignature("getBundlesSnapshotSince", new String[] { "long", "int", Dictionary.class.getName() },
+				true),
+			new MethodSignature("getBundleDigests", new String[] { long[].class.getName() }, true),
+			new MethodSignature("getBundleSignatures", new String[] { "long" }, true),
+			new MethodSignature("updateBundleDelta", new String[] { "long", INPUT_STREAM_TYPE }, true),
+
+			// methods for uploading deployment packages in chunks
+			new MethodSignature("beginDeploymentPackageUpload", new String[] { STRING_TYPE, "long" }, true),
+			new MethodSignature("appendDeploymentPackageUpload", new String[] { STRING_TYPE, "long",
+				byte[].class.getName() }, true),
+			new MethodSignature("commitDeploymentPackageUpload", new String[] { STRING_TYPE }, true),
+			new MethodSignature("cancelDeploymentPackageUpload", new String[] { STRING_TYPE }, true),
 	};
 
 	public static final int INSTALL_BUNDLE_METHOD = 0;
@@ -161,7 +174,47 @@ public class Utils {
 	 */
 	public static final int GET_BUNDLES_SNAPSHOT = 45;
 
-	public static final int LAST = 45;
+	/**
+	 * @since 3.1
+	 */
+	public static final int GET_BUNDLES_SNAPSHOT_SINCE = 46;
+
+	/**
+	 * @since 3.1
+	 */
+	public static final int GET_BUNDLE_DIGESTS = 47;
+
+	/**
+	 * @since 3.1
+	 */
+	public static final int GET_BUNDLE_SIGNATURES = 48;
+
+	/**
+	 * @since 3.1
+	 */
+	public static final int UPDATE_BUNDLE_DELTA = 49;
+
+	/**
+	 * @since 3.1
+	 */
+	public static final int BEGIN_DP_UPLOAD_METHOD = 50;
+
+	/**
+	 * @since 3.1
+	 */
+	public static final int APPEND_DP_UPLOAD_METHOD = 51;
+
+	/**
+	 * @since 3.1
+	 */
+	public static final int COMMIT_DP_UPLOAD_METHOD = 52;
+
+	/**
+	 * @since 3.1
+	 */
+	public static final int CANCEL_DP_UPLOAD_METHOD = 53;
+
+	public static final int LAST = 53;
 
 	static {
 		if (METHOD_SIGNATURES.length != LAST + 1) {
@@ -221,24 +274,115 @@ public class Utils {
 		try {
 			return callRemoteMethod0(remote, parameters, methodSignature);
 		} catch (PMPException e) {
-			info("[callRemoteMethod] Method invocation failed", e);
-			if (remote instanceof PMPRemoteObjectAdapter) {
-				int verificationResult = ((PMPRemoteObjectAdapter) remote).verifyRemoteReference();
-				if (verificationResult == PMPRemoteObjectAdapter.REPEAT) {
-					debug("[callRemoteMethod] Remote reference verification says REPEAT");
-					try {
-						return callRemoteMethod0(remote, parameters, methodSignature);
-					} catch (PMPException e1) {
-						info("[callRemoteMethod] Method invocation failed", e);
-						throw new IAgentException("Unable to call method: " + methodSignature.name,
-								IAgentErrors.ERROR_INTERNAL_ERROR, e1);
-					}
+			return repeatRemoteMethod(remote, methodSignature, parameters, e);
+		}
+	}
+
+	/**
+	 * Sends the method invocation request without waiting for its result. The
+	 * result is taken with {@link PendingCall#get()}, so many calls can be
+	 * issued one after another and then waited once.
+	 * 
+	 * @param remote
+	 * @param method
+	 * @param parameters
+	 * @return the pending call
+	 * @throws IAgentException
+	 * @since 3.1
+	 */
+	public static PendingCall callRemoteMethodAsync(RemoteObject remote, int method, Object[] parameters)
+			throws IAgentException {
+		MethodSignature methodSignature = METHOD_SIGNATURES[method];
+		if (DebugUtils.DEBUG_ENABLED)
+			debug("[callRemoteMethodAsync] >>> " + formatRemoteMethodInformation(remote, method, methodSignature));
+		return callRemoteMethodAsync(remote, methodSignature, parameters);
+	}
+
+	/**
+	 * @see #callRemoteMethodAsync(RemoteObject, int, Object[])
+	 * @since 3.1
+	 */
+	public static PendingCall callRemoteMethodAsync(RemoteObject remote, MethodSignature methodSignature,
+			Object[] parameters) throws IAgentException {
+		RemoteMethod method;
+		try {
+			method = getRemoteMethod(remote, methodSignature);
+		} catch (PMPException e) {
+			info("[callRemoteMethodAsync] Failed to get method", e);
+			// the failure is reported when the result is requested
+			return new PendingCall(remote, methodSignature, parameters, e);
+		}
+		if (method == null)
+			throw new IAgentException("Method " + methodSignature + " is not defined.",
+					IAgentErrors.ERROR_INTERNAL_ERROR);
+		try {
+			return new PendingCall(remote, methodSignature, parameters, method.invokeAsync(parameters,
+					methodSignature.shouldSerialize));
+		} catch (PMPException e) {
+			info("[callRemoteMethodAsync] Method invocation failed", e);
+			return new PendingCall(remote, methodSignature, parameters, e);
+		}
+	}
+
+	/**
+	 * Adds a method call to a batch. The result is taken with
+	 * {@link PendingCall#get()}, after the batch is sent.
+	 * 
+	 * @param batch
+	 * @param remote
+	 * @param method
+	 * @param parameters
+	 * @return the pending call
+	 * @throws IAgentException
+	 * @since 3.1
+	 */
+	public static PendingCall addToBatch(PMPBatch batch, RemoteObject remote, int method, Object[] parameters)
+			throws IAgentException {
+		MethodSignature methodSignature = METHOD_SIGNATURES[method];
+		if (DebugUtils.DEBUG_ENABLED)
+			debug("[addToBatch] >>> " + formatRemoteMethodInformation(remote, method, methodSignature));
+		RemoteMethod remoteMethod;
+		try {
+			remoteMethod = getRemoteMethod(remote, methodSignature);
+		} catch (PMPException e) {
+			info("[addToBatch] Failed to get method", e);
+			return new PendingCall(remote, methodSignature, parameters, e);
+		}
+		if (remoteMethod == null)
+			throw new IAgentException("Method " + methodSignature + " is not defined.",
+					IAgentErrors.ERROR_INTERNAL_ERROR);
+		try {
+			return new PendingCall(remote, methodSignature, parameters, batch.add(remoteMethod, parameters,
+					methodSignature.shouldSerialize));
+		} catch (PMPException e) {
+			info("[addToBatch] Failed to add method call", e);
+			return new PendingCall(remote, methodSignature, parameters, e);
+		}
+	}
+
+	/**
+	 * Called when a method invocation fails. Verifies the remote reference and
+	 * repeats the invocation once, if the reference has been restored.
+	 */
+	static Object repeatRemoteMethod(RemoteObject remote, MethodSignature methodSignature, Object[] parameters,
+			PMPException e) throws IAgentException {
+		info("[callRemoteMethod] Method invocation failed", e);
+		if (remote instanceof PMPRemoteObjectAdapter) {
+			int verificationResult = ((PMPRemoteObjectAdapter) remote).verifyRemoteReference();
+			if (verificationResult == PMPRemoteObjectAdapter.REPEAT) {
+				debug("[callRemoteMethod] Remote reference verification says REPEAT");
+				try {
+					return callRemoteMethod0(remote, parameters, methodSignature);
+				} catch (PMPException e1) {
+					info("[callRemoteMethod] Method invocation failed", e);
+					throw new IAgentException("Unable to call method: " + methodSignature.name,
+							IAgentErrors.ERROR_INTERNAL_ERROR, e1);
 				}
 			}
-			info("[callRemoteMethod] Method invocation failed", e);
-			throw new IAgentException("Unable to call method: " + methodSignature.name,
-					IAgentErrors.ERROR_INTERNAL_ERROR, e);
 		}
+		info("[callRemoteMethod] Method invocation failed", e);
+		throw new IAgentException("Unable to call method: " + methodSignature.name,
+				IAgentErrors.ERROR_INTERNAL_ERROR, e);
 	}
 
 	public static boolean isRemoteMethodDefined(RemoteObject remote, int method) throws IAgentException {
@@ -11,7 +11,6 @@
 package org.tigris.mtoolkit.osgimanagement.dp.logic;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
@@ -95,7 +94,8 @@ public class InstallDeploymentOperation extends RemoteDeploymentOperation {
 					}
 				}
 			}
-			framework.getConnector().getDeploymentManager().installDeploymentPackage(new FileInputStream(sourceFile));
+			// uploaded in chunks, which are resumed if the connection drops
+			framework.getConnector().getDeploymentManager().installDeploymentPackage(sourceFile);
 		} catch (IOException e) {
 		}
 		return Status.OK_STATUS;
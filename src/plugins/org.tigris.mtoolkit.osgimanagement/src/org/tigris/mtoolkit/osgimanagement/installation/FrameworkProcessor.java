@@ -14,6 +14,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Hashtable;
@@ -24,6 +26,7 @@ import java.util.Vector;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.MultiStatus;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.Status;
 import org.eclipse.core.runtime.SubMonitor;
@@ -34,14 +37,17 @@ import org.eclipse.jface.resource.ImageDescriptor;
 import org.eclipse.jface.viewers.ArrayContentProvider;
 import org.eclipse.jface.viewers.LabelProvider;
 import org.eclipse.jface.window.Window;
+import org.eclipse.osgi.util.NLS;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.ui.dialogs.ListDialog;
 import org.eclipse.ui.statushandlers.StatusManager;
 import org.tigris.mtoolkit.common.installation.InstallationItem;
 import org.tigris.mtoolkit.common.installation.InstallationItemProcessor;
 import org.tigris.mtoolkit.common.installation.InstallationTarget;
+import org.tigris.mtoolkit.common.installation.MultiTargetInstallationItemProcessor;
 import org.tigris.mtoolkit.iagent.DeviceConnector;
 import org.tigris.mtoolkit.iagent.IAgentException;
+import org.tigris.mtoolkit.iagent.util.DigestUtils;
 import org.tigris.mtoolkit.osgimanagement.installation.PluginProvider.PluginItem;
 import org.tigris.mtoolkit.osgimanagement.internal.FrameWorkView;
 import org.tigris.mtoolkit.osgimanagement.internal.FrameworkPlugin;
@@ -56,12 +62,20 @@ import org.tigris.mtoolkit.osgimanagement.model.Framework;
 /**
  * @since 5.0
  */
-public class FrameworkProcessor implements InstallationItemProcessor {
+public class FrameworkProcessor implements MultiTargetInstallationItemProcessor {
 
 	private static FrameworkProcessor defaultinstance;
 	private static final String MIME_JAR = "application/java-archive";
 	private static final String MIME_ZIP = "application/zip";
 	private static final String PROP_JVM_NAME = "jvm.name";
+	private static final String CACHE_FOLDER = "install_cache";
+
+	/**
+	 * The maximum number of frameworks, to which an item is installed at the
+	 * same time.
+	 */
+	private static final int INSTALL_JOBS = Math.max(1, Integer.getInteger("osgimanagement.install.parallelism", 4)
+			.intValue());
 
 	private static Vector additionalProcessors = new Vector();
 	
@@ -125,6 +139,89 @@ public class FrameworkProcessor implements InstallationItemProcessor {
 
 		Framework framework = ((FrameworkTarget) target).getFramework();
 
+		IStatus connectStatus = connectFramework(framework);
+		if (!connectStatus.isOK()) {
+			return connectStatus;
+		}
+
+		Map preparationProps = new Hashtable();
+		IStatus propsStatus = getPreparationProperties(framework, preparationProps);
+		if (!propsStatus.isOK()) {
+			return propsStatus;
+		}
+
+		IStatus preparationStatus = item.prepare(subMonitor.newChild(50), preparationProps);
+
+		if (preparationStatus.getSeverity() == IStatus.ERROR || preparationStatus.getSeverity() == IStatus.CANCEL) {
+			return preparationStatus;
+		}
+			
+		if (item instanceof PluginItem) {
+			IStatus status = ((PluginItem) item).checkAdditionalBundles((FrameworkImpl) framework, monitor);
+			if (status.getSeverity() == IStatus.CANCEL) {
+				monitor.setCanceled(true);
+				return status;
+			}
+		}
+
+		InputStream input = null;
+		try {
+			Vector processors = getProcessors(item.getMimeType());
+
+			final FrameworkProcessor processor[] = new FrameworkProcessor[] { (FrameworkProcessor) processors
+					.elementAt(0) };
+			if (processors.size() > 1) {
+				final FrameworkProcessor prArr[] = new FrameworkProcessor[processors.size()];
+				for (int i = 0; i < prArr.length; i++) {
+					FrameworkProcessor pr = (FrameworkProcessor) processors.elementAt(i);
+					prArr[i] = pr;
+				}
+				Display.getDefault().syncExec(new Runnable() {
+					public void run() {
+						ListDialog dialog = new ListDialog(FrameWorkView.getShell());
+
+						dialog.setTitle("Select processor");
+						dialog.setLabelProvider(new LabelProvider());
+						dialog.setMessage("Select installation processor for " + item.getName());
+						dialog.setContentProvider(new ArrayContentProvider());
+						dialog.setInput(Arrays.asList(prArr));
+						dialog.setInitialSelections(new Object[] { prArr[0] });
+
+						int result = dialog.open();
+						if (result == Window.CANCEL) {
+							monitor.setCanceled(true);
+						} else {
+							processor[0] = (FrameworkProcessor) dialog.getResult()[0];
+						}
+					}
+				});
+				if (monitor.isCanceled()) {
+					return Status.CANCEL_STATUS;
+				}
+			}
+
+			input = item.getInputStream();
+			processor[0].install(input, item, framework, monitor);
+		} catch (Exception e) {
+			return Util.newStatus(IStatus.ERROR, "Remote content installation failed", e);
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+				}
+			}
+			item.dispose();
+		}
+
+		monitor.done();
+		if (monitor.isCanceled()) {
+			return Status.CANCEL_STATUS;
+		}
+		return Status.OK_STATUS;
+	}
+
+	private IStatus connectFramework(Framework framework) {
 		// TODO: Connecting to framework should report the connection progress
 		// to the current monitor
 		if (!framework.isConnected()) {
@@ -147,9 +244,10 @@ public class FrameworkProcessor implements InstallationItemProcessor {
 				}
 			}
 		}
+		return Status.OK_STATUS;
+	}
 
-		Map preparationProps = new Hashtable();
-
+	private IStatus getPreparationProperties(Framework framework, Map preparationProps) {
 		// Signing properties
 		preparationProps.putAll(framework.getSigningProperties());
 
@@ -173,73 +271,167 @@ public class FrameworkProcessor implements InstallationItemProcessor {
 				preparationProps.put(PROP_JVM_NAME, "Dalvik");
 			}
 		}
+		return Status.OK_STATUS;
+	}
 
-		IStatus preparationStatus = item.prepare(subMonitor.newChild(50), preparationProps);
-
-		if (preparationStatus.getSeverity() == IStatus.ERROR || preparationStatus.getSeverity() == IStatus.CANCEL) {
-			return preparationStatus;
+	private Vector getProcessors(String mimeType) {
+		Vector processors = new Vector();
+		if (mimeType.equals(MIME_JAR) || mimeType.equals(MIME_ZIP)) {
+			processors.addElement(this);
 		}
-			
-		if (item instanceof PluginItem) {
-			IStatus status = ((PluginItem) item).checkAdditionalBundles((FrameworkImpl) framework, monitor);
-			if (status.getSeverity() == IStatus.CANCEL) {
-				monitor.setCanceled(true);
-				return status;
+		for (int i = 0; useAdditionalProcessors && i < additionalProcessors.size(); i++) {
+			String procMimeTypes[] = ((InstallationItemProcessor) additionalProcessors.elementAt(i))
+					.getSupportedMimeTypes();
+			for (int j = 0; j < procMimeTypes.length; j++) {
+				if (mimeType.equals(procMimeTypes[j])) {
+					processors.addElement(additionalProcessors.elementAt(i));
+					break;
+				}
 			}
 		}
+		return processors;
+	}
 
-		InputStream input = null;
-		try {
-			String mimeType = item.getMimeType();
-			Vector processors = new Vector();
-			if (mimeType.equals(MIME_JAR) || mimeType.equals(MIME_ZIP)) {
-				processors.addElement(this);
+	/**
+	 * Installs the item to many frameworks at once. The item is prepared and
+	 * saved once for all frameworks with the same preparation properties, and
+	 * the saved file is installed to the frameworks in parallel by at most
+	 * {@link #INSTALL_JOBS} jobs. Items, which are not plain bundles, are
+	 * installed to the frameworks one after another.
+	 * 
+	 * @since 5.1
+	 */
+	public IStatus processInstallationItem(InstallationItem item, InstallationTarget[] targets,
+			IProgressMonitor monitor) {
+		Vector processors = getProcessors(item.getMimeType());
+		if (processors.size() != 1 || processors.elementAt(0) != this) {
+			SubMonitor subMonitor = SubMonitor.convert(monitor, targets.length);
+			MultiStatus result = new MultiStatus(FrameworkPlugin.PLUGIN_ID, 0, NLS.bind(
+				"Installation of {0} to {1} frameworks", item.getName(), new Integer(targets.length)), null);
+			for (int i = 0; i < targets.length && !monitor.isCanceled(); i++) {
+				addTargetStatus(result, targets[i],
+					processInstallationItem(item, targets[i], subMonitor.newChild(1)));
 			}
-			for (int i = 0; useAdditionalProcessors && i < additionalProcessors.size(); i++) {
-				String procMimeTypes[] = ((InstallationItemProcessor) additionalProcessors.elementAt(i))
-						.getSupportedMimeTypes();
-				for (int j = 0; j < procMimeTypes.length; j++) {
-					if (mimeType.equals(procMimeTypes[j])) {
-						processors.addElement(additionalProcessors.elementAt(i));
+			return monitor.isCanceled() ? Status.CANCEL_STATUS : result;
+		}
+
+		SubMonitor subMonitor = SubMonitor.convert(monitor, targets.length * 3);
+		final Framework[] frameworks = new Framework[targets.length];
+		final Map[] preparationProps = new Map[targets.length];
+		final IStatus[] statuses = new IStatus[targets.length];
+		for (int i = 0; i < targets.length; i++) {
+			frameworks[i] = ((FrameworkTarget) targets[i]).getFramework();
+			preparationProps[i] = new Hashtable();
+		}
+
+		// connect and get the preparation properties
+		subMonitor.setTaskName("Connecting to frameworks");
+		runInParallel(frameworks, statuses, new TargetTask() {
+			public IStatus run(int index, IProgressMonitor monitor) {
+				IStatus status = connectFramework(frameworks[index]);
+				if (!status.isOK())
+					return status;
+				return getPreparationProperties(frameworks[index], preparationProps[index]);
+			}
+		}, subMonitor.newChild(targets.length));
+		if (monitor.isCanceled())
+			return Status.CANCEL_STATUS;
+
+		// prepare and save the item once for every set of properties
+		subMonitor.setTaskName(NLS.bind("Preparing {0}", item.getName()));
+		final File[] files = new File[targets.length];
+		Map preparedFiles = new Hashtable();
+		File runFolder;
+		try {
+			runFolder = createRunFolder();
+		} catch (IOException e) {
+			return Util.newStatus(IStatus.ERROR, "Remote content installation failed", e);
+		}
+		try {
+			SubMonitor prepareMonitor = subMonitor.newChild(targets.length);
+			prepareMonitor.setWorkRemaining(targets.length);
+			for (int i = 0; i < targets.length && !monitor.isCanceled(); i++) {
+				if (statuses[i] != null) {
+					prepareMonitor.worked(1);
+					continue;
+				}
+				if (item instanceof PluginItem) {
+					IStatus status = ((PluginItem) item).checkAdditionalBundles((FrameworkImpl) frameworks[i], monitor);
+					if (status.getSeverity() == IStatus.CANCEL) {
+						monitor.setCanceled(true);
 						break;
 					}
 				}
+				Object prepared = preparedFiles.get(preparationProps[i]);
+				if (prepared == null) {
+					prepared = prepareFile(item, preparationProps[i], runFolder, prepareMonitor.newChild(1));
+					preparedFiles.put(preparationProps[i], prepared);
+				} else {
+					prepareMonitor.worked(1);
+				}
+				if (prepared instanceof File)
+					files[i] = (File) prepared;
+				else
+					statuses[i] = (IStatus) prepared;
 			}
-
-			final FrameworkProcessor processor[] = new FrameworkProcessor[] { (FrameworkProcessor) processors
-					.elementAt(0) };
-			if (processors.size() > 1) {
-				final FrameworkProcessor prArr[] = new FrameworkProcessor[processors.size()];
-				for (int i = 0; i < prArr.length; i++) {
-					FrameworkProcessor pr = (FrameworkProcessor) processors.elementAt(i);
-					prArr[i] = pr;
+			if (monitor.isCanceled())
+				return Status.CANCEL_STATUS;
+
+			// install the saved files in parallel
+			subMonitor.setTaskName(NLS.bind("Installing {0}", item.getName()));
+			runInParallel(frameworks, statuses, new TargetTask() {
+				public IStatus run(int index, IProgressMonitor monitor) {
+					InstallBundleOperation operation = new InstallBundleOperation(files[index],
+						(FrameworkImpl) frameworks[index]);
+					operation.setInteractive(false);
+					return operation.runOperation(monitor);
 				}
-				Display.getDefault().syncExec(new Runnable() {
-					public void run() {
-						ListDialog dialog = new ListDialog(FrameWorkView.getShell());
+			}, subMonitor.newChild(targets.length));
+		} finally {
+			delete(runFolder);
+		}
 
-						dialog.setTitle("Select processor");
-						dialog.setLabelProvider(new LabelProvider());
-						dialog.setMessage("Select installation processor for " + item.getName());
-						dialog.setContentProvider(new ArrayContentProvider());
-						dialog.setInput(Arrays.asList(prArr));
-						dialog.setInitialSelections(new Object[] { prArr[0] });
+		monitor.done();
+		if (monitor.isCanceled()) {
+			return Status.CANCEL_STATUS;
+		}
+		int installed = 0;
+		for (int i = 0; i < statuses.length; i++) {
+			if (statuses[i] != null && statuses[i].isOK())
+				installed++;
+		}
+		MultiStatus result = new MultiStatus(FrameworkPlugin.PLUGIN_ID, 0, NLS.bind(
+			"{0} installed to {1} of {2} frameworks", new Object[] { item.getName(), new Integer(installed),
+				new Integer(targets.length) }), null);
+		for (int i = 0; i < targets.length; i++) {
+			addTargetStatus(result, targets[i], statuses[i]);
+		}
+		return result;
+	}
 
-						int result = dialog.open();
-						if (result == Window.CANCEL) {
-							monitor.setCanceled(true);
-						} else {
-							processor[0] = (FrameworkProcessor) dialog.getResult()[0];
-						}
-					}
-				});
-				if (monitor.isCanceled()) {
-					return Status.CANCEL_STATUS;
-				}
-			}
+	private static void addTargetStatus(MultiStatus result, InstallationTarget target, IStatus status) {
+		if (status == null || status.isOK()) {
+			result.add(Util.newStatus(IStatus.OK, target.getName() + ": installed", null));
+		} else {
+			result.add(Util.newStatus(target.getName() + ": " + status.getMessage(), status));
+		}
+	}
 
+	/**
+	 * Prepares the item with the given properties and saves its content in
+	 * the folder of the installation, see {@link #saveCachedFile}.
+	 * 
+	 * @return the saved file or the status of the failure
+	 */
+	private Object prepareFile(InstallationItem item, Map preparationProps, File runFolder, IProgressMonitor monitor) {
+		IStatus preparationStatus = item.prepare(monitor, preparationProps);
+		if (preparationStatus.getSeverity() == IStatus.ERROR || preparationStatus.getSeverity() == IStatus.CANCEL) {
+			return preparationStatus;
+		}
+		InputStream input = null;
+		try {
 			input = item.getInputStream();
-			processor[0].install(input, item, framework, monitor);
+			return saveCachedFile(input, item.getName(), runFolder);
 		} catch (Exception e) {
 			return Util.newStatus(IStatus.ERROR, "Remote content installation failed", e);
 		} finally {
@@ -251,12 +443,165 @@ public class FrameworkProcessor implements InstallationItemProcessor {
 			}
 			item.dispose();
 		}
+	}
 
-		monitor.done();
-		if (monitor.isCanceled()) {
-			return Status.CANCEL_STATUS;
+	/**
+	 * Creates a new folder for the files of a single installation. The folder
+	 * is owned by the installation, so that concurrent installations and the
+	 * leftovers of earlier ones are never reused or deleted.
+	 */
+	private File createRunFolder() throws IOException {
+		IPath statePath = Platform.getStateLocation(FrameworkPlugin.getDefault().getBundle());
+		File cacheFolder = new File(statePath.toFile(), CACHE_FOLDER);
+		if (!cacheFolder.exists() && !cacheFolder.mkdirs())
+			throw new IOException("Failed to create bundle state folder");
+		File folder = File.createTempFile("install", ".tmp", cacheFolder);
+		if (!folder.delete() || !folder.mkdir())
+			throw new IOException("Failed to create " + folder);
+		return folder;
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		for (int i = 0; files != null && i < files.length; i++)
+			delete(files[i]);
+		file.delete();
+	}
+
+	/**
+	 * Saves the content in a folder of the installation, named after its
+	 * SHA-256 digest, so that the same content is stored only once.
+	 */
+	private File saveCachedFile(InputStream input, String name, File runFolder) throws IOException {
+		MessageDigest digest = DigestUtils.newDigest();
+		if (digest == null)
+			throw new IOException(DigestUtils.ALGORITHM + " is not available");
+		File temp = File.createTempFile("content", ".tmp", runFolder);
+		writeFile(new DigestInputStream(input, digest), temp);
+		File file = new File(new File(runFolder, DigestUtils.toHex(digest.digest())), name);
+		if (file.exists()) {
+			temp.delete();
+			return file;
+		}
+		if (!file.getParentFile().exists() && !file.getParentFile().mkdirs() || !temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Failed to save " + name);
+		}
+		return file;
+	}
+
+	/**
+	 * The work, done for a single framework.
+	 */
+	private interface TargetTask {
+		IStatus run(int index, IProgressMonitor monitor);
+	}
+
+	/**
+	 * Runs the task for the frameworks, which statuses are not set yet, in at
+	 * most {@link #INSTALL_JOBS} jobs and stores the results in the statuses.
+	 */
+	private void runInParallel(Framework[] frameworks, IStatus[] statuses, TargetTask task, SubMonitor monitor) {
+		Vector indexes = new Vector();
+		for (int i = 0; i < frameworks.length; i++) {
+			if (statuses[i] == null)
+				indexes.addElement(new Integer(i));
+		}
+		monitor.setWorkRemaining(frameworks.length);
+		monitor.worked(frameworks.length - indexes.size());
+		Vector queue = (Vector) indexes.clone();
+		int jobsCount = Math.min(INSTALL_JOBS, indexes.size());
+		TargetJob[] jobs = new TargetJob[jobsCount];
+		for (int i = 0; i < jobsCount; i++) {
+			jobs[i] = new TargetJob(frameworks, statuses, queue, task, monitor);
+			jobs[i].schedule();
+		}
+		int done = 0;
+		while (done < indexes.size()) {
+			synchronized (statuses) {
+				int finished = 0;
+				for (int i = 0; i < indexes.size(); i++) {
+					if (statuses[((Integer) indexes.elementAt(i)).intValue()] != null)
+						finished++;
+				}
+				if (finished > done) {
+					monitor.worked(finished - done);
+					done = finished;
+					continue;
+				}
+				boolean running = false;
+				for (int i = 0; i < jobsCount; i++) {
+					if (monitor.isCanceled())
+						jobs[i].cancel();
+					running |= jobs[i].getState() != Job.NONE;
+				}
+				if (!running)
+					break;
+				try {
+					statuses.wait(200);
+				} catch (InterruptedException e) {
+					monitor.setCanceled(true);
+				}
+			}
+		}
+		for (int i = 0; i < jobsCount; i++) {
+			try {
+				jobs[i].join();
+			} catch (InterruptedException e) {
+				monitor.setCanceled(true);
+			}
+		}
+	}
+
+	/**
+	 * Runs a task for the frameworks, taken one by one from a shared queue.
+	 */
+	private static class TargetJob extends Job {
+		private Framework[] frameworks;
+		private IStatus[] statuses;
+		private Vector queue;
+		private TargetTask task;
+		private IProgressMonitor parentMonitor;
+
+		private TargetJob(Framework[] frameworks, IStatus[] statuses, Vector queue, TargetTask task,
+				IProgressMonitor parentMonitor) {
+			super("Installing");
+			this.frameworks = frameworks;
+			this.statuses = statuses;
+			this.queue = queue;
+			this.task = task;
+			this.parentMonitor = parentMonitor;
+		}
+
+		protected IStatus run(IProgressMonitor monitor) {
+			while (!monitor.isCanceled() && !parentMonitor.isCanceled()) {
+				int index = nextIndex();
+				if (index == -1)
+					break;
+				setName(frameworks[index].getName());
+				IStatus status;
+				try {
+					status = task.run(index, monitor);
+				} catch (RuntimeException e) {
+					status = Util.newStatus(IStatus.ERROR, "Remote content installation failed", e);
+				}
+				synchronized (statuses) {
+					statuses[index] = status;
+					statuses.notifyAll();
+				}
+			}
+			return Status.OK_STATUS;
+		}
+
+		private int nextIndex() {
+			synchronized (statuses) {
+				if (queue.isEmpty())
+					return -1;
+				Integer index = (Integer) queue.elementAt(0);
+				queue.removeElementAt(0);
+				return index.intValue();
+			}
 		}
-		return Status.OK_STATUS;
 	}
 
 	public void install(InputStream input, InstallationItem item, Framework framework, IProgressMonitor monitor)
@@ -285,6 +630,11 @@ public class FrameworkProcessor implements InstallationItemProcessor {
 		// make the directory hierarchy
 		if (!file.getParentFile().exists() && !file.getParentFile().mkdirs())
 			throw new IOException("Failed to create bundle state folder");
+		writeFile(input, file);
+		return file;
+	}
+
+	private static void writeFile(InputStream input, File file) throws IOException {
 		FileOutputStream stream = new FileOutputStream(file);
 		try {
 			byte[] buf = new byte[8192];
@@ -295,7 +645,6 @@ public class FrameworkProcessor implements InstallationItemProcessor {
 		} finally {
 			stream.close();
 		}
-		return file;
 	}
 
 
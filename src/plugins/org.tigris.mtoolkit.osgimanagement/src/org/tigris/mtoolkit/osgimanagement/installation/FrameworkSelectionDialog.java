@@ -61,6 +61,7 @@ public class FrameworkSelectionDialog extends TargetSelectionDialog {
 	private Button btnRem;
 	private TableViewer frameworkViewer;
 	private InstallationTarget selected = null;
+	private InstallationTarget[] selectedTargets = new InstallationTarget[0];
 	private Shell shell;
 
 	public FrameworkSelectionDialog(Shell shell) {
@@ -78,7 +79,7 @@ public class FrameworkSelectionDialog extends TargetSelectionDialog {
 		Control contents = super.createContents(parent);
 		getShell().setText("Install to");
 		setTitle("OSGi Framework");
-		setMessage("Select OSGi Framework from the list", IMessageProvider.INFORMATION);
+		setMessage("Select one or more OSGi Frameworks from the list", IMessageProvider.INFORMATION);
 
 		updateButtonsState();
 
@@ -92,7 +93,7 @@ public class FrameworkSelectionDialog extends TargetSelectionDialog {
 		layout.numColumns = 2;
 		composite.setLayout(layout);
 
-		frameworkViewer = new TableViewer(new Table(composite, SWT.SINGLE | SWT.BORDER));
+		frameworkViewer = new TableViewer(new Table(composite, SWT.MULTI | SWT.BORDER));
 		GridData gridData = new GridData(GridData.FILL_BOTH);
 		gridData.heightHint = 150;
 		gridData.widthHint = 340;
@@ -164,9 +165,16 @@ public class FrameworkSelectionDialog extends TargetSelectionDialog {
 
 	public boolean close() {
 		IStructuredSelection selection = (IStructuredSelection) frameworkViewer.getSelection();
-		Object element = selection.getFirstElement();
-		if (element instanceof FrameworkImpl) {
-			selected = new FrameworkTarget((FrameworkImpl) element);
+		Object[] elements = selection.toArray();
+		List targets = new ArrayList();
+		for (int i = 0; i < elements.length; i++) {
+			if (elements[i] instanceof FrameworkImpl) {
+				targets.add(new FrameworkTarget((FrameworkImpl) elements[i]));
+			}
+		}
+		if (!targets.isEmpty()) {
+			selectedTargets = (InstallationTarget[]) targets.toArray(new InstallationTarget[targets.size()]);
+			selected = selectedTargets[0];
 		}
 
 		return super.close();
@@ -306,4 +314,11 @@ public class FrameworkSelectionDialog extends TargetSelectionDialog {
 	public InstallationTarget getSelectedTarget() {
 		return selected;
 	}
+
+	/**
+	 * @since 5.1
+	 */
+	public InstallationTarget[] getSelectedTargets() {
+		return selectedTargets;
+	}
 }
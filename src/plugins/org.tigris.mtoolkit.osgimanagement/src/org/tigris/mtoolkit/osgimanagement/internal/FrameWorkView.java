@@ -899,8 +899,8 @@ public class FrameWorkView extends ViewPart implements ConstantsDistributor {
 		// TODO: Add a text in the filter to explain the purpose of the text line
 		protected IStatus run(final IProgressMonitor monitor) {
 			tree.addSelectionChangedListener(this);
-			filterRecursively(treeRoot);
-			if (monitor.isCanceled())
+			// only the nodes affected by the filter change are checked
+			if (!treeRoot.filterNodes(monitor))
 				return Status.CANCEL_STATUS;
 			final Model[] allSelectedElements = treeRoot.getSelectedChildrenRecursively();
 			final Model[] unrevealedElements = new Model[allSelectedElements.length];
@@ -922,6 +922,8 @@ public class FrameWorkView extends ViewPart implements ConstantsDistributor {
 			System.out.println("Filtered: lastRun: " + lastRunSelectedElementsCount + "; now: " + treeRoot.getSelectedChildren() + "(" + allSelectedElements.length + "); revealed: " + lastRunIdx);
 			this.lastRunSelectedElementsCount = treeRoot.getSelectedChildren();
 			final int lastRunRevealedCount = lastRunIdx;
+			if (monitor.isCanceled())
+				return Status.CANCEL_STATUS;
 			Display.getDefault().syncExec(new Runnable() {
 				public void run() {
 					BusyIndicator.showWhile(null, new Runnable() {
@@ -987,14 +989,6 @@ public class FrameWorkView extends ViewPart implements ConstantsDistributor {
 			}
 		}
 
-		private void filterRecursively(Model root) {
-			root.filter();
-			Model[] children = root.getChildren();
-			for (int i = 0; i < children.length; i++) {
-				filterRecursively(children[i]);
-			}
-		}
-
 		public void selectionChanged(SelectionChangedEvent event) {
 			if (ignoreSelectionEvents)
 				return;
@@ -34,6 +34,7 @@ import org.tigris.mtoolkit.common.installation.ProgressInputStream;
 import org.tigris.mtoolkit.iagent.DeviceConnector;
 import org.tigris.mtoolkit.iagent.IAgentException;
 import org.tigris.mtoolkit.iagent.RemoteBundle;
+import org.tigris.mtoolkit.iagent.util.DigestUtils;
 import org.tigris.mtoolkit.osgimanagement.internal.FrameWorkView;
 import org.tigris.mtoolkit.osgimanagement.internal.Messages;
 import org.tigris.mtoolkit.osgimanagement.Util;
@@ -44,6 +45,7 @@ public class InstallBundleOperation extends RemoteBundleOperation {
 	private final FrameworkImpl framework;
 	private String symbolicName;
 	private String version;
+	private boolean interactive = true;
 
 	public InstallBundleOperation(File bundle, FrameworkImpl framework) {
 		super(Messages.install_bundle, null);
@@ -51,6 +53,15 @@ public class InstallBundleOperation extends RemoteBundleOperation {
 		this.framework = framework;
 	}
 
+	/**
+	 * If the operation is not interactive, the bundle with the same symbolic
+	 * name and version is updated without asking the user, otherwise the
+	 * bundle is installed.
+	 */
+	public void setInteractive(boolean interactive) {
+		this.interactive = interactive;
+	}
+
 	protected IStatus doOperation(IProgressMonitor monitor) throws IAgentException {
 		InputStream input = null;
 		RemoteBundle rBundle[] = null;
@@ -81,7 +92,7 @@ public class InstallBundleOperation extends RemoteBundleOperation {
 				rBundle = connector.getDeploymentManager().getBundles(symbolicName, "[" + version + "," + version + "]");
 				if (rBundle != null) {
 					update[0] = true;
-				} else {
+				} else if (interactive) {
 					rBundle = connector.getDeploymentManager().getBundles(symbolicName, null);
 					if (rBundle != null) {
 						install[0] = true;
@@ -89,8 +100,16 @@ public class InstallBundleOperation extends RemoteBundleOperation {
 				}
 			}
 
+			// skip the upload if the device already has the same content
+			boolean unchanged = update[0] && isContentInstalled(rBundle[0]);
+			if (unchanged) {
+				BrowserErrorHandler.processInfo("Bundle \"" + symbolicName + " (" + version
+						+ ")\" is already installed and unchanged", false);
+				update[0] = false;
+			}
+
 			// install if missing
-			if (!update[0] && !install[0]) {
+			if (!unchanged && !update[0] && !install[0]) {
 				Set bundleIds = new HashSet();
 				bundleIds.addAll(framework.getBundlesKeys());
 				rBundle = new RemoteBundle[1];
@@ -103,7 +122,15 @@ public class InstallBundleOperation extends RemoteBundleOperation {
 			}
 
 			// bundle already exists, in which case, we need to update it
-			if (update[0] || install[0]) {
+			if (update[0] && !interactive) {
+				try {
+					input.close();
+				} catch (IOException e) {
+				}
+				monitor.beginTask(Messages.update_bundle, work);
+				input = new ProgressInputStream(new FileInputStream(bundle), monitor);
+				rBundle[0].update(input);
+			} else if (update[0] || install[0]) {
 				try {
 					// close the old input stream and try again
 					input.close();
@@ -238,6 +265,22 @@ public class InstallBundleOperation extends RemoteBundleOperation {
 		return Status.OK_STATUS;
 	}
 	
+	/**
+	 * Returns true if the remote bundle has the same content as the bundle
+	 * file. If the agent doesn't know the digest of the remote bundle, the
+	 * content is considered different.
+	 */
+	private boolean isContentInstalled(RemoteBundle rBundle) {
+		try {
+			String remoteDigest = rBundle.getDigest();
+			return remoteDigest != null && remoteDigest.equals(DigestUtils.digest(bundle));
+		} catch (IAgentException e) {
+			return false;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
 	private String getBundleName(Manifest mf) {
 		String symbolicName;
 		symbolicName = (String) mf.getMainAttributes().getValue("Bundle-SymbolicName");
@@ -21,6 +21,18 @@ public abstract class RemoteBundleOperation extends Job {
 
 	protected IStatus run(IProgressMonitor monitor) {
 		monitor.beginTask(getName(), 1);
+		IStatus operationResult = runOperation(monitor);
+		if (!operationResult.isOK())
+			StatusManager.getManager().handle(Util.newStatus(getMessage(operationResult), operationResult),
+				StatusManager.SHOW | StatusManager.LOG);
+		return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
+	}
+
+	/**
+	 * Runs the operation in the current thread and returns its result, without
+	 * reporting it to the user.
+	 */
+	public IStatus runOperation(IProgressMonitor monitor) {
 		IStatus operationResult = Status.OK_STATUS;
 		try {
 			monitor.beginTask(getName(), 1);
@@ -35,10 +47,7 @@ public abstract class RemoteBundleOperation extends Job {
 				bundle.updateElement();
 			monitor.done();
 		}
-		if (!operationResult.isOK())
-			StatusManager.getManager().handle(Util.newStatus(getMessage(operationResult), operationResult),
-				StatusManager.SHOW | StatusManager.LOG);
-		return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
+		return operationResult;
 	}
 
 	protected Bundle getBundle() {
@@ -69,6 +69,10 @@ public class Bundle extends Model {
 		return id;
 	}
 
+	protected Object getKey() {
+		return new Long(id);
+	}
+
 	// Overrides method in Model class
 	public boolean testAttribute(Object target, String name, String value) {
 		if (!(target instanceof org.tigris.mtoolkit.osgimanagement.internal.browser.model.Bundle)) {
@@ -76,6 +76,10 @@ public class FrameworkImpl extends Framework implements RemoteBundleListener, Re
 	public Vector servicesVector;
 	// stores services view nodes
 	public Vector servicesViewVector;
+	// service id (Long) -> Vector of the services view nodes of the service
+	private Hashtable servicesViewIndex = new Hashtable();
+	// service id (Long) -> Vector of the service nodes in the bundles tree
+	private Hashtable serviceNodes = new Hashtable();
 
 	private Model bundles;
 
@@ -96,6 +100,13 @@ public class FrameworkImpl extends Framework implements RemoteBundleListener, Re
 	private IMemento configs;
 	public HashSet systemBundles;
 
+	/** the number of jobs, which retrieve the bundles data when connecting */
+	private static final int FETCH_JOBS = Math.max(1, Integer.getInteger(
+		"osgimanagement.connect.fetchJobs", 4).intValue()); //$NON-NLS-1$
+
+	// set while the model is built detached from the framework node
+	private volatile boolean building = false;
+
 	
 	public FrameworkImpl(String name, boolean autoConnected) {
 		super(name);
@@ -106,8 +117,23 @@ public class FrameworkImpl extends Framework implements RemoteBundleListener, Re
 
 	public Model getBundlesNode() {
 		if (bundles == null) {
-			bundles = new SimpleNode(Messages.bundles_node_label);
-			if (getViewType() == BUNDLES_VIEW)
+			bundles = new SimpleNode(Messages.bundles_node_label) {
+				// the service nodes are indexed, even if the bundles are
+				// not shown
+				protected void indexNode(Model node) {
+					if (getParent() == null)
+						indexServiceNode(node);
+					else
+						super.indexNode(node);
+				}
+
+				protected boolean unindexNode(Model node) {
+					if (getParent() == null)
+						return unindexServiceNode(node);
+					return super.unindexNode(node);
+				}
+			};
+			if (getViewType() == BUNDLES_VIEW && !building)
 				addElement(bundles);
 		}
 		return bundles;
@@ -215,6 +241,7 @@ public class FrameworkImpl extends Framework implements RemoteBundleListener, Re
 	}
 
 	private boolean buildModel(SubMonitor sMonitor) {
+		building = true;
 		try {
 			addBundles(sMonitor);
 			if (sMonitor.isCanceled())
@@ -226,6 +253,9 @@ public class FrameworkImpl extends Framework implements RemoteBundleListener, Re
 			if (sMonitor.isCanceled())
 				return false;
 
+			// the providers attach their nodes to the published bundles
+			publishModel();
+
 			int modelTotal = FrameworkConnectorFactory.CONNECT_PROGRESS_ADDITIONAL / modelProviders.size();
 
 			for (int i = 0; i < modelProviders.size(); i++) {
@@ -243,11 +273,35 @@ public class FrameworkImpl extends Framework implements RemoteBundleListener, Re
 		} catch (IllegalStateException ise) {
 			// connection was closed
 			return false;
+		} finally {
+			if (building) {
+				// the partial model of a cancelled connect is dropped
+				if (sMonitor.isCanceled())
+					building = false;
+				else
+					publishModel();
+			}
 		}
 
 		return true;
 	}
 
+	/**
+	 * Attaches the nodes built while connecting to the framework node. The
+	 * whole subtree is added at once, so the viewers are updated once instead
+	 * of for every bundle and service.
+	 */
+	private void publishModel() {
+		building = false;
+		if (getViewType() == SERVICES_VIEW) {
+			for (int i = 0; i < servicesViewVector.size(); i++) {
+				addElement((Model) servicesViewVector.elementAt(i));
+			}
+		} else if (bundles != null) {
+			addElement(bundles);
+		}
+	}
+
 	private boolean initModel(SubMonitor sMonitor) {
 		synchronized (Framework.getLockObject(connector)) {
 			try {
@@ -319,6 +373,8 @@ public class FrameworkImpl extends Framework implements RemoteBundleListener, Re
 		if (servicesViewVector != null) {
 			servicesViewVector.removeAllElements();
 		}
+		servicesViewIndex.clear();
+		serviceNodes.clear();
 		if (systemBundles != null) {
 			systemBundles.clear();
 		}
@@ -336,25 +392,83 @@ public class FrameworkImpl extends Framework implements RemoteBundleListener, Re
 	public Bundle findBundleForService(long id) throws IAgentException {
 		if (bundleHash == null)
 			return null;
-		Object bundles[] = bundleHash.values().toArray();
-		for (int i = 0; i < bundles.length; i++) {
-			Model serviceCategories[] = ((Bundle) bundles[i]).getChildren();
-			if (serviceCategories != null && serviceCategories.length > 0) {
-				if (((ServicesCategory)serviceCategories[0]).getType() == ServicesCategory.REGISTERED_SERVICES) {
-					Object services[] = serviceCategories[0].getChildren();
-					if (services != null) {
-						for (int j = 0; j < services.length; j++) {
-							if (((ObjectClass) services[j]).getService().getServiceId() == id) {
-								return (Bundle) bundles[i];
-							}
-						}
-					}
-				}
+		ObjectClass[] nodes = getIndexedNodes(serviceNodes, id);
+		for (int i = 0; i < nodes.length; i++) {
+			Model category = nodes[i].getParent();
+			if (category instanceof ServicesCategory && category.getParent() instanceof Bundle
+					&& ((ServicesCategory) category).getType() == ServicesCategory.REGISTERED_SERVICES) {
+				Bundle bundle = findBundle(((Bundle) category.getParent()).getID());
+				if (bundle != null)
+					return bundle;
 			}
 		}
 		return null;
 	}
 
+	protected void indexNode(Model node) {
+		indexServiceNode(node);
+		super.indexNode(node);
+	}
+
+	protected boolean unindexNode(Model node) {
+		boolean removed = unindexServiceNode(node);
+		return super.unindexNode(node) || removed;
+	}
+
+	private void indexServiceNode(Model node) {
+		if (node instanceof ObjectClass && node.getParent() instanceof ServicesCategory)
+			addIndexedNode(serviceNodes, (ObjectClass) node);
+	}
+
+	private boolean unindexServiceNode(Model node) {
+		// the nodes of the hidden bundles tree stay indexed
+		for (Model parent = node.getParent(); parent != null; parent = parent.getParent()) {
+			if (parent == bundles)
+				return true;
+		}
+		if (node instanceof ObjectClass)
+			removeIndexedNode(serviceNodes, (ObjectClass) node);
+		return true;
+	}
+
+	private static void addIndexedNode(Hashtable index, ObjectClass node) {
+		Vector nodes = (Vector) index.get(node.getNameID());
+		if (nodes == null) {
+			nodes = new Vector(2);
+			index.put(node.getNameID(), nodes);
+		}
+		if (!nodes.contains(node))
+			nodes.addElement(node);
+	}
+
+	private static void removeIndexedNode(Hashtable index, ObjectClass node) {
+		Vector nodes = (Vector) index.get(node.getNameID());
+		if (nodes != null) {
+			nodes.removeElement(node);
+			if (nodes.isEmpty())
+				index.remove(node.getNameID());
+		}
+	}
+
+	private static ObjectClass[] getIndexedNodes(Hashtable index, long serviceId) {
+		Vector nodes = (Vector) index.get(new Long(serviceId));
+		if (nodes == null)
+			return new ObjectClass[0];
+		synchronized (nodes) {
+			return (ObjectClass[]) nodes.toArray(new ObjectClass[nodes.size()]);
+		}
+	}
+
+	private void addServiceViewNode(ObjectClass node) {
+		servicesViewVector.addElement(node);
+		addIndexedNode(servicesViewIndex, node);
+	}
+
+	private void removeServiceViewNode(ObjectClass node) {
+		servicesViewVector.removeElement(node);
+		removeIndexedNode(servicesViewIndex, node);
+	}
+
 	public Bundle findBundle(Object id) {
 		if (bundleHash == null)
 			return null;
@@ -498,18 +612,16 @@ public class FrameworkImpl extends Framework implements RemoteBundleListener, Re
 
 	private void removeBundleInServicesView(long id) {
 		// remove bundles from services view nodes
+		Long key = new Long(id);
 		for (int i = servicesViewVector.size() - 1; i >= 0; i--) {
 			ObjectClass objClass = (ObjectClass) servicesViewVector.elementAt(i);
 			Model children[] = objClass.getChildren();
 			for (int j = 0; j < children.length; j++) {
-				Model bundles[] = children[j].getChildren();
-				for (int k = 0; k < bundles.length; k++) {
-					if (((Bundle) bundles[k]).getID() == id) {
-						children[j].removeElement(bundles[k]);
-						if (j == 0)
-							servicesViewVector.removeElementAt(i);
-						break;
-					}
+				Model bundle = children[j].findChild(key);
+				if (bundle != null) {
+					children[j].removeElement(bundle);
+					if (j == 0)
+						removeServiceViewNode(objClass);
 				}
 			}
 		}
@@ -520,7 +632,9 @@ public class FrameworkImpl extends Framework implements RemoteBundleListener, Re
 		String debug = "Bundle state changed " + type; //$NON-NLS-1$
 
 		try {
-			if (type == RemoteBundleEvent.UNINSTALLED) {
+			if (type == RemoteBundleEvent.EVENTS_LOST) {
+				debug = "Bundle events lost"; //$NON-NLS-1$
+			} else if (type == RemoteBundleEvent.UNINSTALLED) {
 				debug = "Bundle " + e.getBundle().getBundleId() + " uninstalled"; //$NON-NLS-1$ //$NON-NLS-2$
 			} else {
 				debug = "Bundle " + getBundleName(e.getBundle(), null) + " "; //$NON-NLS-1$ //$NON-NLS-2$
@@ -576,6 +690,13 @@ public class FrameworkImpl extends Framework implements RemoteBundleListener, Re
 
 		final int type = e.getType();
 
+		if (type == RemoteBundleEvent.EVENTS_LOST) {
+			// the model can't be updated incrementally anymore
+			if (!refreshing)
+				refreshAction();
+			return;
+		}
+
 		synchronized ((Framework.getLockObject(connector))) {
 			final RemoteBundle rBundle = e.getBundle();
 			long id = rBundle.getBundleId();
@@ -617,25 +738,16 @@ public class FrameworkImpl extends Framework implements RemoteBundleListener, Re
 								                                                                                          .getServiceId()), usedServ[i]);
 							}
 
-							for (int j = 0; j < servicesViewVector.size(); j++) {
-								ObjectClass oc = (ObjectClass) servicesViewVector.elementAt(j);
-								if (oc.getNameID().longValue() == usedServ[i].getServiceId()) {
-									BundlesCategory bCategory = (BundlesCategory) oc.getChildren()[1];
-									Model bundles[] = bCategory.getChildren();
-									boolean added = false;
-									for (int k = 0; k < bundles.length; k++) {
-										if (((Bundle) bundles[k]).getID() == bundle.getID()) {
-											added = true;
-											break;
-										}
-									}
-									if (!added) {
-										Bundle usedInBundle = new Bundle(bundle);
-										if (FrameworkConnectorFactory.isBundlesCategoriesShown) {
-											bCategory.addElement(usedInBundle);
-										} else {
-											getBundlesNode().addElement(usedInBundle);
-										}
+							ObjectClass usedNodes[] = getIndexedNodes(servicesViewIndex, usedServ[i].getServiceId());
+							for (int j = 0; j < usedNodes.length; j++) {
+								BundlesCategory bCategory = (BundlesCategory) usedNodes[j].getChildren()[1];
+								boolean added = bCategory.findChild(new Long(bundle.getID())) != null;
+								if (!added) {
+									Bundle usedInBundle = new Bundle(bundle);
+									if (FrameworkConnectorFactory.isBundlesCategoriesShown) {
+										bCategory.addElement(usedInBundle);
+									} else {
+										getBundlesNode().addElement(usedInBundle);
 									}
 								}
 							}
@@ -673,24 +785,27 @@ public class FrameworkImpl extends Framework implements RemoteBundleListener, Re
 
 	public void removeService(long id) throws IAgentException {
 		try {
-			Enumeration bundlesKeys = bundleHash.keys();
-			while (bundlesKeys.hasMoreElements()) {
-				Object key = bundlesKeys.nextElement();
-				Bundle bundle = (Bundle) bundleHash.get(key);
+			// only the bundles, which have nodes for the service, are visited
+			ObjectClass[] nodes = getIndexedNodes(serviceNodes, id);
+			for (int i = 0; i < nodes.length; i++) {
+				Model category = nodes[i].getParent();
+				if (category == null || !(category.getParent() instanceof Bundle))
+					continue;
+				Bundle bundle = findBundle(((Bundle) category.getParent()).getID());
+				if (bundle == null)
+					continue;
 				removeServiceNode(bundle, id);
-				for (int i=0; i<bundle.getSlaves().size(); i++) {
-					removeServiceNode((Model) bundle.getSlaves().elementAt(i), id);
+				for (int j = 0; j < bundle.getSlaves().size(); j++) {
+					removeServiceNode((Model) bundle.getSlaves().elementAt(j), id);
 				}
 			}
 
-			for (int i = servicesViewVector.size() - 1; i >= 0; i--) {
-				ObjectClass objClass = (ObjectClass) servicesViewVector.elementAt(i);
-				if (objClass.getService().getServiceId() == id) {
-					if (viewType == SERVICES_VIEW) {
-						removeElement(objClass);
-					}
-					servicesViewVector.removeElementAt(i);
+			nodes = getIndexedNodes(servicesViewIndex, id);
+			for (int i = 0; i < nodes.length; i++) {
+				if (viewType == SERVICES_VIEW) {
+					removeElement(nodes[i]);
 				}
+				removeServiceViewNode(nodes[i]);
 			}
 		} catch (Throwable t) {
 			BrowserErrorHandler.processError(t, true);
@@ -845,20 +960,18 @@ public class FrameworkImpl extends Framework implements RemoteBundleListener, Re
 					}
 
 					// remove bundle in services view
+					Long key = new Long(id);
 					for (int i = servicesViewVector.size() - 1; i >= 0; i--) {
-						Model service = (Model) servicesViewVector.elementAt(i);
+						ObjectClass service = (ObjectClass) servicesViewVector.elementAt(i);
 						Model children[] = service.getChildren();
 						for (int j = 0; j < children.length; j++) {
-							Model bundles[] = children[j].getChildren();
-							for (int k = 0; k < bundles.length; k++) {
-								bundle = (Bundle) bundles[k];
-								if (bundle.getID() == id) {
-									children[j].removeElement(bundle);
-									// remove bundles registered services
-									if (j == 0) {
-										servicesViewVector.removeElementAt(i);
-										removeElement(service);
-									}
+							Model bundleNode = children[j].findChild(key);
+							if (bundleNode != null) {
+								children[j].removeElement(bundleNode);
+								// remove bundles registered services
+								if (j == 0) {
+									removeServiceViewNode(service);
+									removeElement(service);
 								}
 							}
 						}
@@ -876,7 +989,7 @@ public class FrameworkImpl extends Framework implements RemoteBundleListener, Re
 
 							Bundle newBundle = new Bundle(sourceBundle);
 							regCategory.addElement(newBundle);
-							servicesViewVector.addElement(oc);
+							addServiceViewNode(oc);
 							if (viewType == SERVICES_VIEW) {
 								addElement(oc);
 								oc.updateElement();
@@ -885,13 +998,9 @@ public class FrameworkImpl extends Framework implements RemoteBundleListener, Re
 					}
 
 					for (int i = 0; i < usedServ.length; i++) {
-						long usedInId = usedServ[i].getServiceId();
-						for (int j = 0; j < servicesViewVector.size(); j++) {
-							ObjectClass oc = (ObjectClass) servicesViewVector.elementAt(j);
-							if (oc.getService().getServiceId() == usedInId) {
-								oc.getChildren()[1].addElement(new Bundle(sourceBundle));
-								break;
-							}
+						ObjectClass usedNodes[] = getIndexedNodes(servicesViewIndex, usedServ[i].getServiceId());
+						if (usedNodes.length > 0) {
+							usedNodes[0].getChildren()[1].addElement(new Bundle(sourceBundle));
 						}
 					}
 
@@ -985,12 +1094,24 @@ public class FrameworkImpl extends Framework implements RemoteBundleListener, Re
 		
 		rBundlesArray = connector.getDeploymentManager().listBundles();
 
-		SubMonitor monitor = sMonitor.newChild(FrameworkConnectorFactory.CONNECT_PROGRESS_BUNDLES);
+		int totalWork = FrameworkConnectorFactory.CONNECT_PROGRESS_BUNDLES
+				+ FrameworkConnectorFactory.CONNECT_PROGRESS_SERVICES;
+		SubMonitor monitor = sMonitor.newChild(totalWork);
 		monitor.setTaskName(Messages.retrieve_bundles_info);
-		int work = (int) (FrameworkConnectorFactory.CONNECT_PROGRESS_BUNDLES / rBundlesArray.length);
+		BundleInfo[] infos = fetchBundles(rBundlesArray, monitor.newChild(totalWork / 2));
+		if (monitor.isCanceled())
+			return;
+
+		monitor.setTaskName(Messages.retrieve_services_info);
+		int work = (int) ((totalWork - totalWork / 2) / rBundlesArray.length);
 		for (int i = 0; i < rBundlesArray.length; i++) {
 			try {
-				addBundle(rBundlesArray[i]);
+				if (infos[i] == null)
+					continue;
+				if (infos[i].error != null)
+					throw infos[i].error;
+				addBundle(rBundlesArray[i], infos[i].headers, infos[i].state);
+				retrieveServicesInfo(rBundlesArray[i], infos[i].registeredSvcs, infos[i].usedSvcs);
 			} catch (IAgentException e) {
 				if (!userDisconnect && e.getErrorCode() != IAgentErrors.ERROR_BUNDLE_UNINSTALLED) {
 					BrowserErrorHandler.processError(e, getConnector(), userDisconnect);
@@ -1000,7 +1121,86 @@ public class FrameworkImpl extends Framework implements RemoteBundleListener, Re
 				return;
 			monitor.worked(work);
 		}
-		retrieveServicesInfo(rBundlesArray, sMonitor);
+	}
+
+	/**
+	 * Retrieves the headers, the state and the services of the bundles. The
+	 * bundles are split between several jobs, so that the remote calls for
+	 * them are made in parallel.
+	 */
+	private BundleInfo[] fetchBundles(RemoteBundle[] rBundles, SubMonitor monitor) {
+		BundleInfo[] infos = new BundleInfo[rBundles.length];
+		int jobsCount = Math.min(FETCH_JOBS, rBundles.length);
+		BundlesFetchJob[] jobs = new BundlesFetchJob[jobsCount];
+		monitor.setWorkRemaining(jobsCount);
+		for (int i = 0; i < jobsCount; i++) {
+			jobs[i] = new BundlesFetchJob(rBundles, infos, i, jobsCount, monitor);
+			jobs[i].schedule();
+		}
+		for (int i = 0; i < jobsCount; i++) {
+			try {
+				jobs[i].join();
+			} catch (InterruptedException e) {
+				monitor.setCanceled(true);
+			}
+			monitor.worked(1);
+		}
+		return infos;
+	}
+
+	/**
+	 * Holds the data of a remote bundle, retrieved when connecting.
+	 */
+	private static class BundleInfo {
+		private Dictionary headers;
+		private int state;
+		private RemoteService[] registeredSvcs;
+		private RemoteService[] usedSvcs;
+		private IAgentException error;
+	}
+
+	/**
+	 * Retrieves the data of every n-th bundle of the list, starting from a
+	 * given index.
+	 */
+	private static class BundlesFetchJob extends Job {
+		private RemoteBundle[] rBundles;
+		private BundleInfo[] infos;
+		private int start;
+		private int step;
+		private IProgressMonitor parentMonitor;
+
+		private BundlesFetchJob(RemoteBundle[] rBundles, BundleInfo[] infos, int start, int step,
+				IProgressMonitor parentMonitor) {
+			super(Messages.retrieve_bundles_info);
+			setSystem(true);
+			this.rBundles = rBundles;
+			this.infos = infos;
+			this.start = start;
+			this.step = step;
+			this.parentMonitor = parentMonitor;
+		}
+
+		protected IStatus run(IProgressMonitor monitor) {
+			for (int i = start; i < rBundles.length; i += step) {
+				if (monitor.isCanceled() || parentMonitor.isCanceled())
+					return Status.CANCEL_STATUS;
+				BundleInfo info = new BundleInfo();
+				try {
+					info.headers = rBundles[i].getHeaders(null);
+					info.state = rBundles[i].getState();
+					info.registeredSvcs = rBundles[i].getRegisteredServices();
+					info.usedSvcs = rBundles[i].getServicesInUse();
+				} catch (IAgentException e) {
+					info.error = e;
+				} catch (IllegalStateException e) {
+					// connection was closed
+					return Status.CANCEL_STATUS;
+				}
+				infos[i] = info;
+			}
+			return Status.OK_STATUS;
+		}
 	}
 
 	private void addBundlesBySnapshot(SubMonitor sMonitor) throws IAgentException {
@@ -1227,15 +1427,17 @@ public class FrameworkImpl extends Framework implements RemoteBundleListener, Re
 						}
 					}
 
-					for (int j = servicesViewVector.size() - 1; j >= 0; j--) {
-						Model model = (Model) servicesViewVector.elementAt(j);
-						if (model.getName().equals(hashService.getName())) {
-							servicesViewVector.removeElementAt(j);
+					// the name contains the service id
+					ObjectClass sameService[] = getIndexedNodes(servicesViewIndex, servObj.getRemoteService()
+							.getServiceId());
+					for (int j = 0; j < sameService.length; j++) {
+						if (sameService[j].getName().equals(hashService.getName())) {
+							removeServiceViewNode(sameService[j]);
 						}
 					}
-					servicesViewVector.addElement(hashService);
+					addServiceViewNode(hashService);
 
-					if (getViewType() == FrameworkImpl.SERVICES_VIEW) {
+					if (getViewType() == FrameworkImpl.SERVICES_VIEW && !building) {
 						addElement(hashService);
 					}
 				}
@@ -1270,8 +1472,8 @@ public class FrameworkImpl extends Framework implements RemoteBundleListener, Re
 			ObjectClass objClass = new ObjectClass(objClasses[i] + " [Service " + service.getServiceId() + "]", nameID,
 					service);
 			parent.addElement(objClass);
-			FrameworkImpl fw = (FrameworkImpl) objClass.findFramework();
-			if (fw != null && fw.isShownServicePropertiss()) {
+			// the node may be detached yet, when the model is being built
+			if (isShownServicePropertiss()) {
 				addServicePropertiesNodes(objClass);
 			}
 		}
@@ -12,8 +12,11 @@ package org.tigris.mtoolkit.osgimanagement.internal.browser.model;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.tigris.mtoolkit.osgimanagement.internal.browser.logic.ContentChangeListener;
 import org.tigris.mtoolkit.osgimanagement.model.Model;
 
@@ -24,6 +27,15 @@ public class TreeRoot extends Model {
 	private boolean showBundlesVersion = false;
 	private String filter = "";
 
+	// the attached nodes, split by whether they matched the last applied filter
+	private final Object indexLock = new Object();
+	private Set matchingNodes = new HashSet();
+	private Set otherNodes = new HashSet();
+	// the nodes attached after the last filtering, or not checked by it
+	private Set uncheckedNodes = new HashSet();
+	// the last filter, with which all nodes have been checked
+	private String appliedFilter = null;
+
 	public TreeRoot(String name) {
 		super(name);
 		listeners = new ArrayList();
@@ -50,6 +62,87 @@ public class TreeRoot extends Model {
 		return filter;
 	}
 	
+	protected void indexNode(Model node) {
+		synchronized (indexLock) {
+			uncheckedNodes.add(node);
+		}
+	}
+
+	protected boolean unindexNode(Model node) {
+		synchronized (indexLock) {
+			boolean removed = uncheckedNodes.remove(node);
+			removed |= matchingNodes.remove(node);
+			removed |= otherNodes.remove(node);
+			return removed;
+		}
+	}
+
+	protected void reindexNode(Model node) {
+		synchronized (indexLock) {
+			if (matchingNodes.remove(node) || otherNodes.remove(node))
+				uncheckedNodes.add(node);
+		}
+	}
+
+	/**
+	 * Makes the next filtering check all nodes, because the labels of the
+	 * nodes have been changed.
+	 */
+	private void resetFilterIndex() {
+		synchronized (indexLock) {
+			appliedFilter = null;
+		}
+	}
+
+	/**
+	 * Applies the current filter to the nodes of the tree. As the filter
+	 * matches substrings of the labels, a longer filter, which contains the
+	 * last applied one, can only hide nodes and a shorter one can only reveal
+	 * nodes. So only the nodes, which could change, are checked, and the nodes
+	 * attached after the last filtering.
+	 * 
+	 * @return false, if the filtering has been canceled
+	 */
+	public boolean filterNodes(IProgressMonitor monitor) {
+		String filter = this.filter;
+		Model[] nodes;
+		synchronized (indexLock) {
+			Set toCheck = new HashSet(uncheckedNodes);
+			if (appliedFilter == null || filter.indexOf(appliedFilter) == -1) {
+				// the filter is not narrowed, hidden nodes could be revealed
+				toCheck.addAll(otherNodes);
+			}
+			if (appliedFilter == null || appliedFilter.indexOf(filter) == -1) {
+				// the filter is not widened, shown nodes could be hidden
+				toCheck.addAll(matchingNodes);
+			}
+			nodes = (Model[]) toCheck.toArray(new Model[toCheck.size()]);
+			appliedFilter = filter;
+		}
+		for (int i = 0; i < nodes.length; i++) {
+			if (monitor.isCanceled()) {
+				synchronized (indexLock) {
+					for (int j = i; j < nodes.length; j++) {
+						if (matchingNodes.remove(nodes[j]) || otherNodes.remove(nodes[j]))
+							uncheckedNodes.add(nodes[j]);
+					}
+				}
+				return false;
+			}
+			nodes[i].filter();
+			synchronized (indexLock) {
+				if (!matchingNodes.remove(nodes[i]) && !otherNodes.remove(nodes[i]) && !uncheckedNodes.remove(nodes[i]))
+					// the node has been detached meanwhile
+					continue;
+				if (nodes[i].isSelected())
+					matchingNodes.add(nodes[i]);
+				else
+					otherNodes.add(nodes[i]);
+			}
+		}
+		return true;
+	}
+
 	public int getSelectedChildren() {
 		return selectedChilds;
 	}
@@ -66,7 +159,10 @@ public class TreeRoot extends Model {
 	}
 
 	public void setShowBundlesID(boolean b) {
-		showBundlesID = b;
+		if (showBundlesID != b) {
+			showBundlesID = b;
+			resetFilterIndex();
+		}
 	}
 
 	public boolean isShowBundlesVersion() {
@@ -74,7 +170,10 @@ public class TreeRoot extends Model {
 	}
 
 	public void setShowBundlesVersion(boolean b) {
-		showBundlesVersion = b;
+		if (showBundlesVersion != b) {
+			showBundlesVersion = b;
+			resetFilterIndex();
+		}
 	}
 
 	public void addListener(ContentChangeListener newListener) {
@@ -10,9 +10,18 @@
  *******************************************************************************/
 package org.tigris.mtoolkit.osgimanagement.internal.browser.treeviewer.logic;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import org.eclipse.jface.viewers.ITreeContentProvider;
 import org.eclipse.jface.viewers.TreeViewer;
 import org.eclipse.jface.viewers.Viewer;
+import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Display;
 import org.tigris.mtoolkit.osgimanagement.internal.browser.logic.ConstantsDistributor;
 import org.tigris.mtoolkit.osgimanagement.internal.browser.logic.ContentChangeEvent;
@@ -22,10 +31,26 @@ import org.tigris.mtoolkit.osgimanagement.model.Model;
 
 public class ViewContentProvider implements ITreeContentProvider, ContentChangeListener, ConstantsDistributor {
 
+	/** the time in ms, for which the model changes are collected */
+	private static final int UPDATE_DELAY = 50;
+
 	private TreeViewer viewer;
-	private boolean canUpdate;
+	private volatile boolean canUpdate;
 	private Display display;
 
+	// the changes, which aren't applied to the viewer yet
+	private final Object lock = new Object();
+	private Set pendingAdds = new LinkedHashSet();
+	private Set pendingRemoves = new LinkedHashSet();
+	private Set pendingRefreshes = new LinkedHashSet();
+	private boolean updateScheduled = false;
+
+	private final Runnable updater = new Runnable() {
+		public void run() {
+			applyUpdates();
+		}
+	};
+
 	public ViewContentProvider() {
 		canUpdate = true;
 	}
@@ -73,47 +98,117 @@ public class ViewContentProvider implements ITreeContentProvider, ContentChangeL
 
 	public void elementAdded(final ContentChangeEvent event) {
 		if (canUpdate) {
-			display = Display.getCurrent();
-			if (display == null)
-				display = Display.getDefault();
-			display.asyncExec(new Runnable() {
-				public void run() {
-					if (event.getTarget().getParent() != null) {
-						viewer.add(event.getTarget().getParent(), event.getTarget());
-					}
-				}
-			});
+			synchronized (lock) {
+				pendingAdds.add(event.getTarget());
+				scheduleUpdate();
+			}
 		}
 	}
 
 	public void elementChanged(final ContentChangeEvent event) {
 		if (canUpdate) {
-			display = Display.getCurrent();
-			if (display == null)
-				display = Display.getDefault();
-			display.asyncExec(new Runnable() {
-				public void run() {
-//					if (event.getTarget().getParent() != null) {
-//						viewer.refresh(event.getTarget().getParent());
-//					} else {
-						viewer.refresh(event.getTarget());
-//					}
-				}
-			});
+			synchronized (lock) {
+				pendingRefreshes.add(event.getTarget());
+				scheduleUpdate();
+			}
 		}
 	}
 
 	public void elementRemoved(ContentChangeEvent event) {
 		if (canUpdate) {
-			final Model target = event.getTarget();
-			display = Display.getCurrent();
-			if (display == null)
-				display = Display.getDefault();
-			display.asyncExec(new Runnable() {
-				public void run() {
-					viewer.remove(target);
+			Model target = event.getTarget();
+			synchronized (lock) {
+				// the removed node doesn't need to be added or refreshed
+				pendingAdds.remove(target);
+				pendingRefreshes.remove(target);
+				pendingRemoves.add(target);
+				scheduleUpdate();
+			}
+		}
+	}
+
+	// must be called with the lock held
+	private void scheduleUpdate() {
+		if (updateScheduled)
+			return;
+		updateScheduled = true;
+		display = Display.getCurrent();
+		if (display == null)
+			display = Display.getDefault();
+		final Display updateDisplay = display;
+		updateDisplay.asyncExec(new Runnable() {
+			public void run() {
+				// the changes made meanwhile are applied together
+				updateDisplay.timerExec(UPDATE_DELAY, updater);
+			}
+		});
+	}
+
+	/**
+	 * Applies the collected changes to the viewer in a single batch. The nodes
+	 * are removed first, the added nodes are passed to the viewer at once for
+	 * every parent and at last the changed nodes are refreshed.
+	 */
+	private void applyUpdates() {
+		Set adds;
+		Set removes;
+		Set refreshes;
+		synchronized (lock) {
+			adds = pendingAdds;
+			removes = pendingRemoves;
+			refreshes = pendingRefreshes;
+			pendingAdds = new LinkedHashSet();
+			pendingRemoves = new LinkedHashSet();
+			pendingRefreshes = new LinkedHashSet();
+			updateScheduled = false;
+		}
+		if (!canUpdate || viewer == null)
+			return;
+		Control control = viewer.getControl();
+		if (control == null || control.isDisposed())
+			return;
+
+		control.setRedraw(false);
+		try {
+			if (!removes.isEmpty())
+				viewer.remove(removes.toArray());
+
+			Map addsByParent = new LinkedHashMap();
+			for (Iterator it = adds.iterator(); it.hasNext();) {
+				Model target = (Model) it.next();
+				Model parent = target.getParent();
+				// a node, which parent is added too, is shown with it
+				if (parent == null || isAncestorIn(parent, adds))
+					continue;
+				List children = (List) addsByParent.get(parent);
+				if (children == null) {
+					children = new ArrayList();
+					addsByParent.put(parent, children);
 				}
-			});
+				children.add(target);
+			}
+			for (Iterator it = addsByParent.entrySet().iterator(); it.hasNext();) {
+				Map.Entry entry = (Map.Entry) it.next();
+				viewer.add(entry.getKey(), ((List) entry.getValue()).toArray());
+			}
+
+			for (Iterator it = refreshes.iterator(); it.hasNext();) {
+				Model target = (Model) it.next();
+				// refreshing a node refreshes its subtree too
+				if (isAncestorIn(target.getParent(), refreshes))
+					continue;
+				viewer.refresh(target);
+			}
+		} finally {
+			control.setRedraw(true);
+		}
+	}
+
+	private static boolean isAncestorIn(Model node, Set nodes) {
+		for (; node != null; node = node.getParent()) {
+			if (nodes.contains(node))
+				return true;
 		}
+		return false;
 	}
 }
\ No newline at end of file
@@ -11,6 +11,8 @@
 package org.tigris.mtoolkit.osgimanagement.model;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -34,6 +36,12 @@ public abstract class Model implements Comparable, IActionFilter, ConstantsDistr
 	protected int selectedChilds = 0;
 	private Vector slaves = new Vector();
 	private Model master;
+	// guards the changes of elementList, childrenCache and childrenByKey
+	private final Object childrenLock = new Object();
+	// the snapshot of the children, until they are changed
+	private Model[] childrenCache;
+	// the children by their keys, see getKey()
+	private Hashtable childrenByKey;
 
 	public Model(String name) {
 		this.name = name;
@@ -74,13 +82,27 @@ public abstract class Model implements Comparable, IActionFilter, ConstantsDistr
 		
 		filterRecursively(element);
 
-		if (elementList.add(element)) {
-			fireElementAdded(element);
+		boolean added;
+		synchronized (childrenLock) {
+			added = elementList.add(element);
+			if (added) {
+				childrenCache = null;
+				Object key = element.getKey();
+				if (key != null) {
+					if (childrenByKey == null)
+						childrenByKey = new Hashtable();
+					if (!childrenByKey.containsKey(key))
+						childrenByKey.put(key, element);
+				}
+			}
 		}
+		if (added)
+			fireElementAdded(element);
 	}
 	
 	private void filterRecursively(Model element) {
 		element.filter();
+		indexNode(element);
 		Model[] children = element.getChildren();
 		if (children != null && children.length > 0)
 			for (int i = 0; i < children.length; i++) {
@@ -102,19 +124,97 @@ public abstract class Model implements Comparable, IActionFilter, ConstantsDistr
 
 	public void removeElement(Model element) {
 		element.setParent(null);
-		if (elementList.remove(element)) {
+		boolean removed;
+		synchronized (childrenLock) {
+			removed = elementList.remove(element);
+			if (removed) {
+				childrenCache = null;
+				Object key = element.getKey();
+				if (key != null && childrenByKey != null && childrenByKey.get(key) == element)
+					childrenByKey.remove(key);
+			}
+		}
+		if (removed) {
+			if (unindexNode(element))
+				unindexChildren(element);
 			fireChildSelected(-element.selectedChilds);
 			fireElementRemoved(element);
 		}
 	}
 
+	private void unindexChildren(Model element) {
+		Model[] children = element.getChildren();
+		for (int i = 0; i < children.length; i++) {
+			unindexNode(children[i]);
+			unindexChildren(children[i]);
+		}
+	}
+
+	/**
+	 * Called when a node is attached under this model. The call is passed to
+	 * the parent, so that the root of the tree can index its nodes.
+	 */
+	protected void indexNode(Model node) {
+		if (getParent() != null)
+			getParent().indexNode(node);
+	}
+
+	/**
+	 * Called when a node is detached from under this model.
+	 * 
+	 * @return false, if the node hasn't been indexed by the root of the tree
+	 */
+	protected boolean unindexNode(Model node) {
+		if (getParent() != null)
+			return getParent().unindexNode(node);
+		return false;
+	}
+
+	/**
+	 * Called when a node under this model is changed and its label may have
+	 * changed. The call is passed to the parent, so that the root of the tree
+	 * can check the node again with the next filtering.
+	 */
+	protected void reindexNode(Model node) {
+		if (getParent() != null)
+			getParent().reindexNode(node);
+	}
+
+	/**
+	 * Returns the children of this model. The returned array is shared until
+	 * the children are changed, so it must not be modified.
+	 */
 	public Model[] getChildren() {
 		if (elementList == null) {
 			return new Model[0];
 		}
-		Model[] resultArray = new Model[0];
-		resultArray = (Model[]) elementList.toArray(resultArray);
-		return resultArray;
+		synchronized (childrenLock) {
+			if (childrenCache == null)
+				childrenCache = (Model[]) elementList.toArray(new Model[elementList.size()]);
+			return childrenCache;
+		}
+	}
+
+	/**
+	 * Returns the key, by which this model can be found in its parent with
+	 * {@link #findChild(Object)}. The key must not change while the model is
+	 * attached. By default the models have no keys.
+	 * 
+	 * @return the key or null
+	 */
+	protected Object getKey() {
+		return null;
+	}
+
+	/**
+	 * Returns the child with the given key, see {@link #getKey()}.
+	 * 
+	 * @return the child or null, if there is no such child
+	 */
+	public Model findChild(Object key) {
+		synchronized (childrenLock) {
+			return childrenByKey != null ? (Model) childrenByKey.get(key) : null;
+		}
 	}
 	
 	public Model[] getSelectedChildrenRecursively() {
@@ -131,6 +231,9 @@ public abstract class Model implements Comparable, IActionFilter, ConstantsDistr
 			return;
 		for (Iterator it = elementList.iterator(); it.hasNext();) {
 			Model child = (Model) it.next();
+			// the counter includes the child itself and all its descendants
+			if (child.selectedChilds == 0)
+				continue;
 			if (child.selected)
 				result.add(child);
 			child.internalGetSelectedChildrenRecursively(result);
@@ -165,6 +268,7 @@ public abstract class Model implements Comparable, IActionFilter, ConstantsDistr
 	}
 
 	protected void fireElementChanged(Model target) {
+		reindexNode(target);
 		ArrayList listeners = this.getListeners();
 		if (listeners == null) {
 			return;
@@ -246,6 +350,10 @@ public abstract class Model implements Comparable, IActionFilter, ConstantsDistr
 		return false;
 	}
 	
+	public boolean isSelected() {
+		return selected;
+	}
+
 	public boolean isVisible() {
 		return selected || (selectedChilds > 0);
 	}
@@ -291,13 +399,14 @@ public abstract class Model implements Comparable, IActionFilter, ConstantsDistr
 	}
 
 	public int indexOf(Model child) {
-		Iterator iterator = elementList.iterator();
-		int index = 0;
-		while (iterator.hasNext()) {
-			Model node = (Model) iterator.next();
-			if (node == child)
-				return index;
-			index++;
+		Model[] children = getChildren();
+		// the children are sorted, unless renamed after they have been added
+		int index = Arrays.binarySearch(children, child);
+		if (index >= 0 && children[index] == child)
+			return index;
+		for (int i = 0; i < children.length; i++) {
+			if (children[i] == child)
+				return i;
 		}
 		return -1;
 	}
@@ -33,6 +33,14 @@ public class AllTests {
 		suite.addTestSuite(MBSASessionTest.class);
 		suite.addTestSuite(ThreadPoolTest.class);
 		suite.addTestSuite(VMManagerTest.class);
+		suite.addTestSuite(PMPConnectionTest.class);
+		suite.addTestSuite(DictionaryCodecTest.class);
+		suite.addTestSuite(SelectorPMPConnectionTest.class);
+		suite.addTestSuite(PMPEventsTest.class);
+		suite.addTestSuite(EventSynchronizerTest.class);
+		suite.addTestSuite(BundleDeltaTest.class);
+		suite.addTestSuite(DeploymentUploadsTest.class);
+		suite.addTestSuite(JarSignerTest.class);
 		// $JUnit-END$
 		return suite;
 	}
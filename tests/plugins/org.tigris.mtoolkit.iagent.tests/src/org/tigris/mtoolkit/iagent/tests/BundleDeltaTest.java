@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.tigris.mtoolkit.iagent.internal.utils.BundleDelta;
+
+public class BundleDeltaTest extends TestCase {
+
+	private static final int BLOCK_SIZE = 64;
+
+	private Random random = new Random(20090601);
+	private File base;
+
+	protected void setUp() throws Exception {
+		base = File.createTempFile("delta", ".base");
+	}
+
+	protected void tearDown() throws Exception {
+		base.delete();
+	}
+
+	/**
+	 * Reconstructs randomly modified contents from the delta against their
+	 * originals. The delta is read in random parts, like the transport does.
+	 */
+	public void testFuzzRoundTrip() throws IOException {
+		for (int i = 0; i < 200; i++) {
+			byte[] old = randomBytes(random.nextInt(BLOCK_SIZE * 40));
+			byte[] content = mutate(old);
+			assertTrue("Content must be reconstructed, iteration " + i, Arrays.equals(content, roundTrip(old, content)));
+		}
+	}
+
+	/**
+	 * Tests that an unchanged content is sent only as copies of the old blocks.
+	 */
+	public void testUnchangedContent() throws IOException {
+		byte[] content = randomBytes(BLOCK_SIZE * 100 + 10);
+		byte[] delta = readDelta(signatures(content), content);
+		assertTrue("Delta must be small: " + delta.length, delta.length < 100);
+		assertTrue(Arrays.equals(content, apply(content, delta)));
+	}
+
+	/**
+	 * Tests the delta against an empty old content and of an empty content.
+	 */
+	public void testEmptyContents() throws IOException {
+		byte[] content = randomBytes(200 * 1024);
+		assertTrue(Arrays.equals(content, roundTrip(new byte[0], content)));
+		assertTrue(Arrays.equals(new byte[0], roundTrip(content, new byte[0])));
+	}
+
+	/**
+	 * Tests that the content is read only as far as the delta is read.
+	 */
+	public void testContentReadLazily() throws IOException {
+		byte[] content = randomBytes(1024 * 1024);
+		CountingInputStream counter = new CountingInputStream(new ByteArrayInputStream(content));
+		InputStream delta = BundleDelta.openDelta(signatures(new byte[0]), counter);
+		assertNotNull(delta);
+		assertEquals("The content must not be read before the delta", 0, counter.count);
+		byte[] buf = new byte[1024];
+		int read = 0;
+		while (read < buf.length)
+			read += delta.read(buf, read, buf.length - read);
+		assertTrue("Content must be read lazily: " + counter.count, counter.count < content.length / 2);
+	}
+
+	/**
+	 * Tests that a delta, which doesn't match the old content, is rejected.
+	 */
+	public void testMismatchRejected() throws IOException {
+		byte[] old = randomBytes(BLOCK_SIZE * 50);
+		byte[] content = mutate(old);
+		byte[] delta = readDelta(signatures(old), content);
+		byte[] other = (byte[]) old.clone();
+		other[BLOCK_SIZE * 10] ^= 1;
+		try {
+			apply(other, delta);
+			fail("Delta against other content must be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+		delta[delta.length - 1] ^= 1;
+		try {
+			apply(old, delta);
+			fail("Delta with wrong digest must be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Tests that invalid signatures are detected before the content is read.
+	 */
+	public void testInvalidSignatures() throws IOException {
+		InputStream content = new ByteArrayInputStream(new byte[10]);
+		assertNull(BundleDelta.openDelta(new byte[3], content));
+		byte[] signatures = signatures(randomBytes(BLOCK_SIZE * 3));
+		byte[] truncated = new byte[signatures.length - 1];
+		System.arraycopy(signatures, 0, truncated, 0, truncated.length);
+		assertNull(BundleDelta.openDelta(truncated, content));
+	}
+
+	private byte[] roundTrip(byte[] old, byte[] content) throws IOException {
+		return apply(old, readDelta(signatures(old), content));
+	}
+
+	private byte[] signatures(byte[] content) throws IOException {
+		return BundleDelta.computeSignatures(new ByteArrayInputStream(content), BLOCK_SIZE);
+	}
+
+	private byte[] readDelta(byte[] signatures, byte[] content) throws IOException {
+		InputStream delta = BundleDelta.openDelta(signatures, new ByteArrayInputStream(content));
+		assertNotNull("Delta must be available", delta);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		while (true) {
+			int read;
+			if (random.nextInt(10) == 0) {
+				read = delta.read();
+				if (read == -1)
+					break;
+				bos.write(read);
+			} else {
+				read = delta.read(buf, 0, 1 + random.nextInt(buf.length));
+				if (read == -1)
+					break;
+				bos.write(buf, 0, read);
+			}
+		}
+		delta.close();
+		return bos.toByteArray();
+	}
+
+	private byte[] apply(byte[] old, byte[] delta) throws IOException {
+		FileOutputStream fos = new FileOutputStream(base);
+		fos.write(old);
+		fos.close();
+		RandomAccessFile raf = new RandomAccessFile(base, "r");
+		try {
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			BundleDelta.applyDelta(raf, new ByteArrayInputStream(delta), result);
+			return result.toByteArray();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/** inserts, deletes and replaces random ranges of the content */
+	private byte[] mutate(byte[] content) {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		int pos = 0;
+		while (pos < content.length) {
+			int length = Math.min(content.length - pos, random.nextInt(BLOCK_SIZE * 8));
+			switch (random.nextInt(4)) {
+			case 0:
+				result.write(content, pos, length);
+				break;
+			case 1:
+				byte[] inserted = randomBytes(random.nextInt(BLOCK_SIZE * 2));
+				result.write(inserted, 0, inserted.length);
+				result.write(content, pos, length);
+				break;
+			case 2:
+				// delete
+				break;
+			default:
+				byte[] replaced = randomBytes(length);
+				result.write(replaced, 0, replaced.length);
+			}
+			pos += length;
+		}
+		return result.toByteArray();
+	}
+
+	private byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	private static class CountingInputStream extends InputStream {
+		private InputStream in;
+		int count;
+
+		CountingInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		public int read() throws IOException {
+			int b = in.read();
+			if (b != -1)
+				count++;
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = in.read(b, off, len);
+			if (read > 0)
+				count += read;
+			return read;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.osgi.framework.BundleContext;
+import org.tigris.mtoolkit.iagent.util.DigestUtils;
+
+/**
+ * Tests the staging of the deployment packages, uploaded in chunks. The
+ * uploads are package private in the agent, so they are accessed through
+ * reflection.
+ */
+public class DeploymentUploadsTest extends TestCase {
+
+	private File dataDir;
+	private Object uploads;
+	private byte[] content;
+	private String digest;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		dataDir = File.createTempFile("uploads", ".dir");
+		dataDir.delete();
+		dataDir.mkdirs();
+		Class uploadsClass = Class.forName("org.tigris.mtoolkit.iagent.internal.rpc.DeploymentUploads");
+		Constructor constructor = uploadsClass.getDeclaredConstructor(new Class[] { BundleContext.class });
+		constructor.setAccessible(true);
+		uploads = constructor.newInstance(new Object[] { createContext(dataDir) });
+		content = new byte[10000];
+		for (int i = 0; i < content.length; i++)
+			content[i] = (byte) i;
+		digest = DigestUtils.digest(new ByteArrayInputStream(content));
+	}
+
+	protected void tearDown() throws Exception {
+		delete(dataDir);
+		super.tearDown();
+	}
+
+	/**
+	 * Tests that an upload continues from the staged length and chunks at
+	 * other offsets, like resent chunks, are ignored.
+	 */
+	public void testResumeFromOffset() throws Exception {
+		assertEquals(0, begin(digest, content.length));
+		assertEquals(4000, append(digest, 0, 4000));
+		assertEquals("A resent chunk must be ignored", 4000, append(digest, 0, 4000));
+		assertEquals("A chunk after a gap must be ignored", 4000, append(digest, 6000, 4000));
+		assertEquals("The upload must continue from the staged length", 4000, begin(digest, content.length));
+		assertEquals(content.length, append(digest, 4000, 6000));
+
+		File file = commit(digest);
+		assertNotNull(file);
+		assertTrue(Arrays.equals(content, readFile(file)));
+	}
+
+	/**
+	 * Tests that more staged data than the size of the package starts the
+	 * upload again.
+	 */
+	public void testRestartWhenTooLong() throws Exception {
+		begin(digest, content.length);
+		append(digest, 0, 6000);
+		assertEquals(0, begin(digest, 5000));
+		assertEquals(0, begin(digest, content.length));
+	}
+
+	/**
+	 * Tests that staged data, which doesn't match the digest, is refused and
+	 * removed.
+	 */
+	public void testCommitRejectsWrongContent() throws Exception {
+		begin(digest, content.length);
+		content[100]++;
+		append(digest, 0, content.length);
+		assertNull(commit(digest));
+		assertEquals(0, begin(digest, content.length));
+	}
+
+	/**
+	 * Tests that data past the size, declared when the upload was started,
+	 * and data of uploads, which are not started, are refused.
+	 */
+	public void testAppendPastDeclaredSize() throws Exception {
+		try {
+			append(digest, 0, 10);
+			fail("Data of an upload, which is not started, must be refused");
+		} catch (IOException e) {
+			// expected
+		}
+		begin(digest, 5000);
+		assertEquals(4000, append(digest, 0, 4000));
+		try {
+			append(digest, 4000, 4000);
+			fail("Data past the declared size must be refused");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(5000, append(digest, 4000, 1000));
+	}
+
+	/**
+	 * Tests that digests, which are not valid file names, are refused.
+	 */
+	public void testInvalidDigest() throws Exception {
+		assertEquals(-1, begin("../" + digest, content.length));
+		assertEquals(-1, begin("", content.length));
+		try {
+			append("..", 0, 10);
+			fail("Invalid uploads must be refused");
+		} catch (IOException e) {
+			// expected
+		}
+		assertNull(commit("no-digest"));
+	}
+
+	private long begin(String digest, long size) throws Exception {
+		return ((Long) invoke("begin", new Class[] { String.class, long.class }, new Object[] { digest,
+				new Long(size) })).longValue();
+	}
+
+	private long append(String digest, int offset, int length) throws Exception {
+		byte[] data = new byte[length];
+		System.arraycopy(content, offset, data, 0, length);
+		return ((Long) invoke("append", new Class[] { String.class, long.class, byte[].class }, new Object[] {
+				digest, new Long(offset), data })).longValue();
+	}
+
+	private File commit(String digest) throws Exception {
+		return (File) invoke("commit", new Class[] { String.class }, new Object[] { digest });
+	}
+
+	private Object invoke(String name, Class[] types, Object[] args) throws Exception {
+		Method method = uploads.getClass().getDeclaredMethod(name, types);
+		method.setAccessible(true);
+		try {
+			return method.invoke(uploads, args);
+		} catch (InvocationTargetException e) {
+			if (e.getTargetException() instanceof Exception)
+				throw (Exception) e.getTargetException();
+			throw e;
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			int read = 0;
+			while (read < data.length)
+				read += fis.read(data, read, data.length - read);
+		} finally {
+			fis.close();
+		}
+		return data;
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		for (int i = 0; files != null && i < files.length; i++)
+			delete(files[i]);
+		file.delete();
+	}
+
+	private static BundleContext createContext(final File dataDir) {
+		return (BundleContext) Proxy.newProxyInstance(DeploymentUploadsTest.class.getClassLoader(),
+			new Class[] { BundleContext.class }, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					if (method.getName().equals("getDataFile"))
+						return new File(dataDir, (String) args[0]);
+					return null;
+				}
+			});
+	}
+}
@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Properties;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+import org.tigris.mtoolkit.iagent.internal.utils.DictionaryCodec;
+
+public class DictionaryCodecTest extends TestCase {
+
+	/**
+	 * Tests that every supported type is read back with the same value and
+	 * type.
+	 */
+	public void testRoundTripAllTypes() throws IOException {
+		Hashtable dictionary = createDictionary();
+		assertTrue(DictionaryCodec.isEncodable(dictionary));
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		new DictionaryCodec().writeDictionary(dictionary, bos);
+		Dictionary result = new DictionaryCodec().readDictionary(new Hashtable(),
+			new ByteArrayInputStream(bos.toByteArray()));
+		assertEqualValues(dictionary, result);
+	}
+
+	/**
+	 * Tests the boundary values of the variable length numbers.
+	 */
+	public void testNumberLimits() throws IOException {
+		Object[] values = new Object[] { new Integer(0), new Integer(-1), new Integer(Integer.MIN_VALUE),
+				new Integer(Integer.MAX_VALUE), new Long(Long.MIN_VALUE), new Long(Long.MAX_VALUE),
+				new Long(-1), new Short(Short.MIN_VALUE), new Byte(Byte.MIN_VALUE),
+				new Character(Character.MAX_VALUE), new Float(Float.NaN), new Double(Double.NEGATIVE_INFINITY),
+				new long[] { Long.MIN_VALUE, 0, Long.MAX_VALUE }, new int[] { Integer.MIN_VALUE, Integer.MAX_VALUE } };
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DictionaryCodec writer = new DictionaryCodec();
+		for (int i = 0; i < values.length; i++)
+			writer.writeValue(values[i], bos);
+		DictionaryCodec reader = new DictionaryCodec();
+		InputStream in = new ByteArrayInputStream(bos.toByteArray());
+		for (int i = 0; i < values.length; i++)
+			assertEqualValue(values[i], reader.readValue(in));
+		assertEquals("All data must be read", -1, in.read());
+	}
+
+	/**
+	 * Tests that repeated strings are sent once and referred afterwards, when
+	 * the same codec instances write and read the data.
+	 */
+	public void testStringTable() throws IOException {
+		Hashtable dictionary = new Hashtable();
+		dictionary.put("custom.key", "custom value");
+		dictionary.put("Bundle-SymbolicName", "org.example.bundle");
+		DictionaryCodec writer = new DictionaryCodec();
+		ByteArrayOutputStream first = new ByteArrayOutputStream();
+		writer.writeDictionary(dictionary, first);
+		ByteArrayOutputStream second = new ByteArrayOutputStream();
+		writer.writeDictionary(dictionary, second);
+		assertTrue("Repeated strings must be referred: " + first.size() + " / " + second.size(),
+			second.size() < first.size() / 2);
+
+		DictionaryCodec reader = new DictionaryCodec();
+		assertEquals(dictionary, reader.readDictionary(new Hashtable(), new ByteArrayInputStream(first.toByteArray())));
+		assertEquals(dictionary, reader.readDictionary(new Hashtable(), new ByteArrayInputStream(second.toByteArray())));
+		try {
+			new DictionaryCodec().readDictionary(new Hashtable(), new ByteArrayInputStream(second.toByteArray()));
+			fail("References to strings, which weren't read, must be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Tests that the reader refuses too big arrays and too long strings.
+	 */
+	public void testReadLimits() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		new DictionaryCodec().writeValue(new String[] { "a", "b", "c" }, bos);
+		try {
+			new DictionaryCodec(2, -1).readValue(new ByteArrayInputStream(bos.toByteArray()));
+			fail("Array bigger than the limit must be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+		bos.reset();
+		new DictionaryCodec().writeValue("a long string value", bos);
+		try {
+			new DictionaryCodec(-1, 10).readValue(new ByteArrayInputStream(bos.toByteArray()));
+			fail("String longer than the limit must be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Tests that truncated data is reported as an error.
+	 */
+	public void testTruncatedData() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		new DictionaryCodec().writeDictionary(createDictionary(), bos);
+		byte[] data = bos.toByteArray();
+		for (int length = 0; length < data.length; length += 7) {
+			try {
+				new DictionaryCodec().readDictionary(new Hashtable(), new ByteArrayInputStream(data, 0, length));
+				fail("Data truncated to " + length + " bytes must be rejected");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	/**
+	 * Tests that values, which can't be read back with the same type, are
+	 * not reported as encodable.
+	 */
+	public void testNotEncodable() {
+		Hashtable dictionary = new Hashtable();
+		dictionary.put("vector", new Vector());
+		assertFalse(DictionaryCodec.isEncodable(dictionary));
+		assertFalse(DictionaryCodec.isEncodableValue(new Properties()));
+		assertFalse(DictionaryCodec.isEncodableValue(new Dictionary[] { new Properties() }));
+		assertFalse(DictionaryCodec.isEncodableValue(new Object[0]));
+		assertTrue(DictionaryCodec.isEncodableValue(new Dictionary[] { null, new Hashtable() }));
+	}
+
+	private Hashtable createDictionary() {
+		Hashtable headers = new Hashtable();
+		headers.put("Bundle-SymbolicName", "org.example.bundle");
+		headers.put("Bundle-Version", "1.0.0");
+		headers.put("X-Unicode", "\u00e4\u00f6\u00fc \u4e2d\u6587");
+		Hashtable service = new Hashtable();
+		service.put("service.id", new Long(42));
+		service.put("objectClass", new String[] { "org.example.Service", null });
+
+		Hashtable dictionary = new Hashtable();
+		dictionary.put("bundle.headers", headers);
+		dictionary.put("registered.services", new Dictionary[] { service, null });
+		dictionary.put("string", "value");
+		dictionary.put("integer", new Integer(-12345));
+		dictionary.put("long", new Long(1L << 40));
+		dictionary.put("true", Boolean.TRUE);
+		dictionary.put("false", Boolean.FALSE);
+		dictionary.put("short", new Short((short) 300));
+		dictionary.put("byte", new Byte((byte) -2));
+		dictionary.put("char", new Character('x'));
+		dictionary.put("float", new Float(1.5f));
+		dictionary.put("double", new Double(-2.25));
+		dictionary.put("longs", new long[] { 1, -2, 3 });
+		dictionary.put("ints", new int[] { -1, 0, 1 });
+		dictionary.put("bytes", new byte[] { 0, -1, 127 });
+		dictionary.put("booleans", new boolean[] { true, false });
+		dictionary.put(new Integer(7), "non string key");
+		return dictionary;
+	}
+
+	private void assertEqualValues(Dictionary expected, Dictionary actual) {
+		assertEquals(expected.size(), actual.size());
+		for (Enumeration e = expected.keys(); e.hasMoreElements();) {
+			Object key = e.nextElement();
+			assertEqualValue(expected.get(key), actual.get(key));
+		}
+	}
+
+	private void assertEqualValue(Object expected, Object actual) {
+		assertNotNull(actual);
+		assertEquals(expected.getClass(), actual.getClass());
+		if (expected instanceof Dictionary) {
+			assertEqualValues((Dictionary) expected, (Dictionary) actual);
+		} else if (expected instanceof Dictionary[]) {
+			Dictionary[] expectedArray = (Dictionary[]) expected;
+			Dictionary[] actualArray = (Dictionary[]) actual;
+			assertEquals(expectedArray.length, actualArray.length);
+			for (int i = 0; i < expectedArray.length; i++) {
+				if (expectedArray[i] == null)
+					assertNull(actualArray[i]);
+				else
+					assertEqualValues(expectedArray[i], actualArray[i]);
+			}
+		} else if (expected instanceof Object[]) {
+			assertTrue(Arrays.equals((Object[]) expected, (Object[]) actual));
+		} else if (expected instanceof long[]) {
+			assertTrue(Arrays.equals((long[]) expected, (long[]) actual));
+		} else if (expected instanceof int[]) {
+			assertTrue(Arrays.equals((int[]) expected, (int[]) actual));
+		} else if (expected instanceof byte[]) {
+			assertTrue(Arrays.equals((byte[]) expected, (byte[]) actual));
+		} else if (expected instanceof boolean[]) {
+			assertTrue(Arrays.equals((boolean[]) expected, (boolean[]) actual));
+		} else {
+			assertEquals(expected, actual);
+		}
+	}
+}
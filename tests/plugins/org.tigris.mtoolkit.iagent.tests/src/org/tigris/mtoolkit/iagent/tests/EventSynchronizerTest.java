@@ -0,0 +1,260 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.tests;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.tigris.mtoolkit.iagent.event.EventData;
+import org.tigris.mtoolkit.iagent.internal.rpc.EventSynchronizerImpl;
+import org.tigris.mtoolkit.iagent.pmp.PMPConnection;
+import org.tigris.mtoolkit.iagent.pmp.PMPConnectionListener;
+import org.tigris.mtoolkit.iagent.pmp.PMPServer;
+
+/**
+ * Tests the dispatching of the agent events to a recording PMP server. The
+ * synchronizer is created through reflection, because it is normally created
+ * only by the agent activator.
+ */
+public class EventSynchronizerTest extends TestCase {
+
+	private static final String TYPE = "test.event";
+
+	private RecordingServer server;
+	private EventSynchronizerImpl synchronizer;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new RecordingServer();
+		Constructor constructor = EventSynchronizerImpl.class.getDeclaredConstructor(new Class[] { BundleContext.class });
+		constructor.setAccessible(true);
+		synchronizer = (EventSynchronizerImpl) constructor.newInstance(new Object[] { createContext() });
+		Method setServer = EventSynchronizerImpl.class.getDeclaredMethod("setPMPServer", new Class[] { PMPServer.class });
+		setServer.setAccessible(true);
+		setServer.invoke(synchronizer, new Object[] { server });
+		synchronizer.start();
+	}
+
+	protected void tearDown() throws Exception {
+		server.release();
+		synchronizer.stopDispatching();
+		super.tearDown();
+	}
+
+	/**
+	 * Tests that a burst of events is sent in a single batch, which keeps the
+	 * order of the events.
+	 */
+	public void testBurstSentInBatch() throws Exception {
+		for (int i = 0; i < 20; i++)
+			synchronizer.enqueue(new EventData(createEvent(i), TYPE));
+		server.waitForEvents(20);
+		assertEquals("The burst must be sent at once", 1, server.calls);
+		for (int i = 0; i < 20; i++)
+			assertEquals(i, getIndex(server.events.elementAt(i)));
+	}
+
+	/**
+	 * Tests that a single event is sent on its own, without waiting for more
+	 * events.
+	 */
+	public void testSingleEvent() throws Exception {
+		synchronizer.enqueue(new EventData(createEvent(0), TYPE));
+		server.waitForEvents(1);
+		assertEquals(TYPE, server.types.elementAt(0));
+	}
+
+	/**
+	 * Tests that the events, which are superseded by later events with the
+	 * same collapse key, are dropped when the queue gets full.
+	 */
+	public void testOverflowCollapsesEvents() throws Exception {
+		blockServer();
+		int count = 2000;
+		for (int i = 1; i <= count; i++)
+			synchronizer.enqueue(new EventData(createEvent(i), TYPE, i % 2 == 0 ? "even" : "odd"));
+		server.release();
+		// the two latest events of the full queue are kept, the later events
+		// fit in the queue
+		int expected = 1 + 2 + count - 1024;
+		server.waitForEvents(expected);
+		Thread.sleep(100);
+		assertEquals(expected, server.events.size());
+		int previous = -1;
+		for (int i = 0; i < server.events.size(); i++) {
+			assertEquals(TYPE, server.types.elementAt(i));
+			int index = getIndex(server.events.elementAt(i));
+			assertTrue("The events must keep their order", index > previous);
+			previous = index;
+		}
+		assertEquals(1023, getIndex(server.events.elementAt(1)));
+		assertEquals(1024, getIndex(server.events.elementAt(2)));
+		assertEquals(count, previous);
+	}
+
+	/**
+	 * Tests that the queued events are replaced by a single lost events
+	 * notification, when the queue gets full with events, which can't be
+	 * collapsed.
+	 */
+	public void testOverflowDropsEvents() throws Exception {
+		blockServer();
+		int count = 1034;
+		for (int i = 1; i <= count; i++)
+			synchronizer.enqueue(new EventData(createEvent(i), TYPE));
+		server.release();
+		server.waitForEvents(1 + 1 + count - 1024);
+		Thread.sleep(100);
+		assertEquals(12, server.events.size());
+		assertEquals(PMPConnection.EVENTS_LOST, server.types.elementAt(1));
+		Dictionary lost = (Dictionary) server.events.elementAt(1);
+		assertEquals(new Integer(1024), lost.get("events.dropped"));
+		for (int i = 2; i < server.events.size(); i++)
+			assertEquals(1023 + i, getIndex(server.events.elementAt(i)));
+	}
+
+	/**
+	 * Blocks the server in sending of an event, so the following events stay
+	 * in the queue.
+	 */
+	private void blockServer() throws InterruptedException {
+		server.block();
+		synchronizer.enqueue(new EventData(createEvent(0), TYPE));
+		server.waitForBlocked();
+	}
+
+	private static Hashtable createEvent(int index) {
+		Hashtable event = new Hashtable();
+		event.put("index", new Integer(index));
+		return event;
+	}
+
+	private static int getIndex(Object event) {
+		return ((Integer) ((Dictionary) event).get("index")).intValue();
+	}
+
+	private static BundleContext createContext() {
+		ClassLoader loader = EventSynchronizerTest.class.getClassLoader();
+		final ServiceRegistration registration = (ServiceRegistration) Proxy.newProxyInstance(loader,
+			new Class[] { ServiceRegistration.class }, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					return null;
+				}
+			});
+		return (BundleContext) Proxy.newProxyInstance(loader, new Class[] { BundleContext.class },
+			new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					if (method.getName().equals("registerService"))
+						return registration;
+					return null;
+				}
+			});
+	}
+
+	/**
+	 * Records the sent events. The sending can be blocked, like by a slow
+	 * client.
+	 */
+	private static class RecordingServer implements PMPServer {
+		final Vector events = new Vector();
+		final Vector types = new Vector();
+		int calls;
+		private boolean blocked;
+		private boolean waiting;
+
+		public synchronized void event(Object ev, String eventType) {
+			waitWhileBlocked();
+			calls++;
+			events.addElement(ev);
+			types.addElement(eventType);
+			notifyAll();
+		}
+
+		public synchronized void events(Object[] evs, String[] eventTypes) {
+			waitWhileBlocked();
+			calls++;
+			for (int i = 0; i < evs.length; i++) {
+				events.addElement(evs[i]);
+				types.addElement(eventTypes[i]);
+			}
+			notifyAll();
+		}
+
+		synchronized void block() {
+			blocked = true;
+		}
+
+		synchronized void release() {
+			blocked = false;
+			notifyAll();
+		}
+
+		private void waitWhileBlocked() {
+			while (blocked) {
+				waiting = true;
+				notifyAll();
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			waiting = false;
+		}
+
+		synchronized void waitForBlocked() throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (!waiting) {
+				long timeout = deadline - System.currentTimeMillis();
+				if (timeout <= 0)
+					fail("The server must be called");
+				wait(timeout);
+			}
+		}
+
+		synchronized void waitForEvents(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (events.size() < count) {
+				long timeout = deadline - System.currentTimeMillis();
+				if (timeout <= 0)
+					fail("Expected " + count + " events, but received " + events.size());
+				wait(timeout);
+			}
+		}
+
+		public void close() {
+		}
+
+		public boolean isActive() {
+			return true;
+		}
+
+		public Map getProperties() {
+			return new Hashtable();
+		}
+
+		public void addConnectionListener(PMPConnectionListener listener) {
+		}
+
+		public void removeConnectionListener(PMPConnectionListener listener) {
+		}
+	}
+}
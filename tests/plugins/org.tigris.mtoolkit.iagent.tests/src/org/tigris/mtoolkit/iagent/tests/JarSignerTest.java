@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.CodeSigner;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import org.tigris.mtoolkit.common.certificates.JarSigner;
+
+/**
+ * Tests that the JARs, signed by {@link JarSigner}, are verified by the JAR
+ * support of the VM. The test key is the one, used by sign.xml.
+ */
+public class JarSignerTest extends TestCase {
+
+	private static final String STORE = "titantestcert.jks";
+	private static final String STORE_PASS = "123456";
+	private static final String ALIAS = "titan_test";
+	private static final String BUNDLE = "test.bundle.b1_1.0.0.jar";
+
+	private File store;
+	private File unsigned;
+	private File signed;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		store = getResourceFile(STORE);
+		unsigned = getResourceFile(BUNDLE);
+		signed = File.createTempFile("signed", ".jar");
+	}
+
+	protected void tearDown() throws Exception {
+		signed.delete();
+		super.tearDown();
+	}
+
+	/**
+	 * Tests that every entry of a signed JAR is verified and is signed by the
+	 * test certificate.
+	 */
+	public void testSignedJarVerifies() throws Exception {
+		JarSigner.signJar(unsigned, signed, new JarSigner.Signer[] { getSigner() });
+		Hashtable contents = verify(signed);
+		assertEquals(readEntries(unsigned), contents);
+	}
+
+	/**
+	 * Tests that signing a signed JAR again replaces the signature of the same
+	 * key and that every signer of a single operation adds its own signature.
+	 */
+	public void testSignAgain() throws Exception {
+		JarSigner.signJar(unsigned, signed, new JarSigner.Signer[] { getSigner() });
+		byte[] resigned = JarSigner.signJar(readFile(signed), new JarSigner.Signer[] { getSigner() });
+		writeFile(signed, resigned);
+		assertEquals(1, getSignatureFiles(signed).size());
+		verify(signed);
+
+		JarSigner.signJar(unsigned, signed, new JarSigner.Signer[] { getSigner(), getSigner() });
+		assertEquals(2, getSignatureFiles(signed).size());
+		verify(signed);
+	}
+
+	/**
+	 * Tests that the signed content can't be changed unnoticed.
+	 */
+	public void testModifiedEntryRejected() throws Exception {
+		JarSigner.signJar(unsigned, signed, new JarSigner.Signer[] { getSigner() });
+		ByteArrayOutputStream modified = new ByteArrayOutputStream();
+		ZipInputStream zis = new ZipInputStream(new FileInputStream(signed));
+		try {
+			ZipOutputStream zos = new ZipOutputStream(modified);
+			boolean changed = false;
+			ZipEntry entry;
+			while ((entry = zis.getNextEntry()) != null) {
+				byte[] content = readEntry(zis);
+				if (!changed && !entry.isDirectory() && !entry.getName().toUpperCase().startsWith("META-INF/")) {
+					content = new String(content, "ISO-8859-1").concat(" ").getBytes("ISO-8859-1");
+					changed = true;
+				}
+				zos.putNextEntry(new ZipEntry(entry.getName()));
+				zos.write(content);
+				zos.closeEntry();
+			}
+			zos.close();
+			assertTrue(changed);
+		} finally {
+			zis.close();
+		}
+		writeFile(signed, modified.toByteArray());
+		try {
+			verify(signed);
+			fail("Modified entry must be rejected");
+		} catch (SecurityException e) {
+			// expected
+		}
+	}
+
+	private JarSigner.Signer getSigner() throws IOException {
+		return JarSigner.getSigner(store.getAbsolutePath(), "jks", STORE_PASS, ALIAS, null);
+	}
+
+	/**
+	 * Reads all entries of the JAR, checking their signers, and returns their
+	 * content.
+	 */
+	private Hashtable verify(File file) throws Exception {
+		Certificate certificate = loadCertificate();
+		Hashtable contents = new Hashtable();
+		JarFile jar = new JarFile(file, true);
+		try {
+			for (Enumeration e = jar.entries(); e.hasMoreElements();) {
+				JarEntry entry = (JarEntry) e.nextElement();
+				byte[] content = readStream(jar.getInputStream(entry));
+				if (entry.isDirectory() || entry.getName().toUpperCase().startsWith("META-INF/"))
+					continue;
+				CodeSigner[] codeSigners = entry.getCodeSigners();
+				assertNotNull("Entry must be signed: " + entry.getName(), codeSigners);
+				for (int i = 0; i < codeSigners.length; i++)
+					assertEquals(certificate, codeSigners[i].getSignerCertPath().getCertificates().get(0));
+				contents.put(entry.getName(), new Content(content));
+			}
+		} finally {
+			jar.close();
+		}
+		return contents;
+	}
+
+	private Hashtable readEntries(File file) throws IOException {
+		Hashtable contents = new Hashtable();
+		JarFile jar = new JarFile(file, false);
+		try {
+			for (Enumeration e = jar.entries(); e.hasMoreElements();) {
+				JarEntry entry = (JarEntry) e.nextElement();
+				if (!entry.isDirectory() && !entry.getName().toUpperCase().startsWith("META-INF/"))
+					contents.put(entry.getName(), new Content(readStream(jar.getInputStream(entry))));
+			}
+		} finally {
+			jar.close();
+		}
+		return contents;
+	}
+
+	private Vector getSignatureFiles(File file) throws IOException {
+		Vector names = new Vector();
+		JarFile jar = new JarFile(file, false);
+		try {
+			for (Enumeration e = jar.entries(); e.hasMoreElements();) {
+				String name = ((JarEntry) e.nextElement()).getName().toUpperCase();
+				if (name.startsWith("META-INF/") && name.endsWith(".SF"))
+					names.addElement(name);
+			}
+		} finally {
+			jar.close();
+		}
+		return names;
+	}
+
+	private Certificate loadCertificate() throws Exception {
+		KeyStore keyStore = KeyStore.getInstance("jks");
+		InputStream input = new FileInputStream(store);
+		try {
+			keyStore.load(input, STORE_PASS.toCharArray());
+		} finally {
+			input.close();
+		}
+		return keyStore.getCertificate(ALIAS);
+	}
+
+	private File getResourceFile(String name) throws Exception {
+		URL url = getClass().getClassLoader().getResource(name);
+		assertNotNull("Missing test resource: " + name, url);
+		return new File(url.getPath());
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		return readStream(new FileInputStream(file));
+	}
+
+	private static void writeFile(File file, byte[] content) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			fos.write(content);
+		} finally {
+			fos.close();
+		}
+	}
+
+	private static byte[] readStream(InputStream input) throws IOException {
+		try {
+			return readEntry(input);
+		} finally {
+			input.close();
+		}
+	}
+
+	private static byte[] readEntry(InputStream input) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int read;
+		while ((read = input.read(buf)) != -1)
+			bos.write(buf, 0, read);
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Compares the content of the entries.
+	 */
+	private static class Content {
+		private final byte[] data;
+
+		Content(byte[] data) {
+			this.data = data;
+		}
+
+		public boolean equals(Object obj) {
+			return obj instanceof Content && Arrays.equals(data, ((Content) obj).data);
+		}
+
+		public int hashCode() {
+			return Arrays.hashCode(data);
+		}
+	}
+}
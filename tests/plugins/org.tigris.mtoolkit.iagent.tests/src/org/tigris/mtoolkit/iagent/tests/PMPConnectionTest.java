@@ -0,0 +1,249 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.tigris.mtoolkit.iagent.pmp.PMPBatch;
+import org.tigris.mtoolkit.iagent.pmp.PMPException;
+import org.tigris.mtoolkit.iagent.pmp.PMPFuture;
+import org.tigris.mtoolkit.iagent.pmp.PMPFutureListener;
+import org.tigris.mtoolkit.iagent.pmp.RemoteMethod;
+
+public class PMPConnectionTest extends PMPTestCase {
+
+	/**
+	 * Tests that the frames of a large upload are interleaved with the frames
+	 * of other calls, so the calls don't wait for the upload to finish. The
+	 * uploaded content is produced slowly, so the upload lasts long enough.
+	 */
+	public void testCallsDuringLargeUpload() throws Exception {
+		final RemoteMethod consume = getMethod("consume", InputStream.class);
+		RemoteMethod echo = getMethod("echo", String.class);
+		final int size = 2 * 1024 * 1024;
+		final SlowInputStream content = new SlowInputStream(new ByteArrayInputStream(new byte[size]));
+		final Object[] result = new Object[1];
+		Thread upload = new Thread() {
+			public void run() {
+				try {
+					result[0] = consume.invoke(new Object[] { content }, true);
+				} catch (Exception e) {
+					result[0] = e;
+				}
+			}
+		};
+		upload.start();
+		Thread.sleep(100);
+		for (int i = 0; i < 20; i++)
+			assertEquals("call" + i, echo.invoke(new Object[] { "call" + i }, true));
+		assertTrue("The calls must not wait for the upload", upload.isAlive());
+		content.delay = 0;
+		upload.join(30000);
+		assertEquals(new Integer(size), result[0]);
+	}
+
+	/**
+	 * Tests that a stream, which is not the last argument, is read entirely
+	 * and the next arguments are read after it.
+	 */
+	public void testStreamBeforeOtherArguments() throws Exception {
+		RemoteMethod method = service.getMethod("consumeBefore", new String[] { InputStream.class.getName(),
+				String.class.getName() });
+		assertEquals("10:TAIL", method.invoke(new Object[] { new ByteArrayInputStream(new byte[10]), "TAIL" }, true));
+		assertEquals("100000:TAIL", method.invoke(new Object[] { new ByteArrayInputStream(new byte[100000]), "TAIL" },
+			true));
+		// the session must still work after the calls
+		assertEquals("after", getMethod("echo", String.class).invoke(new Object[] { "after" }, true));
+	}
+
+	/**
+	 * Tests that a large stream, which is not the last argument, is stored in
+	 * a temporary file, which is removed after the call.
+	 */
+	public void testLargeStreamBeforeOtherArguments() throws Exception {
+		RemoteMethod method = service.getMethod("consumeBefore", new String[] { InputStream.class.getName(),
+				String.class.getName() });
+		File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+		List before = Arrays.asList(tmpDir.list());
+		int size = 1024 * 1024;
+		assertEquals(size + ":TAIL", method.invoke(new Object[] { new ByteArrayInputStream(new byte[size]), "TAIL" },
+			true));
+		String[] after = tmpDir.list();
+		for (int i = 0; i < after.length; i++) {
+			if (after[i].startsWith("pmp") && after[i].endsWith(".tmp"))
+				assertTrue("The spooled data must be removed: " + after[i], before.contains(after[i]));
+		}
+	}
+
+	/**
+	 * Tests that many asynchronous calls can be pending at the same time and
+	 * each of them gets its own result.
+	 */
+	public void testPipelinedCalls() throws Exception {
+		RemoteMethod echo = getMethod("echo", String.class);
+		PMPFuture[] futures = new PMPFuture[500];
+		for (int i = 0; i < futures.length; i++)
+			futures[i] = echo.invokeAsync(new Object[] { "async" + i }, true);
+		for (int i = 0; i < futures.length; i++)
+			assertEquals("async" + i, futures[i].get());
+	}
+
+	/**
+	 * Tests that slow asynchronous calls are executed in parallel and that the
+	 * listeners are notified about their completion.
+	 */
+	public void testParallelCalls() throws Exception {
+		RemoteMethod await = service.getMethod("await", new String[] { "int", "long" });
+		final List completed = Collections.synchronizedList(new ArrayList());
+		PMPFutureListener listener = new PMPFutureListener() {
+			public void done(PMPFuture future) {
+				completed.add(future);
+			}
+		};
+		PMPFuture[] futures = new PMPFuture[3];
+		for (int i = 0; i < futures.length; i++) {
+			futures[i] = await.invokeAsync(new Object[] { new Integer(futures.length), new Long(5000) }, true);
+			futures[i].addListener(listener);
+		}
+		// every call waits for the others, so they meet only if they are
+		// executed in parallel
+		for (int i = 0; i < futures.length; i++)
+			assertEquals("The calls must be executed in parallel", Boolean.TRUE, futures[i].get());
+		long deadline = System.currentTimeMillis() + 5000;
+		while (completed.size() < futures.length && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(futures.length, completed.size());
+		for (int i = 0; i < futures.length; i++)
+			assertTrue(futures[i].isDone());
+	}
+
+	/**
+	 * Tests that the calls of a batch get their own results and that a
+	 * failed call doesn't affect the others.
+	 */
+	public void testBatch() throws Exception {
+		RemoteMethod echo = getMethod("echo", String.class);
+		PMPBatch batch = connection.createBatch();
+		PMPFuture[] futures = new PMPFuture[200];
+		for (int i = 0; i < futures.length; i++)
+			futures[i] = batch.add(echo, new Object[] { "batch" + i }, true);
+		PMPFuture failed = batch.add(echo, new Object[] { new Integer(1) }, true);
+		assertEquals(futures.length + 1, batch.size());
+		batch.send();
+		for (int i = 0; i < futures.length; i++)
+			assertEquals("batch" + i, futures[i].get());
+		try {
+			failed.get();
+			fail("The call with wrong argument must fail");
+		} catch (PMPException e) {
+			// expected
+		}
+		try {
+			batch.send();
+			fail("A batch must be sent only once");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			batch.add(echo, new Object[] { "late" }, true);
+			fail("Calls can't be added to a sent batch");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Tests that streams are refused as arguments of batched calls.
+	 */
+	public void testBatchRejectsStreams() throws Exception {
+		RemoteMethod consume = getMethod("consume", InputStream.class);
+		PMPBatch batch = connection.createBatch();
+		try {
+			batch.add(consume, new Object[] { new ByteArrayInputStream(new byte[10]) }, true);
+			fail("Streams can't be passed in a batch");
+		} catch (PMPException e) {
+			// expected
+		}
+		assertEquals(0, batch.size());
+	}
+
+	/**
+	 * Tests that the class names are sent only once per session and later
+	 * calls with the same types send less data.
+	 */
+	public void testInternedNames() throws Exception {
+		RemoteMethod echo = getMethod("echo", String.class);
+		long first = measureCall(echo, "value");
+		long second = measureCall(echo, "value");
+		assertTrue("The names must not be sent again: " + first + " / " + second,
+			second + String.class.getName().length() <= first);
+		for (int i = 0; i < 10; i++)
+			assertEquals(second, measureCall(echo, "value"));
+	}
+
+	private long measureCall(RemoteMethod method, Object arg) throws Exception {
+		long before = transport.getWritten() + transport.getRead();
+		Object result = method.invoke(new Object[] { arg }, true);
+		if (arg instanceof byte[])
+			assertTrue(Arrays.equals((byte[]) arg, (byte[]) result));
+		else
+			assertEquals(arg, result);
+		return transport.getWritten() + transport.getRead() - before;
+	}
+
+	/**
+	 * Tests that compressible data is sent in compressed frames and that
+	 * incompressible data is not inflated.
+	 */
+	public void testCompressedFrames() throws Exception {
+		RemoteMethod echo = getMethod("echoBytes", byte[].class);
+		byte[] data = new byte[1024 * 1024];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) ("compressible content ".charAt(i % 21));
+		long sent = measureCall(echo, data);
+		assertTrue("The data must be compressed: " + sent, sent < data.length / 10);
+
+		new Random(20090601).nextBytes(data);
+		sent = measureCall(echo, data);
+		assertTrue("The data must not be inflated: " + sent, sent < data.length * 2 + data.length / 100);
+	}
+
+	/**
+	 * Delays every read, while the delay is set.
+	 */
+	private static class SlowInputStream extends FilterInputStream {
+		volatile int delay = 5;
+
+		SlowInputStream(InputStream in) {
+			super(in);
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted");
+				}
+			}
+			return super.read(b, off, Math.min(len, 4096));
+		}
+	}
+}
@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.tests;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import org.tigris.mtoolkit.iagent.pmp.EventListener;
+import org.tigris.mtoolkit.iagent.pmp.PMPConnection;
+
+public class PMPEventsTest extends PMPTestCase {
+
+	private static final String TYPE = "test.event";
+	private static final String OTHER_TYPE = "test.other.event";
+	private static final String PROBE_KEY = "probe";
+
+	/**
+	 * Tests that the events of a batch reach only the listeners of their type
+	 * and keep their order, also when mixed with single events.
+	 */
+	public void testEventBatches() throws Exception {
+		RecordingListener listener = new RecordingListener();
+		addListener(listener, TYPE);
+		Object[] events = new Object[500];
+		String[] types = new String[events.length];
+		int expected = 0;
+		for (int i = 0; i < events.length; i++) {
+			events[i] = createEvent(i);
+			types[i] = i % 5 == 0 ? OTHER_TYPE : TYPE;
+			if (types[i] == TYPE)
+				expected++;
+		}
+		server.events(events, types);
+		server.event(createEvent(events.length), TYPE);
+		expected++;
+		listener.waitForEvents(expected);
+		Thread.sleep(100);
+		assertEquals(expected, listener.events.size());
+		int previous = -1;
+		for (int i = 0; i < listener.events.size(); i++) {
+			int index = getIndex(listener.events.elementAt(i));
+			assertTrue("The events must keep their order", index > previous);
+			assertTrue("Only the events of the listened type must be received", index % 5 != 0
+					|| index == events.length);
+			previous = index;
+		}
+	}
+
+	/**
+	 * Tests that the queued events are dropped and the listeners are notified
+	 * about it, when the listeners can't keep up with the received events.
+	 */
+	public void testSlowListener() throws Exception {
+		RecordingListener listener = new RecordingListener();
+		connection.addEventListener(listener, new String[] { PMPConnection.EVENTS_LOST });
+		addListener(listener, TYPE);
+		listener.block();
+		int count = 6000;
+		Object[] events = new Object[100];
+		String[] types = new String[events.length];
+		for (int i = 0; i < count; i += events.length) {
+			for (int j = 0; j < events.length; j++) {
+				events[j] = createEvent(i + j);
+				types[j] = TYPE;
+			}
+			server.events(events, types);
+		}
+		// wait until all events are received by the client
+		long received;
+		do {
+			received = transport.getRead();
+			Thread.sleep(300);
+		} while (received != transport.getRead());
+		listener.release();
+
+		listener.waitForEvents(count - 4096);
+		Thread.sleep(100);
+		assertTrue("The queued events must be dropped: " + listener.events.size(), listener.events.size() < count);
+		assertEquals(1, listener.lost);
+		assertEquals(0, getIndex(listener.events.elementAt(0)));
+		assertEquals(count - 1, getIndex(listener.events.lastElement()));
+	}
+
+	/**
+	 * Tests that the listeners of the same type receive only the events
+	 * matching their own filters, though the remote side sends the events
+	 * matching any of them.
+	 */
+	public void testFilteredListeners() throws Exception {
+		RecordingListener low = new RecordingListener();
+		addListener(low, TYPE, "(index<=4)");
+		RecordingListener high = new RecordingListener();
+		addListener(high, TYPE, "(index>=95)");
+		Object[] events = new Object[100];
+		String[] types = new String[events.length];
+		for (int i = 0; i < events.length; i++) {
+			events[i] = createEvent(i);
+			types[i] = TYPE;
+		}
+		server.events(events, types);
+		low.waitForEvents(5);
+		high.waitForEvents(5);
+		Thread.sleep(100);
+		assertEquals(5, low.events.size());
+		assertEquals(5, high.events.size());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(i, getIndex(low.events.elementAt(i)));
+			assertEquals(95 + i, getIndex(high.events.elementAt(i)));
+		}
+		try {
+			connection.addEventListener(new RecordingListener(), new String[] { TYPE }, "(index<=");
+			fail("Invalid filter must be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	private void addListener(RecordingListener listener, String type) throws InterruptedException {
+		addListener(listener, type, null);
+	}
+
+	private void addListener(RecordingListener listener, String type, String filter) throws InterruptedException {
+		// the probe events must pass the filter
+		connection.addEventListener(listener, new String[] { type }, filter == null ? null : "(|(" + PROBE_KEY
+				+ "=true)" + filter + ")");
+		// the listener is registered asynchronously, wait until it gets events
+		Hashtable probe = new Hashtable();
+		probe.put(PROBE_KEY, Boolean.TRUE);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!listener.registered) {
+			if (System.currentTimeMillis() > deadline)
+				fail("The listener must be registered");
+			server.event(probe, type);
+			Thread.sleep(20);
+		}
+	}
+
+	private static Hashtable createEvent(int index) {
+		Hashtable event = new Hashtable();
+		event.put("index", new Integer(index));
+		return event;
+	}
+
+	private static int getIndex(Object event) {
+		return ((Integer) ((Dictionary) event).get("index")).intValue();
+	}
+
+	private static class RecordingListener implements EventListener {
+		final Vector events = new Vector();
+		final Vector types = new Vector();
+		volatile boolean registered;
+		int lost;
+		private boolean blocked;
+
+		public void event(Object event, String type) {
+			if (event instanceof Dictionary && ((Dictionary) event).get(PROBE_KEY) != null) {
+				registered = true;
+				return;
+			}
+			synchronized (this) {
+				if (PMPConnection.EVENTS_LOST.equals(type)) {
+					lost++;
+					return;
+				}
+				events.addElement(event);
+				types.addElement(type);
+				notifyAll();
+				while (blocked) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}
+
+		synchronized void block() {
+			blocked = true;
+		}
+
+		synchronized void release() {
+			blocked = false;
+			notifyAll();
+		}
+
+		synchronized void waitForEvents(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 10000;
+			while (events.size() < count) {
+				long timeout = deadline - System.currentTimeMillis();
+				if (timeout <= 0)
+					fail("Expected " + count + " events, but received " + events.size());
+				wait(timeout);
+			}
+		}
+	}
+}
@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.tests;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Hashtable;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.tigris.mtoolkit.iagent.internal.pmp.PMPServiceImpl;
+import org.tigris.mtoolkit.iagent.internal.pmp.Server;
+import org.tigris.mtoolkit.iagent.pmp.PMPConnection;
+import org.tigris.mtoolkit.iagent.pmp.PMPException;
+import org.tigris.mtoolkit.iagent.pmp.PMPServerFactory;
+import org.tigris.mtoolkit.iagent.pmp.PMPService;
+import org.tigris.mtoolkit.iagent.pmp.RemoteMethod;
+import org.tigris.mtoolkit.iagent.pmp.RemoteObject;
+import org.tigris.mtoolkit.iagent.rpc.Remote;
+import org.tigris.mtoolkit.iagent.transport.Transport;
+import org.tigris.mtoolkit.iagent.transport.TransportConnection;
+import org.tigris.mtoolkit.iagent.transport.TransportType;
+import org.tigris.mtoolkit.iagent.transport.socket.SocketTransport;
+
+/**
+ * Runs a PMP server and connects a PMP client to it in the same VM. The server
+ * provides a single {@link TestService}, backed by a fake bundle context. The
+ * bytes, sent and received by the client, are counted.
+ */
+public abstract class PMPTestCase extends TestCase {
+
+	public interface TestService {
+		String echo(String value);
+
+		byte[] echoBytes(byte[] value);
+
+		int consume(InputStream input) throws IOException;
+
+		String consumeBefore(InputStream input, String tail) throws IOException;
+
+		boolean await(int calls, long timeout) throws InterruptedException;
+	}
+
+	public static class TestServiceImpl implements TestService, Remote {
+		private int arrived;
+
+		public String echo(String value) {
+			return value;
+		}
+
+		public byte[] echoBytes(byte[] value) {
+			return value;
+		}
+
+		public int consume(InputStream input) throws IOException {
+			byte[] buf = new byte[4096];
+			int total = 0;
+			int read;
+			while ((read = input.read(buf)) != -1)
+				total += read;
+			input.close();
+			return total;
+		}
+
+		public String consumeBefore(InputStream input, String tail) throws IOException {
+			return consume(input) + ":" + tail;
+		}
+
+		/**
+		 * Blocks the call until the given number of calls to this method have
+		 * arrived, so the calls can return only if they are executed in
+		 * parallel.
+		 * 
+		 * @return false, if the calls haven't arrived in the given time
+		 */
+		public synchronized boolean await(int calls, long timeout) throws InterruptedException {
+			arrived++;
+			notifyAll();
+			long deadline = System.currentTimeMillis() + timeout;
+			while (arrived < calls) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					return false;
+				wait(remaining);
+			}
+			return true;
+		}
+
+		public Class[] remoteInterfaces() {
+			return new Class[] { TestService.class };
+		}
+	}
+
+	protected Server server;
+	protected PMPServiceImpl client;
+	protected CountingTransport transport;
+	protected PMPConnection connection;
+	protected RemoteObject service;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		Hashtable config = new Hashtable();
+		config.put(PMPServerFactory.MAX_ARRAY, new Integer(-1));
+		config.put(PMPServerFactory.MAX_STRING, new Integer(-1));
+		config.put(Server.PORT, new Integer(20000 + new Random().nextInt(10000)));
+		server = createServer(createContext(new TestServiceImpl()), config);
+		client = new PMPServiceImpl();
+		transport = new CountingTransport(new SocketTransport(null, "127.0.0.1"));
+		connection = connect(transport);
+		service = connection.getReference(TestService.class.getName(), null);
+	}
+
+	protected void tearDown() throws Exception {
+		if (connection != null)
+			connection.disconnect("Test finished");
+		if (client != null)
+			client.destroy();
+		if (server != null)
+			server.close();
+		super.tearDown();
+	}
+
+	protected Server createServer(BundleContext context, Hashtable config) throws IOException {
+		return new Server(context, config);
+	}
+
+	/**
+	 * Opens a new client connection to the server.
+	 */
+	protected PMPConnection connect(Transport transport) throws PMPException {
+		Hashtable properties = new Hashtable();
+		properties.put(PMPService.PROP_PMP_PORT, server.getProperties().get(Server.PORT));
+		return client.connect(transport, properties);
+	}
+
+	protected RemoteMethod getMethod(String name, Class argType) throws Exception {
+		return service.getMethod(name, new String[] { argType.getName() });
+	}
+
+	/**
+	 * Returns a bundle context, which provides only the given service.
+	 */
+	private static BundleContext createContext(final Object service) {
+		ClassLoader loader = PMPTestCase.class.getClassLoader();
+		final ServiceReference reference = (ServiceReference) Proxy.newProxyInstance(loader,
+			new Class[] { ServiceReference.class }, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					return invokeObjectMethod(proxy, method, args);
+				}
+			});
+		return (BundleContext) Proxy.newProxyInstance(loader, new Class[] { BundleContext.class },
+			new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					String name = method.getName();
+					if (name.equals("getServiceReferences") || name.equals("getAllServiceReferences"))
+						return new ServiceReference[] { reference };
+					if (name.equals("getService"))
+						return service;
+					if (name.equals("ungetService"))
+						return Boolean.TRUE;
+					return invokeObjectMethod(proxy, method, args);
+				}
+			});
+	}
+
+	private static Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+		if (name.equals("hashCode"))
+			return new Integer(System.identityHashCode(proxy));
+		if (name.equals("equals"))
+			return Boolean.valueOf(proxy == args[0]);
+		if (name.equals("toString"))
+			return proxy.getClass().getName();
+		return null;
+	}
+
+	/**
+	 * Counts the bytes, written and read through the connections of a
+	 * transport.
+	 */
+	protected static class CountingTransport implements Transport {
+		private final Transport transport;
+		private long written;
+		private long read;
+
+		public CountingTransport(Transport transport) {
+			this.transport = transport;
+		}
+
+		public synchronized long getWritten() {
+			return written;
+		}
+
+		public synchronized long getRead() {
+			return read;
+		}
+
+		synchronized void count(long writtenBytes, long readBytes) {
+			written += writtenBytes;
+			read += readBytes;
+		}
+
+		public TransportConnection createConnection(int port) throws IOException {
+			final TransportConnection connection = transport.createConnection(port);
+			return new TransportConnection() {
+				public InputStream getInputStream() throws IOException {
+					return new FilterInputStream(connection.getInputStream()) {
+						public int read() throws IOException {
+							int b = super.read();
+							if (b != -1)
+								count(0, 1);
+							return b;
+						}
+
+						public int read(byte[] b, int off, int len) throws IOException {
+							int n = super.read(b, off, len);
+							if (n > 0)
+								count(0, n);
+							return n;
+						}
+					};
+				}
+
+				public OutputStream getOutputStream() throws IOException {
+					return new FilterOutputStream(connection.getOutputStream()) {
+						public void write(int b) throws IOException {
+							out.write(b);
+							count(1, 0);
+						}
+
+						public void write(byte[] b, int off, int len) throws IOException {
+							out.write(b, off, len);
+							count(len, 0);
+						}
+					};
+				}
+
+				public boolean isClosed() {
+					return connection.isClosed();
+				}
+
+				public void close() {
+					connection.close();
+				}
+			};
+		}
+
+		public TransportType getType() {
+			return transport.getType();
+		}
+
+		public String getId() {
+			return transport.getId();
+		}
+
+		public void dispose() {
+			transport.dispose();
+		}
+
+		public boolean isDisposed() {
+			return transport.isDisposed();
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2009 ProSyst Software GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ProSyst Software GmbH - initial API and implementation
+ *******************************************************************************/
+package org.tigris.mtoolkit.iagent.tests;
+
+import java.io.IOException;
+import java.util.Hashtable;
+
+import org.osgi.framework.BundleContext;
+import org.tigris.mtoolkit.iagent.internal.pmp.Server;
+import org.tigris.mtoolkit.iagent.pmp.PMPConnection;
+import org.tigris.mtoolkit.iagent.pmp.RemoteMethod;
+import org.tigris.mtoolkit.iagent.transport.socket.SocketTransport;
+
+/**
+ * Runs the connection tests against a server in selector mode.
+ */
+public class SelectorPMPConnectionTest extends PMPConnectionTest {
+
+	private static final String SELECTOR_PROPERTY = "iagent.pmp.selector";
+
+	protected Server createServer(BundleContext context, Hashtable config) throws IOException {
+		String value = System.getProperty(SELECTOR_PROPERTY);
+		System.setProperty(SELECTOR_PROPERTY, "true");
+		try {
+			return super.createServer(context, config);
+		} finally {
+			if (value == null)
+				System.getProperties().remove(SELECTOR_PROPERTY);
+			else
+				System.setProperty(SELECTOR_PROPERTY, value);
+		}
+	}
+
+	/**
+	 * Tests that the server serves many connections at the same time.
+	 */
+	public void testManyConnections() throws Exception {
+		final PMPConnection[] connections = new PMPConnection[30];
+		final Object[] results = new Object[connections.length];
+		Thread[] threads = new Thread[connections.length];
+		SocketTransport socketTransport = new SocketTransport(null, "127.0.0.1");
+		try {
+			for (int i = 0; i < connections.length; i++)
+				connections[i] = connect(socketTransport);
+			for (int i = 0; i < threads.length; i++) {
+				final int index = i;
+				threads[i] = new Thread() {
+					public void run() {
+						try {
+							RemoteMethod echo = connections[index].getReference(TestService.class.getName(), null)
+									.getMethod("echo", new String[] { String.class.getName() });
+							for (int j = 0; j < 20; j++)
+								results[index] = echo.invoke(new Object[] { "connection" + index }, true);
+						} catch (Exception e) {
+							results[index] = e;
+						}
+					}
+				};
+				threads[i].start();
+			}
+			for (int i = 0; i < threads.length; i++) {
+				threads[i].join(30000);
+				assertEquals("connection" + i, results[i]);
+			}
+		} finally {
+			for (int i = 0; i < connections.length; i++) {
+				if (connections[i] != null)
+					connections[i].disconnect("Test finished");
+			}
+			socketTransport.dispose();
+		}
+	}
+}
@@ -10,6 +10,10 @@
  *******************************************************************************/
 package org.tigris.mtoolkit.iagent.tests;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
@@ -131,6 +135,127 @@ public class ThreadPoolTest extends TestCase {
 		assertTrue("Second thread must be done", isDone(1, reg));
 	}
 
+	/**
+	 * Tests that the offered work is rejected when the queue is full, while
+	 * the enqueued work isn't subject to the limit.
+	 */
+	public void testBoundedQueue() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger done = new AtomicInteger();
+		ThreadPool pool = new ThreadPool(1, 1, 2, 1000, ThreadPool.OPTION_NONE);
+		try {
+			pool.enqueueWork(new Blocker(release, done));
+			waitForQueueDepth(pool, 0);
+			assertTrue(pool.offerWork("owner", new Blocker(release, done)));
+			assertTrue(pool.offerWork("owner", new Blocker(release, done)));
+			assertFalse("Work must be rejected when the queue is full", pool.offerWork("owner", new Blocker(release,
+				done)));
+			assertEquals(1, pool.getRejectedCount());
+			pool.enqueueWork(new Blocker(release, done));
+			assertEquals(3, pool.getQueueDepth());
+			assertEquals(3, pool.getPeakQueueDepth());
+
+			release.countDown();
+			pool.join();
+			assertEquals("Only the accepted work must be executed", 4, done.get());
+		} finally {
+			pool.stop();
+		}
+	}
+
+	/**
+	 * Tests that no more than the maximum number of workers run at the same
+	 * time and that the pool grows up to it under load.
+	 */
+	public void testMaxWorkers() throws InterruptedException {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger peak = new AtomicInteger();
+		ThreadPool pool = new ThreadPool(0, 3, 100, 1000, ThreadPool.OPTION_NONE);
+		try {
+			for (int i = 0; i < 20; i++) {
+				pool.enqueueWork(new Runnable() {
+					public void run() {
+						int current = running.incrementAndGet();
+						int max;
+						while ((max = peak.get()) < current && !peak.compareAndSet(max, current))
+							;
+						sleep(50);
+						running.decrementAndGet();
+					}
+				});
+			}
+			pool.join();
+			assertEquals("The pool must use all of its workers", 3, peak.get());
+		} finally {
+			pool.stop();
+		}
+	}
+
+	/**
+	 * Tests that a busy owner doesn't delay the work of the other owners.
+	 */
+	public void testRoundRobinOwners() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		final List order = Collections.synchronizedList(new ArrayList());
+		ThreadPool pool = new ThreadPool(1, 1, 100, 1000, ThreadPool.OPTION_NONE);
+		try {
+			pool.enqueueWork(new Blocker(release, new AtomicInteger()));
+			waitForQueueDepth(pool, 0);
+			for (int i = 0; i < 5; i++)
+				pool.offerWork("busy", new Recorder("busy" + i, order));
+			pool.offerWork("other", new Recorder("other", order));
+			release.countDown();
+			pool.join();
+			assertEquals(6, order.size());
+			assertEquals("The other owner must be served after the first work of the busy owner", 1, order
+					.indexOf("other"));
+		} finally {
+			pool.stop();
+		}
+	}
+
+	private static void waitForQueueDepth(ThreadPool pool, int depth) {
+		long start = System.currentTimeMillis();
+		while (pool.getQueueDepth() != depth) {
+			if (System.currentTimeMillis() - start > 5000)
+				fail("Queue depth must reach " + depth + ": " + pool);
+			sleep(10);
+		}
+	}
+
+	private static class Blocker implements Runnable {
+		private final CountDownLatch release;
+		private final AtomicInteger done;
+
+		public Blocker(CountDownLatch release, AtomicInteger done) {
+			this.release = release;
+			this.done = done;
+		}
+
+		public void run() {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+			done.incrementAndGet();
+		}
+	}
+
+	private static class Recorder implements Runnable {
+		private final String name;
+		private final List order;
+
+		public Recorder(String name, List order) {
+			this.name = name;
+			this.order = order;
+		}
+
+		public void run() {
+			order.add(name);
+		}
+	}
+
 	private static void sleep(int duration) {
 		long start = System.currentTimeMillis();
 		long elapsedTime;